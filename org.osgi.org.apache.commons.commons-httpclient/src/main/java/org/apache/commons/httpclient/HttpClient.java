@@ -31,8 +31,17 @@
 package org.apache.commons.httpclient;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.security.Provider;
 import java.security.Security;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.slf4j.Logger;
@@ -193,6 +202,11 @@ public class HttpClient {
      */
     private HostConfiguration hostConfiguration = new HostConfiguration();
 
+    /**
+     * The executor running the methods executed asynchronously, created on demand
+     */
+    private Executor executor = null;
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -376,6 +390,174 @@ public class HttpClient {
         if (method == null) {
             throw new IllegalArgumentException("HttpMethod parameter may not be null");
         }
+        hostconfig = getEffectiveHostConfiguration(hostconfig, method);
+
+        HttpMethodDirector methodDirector = new HttpMethodDirector(
+                getHttpConnectionManager(),
+                hostconfig,
+                this.params,
+                (state == null ? getState() : state));
+        methodDirector.executeMethod(method);
+        return method.getStatusCode();
+    }
+
+    /**
+     * Executes the given {@link HttpMethod HTTP method} asynchronously.
+     *
+     * @param method the {@link HttpMethod HTTP method} to execute.
+     * @return a {@link Future} of the method's response code
+     *
+     * @see #executeMethodAsync(HostConfiguration, HttpMethod, HttpState, HttpMethodCallback)
+     *
+     * @since 3.1
+     */
+    public Future executeMethodAsync(HttpMethod method) {
+
+        LOG.trace("enter HttpClient.executeMethodAsync(HttpMethod)");
+        return executeMethodAsync(null, method, null, null);
+    }
+
+    /**
+     * Executes the given {@link HttpMethod HTTP method} asynchronously, calling the given
+     * callback with its outcome.
+     *
+     * @param method the {@link HttpMethod HTTP method} to execute.
+     * @param callback the callback to call, or <code>null</code>
+     * @return a {@link Future} of the method's response code
+     *
+     * @see #executeMethodAsync(HostConfiguration, HttpMethod, HttpState, HttpMethodCallback)
+     *
+     * @since 3.1
+     */
+    public Future executeMethodAsync(HttpMethod method, HttpMethodCallback callback) {
+
+        LOG.trace("enter HttpClient.executeMethodAsync(HttpMethod,HttpMethodCallback)");
+        return executeMethodAsync(null, method, null, callback);
+    }
+
+    /**
+     * Executes the given {@link HttpMethod HTTP method} asynchronously, using the given
+     * custom {@link HostConfiguration host configuration} with the given custom
+     * {@link HttpState HTTP state}. This method doesn't block: the method is executed
+     * on the {@link #getExecutor() executor} of this client, as by {@link
+     * #executeMethod(HostConfiguration, HttpMethod, HttpState)}. By default the execution
+     * is made of blocking calls, so an executor thread is held until the response has
+     * arrived, including while the server is slow to answer.
+     *
+     * <p>With a {@link MultiThreadedHttpConnectionManager}, the connection is {@link
+     * MultiThreadedHttpConnectionManager#requestConnection(HostConfiguration, long,
+     * MultiThreadedHttpConnectionManager.ConnectionListener) requested} first, and the
+     * method is handed over to the executor only once it has got one: the methods waiting
+     * for a connection don't hold any thread. The wait is limited by the {@link
+     * HttpClientParams#getConnectionManagerTimeout() connection manager timeout}.</p>
+     *
+     * <p>With a {@link HttpClientParams#CONNECTION_SELECTOR connection selector}, the
+     * responses are waited for on the selector, as by {@link
+     * HttpMethodDirector#executeMethod(HttpMethod, HttpConnectionSelector, HttpMethodCallback)}:
+     * the executor thread is given back once the request has been sent, and the response is
+     * read on the executor of the selector once it has started to arrive. Opening the
+     * connection, writing the request, reading the response and getting a connection for
+     * a redirect to another host are still blocking calls, and the connections without a
+     * socket channel are executed by blocking calls only.</p>
+     *
+     * <p>Once the method has completed, its response body must be read and its connection
+     * released with {@link HttpMethod#releaseConnection()}, as after a synchronous
+     * execution. Cancelling the future with interruption aborts the method.</p>
+     *
+     * @param hostconfig The {@link HostConfiguration host configuration} to use.
+     * If <code>null</code>, the host configuration returned by {@link #getHostConfiguration} will be used.
+     * @param method the {@link HttpMethod HTTP method} to execute.
+     * @param state the {@link HttpState HTTP state} to use when executing the method.
+     * If <code>null</code>, the state returned by {@link #getState} will be used.
+     * @param callback the callback to call with the outcome, or <code>null</code>
+     *
+     * @return a {@link Future} of the method's response code, as an {@link Integer}. Its
+     * <code>get</code> methods throw an {@link ExecutionException} wrapping the exception
+     * thrown by the execution, or the {@link URIException} if the URI of the method is
+     * invalid.
+     *
+     * @since 3.1
+     */
+    public Future executeMethodAsync(HostConfiguration hostconfig,
+        final HttpMethod method, final HttpState state, final HttpMethodCallback callback) {
+
+        LOG.trace("enter HttpClient.executeMethodAsync(HostConfiguration,HttpMethod,HttpState,HttpMethodCallback)");
+
+        if (method == null) {
+            throw new IllegalArgumentException("HttpMethod parameter may not be null");
+        }
+        try {
+            hostconfig = getEffectiveHostConfiguration(hostconfig, method);
+        } catch (URIException e) {
+            MethodFuture future = new MethodFuture(method, null, null, callback);
+            future.fail(e);
+            return future;
+        }
+
+        HttpConnectionManager connectionManager = getHttpConnectionManager();
+        final HttpMethodDirector methodDirector = new HttpMethodDirector(
+                connectionManager,
+                hostconfig,
+                this.params,
+                (state == null ? getState() : state));
+        final MethodFuture future = new MethodFuture(method, methodDirector,
+            this.params.getConnectionSelector(), callback);
+        final Executor executor = getExecutor();
+
+        if (connectionManager instanceof MultiThreadedHttpConnectionManager) {
+            ((MultiThreadedHttpConnectionManager) connectionManager).requestConnection(
+                hostconfig,
+                this.params.getConnectionManagerTimeout(),
+                new MultiThreadedHttpConnectionManager.ConnectionListener() {
+                    public void connectionAvailable(HttpConnection connection) {
+                        future.setPreparedConnection(connection);
+                        if (future.isDone()) {
+                            // cancelled while waiting for the connection
+                            future.releasePreparedConnection();
+                            return;
+                        }
+                        submit(executor, future);
+                    }
+
+                    public void connectionFailed(Exception exception) {
+                        future.fail(exception);
+                    }
+                });
+        } else {
+            submit(executor, future);
+        }
+        return future;
+    }
+
+    /**
+     * Hands over a method to the executor, failing it if it is rejected.
+     *
+     * @param executor the executor
+     * @param future the future of the method
+     */
+    private static void submit(Executor executor, MethodFuture future) {
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Executor rejected the method", e);
+            future.releasePreparedConnection();
+            future.fail(e);
+        }
+    }
+
+    /**
+     * Gets the host configuration to execute a method with.
+     *
+     * @param hostconfig the given host configuration, or <code>null</code> to use the
+     * default one
+     * @param method the method to execute
+     * @return the host configuration
+     *
+     * @throws URIException if the URI of the method is invalid
+     */
+    private HostConfiguration getEffectiveHostConfiguration(HostConfiguration hostconfig,
+        final HttpMethod method) throws URIException {
+
         HostConfiguration defaulthostconfig = getHostConfiguration();
         if (hostconfig == null) {
             hostconfig = defaulthostconfig;
@@ -388,14 +570,7 @@ public class HttpClient {
                 hostconfig.setHost(uri);
             }
         }
-
-        HttpMethodDirector methodDirector = new HttpMethodDirector(
-                getHttpConnectionManager(),
-                hostconfig,
-                this.params,
-                (state == null ? getState() : state));
-        methodDirector.executeMethod(method);
-        return method.getStatusCode();
+        return hostconfig;
     }
 
     /**
@@ -499,4 +674,221 @@ public class HttpClient {
         this.params = params;
     }
 
+    /**
+     * Returns the executor running the methods executed asynchronously. Unless one has
+     * been set, an executor starting a virtual thread for each method is created when
+     * the JRE supports them, or else a pool of daemon threads.
+     *
+     * @return the executor
+     *
+     * @since 3.1
+     */
+    public synchronized Executor getExecutor() {
+        if (this.executor == null) {
+            this.executor = createDefaultExecutor();
+        }
+        return this.executor;
+    }
+
+    /**
+     * Assigns the executor running the methods executed asynchronously.
+     *
+     * @param executor the executor
+     *
+     * @since 3.1
+     */
+    public synchronized void setExecutor(final Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor may not be null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Creates the default executor for the methods executed asynchronously.
+     *
+     * @return an executor of virtual threads, or a pool of daemon threads if the JRE
+     * doesn't support them
+     */
+    private static Executor createDefaultExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+            return (Executor) factory.invoke(null, new Object[0]);
+        } catch (Exception e) {
+            LOG.debug("Virtual threads not available, using a thread pool");
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HttpClient async execution");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * The future of a method executed asynchronously.
+     */
+    private static class MethodFuture extends FutureTask {
+
+        private final HttpMethod method;
+
+        private final HttpMethodDirector methodDirector;
+
+        /** The selector to wait for the responses on, or <code>null</code> to block */
+        private final HttpConnectionSelector selector;
+
+        private final HttpMethodCallback callback;
+
+        /** The connection obtained for the method, until it is run. Guarded by the monitor of this object */
+        private HttpConnection preparedConnection;
+
+        public MethodFuture(final HttpMethod method, final HttpMethodDirector methodDirector,
+            final HttpConnectionSelector selector, final HttpMethodCallback callback) {
+            this(method, methodDirector, selector, callback, new MethodCall(method, methodDirector));
+        }
+
+        private MethodFuture(final HttpMethod method, final HttpMethodDirector methodDirector,
+            final HttpConnectionSelector selector, final HttpMethodCallback callback,
+            final MethodCall call) {
+            super(call);
+            call.future = this;
+            this.method = method;
+            this.methodDirector = methodDirector;
+            this.selector = selector;
+            this.callback = callback;
+        }
+
+        /**
+         * Executes the method. With a selector, this method returns once the request has
+         * been sent, and the future is completed on the executor of the selector.
+         */
+        public void run() {
+            if (selector == null) {
+                super.run();
+                return;
+            }
+            if (isDone()) {
+                releasePreparedConnection();
+                return;
+            }
+            HttpConnection connection = takePreparedConnection();
+            if (connection != null) {
+                methodDirector.setPreparedConnection(connection);
+            }
+            try {
+                methodDirector.executeMethod(method, selector, new HttpMethodCallback() {
+                    public void completed(HttpMethod method) {
+                        set(new Integer(method.getStatusCode()));
+                    }
+
+                    public void failed(HttpMethod method, Throwable cause) {
+                        setException(cause);
+                    }
+
+                    public void cancelled(HttpMethod method) {
+                        // not called by the method director
+                    }
+                });
+            } catch (RuntimeException e) {
+                setException(e);
+            }
+        }
+
+        /**
+         * The task run by a {@link MethodFuture}.
+         */
+        private static class MethodCall implements Callable {
+
+            private final HttpMethod method;
+
+            private final HttpMethodDirector methodDirector;
+
+            private MethodFuture future;
+
+            public MethodCall(final HttpMethod method, final HttpMethodDirector methodDirector) {
+                this.method = method;
+                this.methodDirector = methodDirector;
+            }
+
+            public Object call() throws Exception {
+                HttpConnection connection = future.takePreparedConnection();
+                if (connection != null) {
+                    methodDirector.setPreparedConnection(connection);
+                }
+                methodDirector.executeMethod(method);
+                return new Integer(method.getStatusCode());
+            }
+        }
+
+        /**
+         * Sets the connection obtained for the method.
+         *
+         * @param connection the connection
+         */
+        public synchronized void setPreparedConnection(HttpConnection connection) {
+            this.preparedConnection = connection;
+        }
+
+        /**
+         * Takes the connection obtained for the method, so that it is either used or
+         * released only once.
+         *
+         * @return the connection, or <code>null</code> if already taken
+         */
+        public synchronized HttpConnection takePreparedConnection() {
+            HttpConnection connection = this.preparedConnection;
+            this.preparedConnection = null;
+            return connection;
+        }
+
+        /**
+         * Releases the connection obtained for a method that won't be run.
+         */
+        public void releasePreparedConnection() {
+            HttpConnection connection = takePreparedConnection();
+            if (connection != null) {
+                connection.releaseConnection();
+            }
+        }
+
+        /**
+         * Fails the execution before it has started.
+         *
+         * @param cause the cause of the failure
+         */
+        public void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning) {
+                method.abort();
+            }
+            return cancelled;
+        }
+
+        protected void done() {
+            if (isCancelled()) {
+                releasePreparedConnection();
+            }
+            if (callback == null) {
+                return;
+            }
+            if (isCancelled()) {
+                callback.cancelled(method);
+                return;
+            }
+            try {
+                get();
+                callback.completed(method);
+            } catch (ExecutionException e) {
+                callback.failed(method, e.getCause());
+            } catch (InterruptedException e) {
+                // cannot happen, the task is done
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -40,6 +40,7 @@ import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 
 import org.apache.commons.httpclient.params.HttpConnectionParams;
 import org.apache.commons.httpclient.protocol.Protocol;
@@ -418,17 +419,20 @@ public class HttpConnection {
     }
 
     /**
-     * Closes the connection if stale.
+     * Closes the connection if stale. A connection released to its manager more
+     * recently than the {@link HttpConnectionParams#getStaleCheckingIdleThreshold()
+     * stale check idle threshold} is not tested.
      *
      * @return <code>true</code> if the connection was stale and therefore closed,
      * <code>false</code> otherwise.
      *
      * @see #isStale()
+     * @see #isStaleCheckNeeded()
      *
      * @since 3.0
      */
     public boolean closeIfStale() throws IOException {
-        if (isOpen && isStale()) {
+        if (isOpen && isStaleCheckNeeded() && isStale()) {
             LOG.debug("Connection is stale, closing...");
             close();
             return true;
@@ -436,6 +440,38 @@ public class HttpConnection {
         return false;
     }
 
+    /**
+     * Tests if {@link #closeIfStale()} would test this connection. It is not tested if it
+     * has been idle in its connection manager for no longer than the {@link
+     * HttpConnectionParams#getStaleCheckingIdleThreshold() stale check idle threshold}.
+     *
+     * @return <code>true</code> if the connection would be tested
+     *
+     * @since 3.1
+     */
+    public boolean isStaleCheckNeeded() {
+        int threshold = this.params.getStaleCheckingIdleThreshold();
+        return threshold <= 0 || lastReleaseTime == 0
+            || System.currentTimeMillis() - lastReleaseTime > threshold;
+    }
+
+    /**
+     * Records the time the connection has been given back to its manager, used to
+     * decide if the stale check is needed. Called by the connection managers.
+     */
+    void markReleased() {
+        this.lastReleaseTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the time the connection has been given back to its manager.
+     *
+     * @return the time in milliseconds, 0 if unknown
+     */
+    long getLastReleaseTime() {
+        return this.lastReleaseTime;
+    }
+
     /**
      * Tests if stale checking is enabled.
      *
@@ -879,6 +915,26 @@ public class HttpConnection {
         }
     }
 
+    /**
+     * Returns the channel of the socket of this connection, if it has been created through
+     * one, for example by a {@link
+     * org.apache.commons.httpclient.protocol.ChannelProtocolSocketFactory}.
+     *
+     * @return the socket channel, or <tt>null</tt> if the connection is not open or its
+     *         socket has no channel
+     *
+     * @see HttpConnectionSelector
+     *
+     * @since 3.1
+     */
+    public SocketChannel getSocketChannel() {
+        if (this.isOpen && this.socket != null) {
+            return this.socket.getChannel();
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Tests if input data becomes available within the given period time in milliseconds.
      *
@@ -1370,4 +1426,7 @@ public class HttpConnection {
 
     /** The local interface on which the connection is created, or null for the default */
     private InetAddress localAddress;
+
+    /** The time the connection was last given back to its manager, 0 if unknown */
+    private long lastReleaseTime = 0;
 }
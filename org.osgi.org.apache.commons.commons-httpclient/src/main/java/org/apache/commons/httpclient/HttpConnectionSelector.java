@@ -0,0 +1,470 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+
+package org.apache.commons.httpclient;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for the responses of many connections with a single thread, driven by a
+ * {@link Selector}. A method is sent with {@link HttpMethodBase#sendRequest(HttpState,
+ * HttpConnection)}, then the connection is handed to {@link #awaitResponse(HttpConnection,
+ * long, ResponseListener)}, and the listener is called on the executor once the response
+ * starts to arrive, so that it can be read with {@link HttpMethodBase#receiveResponse(HttpState,
+ * HttpConnection)} without blocking. No thread is held while the server is slow to answer.
+ *
+ * <pre>
+ * method.sendRequest(state, connection);
+ * selector.awaitResponse(connection, 30000, new HttpConnectionSelector.ResponseListener() {
+ *     public void responseAvailable(HttpConnection connection) {
+ *         method.receiveResponse(state, connection);
+ *         ...
+ *     }
+ *     ...
+ * });
+ * </pre>
+ *
+ * <p>The connections must have been opened with a socket created through a channel,
+ * see {@link org.apache.commons.httpclient.protocol.ChannelProtocolSocketFactory}.
+ * Their channel is switched to non-blocking mode while the connection waits, and back
+ * to blocking mode before the listener is called. Secure connections are layered over
+ * a plain socket and have no channel, so they can't be used with this class.</p>
+ *
+ * <p>Only the wait for the response is driven by the selector: the request is still
+ * written, and the response read, by blocking calls. Used directly, this class doesn't
+ * apply the authentication, redirect and retry handling of {@link
+ * HttpClient#executeMethod(HttpMethod)}: {@link HttpClient#executeMethodAsync(HttpMethod)}
+ * does when the selector is set as the {@link
+ * org.apache.commons.httpclient.params.HttpClientParams#CONNECTION_SELECTOR connection
+ * selector} of the client.</p>
+ *
+ * @since 3.1
+ */
+public class HttpConnectionSelector {
+
+    /**
+     * Receives the outcome of the wait for a response. The methods are called on the
+     * executor of the selector, once for each call to {@link
+     * HttpConnectionSelector#awaitResponse(HttpConnection, long, ResponseListener)}.
+     */
+    public interface ResponseListener {
+
+        /**
+         * Called when the response has started to arrive, or the server has closed the
+         * connection: reading the response won't wait for the server.
+         *
+         * @param connection the connection, back in blocking mode
+         */
+        void responseAvailable(HttpConnection connection);
+
+        /**
+         * Called when no response has arrived within the timeout. The request is still
+         * pending on the connection, which should be closed.
+         *
+         * @param connection the connection, back in blocking mode
+         */
+        void responseTimedOut(HttpConnection connection);
+
+        /**
+         * Called when the connection couldn't wait for the response, or the selector has
+         * been shut down.
+         *
+         * @param connection the connection
+         * @param exception the cause of the failure
+         */
+        void responseFailed(HttpConnection connection, IOException exception);
+    }
+
+    /** Log object for this class. */
+    private static final Logger LOG = LoggerFactory.getLogger(HttpConnectionSelector.class);
+
+    /**
+     * The longest time in milliseconds between two checks of the waiting connections: the
+     * key of a channel closed while waiting is never selected, and closing it doesn't wake
+     * the selector up.
+     */
+    private static final long CLOSED_CHECK_INTERVAL = 1000;
+
+    /** Orders the waits by deadline. */
+    private static final Comparator DEADLINE_COMPARATOR = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            long d1 = ((ResponseWait) o1).deadline;
+            long d2 = ((ResponseWait) o2).deadline;
+            return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+        }
+    };
+
+    /** The selector the connections are registered with */
+    private final Selector selector;
+
+    /** The executor the listeners are called on */
+    private final Executor executor;
+
+    /** The waits to register with the selector */
+    private final ConcurrentLinkedQueue pendingWaits = new ConcurrentLinkedQueue();
+
+    /** The registered waits not over yet. Only used by the selector thread */
+    private final Set registeredWaits = new HashSet();
+
+    /** The registered waits with a timeout, the earliest deadline first. Only used by the selector thread */
+    private final PriorityQueue deadlines = new PriorityQueue(16, DEADLINE_COMPARATOR);
+
+    /** The thread running the selector */
+    private final SelectorThread selectorThread;
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates a selector and starts its thread.
+     *
+     * @param executor the executor the listeners are called on
+     *
+     * @throws IOException if the selector can't be opened
+     */
+    public HttpConnectionSelector(Executor executor) throws IOException {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor may not be null");
+        }
+        this.executor = executor;
+        this.selector = Selector.open();
+        this.selectorThread = new SelectorThread();
+        this.selectorThread.start();
+    }
+
+    /**
+     * Waits for the response to the request sent over the given connection, and calls the
+     * listener when it arrives, when the timeout expires or when the wait fails. This method
+     * doesn't block.
+     *
+     * @param connection the open connection the request has been sent over
+     * @param timeout the maximum time to wait in milliseconds, <code>0</code> to wait forever
+     * @param listener the listener to call
+     *
+     * @throws IllegalArgumentException if the connection has no socket channel
+     * @throws IllegalStateException if the selector has been shut down
+     */
+    public void awaitResponse(HttpConnection connection, long timeout, ResponseListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener may not be null");
+        }
+        if (shutdown) {
+            throw new IllegalStateException("HttpConnectionSelector has been shutdown");
+        }
+        SocketChannel channel = connection.getSocketChannel();
+        if (channel == null) {
+            throw new IllegalArgumentException("Connection is not open or has no socket channel");
+        }
+
+        ResponseWait wait = new ResponseWait();
+        wait.connection = connection;
+        wait.channel = channel;
+        wait.listener = listener;
+        wait.deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+
+        try {
+            // buffered data would never make the channel readable again
+            if (connection.isResponseAvailable()) {
+                dispatch(wait, ResponseWait.AVAILABLE, null);
+                return;
+            }
+        } catch (IOException e) {
+            dispatch(wait, ResponseWait.FAILED, e);
+            return;
+        }
+
+        pendingWaits.add(wait);
+        if (shutdown && pendingWaits.remove(wait)) {
+            // the selector thread may already be gone
+            dispatch(wait, ResponseWait.FAILED,
+                new IOException("HttpConnectionSelector has been shutdown"));
+            return;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the selector thread. The connections still waiting are reported as failed.
+     */
+    public void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Registers the pending waits with the selector.
+     */
+    private void registerPendingWaits() {
+        ResponseWait wait;
+        while ((wait = (ResponseWait) pendingWaits.poll()) != null) {
+            try {
+                wait.channel.configureBlocking(false);
+                wait.key = wait.channel.register(selector, SelectionKey.OP_READ, wait);
+            } catch (IOException e) {
+                dispatch(wait, ResponseWait.FAILED, e);
+                continue;
+            }
+            registeredWaits.add(wait);
+            if (wait.deadline != Long.MAX_VALUE) {
+                deadlines.add(wait);
+            }
+        }
+    }
+
+    /**
+     * Gets the time to wait for the next event.
+     *
+     * @return the time in milliseconds until the earliest deadline or the next check of
+     * the waiting connections, <code>0</code> if no connection is waiting
+     */
+    private long getSelectTimeout() {
+        if (registeredWaits.isEmpty()) {
+            return 0;
+        }
+        ResponseWait wait;
+        while ((wait = (ResponseWait) deadlines.peek()) != null && wait.done) {
+            deadlines.poll();
+        }
+        if (wait == null) {
+            return CLOSED_CHECK_INTERVAL;
+        }
+        return Math.max(Math.min(wait.deadline - System.currentTimeMillis(), CLOSED_CHECK_INTERVAL), 1);
+    }
+
+    /**
+     * Cancels the keys of the ready and expired connections, and reports them once their
+     * channel is back in blocking mode. The connections closed while waiting, for instance
+     * by {@link HttpMethod#abort()}, are reported as failed.
+     */
+    private void processKeys() throws IOException {
+        failClosedConnections();
+        List finished = new ArrayList();
+        do {
+            Iterator iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = (SelectionKey) iter.next();
+                iter.remove();
+                ResponseWait wait = (ResponseWait) key.attachment();
+                if (!wait.done) {
+                    wait.done = true;
+                    wait.outcome = ResponseWait.AVAILABLE;
+                    key.cancel();
+                    registeredWaits.remove(wait);
+                    finished.add(wait);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            ResponseWait wait;
+            while ((wait = (ResponseWait) deadlines.peek()) != null
+                    && (wait.done || wait.deadline <= now)) {
+                deadlines.poll();
+                if (!wait.done) {
+                    wait.done = true;
+                    wait.outcome = ResponseWait.TIMED_OUT;
+                    wait.key.cancel();
+                    registeredWaits.remove(wait);
+                    finished.add(wait);
+                }
+            }
+
+            if (finished.isEmpty()) {
+                return;
+            }
+            // deregister the cancelled keys, so that the channels can block again
+            selector.selectNow();
+        } while (!selector.selectedKeys().isEmpty());
+
+        for (Iterator iter = finished.iterator(); iter.hasNext();) {
+            ResponseWait wait = (ResponseWait) iter.next();
+            try {
+                wait.channel.configureBlocking(true);
+                dispatch(wait, wait.outcome, null);
+            } catch (IOException e) {
+                dispatch(wait, ResponseWait.FAILED, e);
+            }
+        }
+    }
+
+    /**
+     * Reports the connections whose channel has been closed while waiting as failed: the
+     * key of a closed channel is cancelled without ever being selected.
+     */
+    private void failClosedConnections() {
+        if (registeredWaits.size() <= selector.keys().size()) {
+            return;
+        }
+        for (Iterator iter = registeredWaits.iterator(); iter.hasNext();) {
+            ResponseWait wait = (ResponseWait) iter.next();
+            if (!wait.key.isValid()) {
+                iter.remove();
+                wait.done = true;
+                dispatch(wait, ResponseWait.FAILED,
+                    new IOException("Connection closed while waiting for the response"));
+            }
+        }
+    }
+
+    /**
+     * Reports the connections still waiting as failed, after the selector has been shut
+     * down.
+     */
+    private void failAll() {
+        IOException exception = new IOException("HttpConnectionSelector has been shutdown");
+        List waits = new ArrayList();
+        try {
+            for (Iterator iter = selector.keys().iterator(); iter.hasNext();) {
+                SelectionKey key = (SelectionKey) iter.next();
+                ResponseWait wait = (ResponseWait) key.attachment();
+                if (!wait.done) {
+                    wait.done = true;
+                    waits.add(wait);
+                }
+            }
+            selector.close();
+        } catch (ClosedSelectorException e) {
+            // already closed
+        } catch (IOException e) {
+            LOG.debug("Error closing the selector", e);
+        }
+        ResponseWait wait;
+        while ((wait = (ResponseWait) pendingWaits.poll()) != null) {
+            waits.add(wait);
+        }
+        for (Iterator iter = waits.iterator(); iter.hasNext();) {
+            dispatch((ResponseWait) iter.next(), ResponseWait.FAILED, exception);
+        }
+    }
+
+    /**
+     * Calls the listener of a wait on the executor.
+     *
+     * @param wait the wait to report
+     * @param outcome the outcome of the wait
+     * @param exception the cause of the failure, if failed
+     */
+    private void dispatch(final ResponseWait wait, final int outcome, final IOException exception) {
+        Runnable task = new Runnable() {
+            public void run() {
+                switch (outcome) {
+                    case ResponseWait.AVAILABLE:
+                        wait.listener.responseAvailable(wait.connection);
+                        break;
+                    case ResponseWait.TIMED_OUT:
+                        wait.listener.responseTimedOut(wait.connection);
+                        break;
+                    default:
+                        wait.listener.responseFailed(wait.connection, exception);
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Executor rejected the response listener, failing the wait", e);
+            wait.listener.responseFailed(wait.connection, new IOException(
+                "Executor rejected the response listener"));
+        }
+    }
+
+    /**
+     * A simple struct-like class to combine a waiting connection with its listener.
+     */
+    private static class ResponseWait {
+
+        static final int AVAILABLE = 0;
+
+        static final int TIMED_OUT = 1;
+
+        static final int FAILED = 2;
+
+        public HttpConnection connection;
+
+        public SocketChannel channel;
+
+        public ResponseListener listener;
+
+        /** The time the wait expires, <code>Long.MAX_VALUE</code> for none */
+        public long deadline;
+
+        /** The key of the registered channel, set by the selector thread */
+        public SelectionKey key;
+
+        /** Set by the selector thread once the wait is over */
+        public boolean done = false;
+
+        /** The outcome of the wait, once over */
+        public int outcome;
+    }
+
+    /**
+     * The thread running the selection loop.
+     */
+    private class SelectorThread extends Thread {
+
+        /**
+         * Create an instance and make this a daemon thread.
+         */
+        public SelectorThread() {
+            setDaemon(true);
+            setName("HttpConnectionSelector");
+        }
+
+        /**
+         * Start execution.
+         */
+        public void run() {
+            try {
+                while (!shutdown) {
+                    registerPendingWaits();
+                    selector.select(getSelectTimeout());
+                    processKeys();
+                }
+            } catch (IOException e) {
+                LOG.error("HttpConnectionSelector failed, shutting down", e);
+                shutdown = true;
+            } finally {
+                failAll();
+            }
+        }
+    }
+}
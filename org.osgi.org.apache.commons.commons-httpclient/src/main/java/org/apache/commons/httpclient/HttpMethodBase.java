@@ -1078,6 +1078,33 @@ public abstract class HttpMethodBase implements HttpMethod {
 
         LOG.trace("enter HttpMethodBase.execute(HttpState, HttpConnection)");
 
+        sendRequest(state, conn);
+        return receiveResponse(state, conn);
+    }
+
+    /**
+     * Sends the request of this method over the specified <code>HttpConnection</code>,
+     * without waiting for the response. It is the first half of {@link
+     * #execute(HttpState, HttpConnection)}: the response must then be read with {@link
+     * #receiveResponse(HttpState, HttpConnection)}, for example once an {@link
+     * HttpConnectionSelector} reports it is available, so that no thread is blocked
+     * waiting for a slow server.
+     *
+     * @param state {@link HttpState state} information to associate with this
+     *        request. Must be non-null.
+     * @param conn the open {@link HttpConnection connection} to send the request
+     *        over. Must be non-null.
+     *
+     * @throws IOException if an I/O (transport) error occurs
+     * @throws HttpException  if a protocol exception occurs.
+     *
+     * @since 3.1
+     */
+    public void sendRequest(HttpState state, HttpConnection conn)
+        throws HttpException, IOException {
+
+        LOG.trace("enter HttpMethodBase.sendRequest(HttpState, HttpConnection)");
+
         // this is our connection now, assign it to a local variable so
         // that it can be released later
         this.responseConnection = conn;
@@ -1095,6 +1122,33 @@ public abstract class HttpMethodBase implements HttpMethod {
 
         writeRequest(state, conn);
         this.requestSent = true;
+    }
+
+    /**
+     * Reads the response to the request sent by {@link #sendRequest(HttpState,
+     * HttpConnection)}. It is the second half of {@link #execute(HttpState,
+     * HttpConnection)}.
+     *
+     * @param state the {@link HttpState state} information associated with this method
+     * @param conn the {@link HttpConnection connection} the request was sent over
+     *
+     * @return the integer status code if one was obtained, or <tt>-1</tt>
+     *
+     * @throws IOException if an I/O (transport) error occurs
+     * @throws HttpException  if a protocol exception occurs.
+     * @throws IllegalStateException if the request has not been sent over the connection
+     *
+     * @since 3.1
+     */
+    public int receiveResponse(HttpState state, HttpConnection conn)
+        throws HttpException, IOException {
+
+        LOG.trace("enter HttpMethodBase.receiveResponse(HttpState, HttpConnection)");
+
+        if (!this.requestSent || this.responseConnection != conn) {
+            throw new IllegalStateException("Request has not been sent over this connection");
+        }
+
         readResponse(state, conn);
         // the method has successfully executed
         used = true;
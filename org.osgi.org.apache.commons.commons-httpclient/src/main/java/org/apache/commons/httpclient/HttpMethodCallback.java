@@ -0,0 +1,71 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+
+package org.apache.commons.httpclient;
+
+/**
+ * Receives the outcome of a method executed by {@link HttpClient#executeMethodAsync(
+ * HostConfiguration, HttpMethod, HttpState, HttpMethodCallback)}.
+ *
+ * <p>
+ * The methods of this interface are called on the executor of the {@link HttpClient},
+ * or on the executor of its {@link
+ * org.apache.commons.httpclient.params.HttpClientParams#CONNECTION_SELECTOR connection
+ * selector} once a response has been waited for. They are called on the thread releasing
+ * a connection if the method failed to get one, and on the calling thread if the URI of
+ * the method is invalid. They should not block.
+ * </p>
+ *
+ * @since 3.1
+ */
+public interface HttpMethodCallback {
+
+    /**
+     * Called when the method has been executed. Its response body, if any, must be
+     * read and the connection released with {@link HttpMethod#releaseConnection()}, as
+     * after {@link HttpClient#executeMethod(HttpMethod)}.
+     *
+     * @param method the executed method
+     */
+    void completed(HttpMethod method);
+
+    /**
+     * Called when the method could not be executed.
+     *
+     * @param method the method
+     * @param cause the exception thrown by the execution, or the failure to get a
+     * connection
+     */
+    void failed(HttpMethod method, Throwable cause);
+
+    /**
+     * Called when the execution has been cancelled through its future.
+     *
+     * @param method the method
+     */
+    void cancelled(HttpMethod method);
+
+}
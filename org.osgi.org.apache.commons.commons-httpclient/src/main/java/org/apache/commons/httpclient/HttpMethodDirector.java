@@ -31,6 +31,10 @@
 package org.apache.commons.httpclient;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -47,6 +51,8 @@ import org.apache.commons.httpclient.auth.AuthenticationException;
 import org.apache.commons.httpclient.auth.CredentialsNotAvailableException;
 import org.apache.commons.httpclient.auth.CredentialsProvider;
 import org.apache.commons.httpclient.auth.MalformedChallengeException;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.params.HostParams;
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
@@ -76,6 +82,11 @@ class HttpMethodDirector {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpMethodDirector.class);
 
+    /** The names of the methods that can be sent again without side effects. */
+    private static final Set IDEMPOTENT_METHODS = new HashSet(Arrays.asList(new String[] {
+        "GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE"
+    }));
+
     private ConnectMethod connectMethod;
 
     private HttpState state;
@@ -88,6 +99,9 @@ class HttpMethodDirector {
 
     private HttpConnection conn;
 
+    /** A connection already obtained for the first request, or null */
+    private HttpConnection preparedConnection;
+
     /** A flag to indicate if the connection should be released after the method is executed. */
     private boolean releaseConnection = false;
 
@@ -96,6 +110,18 @@ class HttpMethodDirector {
 
     private Set redirectLocations = null;
 
+    /** The number of redirects followed */
+    private int redirectCount = 0;
+
+    /** How many times did this transparently handle a recoverable exception? */
+    private int execCount = 0;
+
+    /** Was the connection reused without the stale check in this attempt? */
+    private boolean trustedConnection = false;
+
+    /** Has a failure on a connection reused without the stale check been retried? */
+    private boolean closedConnectionRetried = false;
+
     public HttpMethodDirector(
         final HttpConnectionManager connectionManager,
         final HostConfiguration hostConfiguration,
@@ -111,14 +137,69 @@ class HttpMethodDirector {
     }
 
 
+    /**
+     * Sets a connection already obtained from the connection manager, to be used for the
+     * first request if it is for the same host. It is released if it is not used.
+     *
+     * @param connection the connection
+     */
+    void setPreparedConnection(final HttpConnection connection) {
+        this.preparedConnection = connection;
+    }
+
     /**
      * Executes the method associated with this method director.
      *
      * @throws IOException
      * @throws HttpException
      */
-    @SuppressWarnings("deprecation")
     public void executeMethod(final HttpMethod method) throws IOException, HttpException {
+        prepareMethod(method);
+        try {
+            do {
+                startRequest(method);
+                executeWithRetry(method);
+            } while (processResponse(method));
+        } finally {
+            finishExecution(method);
+        }
+    }
+
+    /**
+     * Executes the method associated with this method director like {@link
+     * #executeMethod(HttpMethod)}, waiting for the responses on the given selector. This
+     * method doesn't wait for the response: once the method has been executed, or has
+     * failed, the callback is called on the executor of the selector.
+     *
+     * <p>The responses are waited for on the selector when the method is an {@link
+     * HttpMethodBase} and the connection has a socket channel. Otherwise the method is
+     * executed by blocking calls, on the thread calling this method or on the one
+     * reporting the previous response. Getting a connection for a redirect to another
+     * host, writing the request and reading the response are always blocking.</p>
+     *
+     * @param method the method to execute
+     * @param selector the selector to wait for the responses on
+     * @param callback the callback to call with the outcome
+     */
+    public void executeMethod(final HttpMethod method, final HttpConnectionSelector selector,
+        final HttpMethodCallback callback) {
+        if (selector == null) {
+            throw new IllegalArgumentException("Selector may not be null");
+        }
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback may not be null");
+        }
+        prepareMethod(method);
+        new SelectorExecution(method, selector, callback).nextRequest();
+    }
+
+    /**
+     * Links the parameters of the method to the ones of the host configuration and adds
+     * the default headers.
+     *
+     * @param method the method to execute
+     */
+    private void prepareMethod(final HttpMethod method) {
         if (method == null) {
             throw new IllegalArgumentException("Method may not be null");
         }
@@ -136,94 +217,131 @@ class HttpMethodDirector {
                 method.addRequestHeader((Header)i.next());
             }
         }
+    }
 
-        try {
-            int maxRedirects = this.params.getIntParameter(HttpClientParams.MAX_REDIRECTS, 100);
-
-            for (int redirectCount = 0;;) {
+    /**
+     * Gets a connection for the host of the method, if the current one is not
+     * appropriate, and authenticates the request.
+     *
+     * @param method the method to execute
+     *
+     * @throws IOException if a connection can't be obtained
+     */
+    @SuppressWarnings("deprecation")
+    private void startRequest(final HttpMethod method) throws IOException {
+        // make sure the connection we have is appropriate
+        if (this.conn != null && !hostConfiguration.hostEquals(this.conn)) {
+            this.conn.setLocked(false);
+            this.conn.releaseConnection();
+            this.conn = null;
+        }
 
-                // make sure the connection we have is appropriate
-                if (this.conn != null && !hostConfiguration.hostEquals(this.conn)) {
-                    this.conn.setLocked(false);
-                    this.conn.releaseConnection();
-                    this.conn = null;
+        // get a connection, if we need one
+        if (this.conn == null) {
+            if (this.preparedConnection != null
+                && hostConfiguration.hostEquals(this.preparedConnection)) {
+                this.conn = this.preparedConnection;
+                this.preparedConnection = null;
+            } else {
+                this.conn = connectionManager.getConnectionWithTimeout(
+                    hostConfiguration,
+                    this.params.getConnectionManagerTimeout()
+                );
+            }
+            this.conn.setLocked(true);
+            if (this.params.isAuthenticationPreemptive()
+             || this.state.isAuthenticationPreemptive())
+            {
+                LOG.debug("Preemptively sending default basic credentials");
+                method.getHostAuthState().setPreemptive();
+                method.getHostAuthState().setAuthAttempted(true);
+                if (this.conn.isProxied() && !this.conn.isSecure()) {
+                    method.getProxyAuthState().setPreemptive();
+                    method.getProxyAuthState().setAuthAttempted(true);
                 }
+            }
+        }
+        authenticate(method);
+    }
 
-                // get a connection, if we need one
-                if (this.conn == null) {
-                    this.conn = connectionManager.getConnectionWithTimeout(
-                        hostConfiguration,
-                        this.params.getConnectionManagerTimeout()
-                    );
-                    this.conn.setLocked(true);
-                    if (this.params.isAuthenticationPreemptive()
-                     || this.state.isAuthenticationPreemptive())
-                    {
-                        LOG.debug("Preemptively sending default basic credentials");
-                        method.getHostAuthState().setPreemptive();
-                        method.getHostAuthState().setAuthAttempted(true);
-                        if (this.conn.isProxied() && !this.conn.isSecure()) {
-                            method.getProxyAuthState().setPreemptive();
-                            method.getProxyAuthState().setAuthAttempted(true);
-                        }
-                    }
-                }
-                authenticate(method);
-                executeWithRetry(method);
-                if (this.connectMethod != null) {
-                    fakeResponse(method);
-                    break;
-                }
+    /**
+     * Processes the response to a request, following the redirects and the
+     * authentication challenges.
+     *
+     * @param method the executed method
+     * @return <code>true</code> if the method must be sent again
+     *
+     * @throws IOException if an I/O (transport) error occurs
+     * @throws HttpException if the redirect or the authentication fails
+     */
+    private boolean processResponse(final HttpMethod method) throws IOException, HttpException {
+        if (this.connectMethod != null) {
+            fakeResponse(method);
+            return false;
+        }
 
-                boolean retry = false;
-                if (isRedirectNeeded(method)) {
-                    if (processRedirectResponse(method)) {
-                        retry = true;
-                        ++redirectCount;
-                        if (redirectCount >= maxRedirects) {
-                            LOG.error("Narrowly avoided an infinite loop in execute");
-                            throw new RedirectException("Maximum redirects ("
-                                + maxRedirects + ") exceeded");
-                        }
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Execute redirect " + redirectCount + " of " + maxRedirects);
-                        }
-                    }
-                }
-                if (isAuthenticationNeeded(method)) {
-                    if (processAuthenticationResponse(method)) {
-                        LOG.debug("Retry authentication");
-                        retry = true;
-                    }
-                }
-                if (!retry) {
-                    break;
+        boolean retry = false;
+        if (isRedirectNeeded(method)) {
+            if (processRedirectResponse(method)) {
+                retry = true;
+                ++redirectCount;
+                int maxRedirects = this.params.getIntParameter(HttpClientParams.MAX_REDIRECTS, 100);
+                if (redirectCount >= maxRedirects) {
+                    LOG.error("Narrowly avoided an infinite loop in execute");
+                    throw new RedirectException("Maximum redirects ("
+                        + maxRedirects + ") exceeded");
                 }
-                // retry - close previous stream.  Caution - this causes
-                // responseBodyConsumed to be called, which may also close the
-                // connection.
-                if (method.getResponseBodyAsStream() != null) {
-                    method.getResponseBodyAsStream().close();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Execute redirect " + redirectCount + " of " + maxRedirects);
                 }
-
-            } //end of retry loop
-        } finally {
-            if (this.conn != null) {
-                this.conn.setLocked(false);
             }
-            // If the response has been fully processed, return the connection
-            // to the pool.  Use this flag, rather than other tests (like
-            // responseStream == null), as subclasses, might reset the stream,
-            // for example, reading the entire response into a file and then
-            // setting the file as the stream.
-            if (
-                (releaseConnection || method.getResponseBodyAsStream() == null)
-                && this.conn != null
-            ) {
-                this.conn.releaseConnection();
+        }
+        if (isAuthenticationNeeded(method)) {
+            if (processAuthenticationResponse(method)) {
+                LOG.debug("Retry authentication");
+                retry = true;
             }
         }
+        if (!retry) {
+            return false;
+        }
+        // retry - close previous stream.  Caution - this causes
+        // responseBodyConsumed to be called, which may also close the
+        // connection.
+        if (method.getResponseBodyAsStream() != null) {
+            method.getResponseBodyAsStream().close();
+        }
+        return true;
+    }
 
+    /**
+     * Releases the connection once the method has been executed, unless its response
+     * body has to be read.
+     *
+     * @param method the executed method
+     *
+     * @throws IOException if the response body can't be got
+     */
+    private void finishExecution(final HttpMethod method) throws IOException {
+        if (this.preparedConnection != null) {
+            // never used
+            this.preparedConnection.releaseConnection();
+            this.preparedConnection = null;
+        }
+        if (this.conn != null) {
+            this.conn.setLocked(false);
+        }
+        // If the response has been fully processed, return the connection
+        // to the pool.  Use this flag, rather than other tests (like
+        // responseStream == null), as subclasses, might reset the stream,
+        // for example, reading the entire response into a file and then
+        // setting the file as the stream.
+        if (
+            (releaseConnection || method.getResponseBodyAsStream() == null)
+            && this.conn != null
+        ) {
+            this.conn.releaseConnection();
+        }
     }
 
 
@@ -343,6 +461,16 @@ class HttpMethodDirector {
      * @throws IOException if an I/O occurs setting connection parameters
      */
     private void applyConnectionParams(final HttpMethod method) throws IOException {
+        this.conn.setSocketTimeout(getSocketTimeout(method));
+    }
+
+    /**
+     * Gets the socket timeout of a method.
+     *
+     * @param method HTTP method
+     * @return the timeout in milliseconds, <code>0</code> for none
+     */
+    private int getSocketTimeout(final HttpMethod method) {
         int timeout = 0;
         // see if a timeout is given for this method
         Object param = method.getParams().getParameter(HttpMethodParams.SO_TIMEOUT);
@@ -353,7 +481,7 @@ class HttpMethodDirector {
         if (param != null) {
             timeout = ((Integer)param).intValue();
         }
-        this.conn.setSocketTimeout(timeout);
+        return timeout;
     }
 
     /**
@@ -364,104 +492,208 @@ class HttpMethodDirector {
      * @throws HttpException  if a protocol exception occurs. Usually protocol exceptions
      * cannot be recovered from.
      */
-    @SuppressWarnings("deprecation")
     private void executeWithRetry(final HttpMethod method)
         throws IOException, HttpException {
 
-        /** How many times did this transparently handle a recoverable exception? */
-        int execCount = 0;
+        startRetries();
         // loop until the method is successfully processed, the retryHandler
         // returns false or a non-recoverable exception is thrown
         try {
             while (true) {
-                execCount++;
                 try {
-
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace("Attempt number " + execCount + " to process request");
+                    if (!prepareAttempt(method)) {
+                        // abort, the connect method failed
+                        return;
                     }
-                    if (this.conn.getParams().isStaleCheckingEnabled()) {
-                        this.conn.closeIfStale();
-                    }
-                    if (!this.conn.isOpen()) {
-                        // this connection must be opened before it can be used
-                        // This has nothing to do with opening a secure tunnel
-                        this.conn.open();
-                        if (this.conn.isProxied() && this.conn.isSecure()
-                        && !(method instanceof ConnectMethod)) {
-                            // we need to create a secure tunnel before we can execute the real method
-                            if (!executeConnect()) {
-                                // abort, the connect method failed
-                                return;
-                            }
-                        }
-                    }
-                    applyConnectionParams(method);
                     method.execute(state, this.conn);
                     break;
                 } catch (HttpException e) {
                     // filter out protocol exceptions which cannot be recovered from
                     throw e;
                 } catch (IOException e) {
-                    LOG.debug("Closing the connection.");
-                    this.conn.close();
-                    // test if this method should be retried
-                    // ========================================
-                    // this code is provided for backward compatibility with 2.0
-                    // will be removed in the next major release
-                    if (method instanceof HttpMethodBase) {
-                        MethodRetryHandler handler =
-                            ((HttpMethodBase)method).getMethodRetryHandler();
-                        if (handler != null) {
-                            if (!handler.retryMethod(
-                                    method,
-                                    this.conn,
-                                    new HttpRecoverableException(e.getMessage()),
-                                    execCount,
-                                    method.isRequestSent())) {
-                                LOG.debug("Method retry handler returned false. "
-                                        + "Automatic recovery will not be attempted");
-                                throw e;
-                            }
-                        }
-                    }
-                    // ========================================
-                    HttpMethodRetryHandler handler =
-                        (HttpMethodRetryHandler)method.getParams().getParameter(
-                                HttpMethodParams.RETRY_HANDLER);
-                    if (handler == null) {
-                        handler = new DefaultHttpMethodRetryHandler();
-                    }
-                    if (!handler.retryMethod(method, e, execCount)) {
-                        LOG.debug("Method retry handler returned false. "
-                                + "Automatic recovery will not be attempted");
-                        throw e;
-                    }
-                    if (LOG.isInfoEnabled()) {
-                        LOG.info("I/O exception ("+ e.getClass().getName() +") caught when processing request: "
-                                + e.getMessage());
-                    }
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug(e.getMessage(), e);
-                    }
-                    LOG.info("Retrying request");
+                    handleAttemptFailure(method, e);
                 }
             }
         } catch (IOException e) {
-            if (this.conn.isOpen()) {
-                LOG.debug("Closing the connection.");
-                this.conn.close();
-            }
-            releaseConnection = true;
+            closeAfterFailure();
             throw e;
         } catch (RuntimeException e) {
-            if (this.conn.isOpen()) {
-                LOG.debug("Closing the connection.");
-                this.conn.close();
+            closeAfterFailure();
+            throw e;
+        }
+    }
+
+    /**
+     * Resets the count of the attempts before sending a request.
+     */
+    private void startRetries() {
+        this.execCount = 0;
+        this.closedConnectionRetried = false;
+    }
+
+    /**
+     * Opens the connection, if needed, before an attempt to send a request.
+     *
+     * @param method the method to send
+     * @return <code>false</code> if the tunnel through the proxy can't be created
+     *
+     * @throws IOException if the connection can't be opened
+     */
+    @SuppressWarnings("deprecation")
+    private boolean prepareAttempt(final HttpMethod method) throws IOException {
+        execCount++;
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Attempt number " + execCount + " to process request");
+        }
+        this.trustedConnection = false;
+        if (this.conn.getParams().isStaleCheckingEnabled()) {
+            // recently released connections are not tested
+            this.trustedConnection = this.conn.isOpen() && !this.conn.isStaleCheckNeeded();
+            this.conn.closeIfStale();
+        }
+        if (!this.conn.isOpen()) {
+            // this connection must be opened before it can be used
+            // This has nothing to do with opening a secure tunnel
+            this.conn.open();
+            if (this.conn.isProxied() && this.conn.isSecure()
+            && !(method instanceof ConnectMethod)) {
+                // we need to create a secure tunnel before we can execute the real method
+                if (!executeConnect()) {
+                    return false;
+                }
             }
-            releaseConnection = true;
+        }
+        applyConnectionParams(method);
+        return true;
+    }
+
+    /**
+     * Closes the connection after a failed attempt, and tells whether the method
+     * should be sent again.
+     *
+     * @param method the method that failed
+     * @param e the failure
+     *
+     * @throws IOException the failure, if the method must not be sent again
+     */
+    @SuppressWarnings("deprecation")
+    private void handleAttemptFailure(final HttpMethod method, final IOException e)
+        throws IOException {
+
+        if (e instanceof HttpException) {
+            // filter out protocol exceptions which cannot be recovered from
             throw e;
         }
+        LOG.debug("Closing the connection.");
+        this.conn.close();
+        // the connection was reused without the stale check and may
+        // have been closed by the server in the meantime: once, the
+        // retry doesn't count as an execution
+        boolean closedConnection = this.trustedConnection && !this.closedConnectionRetried
+            && isClosedConnectionFailure(method, e)
+            && isRetryableOnNewConnection(method);
+        // test if this method should be retried
+        // ========================================
+        // this code is provided for backward compatibility with 2.0
+        // will be removed in the next major release
+        if (method instanceof HttpMethodBase) {
+            MethodRetryHandler handler =
+                ((HttpMethodBase)method).getMethodRetryHandler();
+            if (handler != null) {
+                if (!handler.retryMethod(
+                        method,
+                        this.conn,
+                        new HttpRecoverableException(e.getMessage()),
+                        execCount,
+                        method.isRequestSent())) {
+                    LOG.debug("Method retry handler returned false. "
+                            + "Automatic recovery will not be attempted");
+                    throw e;
+                }
+            }
+        }
+        // ========================================
+        HttpMethodRetryHandler handler =
+            (HttpMethodRetryHandler)method.getParams().getParameter(
+                    HttpMethodParams.RETRY_HANDLER);
+        if (handler == null) {
+            handler = new DefaultHttpMethodRetryHandler();
+        }
+        if (!handler.retryMethod(method, e, execCount)) {
+            LOG.debug("Method retry handler returned false. "
+                    + "Automatic recovery will not be attempted");
+            throw e;
+        }
+        if (closedConnection) {
+            this.closedConnectionRetried = true;
+            execCount--;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("I/O exception (" + e.getClass().getName()
+                    + ") caught on a connection reused without the stale check, "
+                    + "retrying the idempotent request on a new connection");
+            }
+            return;
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("I/O exception ("+ e.getClass().getName() +") caught when processing request: "
+                    + e.getMessage());
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(e.getMessage(), e);
+        }
+        LOG.info("Retrying request");
+    }
+
+    /**
+     * Closes the connection after a request has failed, and releases it once the
+     * execution is over.
+     */
+    private void closeAfterFailure() {
+        if (this.conn.isOpen()) {
+            LOG.debug("Closing the connection.");
+            this.conn.close();
+        }
+        releaseConnection = true;
+    }
+
+    /**
+     * Tests if a failure shows that the server closed an idle connection before
+     * reading the request: no response at all, or a socket error while the request
+     * was written. Timeouts never qualify, as the server may be processing the request.
+     *
+     * @param method the method that failed
+     * @param e the failure
+     * @return <code>true</code> if the connection was closed by the server
+     */
+    private static boolean isClosedConnectionFailure(final HttpMethod method, final IOException e) {
+        if (e instanceof InterruptedIOException) {
+            return false;
+        }
+        if (e instanceof NoHttpResponseException) {
+            return true;
+        }
+        return e instanceof SocketException && !method.isRequestSent();
+    }
+
+    /**
+     * Tests if the method can be sent again after failing on a connection reused
+     * without the stale check. Only idempotent methods, whose request body can be
+     * repeated, are sent again.
+     *
+     * @param method the method that failed
+     * @return <code>true</code> if the method can be retried on a new connection
+     */
+    private static boolean isRetryableOnNewConnection(final HttpMethod method) {
+        if (method instanceof HttpMethodBase && ((HttpMethodBase) method).isAborted()) {
+            return false;
+        }
+        if (method instanceof EntityEnclosingMethod) {
+            RequestEntity entity = ((EntityEnclosingMethod) method).getRequestEntity();
+            if (entity != null && !entity.isRepeatable()) {
+                return false;
+            }
+        }
+        return IDEMPOTENT_METHODS.contains(method.getName());
     }
 
     /**
@@ -939,4 +1171,161 @@ class HttpMethodDirector {
     public HttpParams getParams() {
         return this.params;
     }
+
+    /**
+     * An execution waiting for each response on a selector. Each step runs on the
+     * thread that ends the previous one, and returns as soon as it waits for a
+     * response.
+     */
+    private class SelectorExecution implements HttpConnectionSelector.ResponseListener {
+
+        private final HttpMethod method;
+
+        private final HttpConnectionSelector selector;
+
+        private final HttpMethodCallback callback;
+
+        public SelectorExecution(final HttpMethod method, final HttpConnectionSelector selector,
+            final HttpMethodCallback callback) {
+            this.method = method;
+            this.selector = selector;
+            this.callback = callback;
+        }
+
+        /**
+         * Sends the method, after a redirect or an authentication challenge.
+         */
+        public void nextRequest() {
+            try {
+                startRequest(method);
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
+            startRetries();
+            nextAttempt();
+        }
+
+        /**
+         * Sends the request, and waits for the response on the selector if the
+         * connection allows it.
+         */
+        private void nextAttempt() {
+            while (true) {
+                try {
+                    if (!prepareAttempt(method)) {
+                        // abort, the connect method failed
+                        requestDone();
+                        return;
+                    }
+                    if (method instanceof HttpMethodBase && conn.getSocketChannel() != null) {
+                        ((HttpMethodBase) method).sendRequest(state, conn);
+                        selector.awaitResponse(conn, getSocketTimeout(method), this);
+                        return;
+                    }
+                    method.execute(state, conn);
+                } catch (IOException e) {
+                    if (!retry(e)) {
+                        return;
+                    }
+                    continue;
+                } catch (Throwable e) {
+                    attemptFailed(e);
+                    return;
+                }
+                requestDone();
+                return;
+            }
+        }
+
+        public void responseAvailable(HttpConnection connection) {
+            try {
+                ((HttpMethodBase) method).receiveResponse(state, conn);
+            } catch (IOException e) {
+                if (retry(e)) {
+                    nextAttempt();
+                }
+                return;
+            } catch (Throwable e) {
+                attemptFailed(e);
+                return;
+            }
+            requestDone();
+        }
+
+        public void responseTimedOut(HttpConnection connection) {
+            responseFailed(connection, new SocketTimeoutException("Read timed out"));
+        }
+
+        public void responseFailed(HttpConnection connection, IOException exception) {
+            if (retry(exception)) {
+                nextAttempt();
+            }
+        }
+
+        /**
+         * Handles a failed attempt.
+         *
+         * @param e the failure
+         * @return <code>true</code> if the request must be sent again, <code>false</code>
+         * if the execution has failed
+         */
+        private boolean retry(IOException e) {
+            try {
+                handleAttemptFailure(method, e);
+                return true;
+            } catch (Throwable failure) {
+                attemptFailed(failure);
+                return false;
+            }
+        }
+
+        /**
+         * Processes the response, and sends the method again if needed.
+         */
+        private void requestDone() {
+            boolean again;
+            try {
+                again = processResponse(method);
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
+            if (again) {
+                nextRequest();
+                return;
+            }
+            try {
+                finishExecution(method);
+            } catch (IOException e) {
+                callback.failed(method, e);
+                return;
+            }
+            callback.completed(method);
+        }
+
+        /**
+         * Fails the execution after a failed attempt to send the request.
+         *
+         * @param e the failure
+         */
+        private void attemptFailed(Throwable e) {
+            closeAfterFailure();
+            fail(e);
+        }
+
+        /**
+         * Fails the execution.
+         *
+         * @param e the failure
+         */
+        private void fail(Throwable e) {
+            try {
+                finishExecution(method);
+            } catch (IOException ignore) {
+                LOG.debug("Error releasing the connection of a failed method", ignore);
+            }
+            callback.failed(method, e);
+        }
+    }
 }
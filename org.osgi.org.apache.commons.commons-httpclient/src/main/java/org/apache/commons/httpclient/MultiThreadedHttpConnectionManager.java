@@ -38,12 +38,20 @@ import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
@@ -55,6 +63,22 @@ import org.slf4j.LoggerFactory;
 /**
  * Manages a set of HttpConnections for various HostConfigurations.
  *
+ * <p>By default all the connections are managed by a single pool, whose monitor is
+ * held by every request and release of a connection. A manager created with
+ * {@link #MultiThreadedHttpConnectionManager(boolean) a striped pool} keeps each
+ * host configuration in its own pool with its own lock, and enforces the maximum
+ * number of connections overall with an atomic counter, so that threads using
+ * different hosts don't contend for the same monitor.</p>
+ *
+ * <p>By default the connections that are checked out are tracked with weak references,
+ * so that a connection lost to the garbage collector without being released is given
+ * back to its pool. This bookkeeping is shared by all the instances of this class and
+ * synchronized on a single global monitor. A manager created {@link
+ * #MultiThreadedHttpConnectionManager(boolean, boolean) without tracking lost
+ * connections} keeps the checked out connections in a concurrent map of its own
+ * instead, and can report the ones held for too long, see {@link
+ * HttpConnectionManagerParams#LEAK_DETECTION_THRESHOLD}.</p>
+ *
  * @author <a href="mailto:becke@u.washington.edu">Michael Becke</a>
  * @author Eric Johnson
  * @author <a href="mailto:mbowler@GargoyleSoftware.com">Mike Bowler</a>
@@ -75,11 +99,42 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
     /** The default maximum number of connections allowed overall */
     public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
 
+    /**
+     * Receives the outcome of a {@link MultiThreadedHttpConnectionManager#requestConnection(
+     * HostConfiguration, long, ConnectionListener) connection request}. The methods may be
+     * called on the requesting thread, on a thread releasing a connection or on the timer
+     * thread of the manager, possibly holding the monitor of the pool: they must not block,
+     * and should hand the connection over to an executor.
+     *
+     * @since 3.1
+     */
+    public interface ConnectionListener {
+
+        /**
+         * Called when a connection has been obtained for the request. It must be released
+         * like the ones returned by {@link
+         * MultiThreadedHttpConnectionManager#getConnectionWithTimeout(HostConfiguration, long)}.
+         *
+         * @param connection the connection
+         */
+        void connectionAvailable(HttpConnection connection);
+
+        /**
+         * Called when no connection has been obtained for the request.
+         *
+         * @param exception a {@link ConnectionPoolTimeoutException} if the timeout has
+         * expired, or an {@link IllegalStateException} if the manager has been shut down
+         */
+        void connectionFailed(Exception exception);
+    }
+
     /**
      * A mapping from Reference to ConnectionSource.  Used to reclaim resources when connections
-     * are lost to the garbage collector.
+     * are lost to the garbage collector. It is updated without locking, so that the checkouts
+     * of the different hosts and managers don't wait for each other; its monitor only guards
+     * the start and the stop of the reference queue thread.
      */
-    private static final Map REFERENCE_TO_CONNECTION_SOURCE = new HashMap();
+    private static final Map REFERENCE_TO_CONNECTION_SOURCE = new ConcurrentHashMap();
 
     /**
      * The reference queue used to track when HttpConnections are lost to the
@@ -90,7 +145,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
     /**
      * The thread responsible for handling lost connections.
      */
-    private static ReferenceQueueThread REFERENCE_QUEUE_THREAD;
+    private static volatile ReferenceQueueThread REFERENCE_QUEUE_THREAD;
 
     /**
      * Holds references to all active instances of this class.
@@ -159,56 +214,52 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
     private static void storeReferenceToConnection(
         HttpConnectionWithReference connection,
         HostConfiguration hostConfiguration,
-        ConnectionPool connectionPool
+        AbstractConnectionPool connectionPool
     ) {
 
         ConnectionSource source = new ConnectionSource();
         source.connectionPool = connectionPool;
         source.hostConfiguration = hostConfiguration;
 
-        synchronized (REFERENCE_TO_CONNECTION_SOURCE) {
-
-            // start the reference queue thread if needed
-            if (REFERENCE_QUEUE_THREAD == null) {
-                REFERENCE_QUEUE_THREAD = new ReferenceQueueThread();
-                REFERENCE_QUEUE_THREAD.start();
+        // start the reference queue thread if needed
+        if (REFERENCE_QUEUE_THREAD == null) {
+            synchronized (REFERENCE_TO_CONNECTION_SOURCE) {
+                if (REFERENCE_QUEUE_THREAD == null) {
+                    REFERENCE_QUEUE_THREAD = new ReferenceQueueThread();
+                    REFERENCE_QUEUE_THREAD.start();
+                }
             }
-
-            REFERENCE_TO_CONNECTION_SOURCE.put(
-                connection.reference,
-                source
-            );
         }
+
+        REFERENCE_TO_CONNECTION_SOURCE.put(
+            connection.reference,
+            source
+        );
     }
 
     /**
      * Closes and releases all connections currently checked out of the given connection pool.
      * @param connectionPool the connection pool to shutdown the connections for
      */
-    private static void shutdownCheckedOutConnections(ConnectionPool connectionPool) {
+    private static void shutdownCheckedOutConnections(AbstractConnectionPool connectionPool) {
 
         // keep a list of the connections to be closed
         ArrayList connectionsToClose = new ArrayList();
 
-        synchronized (REFERENCE_TO_CONNECTION_SOURCE) {
-
-            Iterator referenceIter = REFERENCE_TO_CONNECTION_SOURCE.keySet().iterator();
-            while (referenceIter.hasNext()) {
-                Reference ref = (Reference) referenceIter.next();
-                ConnectionSource source =
-                    (ConnectionSource) REFERENCE_TO_CONNECTION_SOURCE.get(ref);
-                if (source.connectionPool == connectionPool) {
-                    referenceIter.remove();
-                    HttpConnection connection = (HttpConnection) ref.get();
-                    if (connection != null) {
-                        connectionsToClose.add(connection);
-                    }
+        Iterator entryIter = REFERENCE_TO_CONNECTION_SOURCE.entrySet().iterator();
+        while (entryIter.hasNext()) {
+            Map.Entry entry = (Map.Entry) entryIter.next();
+            ConnectionSource source = (ConnectionSource) entry.getValue();
+            // the connections released meanwhile are removed only once
+            if (source.connectionPool == connectionPool
+                && REFERENCE_TO_CONNECTION_SOURCE.remove(entry.getKey()) != null) {
+                HttpConnection connection = (HttpConnection) ((Reference) entry.getKey()).get();
+                if (connection != null) {
+                    connectionsToClose.add(connection);
                 }
             }
         }
 
-        // close and release the connections outside of the synchronized block to
-        // avoid holding the lock for too long
         for (Iterator i = connectionsToClose.iterator(); i.hasNext();) {
             HttpConnection connection = (HttpConnection) i.next();
             connection.close();
@@ -225,13 +276,11 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
      *
      * @param connection the connection to remove the reference for
      *
-     * @see #storeReferenceToConnection(HttpConnection, HostConfiguration, ConnectionPool)
+     * @see #storeReferenceToConnection(HttpConnection, HostConfiguration, AbstractConnectionPool)
      */
     private static void removeReferenceToConnection(HttpConnectionWithReference connection) {
 
-        synchronized (REFERENCE_TO_CONNECTION_SOURCE) {
-            REFERENCE_TO_CONNECTION_SOURCE.remove(connection.reference);
-        }
+        REFERENCE_TO_CONNECTION_SOURCE.remove(connection.reference);
     }
 
 
@@ -243,10 +292,16 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
     private HttpConnectionManagerParams params = new HttpConnectionManagerParams();
 
     /** Connection Pool */
-    private ConnectionPool connectionPool;
+    private AbstractConnectionPool connectionPool;
+
+    /** Tracks the checked out connections, <code>null</code> if they are tracked with weak references */
+    private LeakDetector leakDetector;
 
     private volatile boolean shutdown = false;
 
+    /** The timer expiring the connection requests, created on demand */
+    private Timer connectionRequestTimer;
+
 
     // ----------------------------------------------------------- Constructors
 
@@ -254,7 +309,53 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
      * No-args constructor
      */
     public MultiThreadedHttpConnectionManager() {
-        this.connectionPool = new ConnectionPool();
+        this(false);
+    }
+
+    /**
+     * Creates a connection manager with a single connection pool, or with a striped
+     * pool made of a separate pool for each host configuration.
+     *
+     * <p>In the striped pool the requests and releases of connections for a host
+     * lock only the pool of the host, and the maximum number of connections overall
+     * is enforced with an atomic counter. The threads waiting for a connection are
+     * still served in order for each host. It is meant for many threads talking to
+     * several hosts, where the single pool monitor becomes a point of contention.</p>
+     *
+     * @param stripedPool <code>true</code> to use a striped pool
+     *
+     * @since 3.1
+     */
+    public MultiThreadedHttpConnectionManager(boolean stripedPool) {
+        this(stripedPool, true);
+    }
+
+    /**
+     * Creates a connection manager choosing the pool and how the checked out connections
+     * are tracked.
+     *
+     * <p>When the lost connections are not tracked, the connections that are checked out
+     * are not registered with the weak references shared by all the instances of this
+     * class, which saves an allocation and an update of a shared map on each request.
+     * A connection that is never released is not given back to its pool: the
+     * {@link HttpConnectionManagerParams#LEAK_DETECTION_THRESHOLD leak detection} can be
+     * enabled to log the connections checked out for too long, along with the stack
+     * trace of the thread that checked out a sample of them.</p>
+     *
+     * @param stripedPool <code>true</code> to use a striped pool
+     * @param trackLostConnections <code>true</code> to give back to their pools the
+     * connections lost to the garbage collector
+     *
+     * @see #MultiThreadedHttpConnectionManager(boolean)
+     *
+     * @since 3.1
+     */
+    public MultiThreadedHttpConnectionManager(boolean stripedPool, boolean trackLostConnections) {
+        if (!trackLostConnections) {
+            this.leakDetector = new LeakDetector();
+        }
+        this.connectionPool = stripedPool ? (AbstractConnectionPool) new StripedConnectionPool()
+                                          : new ConnectionPool();
         synchronized(ALL_CONNECTION_MANAGERS) {
             ALL_CONNECTION_MANAGERS.put(this, null);
         }
@@ -278,6 +379,38 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
                 connectionPool.shutdown();
             }
         }
+        if (connectionRequestTimer != null) {
+            connectionRequestTimer.cancel();
+            connectionRequestTimer = null;
+        }
+    }
+
+    /**
+     * Tells whether this connection manager uses a striped pool.
+     *
+     * @return <code>true</code> if each host configuration has its own pool and lock
+     *
+     * @see #MultiThreadedHttpConnectionManager(boolean)
+     *
+     * @since 3.1
+     */
+    public boolean isStripedPool() {
+        return connectionPool instanceof StripedConnectionPool;
+    }
+
+    /**
+     * Tells whether this connection manager gives back to their pools the connections
+     * lost to the garbage collector.
+     *
+     * @return <code>false</code> if the checked out connections are only tracked for
+     * the leak detection
+     *
+     * @see #MultiThreadedHttpConnectionManager(boolean, boolean)
+     *
+     * @since 3.1
+     */
+    public boolean isTrackingLostConnections() {
+        return leakDetector == null;
     }
 
     /**
@@ -420,6 +553,61 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
         return new HttpConnectionAdapter(conn);
     }
 
+    /**
+     * Requests a connection without blocking. If no connection is available, the request
+     * is queued along with the threads waiting in {@link
+     * #getConnectionWithTimeout(HostConfiguration, long)}, and is served in turn when a
+     * connection is released, without holding a thread in the meantime.
+     *
+     * @param hostConfiguration the host configuration to get a connection for
+     * @param timeout the number of milliseconds to wait for a connection, 0 to wait
+     * indefinitely
+     * @param listener the listener to give the connection to
+     *
+     * @see ConnectionListener
+     *
+     * @since 3.1
+     */
+    public void requestConnection(HostConfiguration hostConfiguration, long timeout,
+        ConnectionListener listener) {
+
+        if (hostConfiguration == null) {
+            throw new IllegalArgumentException("hostConfiguration is null");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("HttpConnectionManager.requestConnection:  config = "
+                + hostConfiguration + ", timeout = " + timeout);
+        }
+
+        // we clone the hostConfiguration
+        // so that it cannot be changed once the connection has been retrieved
+        ConnectionRequest request = new ConnectionRequest(
+            new HostConfiguration(hostConfiguration), listener);
+        if (!request.attempt() && timeout > 0) {
+            request.scheduleTimeout(timeout);
+        }
+    }
+
+    /**
+     * Gets the timer expiring the connection requests, creating it if needed.
+     *
+     * @return the timer
+     */
+    private synchronized Timer getConnectionRequestTimer() {
+        if (shutdown) {
+            throw new IllegalStateException("Connection factory has been shutdown.");
+        }
+        if (connectionRequestTimer == null) {
+            connectionRequestTimer = new Timer(
+                "MultiThreadedHttpConnectionManager connection requests", true);
+        }
+        return connectionRequestTimer;
+    }
+
     /**
      * @see HttpConnectionManager#getConnection(HostConfiguration, long)
      *
@@ -439,110 +627,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
     private HttpConnection doGetConnection(HostConfiguration hostConfiguration,
         long timeout) throws ConnectionPoolTimeoutException {
 
-        HttpConnection connection = null;
-
-        int maxHostConnections = this.params.getMaxConnectionsPerHost(hostConfiguration);
-        int maxTotalConnections = this.params.getMaxTotalConnections();
-
-        synchronized (connectionPool) {
-
-            // we clone the hostConfiguration
-            // so that it cannot be changed once the connection has been retrieved
-            hostConfiguration = new HostConfiguration(hostConfiguration);
-            HostConnectionPool hostPool = connectionPool.getHostPool(hostConfiguration, true);
-            WaitingThread waitingThread = null;
-
-            boolean useTimeout = (timeout > 0);
-            long timeToWait = timeout;
-            long startWait = 0;
-            long endWait = 0;
-
-            while (connection == null) {
-
-                if (shutdown) {
-                    throw new IllegalStateException("Connection factory has been shutdown.");
-                }
-
-                // happen to have a free connection with the right specs
-                //
-                if (hostPool.freeConnections.size() > 0) {
-                    connection = connectionPool.getFreeConnection(hostConfiguration);
-
-                // have room to make more
-                //
-                } else if ((hostPool.numConnections < maxHostConnections)
-                    && (connectionPool.numConnections < maxTotalConnections)) {
-
-                    connection = connectionPool.createConnection(hostConfiguration);
-
-                // have room to add host connection, and there is at least one free
-                // connection that can be liberated to make overall room
-                //
-                } else if ((hostPool.numConnections < maxHostConnections)
-                    && (connectionPool.freeConnections.size() > 0)) {
-
-                    connectionPool.deleteLeastUsedConnection();
-                    connection = connectionPool.createConnection(hostConfiguration);
-
-                // otherwise, we have to wait for one of the above conditions to
-                // become true
-                //
-                } else {
-                    // TODO: keep track of which hostConfigurations have waiting
-                    // threads, so they avoid being sacrificed before necessary
-
-                    try {
-
-                        if (useTimeout && timeToWait <= 0) {
-                            throw new ConnectionPoolTimeoutException("Timeout waiting for connection");
-                        }
-
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Unable to get a connection, waiting..., hostConfig=" + hostConfiguration);
-                        }
-
-                        if (waitingThread == null) {
-                            waitingThread = new WaitingThread();
-                            waitingThread.hostConnectionPool = hostPool;
-                            waitingThread.thread = Thread.currentThread();
-                        } else {
-                            waitingThread.interruptedByConnectionPool = false;
-                        }
-
-                        if (useTimeout) {
-                            startWait = System.currentTimeMillis();
-                        }
-
-                        hostPool.waitingThreads.addLast(waitingThread);
-                        connectionPool.waitingThreads.addLast(waitingThread);
-                        connectionPool.wait(timeToWait);
-                    } catch (InterruptedException e) {
-                        if (!waitingThread.interruptedByConnectionPool) {
-                            LOG.debug("Interrupted while waiting for connection", e);
-                            throw new IllegalThreadStateException(
-                                "Interrupted while waiting in MultiThreadedHttpConnectionManager");
-                        }
-                        // Else, do nothing, we were interrupted by the connection pool
-                        // and should now have a connection waiting for us, continue
-                        // in the loop and let's get it.
-                    } finally {
-                        if (!waitingThread.interruptedByConnectionPool) {
-                            // Either we timed out, experienced a "spurious wakeup", or were
-                            // interrupted by an external thread.  Regardless we need to
-                            // cleanup for ourselves in the wait queue.
-                            hostPool.waitingThreads.remove(waitingThread);
-                            connectionPool.waitingThreads.remove(waitingThread);
-                        }
-
-                        if (useTimeout) {
-                            endWait = System.currentTimeMillis();
-                            timeToWait -= (endWait - startWait);
-                        }
-                    }
-                }
-            }
-        }
-        return connection;
+        return connectionPool.getConnection(hostConfiguration, timeout);
     }
 
     /**
@@ -556,10 +641,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
      * @return The total number of pooled connections
      */
     public int getConnectionsInPool(HostConfiguration hostConfiguration) {
-        synchronized (connectionPool) {
-            HostConnectionPool hostPool = connectionPool.getHostPool(hostConfiguration, false);
-            return (hostPool != null) ? hostPool.numConnections : 0;
-        }
+        return connectionPool.getConnectionsInPool(hostConfiguration);
     }
 
     /**
@@ -571,9 +653,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
      * @return the total number of pooled connections
      */
     public int getConnectionsInPool() {
-        synchronized (connectionPool) {
-            return connectionPool.numConnections;
-        }
+        return connectionPool.getConnectionsInPool();
     }
 
     /**
@@ -639,6 +719,8 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
 
         // make sure that the response has been read.
         SimpleHttpConnectionManager.finishLastResponse(conn);
+        // track the time the connection was made idle for the stale check
+        conn.markReleased();
 
         connectionPool.freeConnection(conn);
     }
@@ -667,6 +749,51 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
         return connectionConfiguration;
     }
 
+    /**
+     * Records that a connection is being checked out of the given pool.
+     *
+     * @param connection the connection being checked out
+     * @param hostConfiguration the connection's host config
+     * @param connectionPool the connection pool that created the connection
+     */
+    private void connectionCheckedOut(
+        HttpConnectionWithReference connection,
+        HostConfiguration hostConfiguration,
+        AbstractConnectionPool connectionPool
+    ) {
+        if (leakDetector == null) {
+            storeReferenceToConnection(connection, hostConfiguration, connectionPool);
+        } else {
+            leakDetector.checkOut(connection, hostConfiguration);
+        }
+    }
+
+    /**
+     * Records that a connection has been given back to its pool.
+     *
+     * @param connection the released connection
+     */
+    private void connectionCheckedIn(HttpConnectionWithReference connection) {
+        if (leakDetector == null) {
+            removeReferenceToConnection(connection);
+        } else {
+            leakDetector.checkIn(connection);
+        }
+    }
+
+    /**
+     * Closes and releases all connections currently checked out of the given connection pool.
+     *
+     * @param connectionPool the connection pool to shutdown the connections for
+     */
+    private void closeCheckedOutConnections(AbstractConnectionPool connectionPool) {
+        if (leakDetector == null) {
+            shutdownCheckedOutConnections(connectionPool);
+        } else {
+            leakDetector.shutdown();
+        }
+    }
+
     /**
      * Returns {@link HttpConnectionManagerParams parameters} associated
      * with this connection manager.
@@ -694,10 +821,95 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
         this.params = params;
     }
 
+    /**
+     * The operations of a connection pool used by the connection manager and by the
+     * thread reclaiming the lost connections.
+     */
+    private abstract class AbstractConnectionPool {
+
+        /**
+         * Gets a connection or waits if one is not available.
+         *
+         * @param hostConfiguration the configuration of the connection
+         * @param timeout the number of milliseconds to wait for a connection, 0 to
+         * wait indefinitely
+         * @return an available connection
+         * @throws ConnectionPoolTimeoutException if a connection does not become
+         * available in 'timeout' milliseconds
+         */
+        public abstract HttpConnection getConnection(HostConfiguration hostConfiguration,
+            long timeout) throws ConnectionPoolTimeoutException;
+
+        /**
+         * Gets a connection without waiting, or queues the waiter of an asynchronous
+         * request if one is not available. The request is notified in turn with the
+         * threads waiting for the same host.
+         *
+         * @param hostConfiguration the configuration of the connection, already cloned
+         * @param waitingThread the waiter of the request
+         * @return an available connection, or <code>null</code> if the waiter has been
+         * queued
+         */
+        public abstract HttpConnection getConnectionOrQueue(HostConfiguration hostConfiguration,
+            WaitingThread waitingThread);
+
+        /**
+         * Removes a waiter from the wait queues, unless it has already been notified.
+         *
+         * @param waitingThread the waiter
+         * @return <code>true</code> if the waiter was queued
+         */
+        public abstract boolean removeWaitingThread(WaitingThread waitingThread);
+
+        /**
+         * Gets the total number of connections created for the given host configuration.
+         *
+         * @param hostConfiguration the host configuration
+         * @return the number of connections
+         */
+        public abstract int getConnectionsInPool(HostConfiguration hostConfiguration);
+
+        /**
+         * Gets the total number of connections created by this pool.
+         *
+         * @return the number of connections
+         */
+        public abstract int getConnectionsInPool();
+
+        /**
+         * Marks the given connection as free.
+         * @param conn a connection that is no longer being used
+         */
+        public abstract void freeConnection(HttpConnection conn);
+
+        /**
+         * Handles cleaning up for a lost connection with the given config.
+         *
+         * @param config the host configuration of the connection that was lost
+         */
+        public abstract void handleLostConnection(HostConfiguration config);
+
+        /**
+         * Deletes all closed connections.
+         */
+        public abstract void deleteClosedConnections();
+
+        /**
+         * Closes idle connections.
+         * @param idleTimeout
+         */
+        public abstract void closeIdleConnections(long idleTimeout);
+
+        /**
+         * Cleans up all connection pool resources.
+         */
+        public abstract void shutdown();
+    }
+
     /**
      * Global Connection Pool, including per-host pools
      */
-    private class ConnectionPool {
+    private class ConnectionPool extends AbstractConnectionPool {
 
         /** The list of free connections */
         private LinkedList freeConnections = new LinkedList();
@@ -716,6 +928,184 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
         /** The number of created connections */
         private int numConnections = 0;
 
+        /**
+         * Gets a connection or waits if one is not available, holding the monitor of
+         * this pool.
+         *
+         * @param hostConfiguration the configuration of the connection
+         * @param timeout the number of milliseconds to wait for a connection, 0 to
+         * wait indefinitely
+         * @return an available connection
+         * @throws ConnectionPoolTimeoutException if a connection does not become
+         * available in 'timeout' milliseconds
+         */
+        public HttpConnection getConnection(HostConfiguration hostConfiguration,
+            long timeout) throws ConnectionPoolTimeoutException {
+
+            HttpConnection connection = null;
+
+            int maxHostConnections = params.getMaxConnectionsPerHost(hostConfiguration);
+            int maxTotalConnections = params.getMaxTotalConnections();
+
+            synchronized (this) {
+
+                // we clone the hostConfiguration
+                // so that it cannot be changed once the connection has been retrieved
+                hostConfiguration = new HostConfiguration(hostConfiguration);
+                HostConnectionPool hostPool = getHostPool(hostConfiguration, true);
+                WaitingThread waitingThread = null;
+
+                boolean useTimeout = (timeout > 0);
+                long timeToWait = timeout;
+                long startWait = 0;
+                long endWait = 0;
+
+                while (connection == null) {
+
+                    if (shutdown) {
+                        throw new IllegalStateException("Connection factory has been shutdown.");
+                    }
+
+                    // happen to have a free connection with the right specs
+                    //
+                    if (hostPool.freeConnections.size() > 0) {
+                        connection = getFreeConnection(hostConfiguration);
+
+                    // have room to make more
+                    //
+                    } else if ((hostPool.numConnections < maxHostConnections)
+                        && (numConnections < maxTotalConnections)) {
+
+                        connection = createConnection(hostConfiguration);
+
+                    // have room to add host connection, and there is at least one free
+                    // connection that can be liberated to make overall room
+                    //
+                    } else if ((hostPool.numConnections < maxHostConnections)
+                        && (freeConnections.size() > 0)) {
+
+                        deleteLeastUsedConnection();
+                        connection = createConnection(hostConfiguration);
+
+                    // otherwise, we have to wait for one of the above conditions to
+                    // become true
+                    //
+                    } else {
+                        // TODO: keep track of which hostConfigurations have waiting
+                        // threads, so they avoid being sacrificed before necessary
+
+                        try {
+
+                            if (useTimeout && timeToWait <= 0) {
+                                throw new ConnectionPoolTimeoutException("Timeout waiting for connection");
+                            }
+
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Unable to get a connection, waiting..., hostConfig=" + hostConfiguration);
+                            }
+
+                            if (waitingThread == null) {
+                                waitingThread = new WaitingThread();
+                                waitingThread.hostConnectionPool = hostPool;
+                                waitingThread.thread = Thread.currentThread();
+                            } else {
+                                waitingThread.interruptedByConnectionPool = false;
+                            }
+
+                            if (useTimeout) {
+                                startWait = System.currentTimeMillis();
+                            }
+
+                            hostPool.waitingThreads.addLast(waitingThread);
+                            waitingThreads.addLast(waitingThread);
+                            wait(timeToWait);
+                        } catch (InterruptedException e) {
+                            if (!waitingThread.interruptedByConnectionPool) {
+                                LOG.debug("Interrupted while waiting for connection", e);
+                                throw new IllegalThreadStateException(
+                                    "Interrupted while waiting in MultiThreadedHttpConnectionManager");
+                            }
+                            // Else, do nothing, we were interrupted by the connection pool
+                            // and should now have a connection waiting for us, continue
+                            // in the loop and let's get it.
+                        } finally {
+                            if (!waitingThread.interruptedByConnectionPool) {
+                                // Either we timed out, experienced a "spurious wakeup", or were
+                                // interrupted by an external thread.  Regardless we need to
+                                // cleanup for ourselves in the wait queue.
+                                hostPool.waitingThreads.remove(waitingThread);
+                                waitingThreads.remove(waitingThread);
+                            }
+
+                            if (useTimeout) {
+                                endWait = System.currentTimeMillis();
+                                timeToWait -= (endWait - startWait);
+                            }
+                        }
+                    }
+                }
+            }
+            return connection;
+        }
+
+        public synchronized HttpConnection getConnectionOrQueue(
+            HostConfiguration hostConfiguration, WaitingThread waitingThread) {
+
+            if (shutdown) {
+                throw new IllegalStateException("Connection factory has been shutdown.");
+            }
+
+            HostConnectionPool hostPool = getHostPool(hostConfiguration, true);
+            int maxHostConnections = params.getMaxConnectionsPerHost(hostConfiguration);
+            int maxTotalConnections = params.getMaxTotalConnections();
+
+            if (hostPool.freeConnections.size() > 0) {
+                return getFreeConnection(hostConfiguration);
+            } else if ((hostPool.numConnections < maxHostConnections)
+                && (numConnections < maxTotalConnections)) {
+                return createConnection(hostConfiguration);
+            } else if ((hostPool.numConnections < maxHostConnections)
+                && (freeConnections.size() > 0)) {
+                deleteLeastUsedConnection();
+                return createConnection(hostConfiguration);
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Unable to get a connection, queuing request..., hostConfig="
+                    + hostConfiguration);
+            }
+            waitingThread.hostConnectionPool = hostPool;
+            hostPool.waitingThreads.addLast(waitingThread);
+            waitingThreads.addLast(waitingThread);
+            return null;
+        }
+
+        public synchronized boolean removeWaitingThread(WaitingThread waitingThread) {
+            HostConnectionPool hostPool = waitingThread.hostConnectionPool;
+            waitingThreads.remove(waitingThread);
+            return hostPool != null && hostPool.waitingThreads.remove(waitingThread);
+        }
+
+        /**
+         * Gets the total number of connections created for the given host configuration.
+         *
+         * @param hostConfiguration the host configuration
+         * @return the number of connections
+         */
+        public synchronized int getConnectionsInPool(HostConfiguration hostConfiguration) {
+            HostConnectionPool hostPool = getHostPool(hostConfiguration, false);
+            return (hostPool != null) ? hostPool.numConnections : 0;
+        }
+
+        /**
+         * Gets the total number of connections created by this pool.
+         *
+         * @return the number of connections
+         */
+        public synchronized int getConnectionsInPool() {
+            return numConnections;
+        }
+
         /**
          * Cleans up all connection pool resources.
          */
@@ -730,15 +1120,21 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
             }
 
             // close all connections that have been checked out
-            shutdownCheckedOutConnections(this);
+            closeCheckedOutConnections(this);
 
             // interrupt all waiting threads
             iter = waitingThreads.iterator();
             while (iter.hasNext()) {
                 WaitingThread waiter = (WaitingThread) iter.next();
                 iter.remove();
-                waiter.interruptedByConnectionPool = true;
-                waiter.thread.interrupt();
+                if (waiter.request != null) {
+                    // the request will find the manager shut down
+                    waiter.hostConnectionPool.waitingThreads.remove(waiter);
+                    waiter.request.attempt();
+                } else {
+                    waiter.interruptedByConnectionPool = true;
+                    waiter.thread.interrupt();
+                }
             }
 
             // clear out map hosts
@@ -760,7 +1156,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
                 LOG.debug("Allocating new connection, hostConfig=" + hostConfiguration);
             }
             HttpConnectionWithReference connection = new HttpConnectionWithReference(
-                    hostConfiguration);
+                    hostConfiguration, leakDetector == null);
             connection.getParams().setDefaults(MultiThreadedHttpConnectionManager.this.params);
             connection.setHttpConnectionManager(MultiThreadedHttpConnectionManager.this);
             numConnections++;
@@ -768,7 +1164,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
 
             // store a reference to this connection so that it can be cleaned up
             // in the event it is not correctly released
-            storeReferenceToConnection(connection, hostConfiguration, this);
+            connectionCheckedOut(connection, hostConfiguration, this);
             return connection;
         }
 
@@ -834,7 +1230,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
                 freeConnections.remove(connection);
                 // store a reference to this connection so that it can be cleaned up
                 // in the event it is not correctly released
-                storeReferenceToConnection(connection, hostConfiguration, this);
+                connectionCheckedOut(connection, hostConfiguration, this);
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Getting free connection, hostConfig=" + hostConfiguration);
                 }
@@ -962,8 +1358,13 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
             }
 
             if (waitingThread != null) {
-                waitingThread.interruptedByConnectionPool = true;
-                waitingThread.thread.interrupt();
+                if (waitingThread.request != null) {
+                    // no thread to wake up, try again to get a connection for the request
+                    waitingThread.request.attempt();
+                } else {
+                    waitingThread.interruptedByConnectionPool = true;
+                    waitingThread.thread.interrupt();
+                }
             }
         }
 
@@ -1002,7 +1403,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
                 freeConnections.add(conn);
                 // we can remove the reference to this connection as we have control over
                 // it again.  this also ensures that the connection manager can be GCed
-                removeReferenceToConnection((HttpConnectionWithReference) conn);
+                connectionCheckedIn((HttpConnectionWithReference) conn);
                 if (numConnections == 0) {
                     // for some reason this connection pool didn't already exist
                     LOG.error("Host connection pool not found, hostConfig="
@@ -1018,6 +1419,696 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
         }
     }
 
+    /**
+     * A connection pool made of a separate pool for each host configuration, each
+     * one guarded by its own monitor. The total numbers of connections and of free
+     * connections are atomic counters: getting and releasing a connection lock only
+     * the pool of its host. The idle time of a free connection is the time it was
+     * released, so the idle connections are closed host by host, and the least
+     * recently used free connection, deleted to make room for a connection to another
+     * host, is looked up in the host pools only when the pool is full.
+     *
+     * <p>A thread never holds the monitors of two host pools at the same time. The
+     * waiting threads are queued in their host pool and in a global queue, and they
+     * are notified through their own monitor: a released connection wakes the first
+     * thread waiting for the same host or, if there is none, the first thread
+     * waiting for any host.</p>
+     */
+    private class StripedConnectionPool extends AbstractConnectionPool {
+
+        /**
+         * Map where keys are {@link HostConfiguration}s and values are {@link
+         * HostConnectionPool}s
+         */
+        private final ConcurrentMap mapHosts = new ConcurrentHashMap();
+
+        /** The WaitingThreads for the maximum number of connections, in arrival order */
+        private final ConcurrentLinkedQueue waitingThreads = new ConcurrentLinkedQueue();
+
+        /** The number of created connections */
+        private final AtomicInteger numConnections = new AtomicInteger();
+
+        /** The number of free connections of all the hosts */
+        private final AtomicInteger numFreeConnections = new AtomicInteger();
+
+        public HttpConnection getConnection(HostConfiguration hostConfiguration,
+            long timeout) throws ConnectionPoolTimeoutException {
+
+            // we clone the hostConfiguration
+            // so that it cannot be changed once the connection has been retrieved
+            hostConfiguration = new HostConfiguration(hostConfiguration);
+            WaitingThread waitingThread = new WaitingThread();
+            waitingThread.thread = Thread.currentThread();
+
+            boolean useTimeout = (timeout > 0);
+            long timeToWait = timeout;
+
+            while (true) {
+
+                boolean timedOut = useTimeout && timeToWait <= 0;
+                HttpConnection connection = acquire(hostConfiguration,
+                    timedOut ? null : waitingThread);
+                if (connection != null) {
+                    return connection;
+                }
+                if (timedOut) {
+                    throw new ConnectionPoolTimeoutException("Timeout waiting for connection");
+                }
+
+                long startWait = System.currentTimeMillis();
+                try {
+                    synchronized (waitingThread) {
+                        while (!waitingThread.notified && !shutdown) {
+                            long remaining = timeToWait - (System.currentTimeMillis() - startWait);
+                            if (useTimeout && remaining <= 0) {
+                                break;
+                            }
+                            waitingThread.wait(useTimeout ? remaining : 0);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    removeWaitingThread(waitingThread);
+                    LOG.debug("Interrupted while waiting for connection", e);
+                    throw new IllegalThreadStateException(
+                        "Interrupted while waiting in MultiThreadedHttpConnectionManager");
+                } finally {
+                    if (useTimeout) {
+                        timeToWait -= (System.currentTimeMillis() - startWait);
+                    }
+                }
+
+                if (!waitingThread.notified) {
+                    // we timed out, or the manager has been shutdown
+                    removeWaitingThread(waitingThread);
+                }
+            }
+        }
+
+        public HttpConnection getConnectionOrQueue(HostConfiguration hostConfiguration,
+            WaitingThread waitingThread) {
+            return acquire(hostConfiguration, waitingThread);
+        }
+
+        /**
+         * Gets a connection if one is available, or queues the given waiter.
+         *
+         * @param hostConfiguration the configuration of the connection, already cloned
+         * @param waitingThread the waiter to queue, <code>null</code> to return without
+         * queuing anything
+         * @return an available connection, or <code>null</code> if the waiter has been
+         * queued
+         */
+        private HttpConnection acquire(HostConfiguration hostConfiguration,
+            WaitingThread waitingThread) {
+
+            int maxHostConnections = params.getMaxConnectionsPerHost(hostConfiguration);
+            int maxTotalConnections = params.getMaxTotalConnections();
+
+            while (true) {
+
+                if (shutdown) {
+                    throw new IllegalStateException("Connection factory has been shutdown.");
+                }
+
+                HostConnectionPool hostPool = getHostPool(hostConfiguration);
+                boolean deleteFreeConnection = false;
+                boolean hostRoom = false;
+                synchronized (hostPool) {
+                    if (hostPool.removed) {
+                        // removed from the map while we were looking it up
+                        continue;
+                    }
+
+                    // happen to have a free connection with the right specs
+                    //
+                    if (hostPool.freeConnections.size() > 0) {
+                        HttpConnectionWithReference connection =
+                            (HttpConnectionWithReference) hostPool.freeConnections.removeLast();
+                        numFreeConnections.decrementAndGet();
+                        connectionCheckedOut(connection, hostConfiguration, this);
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Getting free connection, hostConfig=" + hostConfiguration);
+                        }
+                        return connection;
+                    }
+
+                    if (hostPool.numConnections < maxHostConnections) {
+                        hostRoom = true;
+                        // have room to make more
+                        //
+                        if (reserveConnection(maxTotalConnections)) {
+                            hostPool.numConnections++;
+                            return createConnection(hostConfiguration);
+                        }
+                        // have room to add host connection, and there may be a free
+                        // connection that can be liberated to make overall room
+                        //
+                        deleteFreeConnection = numFreeConnections.get() > 0;
+                    }
+
+                    if (!deleteFreeConnection) {
+                        if (waitingThread == null) {
+                            return null;
+                        }
+
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Unable to get a connection, waiting..., hostConfig=" + hostConfiguration);
+                        }
+
+                        waitingThread.hostConnectionPool = hostPool;
+                        waitingThread.notified = false;
+                        // only a connection to the same host can be given to a thread
+                        // waiting for the maximum of its host
+                        waitingThread.anyHost = hostRoom;
+                        hostPool.waitingThreads.addLast(waitingThread);
+                        if (hostRoom) {
+                            waitingThreads.add(waitingThread);
+                        }
+                    }
+                }
+
+                if (deleteFreeConnection) {
+                    // the monitor of the host pool is released, so that
+                    // the pool of the deleted connection can be locked
+                    deleteLeastUsedConnection();
+                    continue;
+                }
+
+                if (hostRoom && (numFreeConnections.get() > 0
+                        || numConnections.get() < maxTotalConnections)) {
+                    // room has been made for another host after we checked and
+                    // before we were queued, so nobody may be going to notify us
+                    removeWaitingThread(waitingThread);
+                    continue;
+                }
+
+                return null;
+            }
+        }
+
+        /**
+         * Reserves a connection in the total count, if the maximum allows it.
+         *
+         * @param maxTotalConnections the maximum number of connections
+         * @return <code>true</code> if the connection has been reserved
+         */
+        private boolean reserveConnection(int maxTotalConnections) {
+            while (true) {
+                int connections = numConnections.get();
+                if (connections >= maxTotalConnections) {
+                    return false;
+                }
+                if (numConnections.compareAndSet(connections, connections + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Creates a new connection, already counted in the host pool and in the total.
+         *
+         * @param hostConfiguration the configuration for the connection
+         * @return a new connection
+         */
+        private HttpConnection createConnection(HostConfiguration hostConfiguration) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Allocating new connection, hostConfig=" + hostConfiguration);
+            }
+            HttpConnectionWithReference connection = new HttpConnectionWithReference(
+                    hostConfiguration, leakDetector == null);
+            connection.getParams().setDefaults(MultiThreadedHttpConnectionManager.this.params);
+            connection.setHttpConnectionManager(MultiThreadedHttpConnectionManager.this);
+
+            // store a reference to this connection so that it can be cleaned up
+            // in the event it is not correctly released
+            connectionCheckedOut(connection, hostConfiguration, this);
+            return connection;
+        }
+
+        /**
+         * Gets the pool of the given host configuration, creating it if needed.
+         *
+         * @param hostConfiguration the configuraton for the connection pool
+         * @return the host pool
+         */
+        private HostConnectionPool getHostPool(HostConfiguration hostConfiguration) {
+            HostConnectionPool hostPool = (HostConnectionPool) mapHosts.get(hostConfiguration);
+            if (hostPool == null) {
+                // First time for this config
+                HostConnectionPool newPool = new HostConnectionPool();
+                newPool.hostConfiguration = hostConfiguration;
+                hostPool = (HostConnectionPool) mapHosts.putIfAbsent(hostConfiguration, newPool);
+                if (hostPool == null) {
+                    hostPool = newPool;
+                }
+            }
+            return hostPool;
+        }
+
+        /**
+         * Removes the host pool from the map if it has no connections and no waiting
+         * threads. Must be called holding the monitor of the host pool.
+         *
+         * @param hostPool the host pool
+         */
+        private void removeIfUnused(HostConnectionPool hostPool) {
+            if ((hostPool.numConnections == 0) && hostPool.waitingThreads.isEmpty()) {
+                hostPool.removed = true;
+                mapHosts.remove(hostPool.hostConfiguration, hostPool);
+            }
+        }
+
+        public boolean removeWaitingThread(WaitingThread waitingThread) {
+            HostConnectionPool hostPool = waitingThread.hostConnectionPool;
+            boolean removed;
+            boolean anyHost;
+            synchronized (hostPool) {
+                removed = hostPool.waitingThreads.remove(waitingThread);
+                anyHost = waitingThread.anyHost;
+                removeIfUnused(hostPool);
+            }
+            if (anyHost) {
+                waitingThreads.remove(waitingThread);
+            }
+            return removed;
+        }
+
+        /**
+         * Wakes up a waiting thread.
+         *
+         * @param waitingThread the thread to wake up
+         */
+        private void notifyWaitingThread(WaitingThread waitingThread) {
+            if (waitingThread.request != null) {
+                // no thread to wake up, try again to get a connection for the request
+                waitingThread.request.attempt();
+                return;
+            }
+            synchronized (waitingThread) {
+                waitingThread.notified = true;
+                waitingThread.notifyAll();
+            }
+        }
+
+        /**
+         * Wakes up the first thread waiting for any host, if any. Must be called
+         * without holding the monitor of a host pool.
+         */
+        private void notifyNextWaitingThread() {
+            WaitingThread waitingThread;
+            while ((waitingThread = (WaitingThread) waitingThreads.poll()) != null) {
+                HostConnectionPool hostPool = waitingThread.hostConnectionPool;
+                boolean waiting;
+                synchronized (hostPool) {
+                    // the thread may have stopped waiting in the meantime
+                    waiting = hostPool.waitingThreads.remove(waitingThread);
+                }
+                if (waiting) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Notifying next waiting thread, hostConfig="
+                            + hostPool.hostConfiguration);
+                    }
+                    notifyWaitingThread(waitingThread);
+                    return;
+                }
+            }
+            LOG.debug("Notifying no-one, there are no waiting threads");
+        }
+
+        /**
+         * Wakes up the first thread waiting for the host of the pool, removing it from
+         * the wait queues. Must be called holding the monitor of the host pool.
+         *
+         * @param hostPool the host pool
+         * @return the thread to notify, <code>null</code> if there is none
+         */
+        private WaitingThread removeFirstWaitingThread(HostConnectionPool hostPool) {
+            if (hostPool.waitingThreads.isEmpty()) {
+                return null;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Notifying thread waiting on host pool, hostConfig="
+                    + hostPool.hostConfiguration);
+            }
+            WaitingThread waitingThread = (WaitingThread) hostPool.waitingThreads.removeFirst();
+            if (waitingThread.anyHost) {
+                waitingThreads.remove(waitingThread);
+            }
+            return waitingThread;
+        }
+
+        /**
+         * Notifies the given thread, or the next thread waiting for any host if it
+         * is <code>null</code>.
+         */
+        private void notifyWaitingThreadOrNext(WaitingThread waitingThread) {
+            if (waitingThread != null) {
+                notifyWaitingThread(waitingThread);
+            } else {
+                notifyNextWaitingThread();
+            }
+        }
+
+        /**
+         * Close and delete the least recently used free connection, to make room for
+         * a new one. The first free connection of each host pool is its least recently
+         * used one, so the host pools are looked at one at a time to find the oldest.
+         *
+         * @return <code>true</code> if a connection has been deleted
+         */
+        private boolean deleteLeastUsedConnection() {
+            while (true) {
+                HostConnectionPool leastUsedPool = null;
+                long leastUsedTime = Long.MAX_VALUE;
+                Iterator iter = mapHosts.values().iterator();
+                while (iter.hasNext()) {
+                    HostConnectionPool hostPool = (HostConnectionPool) iter.next();
+                    synchronized (hostPool) {
+                        if (!hostPool.freeConnections.isEmpty()) {
+                            HttpConnection connection = (HttpConnection) hostPool.freeConnections.getFirst();
+                            if (leastUsedPool == null || connection.getLastReleaseTime() < leastUsedTime) {
+                                leastUsedPool = hostPool;
+                                leastUsedTime = connection.getLastReleaseTime();
+                            }
+                        }
+                    }
+                }
+                if (leastUsedPool == null) {
+                    LOG.debug("Attempted to reclaim an unused connection but there were none.");
+                    return false;
+                }
+
+                HttpConnection connection = null;
+                synchronized (leastUsedPool) {
+                    // the connections may have been taken in the meantime
+                    if (!leastUsedPool.freeConnections.isEmpty()) {
+                        connection = (HttpConnection) leastUsedPool.freeConnections.removeFirst();
+                        deleteConnection(leastUsedPool);
+                    }
+                }
+                if (connection != null) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Reclaiming connection, hostConfig=" + leastUsedPool.hostConfiguration);
+                    }
+                    connection.close();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Updates the counts after a free connection has been removed from its host
+         * pool to be deleted. Must be called holding the monitor of the host pool.
+         *
+         * @param hostPool the host pool of the deleted connection
+         */
+        private void deleteConnection(HostConnectionPool hostPool) {
+            numFreeConnections.decrementAndGet();
+            hostPool.numConnections--;
+            numConnections.decrementAndGet();
+            removeIfUnused(hostPool);
+        }
+
+        public int getConnectionsInPool(HostConfiguration hostConfiguration) {
+            HostConnectionPool hostPool = (HostConnectionPool) mapHosts.get(hostConfiguration);
+            if (hostPool == null) {
+                return 0;
+            }
+            synchronized (hostPool) {
+                return hostPool.numConnections;
+            }
+        }
+
+        public int getConnectionsInPool() {
+            return numConnections.get();
+        }
+
+        public void freeConnection(HttpConnection conn) {
+
+            HostConfiguration connectionConfiguration = configurationForConnection(conn);
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Freeing connection, hostConfig=" + connectionConfiguration);
+            }
+
+            if (shutdown) {
+                // the connection manager has been shutdown, release the connection's
+                // resources and get out of here
+                conn.close();
+                return;
+            }
+
+            WaitingThread waitingThread;
+            while (true) {
+                HostConnectionPool hostPool = getHostPool(connectionConfiguration);
+                synchronized (hostPool) {
+                    if (hostPool.removed) {
+                        continue;
+                    }
+
+                    // Put the connect back in the available list and notify a waiter
+                    hostPool.freeConnections.add(conn);
+                    numFreeConnections.incrementAndGet();
+                    if (hostPool.numConnections == 0) {
+                        // for some reason this connection pool didn't already exist
+                        LOG.error("Host connection pool not found, hostConfig="
+                                  + connectionConfiguration);
+                        hostPool.numConnections = 1;
+                        numConnections.incrementAndGet();
+                    }
+
+                    // we can remove the reference to this connection as we have control over
+                    // it again.  this also ensures that the connection manager can be GCed
+                    connectionCheckedIn((HttpConnectionWithReference) conn);
+
+                    waitingThread = removeFirstWaitingThread(hostPool);
+                }
+                break;
+            }
+            notifyWaitingThreadOrNext(waitingThread);
+        }
+
+        public void handleLostConnection(HostConfiguration config) {
+            HostConnectionPool hostPool = (HostConnectionPool) mapHosts.get(config);
+            WaitingThread waitingThread = null;
+            if (hostPool != null) {
+                synchronized (hostPool) {
+                    hostPool.numConnections--;
+                    waitingThread = removeFirstWaitingThread(hostPool);
+                    removeIfUnused(hostPool);
+                }
+            }
+            numConnections.decrementAndGet();
+            notifyWaitingThreadOrNext(waitingThread);
+        }
+
+        public void deleteClosedConnections() {
+            Iterator iter = mapHosts.values().iterator();
+            while (iter.hasNext()) {
+                HostConnectionPool hostPool = (HostConnectionPool) iter.next();
+                synchronized (hostPool) {
+                    Iterator connections = hostPool.freeConnections.iterator();
+                    while (connections.hasNext()) {
+                        HttpConnection conn = (HttpConnection) connections.next();
+                        if (!conn.isOpen()) {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Reclaiming connection, hostConfig=" + hostPool.hostConfiguration);
+                            }
+                            connections.remove();
+                            deleteConnection(hostPool);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Closes the free connections released at least <code>idleTimeout</code>
+         * milliseconds ago. They are deleted by {@link #deleteClosedConnections()}.
+         */
+        public void closeIdleConnections(long idleTimeout) {
+            long idleSince = System.currentTimeMillis() - idleTimeout;
+            Iterator iter = mapHosts.values().iterator();
+            while (iter.hasNext()) {
+                HostConnectionPool hostPool = (HostConnectionPool) iter.next();
+                synchronized (hostPool) {
+                    Iterator connections = hostPool.freeConnections.iterator();
+                    while (connections.hasNext()) {
+                        HttpConnection conn = (HttpConnection) connections.next();
+                        if (conn.getLastReleaseTime() <= idleSince) {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Closing connection, released at: " + conn.getLastReleaseTime());
+                            }
+                            conn.close();
+                        }
+                    }
+                }
+            }
+        }
+
+        public void shutdown() {
+
+            // close all free connections
+            ArrayList waiting = new ArrayList();
+            Iterator iter = mapHosts.values().iterator();
+            while (iter.hasNext()) {
+                HostConnectionPool hostPool = (HostConnectionPool) iter.next();
+                synchronized (hostPool) {
+                    while (!hostPool.freeConnections.isEmpty()) {
+                        ((HttpConnection) hostPool.freeConnections.removeFirst()).close();
+                        numFreeConnections.decrementAndGet();
+                    }
+                    waiting.addAll(hostPool.waitingThreads);
+                    hostPool.waitingThreads.clear();
+                }
+            }
+            waitingThreads.clear();
+
+            // close all connections that have been checked out
+            closeCheckedOutConnections(this);
+
+            // wake up all waiting threads, they will find the manager shut down
+            iter = waiting.iterator();
+            while (iter.hasNext()) {
+                notifyWaitingThread((WaitingThread) iter.next());
+            }
+
+            // clear out map hosts
+            mapHosts.clear();
+        }
+    }
+
+    /**
+     * A connection requested without blocking. Its waiter is queued in the pool like a
+     * waiting thread, and when notified the request tries again to get a connection.
+     */
+    private class ConnectionRequest {
+
+        /** The configuration of the requested connection */
+        private final HostConfiguration hostConfiguration;
+
+        /** The listener to give the connection to */
+        private final ConnectionListener listener;
+
+        /** The waiter queued in the pool */
+        private final WaitingThread waitingThread = new WaitingThread();
+
+        /** The task expiring the request. Guarded by the monitor of this object */
+        private TimerTask timeoutTask;
+
+        /** Set when the timeout has expired. Guarded by the monitor of this object */
+        private boolean timedOut = false;
+
+        /** Set when the listener has been called. Guarded by the monitor of this object */
+        private boolean finished = false;
+
+        public ConnectionRequest(HostConfiguration hostConfiguration, ConnectionListener listener) {
+            this.hostConfiguration = hostConfiguration;
+            this.listener = listener;
+            this.waitingThread.request = this;
+        }
+
+        /**
+         * Tries to get a connection, queuing the request if none is available.
+         *
+         * @return <code>true</code> if the listener has been called
+         */
+        public boolean attempt() {
+            HttpConnection connection;
+            try {
+                connection = connectionPool.getConnectionOrQueue(hostConfiguration, waitingThread);
+            } catch (IllegalStateException e) {
+                // the manager has been shut down
+                if (finish()) {
+                    listener.connectionFailed(e);
+                }
+                return true;
+            }
+
+            if (connection != null) {
+                if (finish()) {
+                    listener.connectionAvailable(new HttpConnectionAdapter(connection));
+                } else {
+                    connectionPool.freeConnection(connection);
+                }
+                return true;
+            }
+
+            synchronized (this) {
+                if (!timedOut) {
+                    return false;
+                }
+            }
+            // the timeout expired while we were trying again
+            expire();
+            return true;
+        }
+
+        /**
+         * Schedules the expiry of the queued request.
+         *
+         * @param timeout the number of milliseconds to wait for a connection
+         */
+        public void scheduleTimeout(long timeout) {
+            Timer timer;
+            try {
+                timer = getConnectionRequestTimer();
+            } catch (IllegalStateException e) {
+                // the queued request has been or will be failed by the pool
+                return;
+            }
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                timeoutTask = new TimerTask() {
+                    public void run() {
+                        synchronized (ConnectionRequest.this) {
+                            timedOut = true;
+                        }
+                        expire();
+                    }
+                };
+                try {
+                    timer.schedule(timeoutTask, timeout);
+                } catch (IllegalStateException e) {
+                    // the timer has been cancelled by a shutdown
+                    timeoutTask = null;
+                }
+            }
+        }
+
+        /**
+         * Fails the request if it is still queued. If it is being served, it will be
+         * failed by {@link #attempt()} unless it gets a connection.
+         */
+        private void expire() {
+            if (connectionPool.removeWaitingThread(waitingThread) && finish()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Timeout waiting for connection, hostConfig=" + hostConfiguration);
+                }
+                listener.connectionFailed(
+                    new ConnectionPoolTimeoutException("Timeout waiting for connection"));
+            }
+        }
+
+        /**
+         * Marks the request as finished.
+         *
+         * @return <code>true</code> if the request was not already finished
+         */
+        private synchronized boolean finish() {
+            if (finished) {
+                return false;
+            }
+            finished = true;
+            if (timeoutTask != null) {
+                timeoutTask.cancel();
+            }
+            return true;
+        }
+    }
+
     /**
      * A simple struct-like class to combine the objects needed to release a connection's
      * resources when claimed by the garbage collector.
@@ -1025,7 +2116,7 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
     private static class ConnectionSource {
 
         /** The connection pool that created the connection */
-        public ConnectionPool connectionPool;
+        public AbstractConnectionPool connectionPool;
 
         /** The connection's host configuration */
         public HostConfiguration hostConfiguration;
@@ -1047,6 +2138,9 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
 
         /** The number of created connections */
         public int numConnections = 0;
+
+        /** Set when a striped pool removes this pool from its map */
+        public boolean removed = false;
     }
 
     /**
@@ -1064,6 +2158,19 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
          * to true inside {@link ConnectionPool#notifyWaitingThread(HostConnectionPool)}
          * before the thread is interrupted. */
         public boolean interruptedByConnectionPool = false;
+
+        /** Flag to indicate if the thread has been notified by a striped pool. Guarded
+         * by the monitor of this object, which is the one the thread waits on. */
+        public boolean notified = false;
+
+        /** The asynchronous request waiting, <code>null</code> if a thread is waiting */
+        public ConnectionRequest request;
+
+        /** Flag to indicate if the thread waits for the maximum number of connections
+         * of a striped pool, rather than for the one of its host, so that it can be
+         * notified when a connection to any host is released. Guarded by the monitor
+         * of its host pool. */
+        public boolean anyHost = false;
     }
 
     /**
@@ -1094,11 +2201,8 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
          */
         private void handleReference(Reference ref) {
 
-            ConnectionSource source = null;
-
-            synchronized (REFERENCE_TO_CONNECTION_SOURCE) {
-                source = (ConnectionSource) REFERENCE_TO_CONNECTION_SOURCE.remove(ref);
-            }
+            ConnectionSource source =
+                (ConnectionSource) REFERENCE_TO_CONNECTION_SOURCE.remove(ref);
             // only clean up for this reference if it is still associated with
             // a ConnectionSource
             if (source != null) {
@@ -1131,18 +2235,218 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
 
     }
 
+    /**
+     * Tracks the connections checked out of a manager that doesn't track lost connections,
+     * and reports the ones checked out for longer than the {@link
+     * HttpConnectionManagerParams#LEAK_DETECTION_THRESHOLD leak detection threshold}.
+     */
+    private class LeakDetector {
+
+        /** Map where keys are the checked out connections and values are {@link CheckedOutConnection}s */
+        private final ConcurrentMap checkedOutConnections = new ConcurrentHashMap();
+
+        /** The number of checkouts, used to sample the stack traces */
+        private final AtomicLong checkouts = new AtomicLong();
+
+        /** The thread reporting the leaked connections, started on the first checkout */
+        private volatile LeakSweeperThread sweeperThread;
+
+        /**
+         * Records a connection being checked out, with the stack trace of the current
+         * thread if it is sampled.
+         *
+         * @param connection the connection being checked out
+         * @param hostConfiguration the connection's host config
+         */
+        public void checkOut(HttpConnection connection, HostConfiguration hostConfiguration) {
+            CheckedOutConnection checkedOut = new CheckedOutConnection();
+            checkedOut.hostConfiguration = hostConfiguration;
+
+            long threshold = params.getLeakDetectionThreshold();
+            if (threshold > 0) {
+                checkedOut.checkoutTime = System.currentTimeMillis();
+                int sampleInterval = params.getLeakDetectionSampleInterval();
+                if (sampleInterval > 0 && checkouts.getAndIncrement() % sampleInterval == 0) {
+                    checkedOut.stackTrace = new Throwable("Connection checked out");
+                }
+                if (sweeperThread == null) {
+                    startSweeper();
+                }
+            }
+            checkedOutConnections.put(connection, checkedOut);
+        }
+
+        /**
+         * Records a connection being given back to its pool.
+         *
+         * @param connection the released connection
+         */
+        public void checkIn(HttpConnection connection) {
+            CheckedOutConnection checkedOut =
+                (CheckedOutConnection) checkedOutConnections.remove(connection);
+            if (checkedOut != null && checkedOut.reported) {
+                LOG.info("Connection reported as leaked has been released after "
+                    + (System.currentTimeMillis() - checkedOut.checkoutTime)
+                    + " ms, hostConfig=" + checkedOut.hostConfiguration);
+            }
+        }
+
+        /**
+         * Starts the thread reporting the leaked connections, if it is not running.
+         */
+        private synchronized void startSweeper() {
+            if (sweeperThread == null && !shutdown) {
+                sweeperThread = new LeakSweeperThread(this);
+                sweeperThread.start();
+            }
+        }
+
+        /**
+         * Logs the connections checked out for longer than the threshold, once for
+         * each checkout.
+         */
+        public void sweep() {
+            long threshold = params.getLeakDetectionThreshold();
+            if (threshold <= 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Iterator iter = checkedOutConnections.values().iterator();
+            while (iter.hasNext()) {
+                CheckedOutConnection checkedOut = (CheckedOutConnection) iter.next();
+                long time = now - checkedOut.checkoutTime;
+                if (checkedOut.checkoutTime == 0 || checkedOut.reported || time <= threshold) {
+                    continue;
+                }
+                checkedOut.reported = true;
+                String message = "Connection checked out for " + time
+                    + " ms, it may have been leaked, hostConfig=" + checkedOut.hostConfiguration;
+                if (checkedOut.stackTrace != null) {
+                    LOG.warn(message, checkedOut.stackTrace);
+                } else {
+                    LOG.warn(message);
+                }
+            }
+        }
+
+        /**
+         * Gets the time to wait between two sweeps.
+         *
+         * @return the interval in milliseconds
+         */
+        public long getSweepInterval() {
+            long threshold = params.getLeakDetectionThreshold();
+            return threshold > 0 ? Math.max(threshold / 2, 10) : 1000;
+        }
+
+        /**
+         * Closes and releases all the checked out connections, and stops the thread
+         * reporting the leaked ones.
+         */
+        public void shutdown() {
+            synchronized (this) {
+                if (sweeperThread != null) {
+                    sweeperThread.shutdown();
+                    sweeperThread = null;
+                }
+            }
+
+            Iterator iter = checkedOutConnections.keySet().iterator();
+            while (iter.hasNext()) {
+                HttpConnection connection = (HttpConnection) iter.next();
+                iter.remove();
+                connection.close();
+                // remove the reference to the connection manager. this ensures
+                // that the we don't accidentally end up here again
+                connection.setHttpConnectionManager(null);
+                connection.releaseConnection();
+            }
+        }
+    }
+
+    /**
+     * A simple struct-like class to combine the information recorded when a connection
+     * is checked out without tracking lost connections.
+     */
+    private static class CheckedOutConnection {
+
+        /** The connection's host configuration */
+        public HostConfiguration hostConfiguration;
+
+        /** The checkout time, <code>0</code> if the leak detection was disabled */
+        public long checkoutTime;
+
+        /** The stack trace of the thread that checked out the connection, if sampled */
+        public Throwable stackTrace;
+
+        /** Set once the connection has been reported as leaked */
+        public volatile boolean reported;
+    }
+
+    /**
+     * A thread periodically reporting the leaked connections of a {@link LeakDetector}.
+     * It only keeps a weak reference to the detector, so that it stops when its connection
+     * manager is garbage collected without being shut down.
+     */
+    private static class LeakSweeperThread extends Thread {
+
+        private final WeakReference leakDetector;
+
+        private volatile boolean shutdown = false;
+
+        /**
+         * Create an instance and make this a daemon thread.
+         *
+         * @param leakDetector the detector to sweep
+         */
+        public LeakSweeperThread(LeakDetector leakDetector) {
+            this.leakDetector = new WeakReference(leakDetector);
+            setDaemon(true);
+            setName("MultiThreadedHttpConnectionManager leak detection");
+        }
+
+        public void shutdown() {
+            this.shutdown = true;
+            this.interrupt();
+        }
+
+        /**
+         * Start execution.
+         */
+        public void run() {
+            while (!shutdown) {
+                LeakDetector detector = (LeakDetector) leakDetector.get();
+                if (detector == null) {
+                    return;
+                }
+                long interval = detector.getSweepInterval();
+                detector.sweep();
+                detector = null;
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    LOG.debug("LeakSweeperThread interrupted", e);
+                }
+            }
+        }
+    }
+
     /**
      * A connection that keeps a reference to itself.
      */
     private static class HttpConnectionWithReference extends HttpConnection {
 
-        public WeakReference reference = new WeakReference(this, REFERENCE_QUEUE);
+        /** The reference to this connection, <code>null</code> if lost connections are not tracked */
+        public final WeakReference reference;
 
         /**
          * @param hostConfiguration
+         * @param trackLost <code>true</code> to register a reference that is enqueued when the
+         * connection is lost to the garbage collector
          */
-        public HttpConnectionWithReference(HostConfiguration hostConfiguration) {
+        public HttpConnectionWithReference(HostConfiguration hostConfiguration, boolean trackLost) {
             super(hostConfiguration);
+            this.reference = trackLost ? new WeakReference(this, REFERENCE_QUEUE) : null;
         }
 
     }
@@ -1316,6 +2620,14 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
             }
         }
 
+        public boolean isStaleCheckNeeded() {
+            if (hasConnection()) {
+                return wrappedConnection.isStaleCheckNeeded();
+            } else {
+                return true;
+            }
+        }
+
         public boolean isProxied() {
             if (hasConnection()) {
                 return wrappedConnection.isProxied();
@@ -1332,6 +2644,14 @@ public class MultiThreadedHttpConnectionManager implements HttpConnectionManager
             }
         }
 
+        public SocketChannel getSocketChannel() {
+            if (hasConnection()) {
+                return wrappedConnection.getSocketChannel();
+            } else {
+                return null;
+            }
+        }
+
         public boolean isResponseAvailable(int timeout) throws IOException {
             if (hasConnection()) {
                 return  wrappedConnection.isResponseAvailable(timeout);
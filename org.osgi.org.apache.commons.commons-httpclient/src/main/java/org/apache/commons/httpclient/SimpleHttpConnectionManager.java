@@ -229,6 +229,7 @@ public class SimpleHttpConnectionManager implements HttpConnectionManager {
         } else {
             // make sure the connection is reuseable
             finishLastResponse(httpConnection);
+            httpConnection.markReleased();
         }
 
         inUse = false;
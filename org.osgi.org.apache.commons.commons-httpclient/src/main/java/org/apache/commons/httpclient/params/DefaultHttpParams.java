@@ -84,10 +84,14 @@ public class DefaultHttpParams implements HttpParams, Serializable, Cloneable {
     }
 
     /** The set of default values to defer to */
-    private HttpParams defaults = null;
+    private volatile HttpParams defaults = null;
 
-    /** Hash map of HTTP parameters that this collection contains */
-    private HashMap parameters = null;
+    /**
+     * Hash map of HTTP parameters that this collection contains. It is never modified
+     * once assigned: the parameters are set on a copy, so that they are read without
+     * taking any lock.
+     */
+    private volatile HashMap parameters = null;
 
     /**
      * Creates a new collection of parameters with the given parent.
@@ -115,7 +119,7 @@ public class DefaultHttpParams implements HttpParams, Serializable, Cloneable {
         this(getDefaultParams());
     }
 
-    public synchronized HttpParams getDefaults() {
+    public HttpParams getDefaults() {
         return this.defaults;
     }
 
@@ -123,20 +127,22 @@ public class DefaultHttpParams implements HttpParams, Serializable, Cloneable {
         this.defaults = params;
     }
 
-    public synchronized Object getParameter(final String name) {
+    public Object getParameter(final String name) {
         // See if the parameter has been explicitly defined
         Object param = null;
-        if (this.parameters != null) {
-            param = this.parameters.get(name);
+        HashMap parameters = this.parameters;
+        if (parameters != null) {
+            param = parameters.get(name);
         }
         if (param != null) {
             // If so, return
             return param;
         } else {
             // If not, see if defaults are available
-            if (this.defaults != null) {
+            HttpParams defaults = this.defaults;
+            if (defaults != null) {
                 // Return default parameter value
-                return this.defaults.getParameter(name);
+                return defaults.getParameter(name);
             } else {
                 // Otherwise, return null
                 return null;
@@ -145,10 +151,10 @@ public class DefaultHttpParams implements HttpParams, Serializable, Cloneable {
     }
 
     public synchronized void setParameter(final String name, final Object value) {
-        if (this.parameters == null) {
-            this.parameters = new HashMap();
-        }
-        this.parameters.put(name, value);
+        HashMap parameters = this.parameters == null
+            ? new HashMap() : (HashMap) this.parameters.clone();
+        parameters.put(name, value);
+        this.parameters = parameters;
         if (LOG.isDebugEnabled()) {
             LOG.debug("Set parameter " + name + " = " + value);
         }
@@ -219,7 +225,8 @@ public class DefaultHttpParams implements HttpParams, Serializable, Cloneable {
     }
 
     public boolean isParameterSetLocally(final String name) {
-        return this.parameters != null && this.parameters.get(name) != null;
+        HashMap parameters = this.parameters;
+        return parameters != null && parameters.get(name) != null;
     }
 
     public boolean isParameterTrue(final String name) {
@@ -233,7 +240,7 @@ public class DefaultHttpParams implements HttpParams, Serializable, Cloneable {
     /**
      * Removes all parameters from this collection.
      */
-    public void clear() {
+    public synchronized void clear() {
         this.parameters = null;
     }
 
@@ -247,9 +254,7 @@ public class DefaultHttpParams implements HttpParams, Serializable, Cloneable {
     public Object clone() throws CloneNotSupportedException
     {
         DefaultHttpParams clone = (DefaultHttpParams)super.clone();
-        if (this.parameters != null) {
-            clone.parameters = (HashMap)this.parameters.clone();
-        }
+        // the map is never modified, the clone can share it
         clone.setDefaults(this.defaults);
         return clone;
     }
@@ -30,6 +30,8 @@
 
 package org.apache.commons.httpclient.params;
 
+import org.apache.commons.httpclient.HttpConnectionSelector;
+
 /**
  * This class represents a collection of HTTP protocol parameters applicable to
  * {@link org.apache.commons.httpclient.HttpClient instances of HttpClient}.
@@ -102,6 +104,24 @@ public class HttpClientParams extends HttpMethodParams {
      */
     public static final String ALLOW_CIRCULAR_REDIRECTS = "http.protocol.allow-circular-redirects";
 
+    /**
+     * Defines the {@link HttpConnectionSelector selector} the methods executed
+     * asynchronously wait for their responses on, so that no thread is held while the
+     * server is slow to answer. Only the connections whose socket has a channel are
+     * waited for on the selector. When not set, an asynchronous method is executed by
+     * blocking calls on the executor of the client.
+     * <p>
+     * This parameter expects a value of type {@link HttpConnectionSelector}.
+     * </p>
+     *
+     * @see org.apache.commons.httpclient.HttpClient#executeMethodAsync(org.apache.commons.httpclient.HostConfiguration,
+     * org.apache.commons.httpclient.HttpMethod, org.apache.commons.httpclient.HttpState,
+     * org.apache.commons.httpclient.HttpMethodCallback)
+     *
+     * @since 3.1
+     */
+    public static final String CONNECTION_SELECTOR = "http.connection-selector";
+
     /**
      * Creates a new collection of parameters with the collection returned
      * by {@link #getDefaultParams()} as a parent. The collection will defer
@@ -194,6 +214,35 @@ public class HttpClientParams extends HttpMethodParams {
         setBooleanParameter(PREEMPTIVE_AUTHENTICATION, value);
     }
 
+    /**
+     * Returns the selector the methods executed asynchronously wait for their
+     * responses on.
+     *
+     * @return the selector, or <tt>null</tt> if the responses are waited for by
+     *   blocking calls
+     *
+     * @see #CONNECTION_SELECTOR
+     *
+     * @since 3.1
+     */
+    public HttpConnectionSelector getConnectionSelector() {
+        return (HttpConnectionSelector) getParameter(CONNECTION_SELECTOR);
+    }
+
+    /**
+     * Sets the selector the methods executed asynchronously wait for their responses on.
+     *
+     * @param selector the selector, or <tt>null</tt> to wait for the responses by
+     *   blocking calls
+     *
+     * @see #CONNECTION_SELECTOR
+     *
+     * @since 3.1
+     */
+    public void setConnectionSelector(HttpConnectionSelector selector) {
+        setParameter(CONNECTION_SELECTOR, selector);
+    }
+
     private static final String[] PROTOCOL_STRICTNESS_PARAMETERS = {
         REJECT_RELATIVE_REDIRECT,
         ALLOW_CIRCULAR_REDIRECTS
@@ -76,6 +76,35 @@ public class HttpConnectionManagerParams extends HttpConnectionParams {
      */
     public static final String MAX_TOTAL_CONNECTIONS = "http.connection-manager.max-total";
 
+    /**
+     * Defines the time in milliseconds after which a connection still checked out of a
+     * {@link MultiThreadedHttpConnectionManager} that doesn't track lost connections is
+     * reported as possibly leaked. A value of zero disables the leak detection.
+     * <p>
+     * This parameter expects a value of type {@link Long}.
+     * </p>
+     *
+     * @since 3.1
+     */
+    public static final String LEAK_DETECTION_THRESHOLD = "http.connection-manager.leak-detection-threshold";
+
+    /**
+     * Defines how often the stack trace of the thread checking out a connection is captured
+     * for the leak detection: one checkout in every <code>n</code> is sampled. A value of
+     * one captures every checkout, a value of zero none of them.
+     * <p>
+     * This parameter expects a value of type {@link Integer}.
+     * </p>
+     *
+     * @see #LEAK_DETECTION_THRESHOLD
+     *
+     * @since 3.1
+     */
+    public static final String LEAK_DETECTION_SAMPLE_INTERVAL = "http.connection-manager.leak-detection-sample-interval";
+
+    /** The default sample interval of the stack traces for the leak detection */
+    private static final int DEFAULT_LEAK_DETECTION_SAMPLE_INTERVAL = 100;
+
     /**
      * Sets the default maximum number of connections allowed for a given
      * host config.
@@ -189,4 +218,67 @@ public class HttpConnectionManagerParams extends HttpConnectionParams {
             MultiThreadedHttpConnectionManager.DEFAULT_MAX_TOTAL_CONNECTIONS);
     }
 
+    /**
+     * Sets the time after which a checked out connection is reported as possibly leaked.
+     *
+     * @param threshold The threshold in milliseconds, <code>0</code> to disable the
+     * leak detection.
+     *
+     * @see #LEAK_DETECTION_THRESHOLD
+     *
+     * @since 3.1
+     */
+    public void setLeakDetectionThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold may not be negative");
+        }
+        setLongParameter(HttpConnectionManagerParams.LEAK_DETECTION_THRESHOLD, threshold);
+    }
+
+    /**
+     * Gets the time after which a checked out connection is reported as possibly leaked.
+     *
+     * @return The threshold in milliseconds, <code>0</code> if the leak detection is
+     * disabled.
+     *
+     * @see #LEAK_DETECTION_THRESHOLD
+     *
+     * @since 3.1
+     */
+    public long getLeakDetectionThreshold() {
+        return getLongParameter(HttpConnectionManagerParams.LEAK_DETECTION_THRESHOLD, 0);
+    }
+
+    /**
+     * Sets how often the stack trace of a connection checkout is captured.
+     *
+     * @param sampleInterval Captures one checkout in every <code>sampleInterval</code>,
+     * <code>0</code> to capture none.
+     *
+     * @see #LEAK_DETECTION_SAMPLE_INTERVAL
+     *
+     * @since 3.1
+     */
+    public void setLeakDetectionSampleInterval(int sampleInterval) {
+        if (sampleInterval < 0) {
+            throw new IllegalArgumentException("sampleInterval may not be negative");
+        }
+        setIntParameter(HttpConnectionManagerParams.LEAK_DETECTION_SAMPLE_INTERVAL, sampleInterval);
+    }
+
+    /**
+     * Gets how often the stack trace of a connection checkout is captured.
+     *
+     * @return The sample interval, <code>0</code> if no stack trace is captured.
+     *
+     * @see #LEAK_DETECTION_SAMPLE_INTERVAL
+     *
+     * @since 3.1
+     */
+    public int getLeakDetectionSampleInterval() {
+        return getIntParameter(
+            HttpConnectionManagerParams.LEAK_DETECTION_SAMPLE_INTERVAL,
+            DEFAULT_LEAK_DETECTION_SAMPLE_INTERVAL);
+    }
+
 }
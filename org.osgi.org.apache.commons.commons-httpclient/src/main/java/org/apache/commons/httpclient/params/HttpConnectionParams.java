@@ -128,6 +128,25 @@ public class HttpConnectionParams extends DefaultHttpParams {
      */
     public static final String STALE_CONNECTION_CHECK = "http.connection.stalecheck";
 
+    /**
+     * Defines the time in milliseconds a connection must have been idle in its connection
+     * manager before the stale connection check is done. Connections reused sooner are
+     * trusted without the check, which costs a blocking read of up to one millisecond.
+     * When the server has closed such a connection before answering, an idempotent
+     * method is retried once on a new connection if the
+     * {@link HttpMethodParams#RETRY_HANDLER retry handler} allows it, without counting
+     * the failed execution. Timeouts are never retried this way. A value of zero checks
+     * the connections every time. The default value is zero.
+     * <p>
+     * This parameter expects a value of type {@link Integer}.
+     * </p>
+     *
+     * @see #STALE_CONNECTION_CHECK
+     *
+     * @since 3.1
+     */
+    public static final String STALE_CHECK_IDLE_THRESHOLD = "http.connection.stalecheck.idle-threshold";
+
     /**
      * Creates a new collection of parameters with the collection returned
      * by {@link #getDefaultParams()} as a parent. The collection will defer
@@ -305,4 +324,34 @@ public class HttpConnectionParams extends DefaultHttpParams {
     public void setStaleCheckingEnabled(boolean value) {
         setBooleanParameter(STALE_CONNECTION_CHECK, value);
     }
+
+    /**
+     * Returns the time a connection must have been idle before the stale connection
+     * check is done.
+     *
+     * @return the threshold in milliseconds, <tt>0</tt> if the connections are checked
+     *   every time.
+     *
+     * @see #STALE_CHECK_IDLE_THRESHOLD
+     *
+     * @since 3.1
+     */
+    public int getStaleCheckingIdleThreshold() {
+        return getIntParameter(STALE_CHECK_IDLE_THRESHOLD, 0);
+    }
+
+    /**
+     * Sets the time a connection must have been idle before the stale connection
+     * check is done.
+     *
+     * @param threshold the threshold in milliseconds, <tt>0</tt> to check the
+     *   connections every time.
+     *
+     * @see #STALE_CHECK_IDLE_THRESHOLD
+     *
+     * @since 3.1
+     */
+    public void setStaleCheckingIdleThreshold(int threshold) {
+        setIntParameter(STALE_CHECK_IDLE_THRESHOLD, threshold);
+    }
 }
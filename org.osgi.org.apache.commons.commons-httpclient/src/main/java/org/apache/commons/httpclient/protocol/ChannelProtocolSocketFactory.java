@@ -0,0 +1,170 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+
+package org.apache.commons.httpclient.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+
+/**
+ * A factory for plain sockets created through a {@link SocketChannel}. The connections
+ * opened with these sockets can wait for their responses with an {@link
+ * org.apache.commons.httpclient.HttpConnectionSelector}, since their channel can be
+ * registered with a {@link java.nio.channels.Selector}. The sockets are left in blocking
+ * mode, so they can be used like the ones of the {@link DefaultProtocolSocketFactory}.
+ *
+ * <p>To use it for the <code>http</code> scheme:</p>
+ * <pre>
+ * Protocol.registerProtocol("http",
+ *     new Protocol("http", new ChannelProtocolSocketFactory(), 80));
+ * </pre>
+ *
+ * @since 3.1
+ */
+public class ChannelProtocolSocketFactory implements ProtocolSocketFactory {
+
+    /**
+     * Constructor for ChannelProtocolSocketFactory.
+     */
+    public ChannelProtocolSocketFactory() {
+        super();
+    }
+
+    /**
+     * @see #createSocket(java.lang.String,int,java.net.InetAddress,int)
+     */
+    public Socket createSocket(
+        String host,
+        int port,
+        InetAddress localAddress,
+        int localPort
+    ) throws IOException, UnknownHostException {
+        return connect(host, port, localAddress, localPort, 0);
+    }
+
+    /**
+     * Attempts to get a new socket connection to the given host within the given time limit.
+     * The connect timeout is enforced by the channel, without a controller thread.
+     *
+     * @param host the host name/IP
+     * @param port the port on the host
+     * @param localAddress the local host name/IP to bind the socket to
+     * @param localPort the port on the local machine
+     * @param params {@link HttpConnectionParams Http connection parameters}
+     *
+     * @return Socket a new socket
+     *
+     * @throws IOException if an I/O error occurs while creating the socket
+     * @throws UnknownHostException if the IP address of the host cannot be
+     * determined
+     * @throws ConnectTimeoutException if socket cannot be connected within the
+     *  given time limit
+     */
+    public Socket createSocket(
+        final String host,
+        final int port,
+        final InetAddress localAddress,
+        final int localPort,
+        final HttpConnectionParams params
+    ) throws IOException, UnknownHostException, ConnectTimeoutException {
+        if (params == null) {
+            throw new IllegalArgumentException("Parameters may not be null");
+        }
+        return connect(host, port, localAddress, localPort, params.getConnectionTimeout());
+    }
+
+    /**
+     * @see ProtocolSocketFactory#createSocket(java.lang.String,int)
+     */
+    public Socket createSocket(String host, int port)
+        throws IOException, UnknownHostException {
+        return connect(host, port, null, 0, 0);
+    }
+
+    /**
+     * Opens a channel and connects its socket.
+     *
+     * @param host the host name/IP
+     * @param port the port on the host
+     * @param localAddress the local host name/IP to bind the socket to, or <code>null</code>
+     * @param localPort the port on the local machine
+     * @param timeout the connect timeout in milliseconds, <code>0</code> for none
+     *
+     * @return the connected socket of the channel
+     */
+    private static Socket connect(
+        String host,
+        int port,
+        InetAddress localAddress,
+        int localPort,
+        int timeout
+    ) throws IOException, UnknownHostException, ConnectTimeoutException {
+        InetSocketAddress remoteAddress = new InetSocketAddress(host, port);
+        if (remoteAddress.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        SocketChannel channel = SocketChannel.open();
+        Socket socket = channel.socket();
+        try {
+            if (localAddress != null || localPort != 0) {
+                socket.bind(new InetSocketAddress(localAddress, localPort));
+            }
+            socket.connect(remoteAddress, timeout);
+        } catch (SocketTimeoutException e) {
+            channel.close();
+            throw new ConnectTimeoutException(
+                "The host did not accept the connection within timeout of "
+                + timeout + " ms", e);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * All instances of ChannelProtocolSocketFactory are the same.
+     */
+    public boolean equals(Object obj) {
+        return ((obj != null) && obj.getClass().equals(getClass()));
+    }
+
+    /**
+     * All instances of ChannelProtocolSocketFactory have the same hash code.
+     */
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+
+}
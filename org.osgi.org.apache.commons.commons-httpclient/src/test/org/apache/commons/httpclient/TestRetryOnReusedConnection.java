@@ -0,0 +1,289 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+
+package org.apache.commons.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.EncodingUtil;
+
+/**
+ * Tests the retry of the requests failing on a connection reused without the
+ * stale check.
+ */
+public class TestRetryOnReusedConnection extends TestCase {
+
+    /** Answers the request and keeps the connection open */
+    private static final int RESPOND = 0;
+
+    /** Answers the request and closes the connection */
+    private static final int RESPOND_AND_CLOSE = 1;
+
+    /** Reads the request and never answers */
+    private static final int HANG = 2;
+
+    private ScriptedServer server;
+
+    private HttpClient client;
+
+    // ------------------------------------------------------------ Constructor
+    public TestRetryOnReusedConnection(String testName) {
+        super(testName);
+    }
+
+    // ------------------------------------------------------------------- Main
+    public static void main(String args[]) {
+        String[] testCaseName = { TestRetryOnReusedConnection.class.getName() };
+        junit.textui.TestRunner.main(testCaseName);
+    }
+
+    // ------------------------------------------------------- TestCase Methods
+
+    public static Test suite() {
+        return new TestSuite(TestRetryOnReusedConnection.class);
+    }
+
+    protected void tearDown() throws Exception {
+        if (this.server != null) {
+            this.server.shutdown();
+        }
+        if (this.client != null) {
+            ((MultiThreadedHttpConnectionManager) this.client.getHttpConnectionManager()).shutdown();
+        }
+    }
+
+    // ----------------------------------------------------------- Test Methods
+
+    private void startServer(int[] script) throws IOException {
+        this.server = new ScriptedServer(script);
+        this.server.start();
+
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        // the connections released in the last minute are not tested
+        connectionManager.getParams().setStaleCheckingIdleThreshold(60000);
+        connectionManager.getParams().setSoTimeout(500);
+        this.client = new HttpClient(connectionManager);
+        this.client.getHostConfiguration().setHost("127.0.0.1", this.server.getPort(), "http");
+    }
+
+    private int get(HttpMethodRetryHandler retryHandler) throws IOException {
+        GetMethod method = new GetMethod("/");
+        if (retryHandler != null) {
+            method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, retryHandler);
+        }
+        try {
+            int status = this.client.executeMethod(method);
+            method.getResponseBodyAsString();
+            return status;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    public void testReadTimeoutNotRetried() throws Exception {
+        startServer(new int[] { RESPOND, HANG, RESPOND });
+        assertEquals(200, get(null));
+
+        RecordingRetryHandler retryHandler = new RecordingRetryHandler(true);
+        try {
+            get(retryHandler);
+            fail("InterruptedIOException should have been thrown");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        assertEquals(2, this.server.getRequests());
+        assertEquals(1, retryHandler.executionCounts.size());
+    }
+
+    public void testClosedConnectionRetried() throws Exception {
+        startServer(new int[] { RESPOND_AND_CLOSE, RESPOND });
+        assertEquals(200, get(null));
+        // let the server close the connection
+        Thread.sleep(100);
+
+        RecordingRetryHandler retryHandler = new RecordingRetryHandler(true);
+        assertEquals(200, get(retryHandler));
+        assertEquals(2, this.server.getRequests());
+        assertEquals(1, retryHandler.executionCounts.size());
+        assertEquals(new Integer(1), retryHandler.executionCounts.get(0));
+        assertTrue(retryHandler.exceptions.get(0) instanceof NoHttpResponseException);
+    }
+
+    public void testClosedConnectionNotRetriedAgainstRetryHandler() throws Exception {
+        startServer(new int[] { RESPOND_AND_CLOSE, RESPOND });
+        assertEquals(200, get(null));
+        Thread.sleep(100);
+
+        RecordingRetryHandler retryHandler = new RecordingRetryHandler(false);
+        try {
+            get(retryHandler);
+            fail("NoHttpResponseException should have been thrown");
+        } catch (NoHttpResponseException e) {
+            // expected
+        }
+        assertEquals(1, this.server.getRequests());
+        assertEquals(1, retryHandler.executionCounts.size());
+    }
+
+    /**
+     * A retry handler recording the failures it is asked about.
+     */
+    private static class RecordingRetryHandler implements HttpMethodRetryHandler {
+
+        private final boolean retry;
+
+        private final List executionCounts = new ArrayList();
+
+        private final List exceptions = new ArrayList();
+
+        public RecordingRetryHandler(boolean retry) {
+            this.retry = retry;
+        }
+
+        public boolean retryMethod(HttpMethod method, IOException exception, int executionCount) {
+            this.executionCounts.add(new Integer(executionCount));
+            this.exceptions.add(exception);
+            // like the default handler, the timeouts are not retried
+            return this.retry && !(exception instanceof InterruptedIOException);
+        }
+    }
+
+    /**
+     * A server serving the requests on all the connections following a script,
+     * one action for each request.
+     */
+    private static class ScriptedServer extends Thread {
+
+        private final ServerSocket serverSocket;
+
+        private final int[] script;
+
+        private final List sockets = new ArrayList();
+
+        private int requests = 0;
+
+        public ScriptedServer(int[] script) throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            this.script = script;
+            setDaemon(true);
+        }
+
+        public int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        public synchronized int getRequests() {
+            return this.requests;
+        }
+
+        private synchronized int nextAction() {
+            return this.requests < this.script.length ? this.script[this.requests++] : HANG;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = this.serverSocket.accept();
+                    synchronized (this) {
+                        this.sockets.add(socket);
+                    }
+                    Thread handler = new Thread() {
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // shut down
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                while (readRequest(in)) {
+                    int action = nextAction();
+                    if (action == HANG) {
+                        return;
+                    }
+                    out.write(EncodingUtil.getAsciiBytes(
+                        "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"));
+                    out.flush();
+                    if (action == RESPOND_AND_CLOSE) {
+                        socket.close();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away
+            }
+        }
+
+        /**
+         * Reads the head of a request without a body.
+         *
+         * @return <code>false</code> if the connection has been closed
+         */
+        private static boolean readRequest(InputStream in) throws IOException {
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b == -1) {
+                    return false;
+                }
+                if (b == (matched % 2 == 0 ? '\r' : '\n')) {
+                    matched++;
+                } else {
+                    matched = b == '\r' ? 1 : 0;
+                }
+            }
+            return true;
+        }
+
+        public synchronized void shutdown() throws IOException {
+            this.serverSocket.close();
+            for (int i = 0; i < this.sockets.size(); i++) {
+                ((Socket) this.sockets.get(i)).close();
+            }
+        }
+    }
+}
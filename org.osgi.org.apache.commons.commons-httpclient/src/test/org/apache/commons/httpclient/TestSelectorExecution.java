@@ -0,0 +1,348 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+
+
+package org.apache.commons.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.protocol.ChannelProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.util.EncodingUtil;
+
+/**
+ * Tests the asynchronous execution of the methods waiting for their responses on an
+ * {@link HttpConnectionSelector}.
+ */
+public class TestSelectorExecution extends TestCase {
+
+    private static final int METHODS = 20;
+
+    private DelayingServer server;
+
+    private ExecutorService executor;
+
+    private HttpConnectionSelector selector;
+
+    private MultiThreadedHttpConnectionManager connectionManager;
+
+    private HttpClient client;
+
+    // ------------------------------------------------------------ Constructor
+    public TestSelectorExecution(String testName) {
+        super(testName);
+    }
+
+    // ------------------------------------------------------------------- Main
+    public static void main(String args[]) {
+        String[] testCaseName = { TestSelectorExecution.class.getName() };
+        junit.textui.TestRunner.main(testCaseName);
+    }
+
+    // ------------------------------------------------------- TestCase Methods
+
+    public static Test suite() {
+        return new TestSuite(TestSelectorExecution.class);
+    }
+
+    protected void setUp() throws Exception {
+        this.server = new DelayingServer();
+        this.server.start();
+
+        // the executions and the listeners share two threads
+        this.executor = Executors.newFixedThreadPool(2);
+        this.selector = new HttpConnectionSelector(this.executor);
+        this.connectionManager = new MultiThreadedHttpConnectionManager();
+        this.connectionManager.getParams().setDefaultMaxConnectionsPerHost(METHODS);
+        this.connectionManager.getParams().setMaxTotalConnections(METHODS);
+        this.client = new HttpClient(this.connectionManager);
+        this.client.setExecutor(this.executor);
+        this.client.getParams().setConnectionSelector(this.selector);
+        this.client.getHostConfiguration().setHost("127.0.0.1", this.server.getPort(),
+            new Protocol("http", new ChannelProtocolSocketFactory(), 80));
+    }
+
+    protected void tearDown() throws Exception {
+        this.server.shutdown();
+        this.selector.shutdown();
+        this.connectionManager.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    // ----------------------------------------------------------- Test Methods
+
+    private static String getBody(HttpMethod method) throws IOException {
+        try {
+            return method.getResponseBodyAsString();
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Checks that more methods wait for their response than there are threads: the
+     * server answers only once all the requests have arrived.
+     */
+    public void testResponsesWaitedOnSelector() throws Exception {
+        this.server.setAnswerAfter(METHODS);
+        GetMethod[] methods = new GetMethod[METHODS];
+        Future[] futures = new Future[METHODS];
+        for (int i = 0; i < METHODS; i++) {
+            methods[i] = new GetMethod("/");
+            futures[i] = this.client.executeMethodAsync(methods[i]);
+        }
+        for (int i = 0; i < METHODS; i++) {
+            assertEquals(new Integer(200), futures[i].get(10, TimeUnit.SECONDS));
+            assertEquals("ok", getBody(methods[i]));
+        }
+        assertEquals(METHODS, this.server.getMaxPendingRequests());
+    }
+
+    public void testRedirectFollowed() throws Exception {
+        GetMethod method = new GetMethod("/redirect");
+        method.setFollowRedirects(true);
+        Future future = this.client.executeMethodAsync(method);
+        assertEquals(new Integer(200), future.get(10, TimeUnit.SECONDS));
+        assertEquals("ok", getBody(method));
+        assertEquals("/", method.getPath());
+        assertEquals(2, this.server.getRequests());
+    }
+
+    public void testResponseTimedOut() throws Exception {
+        GetMethod method = new GetMethod("/hang");
+        method.getParams().setSoTimeout(200);
+        Future future = this.client.executeMethodAsync(method);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("ExecutionException should have been thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+        }
+        assertEquals(1, this.server.getRequests());
+    }
+
+    /**
+     * Checks that an invalid URI is reported as a {@link URIException}, thrown by the
+     * synchronous execution and failing the asynchronous one.
+     */
+    public void testInvalidUri() throws Exception {
+        GetMethod method = new GetMethod();
+        method.setPath("/invalid path");
+        try {
+            this.client.executeMethod(method);
+            fail("URIException should have been thrown");
+        } catch (URIException e) {
+            // expected
+        }
+
+        Future future = this.client.executeMethodAsync(method);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("ExecutionException should have been thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof URIException);
+        }
+        assertEquals(0, this.server.getRequests());
+    }
+
+    /**
+     * Checks that a method aborted while waiting for its response gives back its
+     * connection.
+     */
+    public void testAbortWhileWaiting() throws Exception {
+        this.connectionManager.getParams().setDefaultMaxConnectionsPerHost(1);
+        GetMethod method = new GetMethod("/hang");
+        Future future = this.client.executeMethodAsync(method);
+        while (this.server.getRequests() == 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(future.cancel(true));
+        try {
+            future.get();
+            fail("CancellationException should have been thrown");
+        } catch (CancellationException e) {
+            // expected
+        }
+
+        method = new GetMethod("/");
+        future = this.client.executeMethodAsync(method);
+        assertEquals(new Integer(200), future.get(10, TimeUnit.SECONDS));
+        assertEquals("ok", getBody(method));
+    }
+
+    /**
+     * A server answering the requests once enough of them are pending. The requests
+     * to <tt>/redirect</tt> are redirected to <tt>/</tt>, the ones to <tt>/hang</tt>
+     * are never answered.
+     */
+    private static class DelayingServer extends Thread {
+
+        private final ServerSocket serverSocket;
+
+        private final List sockets = new ArrayList();
+
+        private int answerAfter = 1;
+
+        private int requests = 0;
+
+        private int pendingRequests = 0;
+
+        private int maxPendingRequests = 0;
+
+        public DelayingServer() throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        public int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        public synchronized void setAnswerAfter(int answerAfter) {
+            this.answerAfter = answerAfter;
+        }
+
+        public synchronized int getRequests() {
+            return this.requests;
+        }
+
+        public synchronized int getMaxPendingRequests() {
+            return this.maxPendingRequests;
+        }
+
+        /**
+         * Waits until enough requests are pending, for five seconds at most.
+         */
+        private synchronized void requestReceived() throws InterruptedException {
+            this.requests++;
+            this.pendingRequests++;
+            this.maxPendingRequests = Math.max(this.maxPendingRequests, this.pendingRequests);
+            notifyAll();
+            long end = System.currentTimeMillis() + 5000;
+            long now;
+            while (this.maxPendingRequests < this.answerAfter
+                && (now = System.currentTimeMillis()) < end) {
+                wait(end - now);
+            }
+            this.pendingRequests--;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = this.serverSocket.accept();
+                    synchronized (this) {
+                        this.sockets.add(socket);
+                    }
+                    Thread handler = new Thread() {
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // shut down
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                String path;
+                while ((path = readRequest(in)) != null) {
+                    requestReceived();
+                    String response;
+                    if (path.equals("/hang")) {
+                        return;
+                    } else if (path.equals("/redirect")) {
+                        response = "HTTP/1.1 302 Found\r\nLocation: /\r\nContent-Length: 0\r\n\r\n";
+                    } else {
+                        response = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+                    }
+                    out.write(EncodingUtil.getAsciiBytes(response));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the client went away
+            } catch (InterruptedException e) {
+                // shut down
+            }
+        }
+
+        /**
+         * Reads the head of a request without a body.
+         *
+         * @return the path of the request, or <code>null</code> if the connection has
+         * been closed
+         */
+        private static String readRequest(InputStream in) throws IOException {
+            StringBuffer head = new StringBuffer();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b == -1) {
+                    return null;
+                }
+                head.append((char) b);
+                if (b == (matched % 2 == 0 ? '\r' : '\n')) {
+                    matched++;
+                } else {
+                    matched = b == '\r' ? 1 : 0;
+                }
+            }
+            String requestLine = head.substring(0, head.indexOf("\r"));
+            return requestLine.substring(requestLine.indexOf(' ') + 1, requestLine.lastIndexOf(' '));
+        }
+
+        public synchronized void shutdown() throws IOException {
+            this.serverSocket.close();
+            for (int i = 0; i < this.sockets.size(); i++) {
+                ((Socket) this.sockets.get(i)).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+
+package org.apache.commons.httpclient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the striped pool of the {@link MultiThreadedHttpConnectionManager}.
+ */
+public class TestStripedConnectionPool extends TestCase {
+
+    private static final int HOSTS = 4;
+
+    private static final int THREADS_PER_HOST = 2;
+
+    // ------------------------------------------------------------ Constructor
+    public TestStripedConnectionPool(String testName) {
+        super(testName);
+    }
+
+    // ------------------------------------------------------------------- Main
+    public static void main(String args[]) {
+        String[] testCaseName = { TestStripedConnectionPool.class.getName() };
+        junit.textui.TestRunner.main(testCaseName);
+    }
+
+    // ------------------------------------------------------- TestCase Methods
+
+    public static Test suite() {
+        return new TestSuite(TestStripedConnectionPool.class);
+    }
+
+    // ----------------------------------------------------------- Test Methods
+
+    private static HostConfiguration createHostConfiguration(int host) {
+        HostConfiguration hostConfiguration = new HostConfiguration();
+        hostConfiguration.setHost("host" + host + ".example", 80, "http");
+        return hostConfiguration;
+    }
+
+    /**
+     * Checks that no lock is shared by the hosts when the lost connections are tracked
+     * with weak references, as by default.
+     */
+    public void testNoLockSharedByHosts() throws Exception {
+        checkNoLockSharedByHosts(new MultiThreadedHttpConnectionManager(true));
+    }
+
+    /**
+     * Checks that no lock is shared by the hosts when the checked out connections are
+     * tracked by the leak detector.
+     */
+    public void testNoLockSharedByHostsWithoutLostConnectionTracking() throws Exception {
+        checkNoLockSharedByHosts(new MultiThreadedHttpConnectionManager(true, false));
+    }
+
+    /**
+     * Checks out and releases connections to several hosts from several threads,
+     * watching the monitors the threads block on: as long as the maximum number of
+     * connections is not reached, a thread may only wait for a thread using the
+     * same host.
+     */
+    private void checkNoLockSharedByHosts(
+        final MultiThreadedHttpConnectionManager connectionManager) throws Exception {
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(1);
+        connectionManager.getParams().setMaxTotalConnections(HOSTS);
+
+        final Map hostsByThread = new HashMap();
+        final List failures = new ArrayList();
+        final long[] end = new long[1];
+        // the classes are loaded before watching the threads
+        final CountDownLatch warmedUp = new CountDownLatch(HOSTS * THREADS_PER_HOST);
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread[] workers = new Thread[HOSTS * THREADS_PER_HOST];
+        for (int i = 0; i < workers.length; i++) {
+            final int host = i % HOSTS;
+            workers[i] = new Thread() {
+                public void run() {
+                    HostConfiguration hostConfiguration = createHostConfiguration(host);
+                    try {
+                        connectionManager.getConnectionWithTimeout(hostConfiguration, 5000).releaseConnection();
+                        warmedUp.countDown();
+                        started.await();
+                        while (System.currentTimeMillis() < end[0]) {
+                            HttpConnection connection =
+                                connectionManager.getConnectionWithTimeout(hostConfiguration, 5000);
+                            if (connectionManager.getConnectionsInPool(hostConfiguration) > 1) {
+                                synchronized (failures) {
+                                    failures.add("More than one connection to host " + host);
+                                }
+                            }
+                            connection.releaseConnection();
+                        }
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e.toString());
+                        }
+                    }
+                }
+            };
+            hostsByThread.put(new Long(workers[i].getId()), new Integer(host));
+        }
+
+        long[] ids = new long[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            ids[i] = workers[i].getId();
+            workers[i].start();
+        }
+        warmedUp.await();
+        end[0] = System.currentTimeMillis() + 2000;
+        started.countDown();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        while (System.currentTimeMillis() < end[0]) {
+            ThreadInfo[] infos = threads.getThreadInfo(ids, Integer.MAX_VALUE);
+            for (int i = 0; i < infos.length; i++) {
+                if (infos[i] == null || infos[i].getThreadState() != Thread.State.BLOCKED
+                    || isLoadingClass(infos[i])) {
+                    continue;
+                }
+                Object host = hostsByThread.get(new Long(infos[i].getThreadId()));
+                Object ownerHost = hostsByThread.get(new Long(infos[i].getLockOwnerId()));
+                String lock = infos[i].getLockName();
+                // the bins of the concurrent maps are not checked; the host
+                // configurations are compared while looking up the host pools
+                if (ownerHost != null && !ownerHost.equals(host)
+                    && !lock.startsWith("java.util.concurrent.")
+                    && !lock.startsWith(HostConfiguration.class.getName() + "@")) {
+                    fail("A thread for host " + host + " waited on " + lock
+                        + " held by a thread for host " + ownerHost);
+                }
+            }
+        }
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(HOSTS, connectionManager.getConnectionsInPool());
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Tells whether a thread is blocked on the monitor taken by the JVM to load a class,
+     * for instance the first time a thread waits for a connection.
+     */
+    private static boolean isLoadingClass(ThreadInfo info) {
+        StackTraceElement[] stackTrace = info.getStackTrace();
+        for (int i = 0; i < stackTrace.length; i++) {
+            if (stackTrace[i].getClassName().equals(ClassLoader.class.getName())
+                && stackTrace[i].getMethodName().equals("loadClass")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks that the least recently released connection is deleted to make room
+     * for a connection to another host.
+     */
+    public void testDeleteLeastUsedConnection() throws Exception {
+        MultiThreadedHttpConnectionManager connectionManager =
+            new MultiThreadedHttpConnectionManager(true, false);
+        connectionManager.getParams().setMaxTotalConnections(2);
+
+        HostConfiguration host1 = createHostConfiguration(1);
+        HostConfiguration host2 = createHostConfiguration(2);
+        HostConfiguration host3 = createHostConfiguration(3);
+
+        HttpConnection connection1 = connectionManager.getConnectionWithTimeout(host1, 1000);
+        HttpConnection connection2 = connectionManager.getConnectionWithTimeout(host2, 1000);
+        connection1.releaseConnection();
+        Thread.sleep(10);
+        connection2.releaseConnection();
+
+        HttpConnection connection3 = connectionManager.getConnectionWithTimeout(host3, 1000);
+        assertEquals(0, connectionManager.getConnectionsInPool(host1));
+        assertEquals(1, connectionManager.getConnectionsInPool(host2));
+        assertEquals(1, connectionManager.getConnectionsInPool(host3));
+        assertEquals(2, connectionManager.getConnectionsInPool());
+
+        // the free connection is reused
+        connection2 = connectionManager.getConnectionWithTimeout(host2, 1000);
+        assertEquals(2, connectionManager.getConnectionsInPool());
+
+        connection2.releaseConnection();
+        connection3.releaseConnection();
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Checks that the free connections are deleted once closed, host by host.
+     */
+    public void testDeleteClosedConnections() throws Exception {
+        MultiThreadedHttpConnectionManager connectionManager =
+            new MultiThreadedHttpConnectionManager(true, false);
+
+        HttpConnection[] connections = new HttpConnection[HOSTS];
+        for (int i = 0; i < HOSTS; i++) {
+            connections[i] = connectionManager.getConnectionWithTimeout(createHostConfiguration(i), 1000);
+        }
+        for (int i = 0; i < HOSTS; i++) {
+            connections[i].releaseConnection();
+        }
+        assertEquals(HOSTS, connectionManager.getConnectionsInPool());
+
+        // the connections have never been opened
+        connectionManager.deleteClosedConnections();
+        assertEquals(0, connectionManager.getConnectionsInPool());
+        for (int i = 0; i < HOSTS; i++) {
+            assertEquals(0, connectionManager.getConnectionsInPool(createHostConfiguration(i)));
+        }
+        connectionManager.shutdown();
+    }
+}
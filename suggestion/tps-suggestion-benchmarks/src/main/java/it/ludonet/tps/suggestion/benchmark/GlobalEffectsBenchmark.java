@@ -0,0 +1,80 @@
+package it.ludonet.tps.suggestion.benchmark;
+
+import it.ludonet.tps.suggestion.exception.GlobalEffectRemovalException;
+import it.ludonet.tps.suggestion.preprocessor.GlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.EstimationShrinkGlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.ItemMainGlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.UserMainGlobalEffectRemover;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of a single global effect removal pass. Since the removal changes
+ * the training data, each call works on a fresh copy of the synthetic ratings,
+ * created outside of the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GlobalEffectsBenchmark
+ {
+
+  @Param({SyntheticRatings.SPARSE, SyntheticRatings.COMPRESSED, SyntheticRatings.OFF_HEAP})
+  public String source;
+
+  @Param({"user", "item"})
+  public String effect;
+
+  @Param("1")
+  public int parallelism;
+
+  @Param("10000")
+  public int users;
+
+  @Param("1000")
+  public int items;
+
+  @Param("0.01")
+  public double density;
+
+  private SyntheticRatings synthetic;
+  private RatingsSource trainingData;
+  private GlobalEffectRemover remover;
+
+  @Setup(Level.Trial)
+  public void setUpData()
+   {
+    synthetic = new SyntheticRatings();
+    synthetic.setUsersNumber(users);
+    synthetic.setItemsNumber(items);
+    synthetic.setDensity(density);
+    synthetic.generate();
+   }
+
+  @Setup(Level.Invocation)
+  public void setUpInvocation()
+   {
+    trainingData = synthetic.createSource(source);
+
+    EstimationShrinkGlobalEffectRemover shrinkRemover;
+    if("user".equals(effect))
+     shrinkRemover = new UserMainGlobalEffectRemover();
+    else if("item".equals(effect))
+     shrinkRemover = new ItemMainGlobalEffectRemover();
+    else
+     throw new IllegalArgumentException("Unknown effect " + effect);
+    shrinkRemover.setParallelism(parallelism);
+    remover = shrinkRemover;
+   }
+
+  @Benchmark
+  public RatingsSource removeEffects() throws GlobalEffectRemovalException
+   {
+    return remover.removeEffects(trainingData, true);
+   }
+ }
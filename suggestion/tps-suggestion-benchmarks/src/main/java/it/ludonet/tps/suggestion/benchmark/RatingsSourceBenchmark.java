@@ -0,0 +1,138 @@
+package it.ludonet.tps.suggestion.benchmark;
+
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the access methods of the rating sources: reading the ratings of
+ * a user or of an item, by map or by visitor, and summing two sources with the
+ * same stored couples. The users and the items are visited in a Zipf-distributed
+ * order, so the popular rows and columns are read more often.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RatingsSourceBenchmark
+ {
+
+  private static final int QUERIES = 4096;
+
+  @Param({SyntheticRatings.DENSE, SyntheticRatings.SPARSE, SyntheticRatings.COMPRESSED,
+          SyntheticRatings.QUANTIZED, SyntheticRatings.OFF_HEAP})
+  public String source;
+
+  @Param("10000")
+  public int users;
+
+  @Param("1000")
+  public int items;
+
+  @Param("0.01")
+  public double density;
+
+  @Param("1.0")
+  public double exponent;
+
+  private RatingsSource ratings;
+  private RatingsSource other;
+  private int[] userQueries;
+  private int[] itemQueries;
+  private int cursor;
+  private SumVisitor visitor;
+
+  @Setup(Level.Trial)
+  public void setUp()
+   {
+    SyntheticRatings synthetic = new SyntheticRatings();
+    synthetic.setUsersNumber(users);
+    synthetic.setItemsNumber(items);
+    synthetic.setDensity(density);
+    synthetic.setUsersExponent(exponent);
+    synthetic.setItemsExponent(exponent);
+    synthetic.generate();
+
+    ratings = synthetic.createSource(source);
+    other = synthetic.createSource(source);
+
+    // the queries follow the same distribution of the ratings
+    int[] userIndexes = synthetic.getUserIndexes();
+    int[] itemIndexes = synthetic.getItemIndexes();
+    userQueries = new int[QUERIES];
+    itemQueries = new int[QUERIES];
+    java.util.Random random = new java.util.Random(7);
+    for(int q = 0; q < QUERIES; q++)
+     {
+      int k = random.nextInt(userIndexes.length);
+      userQueries[q] = userIndexes[k];
+      itemQueries[q] = itemIndexes[k];
+     }
+    visitor = new SumVisitor();
+   }
+
+  @Benchmark
+  public Map<Integer, Double> getUserRatings()
+   {
+    return ratings.getUserRatings(userQueries[next()]);
+   }
+
+  @Benchmark
+  public Map<Integer, Double> getItemRatings()
+   {
+    return ratings.getItemRatings(itemQueries[next()]);
+   }
+
+  @Benchmark
+  public double walkUserRatings()
+   {
+    visitor.sum = 0.0;
+    ratings.walkUserRatings(userQueries[next()], visitor);
+    return visitor.sum;
+   }
+
+  @Benchmark
+  public double walkItemRatings()
+   {
+    visitor.sum = 0.0;
+    ratings.walkItemRatings(itemQueries[next()], visitor);
+    return visitor.sum;
+   }
+
+  @Benchmark
+  public double getRating()
+   {
+    int q = next();
+    return ratings.getRating(userQueries[q], itemQueries[q]);
+   }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void sum(Blackhole blackhole)
+   {
+    // the values keep growing, but the work done is the same at each call
+    blackhole.consume(ratings.sum(other));
+   }
+
+  private int next()
+   {
+    cursor = (cursor + 1) & (QUERIES - 1);
+    return cursor;
+   }
+
+  private static class SumVisitor implements RatingVisitor
+   {
+    double sum;
+
+    public void visit(int index, double value)
+     {
+      sum += value;
+     }
+   }
+ }
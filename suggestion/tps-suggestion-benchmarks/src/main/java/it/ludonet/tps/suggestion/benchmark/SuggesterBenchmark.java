@@ -0,0 +1,153 @@
+package it.ludonet.tps.suggestion.benchmark;
+
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.impl.BellKorenNetflixPrice2007Suggester;
+import it.ludonet.tps.suggestion.preprocessor.GlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.ItemMainGlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.UserMainGlobalEffectRemover;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency benchmarks of a trained {@link BellKorenNetflixPrice2007Suggester}:
+ * predictions, suggestions and similar items. The suggester is trained once per
+ * trial; the queried users and items follow the distribution of the ratings.
+ * Run with <code>-t</code> to measure the latency under concurrent load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SuggesterBenchmark
+ {
+
+  private static final int QUERIES = 4096;
+
+  @Param({SyntheticRatings.COMPRESSED, SyntheticRatings.OFF_HEAP})
+  public String source;
+
+  @Param("10000")
+  public int users;
+
+  @Param("1000")
+  public int items;
+
+  @Param("0.01")
+  public double density;
+
+  @Param("10")
+  public int suggestions;
+
+  private BellKorenNetflixPrice2007Suggester suggester;
+  private int[] userQueries;
+  private int[] itemQueries;
+
+  @Setup(Level.Trial)
+  public void setUp() throws SuggesterTrainException
+   {
+    SyntheticRatings synthetic = new SyntheticRatings();
+    synthetic.setUsersNumber(users);
+    synthetic.setItemsNumber(items);
+    synthetic.setDensity(density);
+    synthetic.generate();
+
+    RatingsSource ratings = synthetic.createSource(source);
+    suggester = createSuggester(ratings, Runtime.getRuntime().availableProcessors());
+    suggester.train(ratings);
+
+    int[] userIndexes = synthetic.getUserIndexes();
+    int[] itemIndexes = synthetic.getItemIndexes();
+    userQueries = new int[QUERIES];
+    itemQueries = new int[QUERIES];
+    Random random = new Random(7);
+    for(int q = 0; q < QUERIES; q++)
+     {
+      userQueries[q] = userIndexes[random.nextInt(userIndexes.length)];
+      itemQueries[q] = itemIndexes[random.nextInt(itemIndexes.length)];
+     }
+   }
+
+  @Benchmark
+  public double getPredictedRating(Cursor cursor) throws SuggesterTrainException
+   {
+    int q = cursor.next();
+    return suggester.getPredictedRating(userQueries[q], itemQueries[q]);
+   }
+
+  /**
+   * Predicts all the queries with a single batch call; divide the time by
+   * the number of queries to compare it with {@link #getPredictedRating(Cursor)}.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public double[] getPredictedRatings() throws SuggesterTrainException
+   {
+    return suggester.getPredictedRatings(userQueries, itemQueries);
+   }
+
+  @Benchmark
+  public List<Integer> getSuggestedItems(Cursor cursor) throws SuggesterTrainException
+   {
+    return suggester.getSuggestedItems(userQueries[cursor.next()], suggestions);
+   }
+
+  @Benchmark
+  public List<Integer> getSimilarItems(Cursor cursor) throws SuggesterTrainException
+   {
+    return suggester.getSimilarItems(itemQueries[cursor.next()], suggestions);
+   }
+
+  /**
+   * Creates an untrained suggester removing the user and item main effects.
+   *
+   * @param ratings The training ratings.
+   * @param parallelism The number of training threads.
+   *
+   * @return The new suggester.
+   */
+  static BellKorenNetflixPrice2007Suggester createSuggester(RatingsSource ratings, int parallelism)
+   {
+    List<GlobalEffectRemover> removers = new ArrayList<GlobalEffectRemover>();
+    UserMainGlobalEffectRemover userRemover = new UserMainGlobalEffectRemover();
+    userRemover.setParallelism(parallelism);
+    removers.add(userRemover);
+    ItemMainGlobalEffectRemover itemRemover = new ItemMainGlobalEffectRemover();
+    itemRemover.setParallelism(parallelism);
+    removers.add(itemRemover);
+
+    BellKorenNetflixPrice2007Suggester suggester = new BellKorenNetflixPrice2007Suggester();
+    suggester.setGlobalEffectsRemovers(removers);
+    suggester.setRatingEffects(SyntheticRatings.createEffectsSource(ratings));
+    suggester.getNeighbourhoodBuilder().setParallelism(parallelism);
+    suggester.getSimilarItemsIndexBuilder().setParallelism(parallelism);
+    return suggester;
+   }
+
+  /**
+   * The position of each benchmark thread in the queries.
+   */
+  @State(Scope.Thread)
+  public static class Cursor
+   {
+    private int position;
+
+    @Setup(Level.Trial)
+    public void setUp()
+     {
+      position = (int)(Thread.currentThread().getId() * 997) & (QUERIES - 1);
+     }
+
+    int next()
+     {
+      position = (position + 1) & (QUERIES - 1);
+      return position;
+     }
+   }
+ }
@@ -0,0 +1,266 @@
+package it.ludonet.tps.suggestion.benchmark;
+
+import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.source.impl.*;
+
+import java.util.Random;
+
+/**
+ * This class generates a synthetic rating matrix for the benchmarks. Both users
+ * and items are drawn from Zipf distributions (see {@link ZipfSampler}), so that
+ * a few heavy users and popular items hold most of the ratings, like in real data sets.
+ * The ratings are half-star values in <code>[1, 5]</code>, made of a global mean,
+ * a user bias, an item bias and some noise, so that the global effects removers
+ * and the neighbourhood have some structure to find.
+ * <p>
+ * The generated data only depends on the configuration, including the seed, so the
+ * same matrix can be loaded in different {@link #createSource(String) source types}.
+ */
+public class SyntheticRatings
+ {
+
+  public static final String DENSE = "dense";
+  public static final String SPARSE = "sparse";
+  public static final String COMPRESSED = "compressed";
+  public static final String QUANTIZED = "quantized";
+  public static final String OFF_HEAP = "offheap";
+
+  protected int usersNumber;
+  protected int itemsNumber;
+  protected double density;
+  protected double usersExponent;
+  protected double itemsExponent;
+  protected long seed;
+
+  private int[] userIndexes;
+  private int[] itemIndexes;
+  private float[] values;
+
+  public SyntheticRatings()
+   {
+    usersNumber = 10000;
+    itemsNumber = 1000;
+    density = 0.01;
+    usersExponent = 0.8;
+    itemsExponent = 1.0;
+    seed = 42;
+   }
+
+  public int getUsersNumber()
+   {
+    return usersNumber;
+   }
+
+  public void setUsersNumber(int usersNumber)
+   {
+    this.usersNumber = usersNumber;
+   }
+
+  public int getItemsNumber()
+   {
+    return itemsNumber;
+   }
+
+  public void setItemsNumber(int itemsNumber)
+   {
+    this.itemsNumber = itemsNumber;
+   }
+
+  public double getDensity()
+   {
+    return density;
+   }
+
+  /**
+   * Sets the fraction of the user-item couples that are drawn. Since popular couples
+   * can be drawn more than once, the fraction of the stored couples is a bit lower.
+   *
+   * @param density The fraction of the drawn couples, in <code>(0, 1]</code>.
+   */
+  public void setDensity(double density)
+   {
+    this.density = density;
+   }
+
+  public double getUsersExponent()
+   {
+    return usersExponent;
+   }
+
+  public void setUsersExponent(double usersExponent)
+   {
+    this.usersExponent = usersExponent;
+   }
+
+  public double getItemsExponent()
+   {
+    return itemsExponent;
+   }
+
+  public void setItemsExponent(double itemsExponent)
+   {
+    this.itemsExponent = itemsExponent;
+   }
+
+  public long getSeed()
+   {
+    return seed;
+   }
+
+  public void setSeed(long seed)
+   {
+    this.seed = seed;
+   }
+
+  public int[] getUserIndexes()
+   {
+    return userIndexes;
+   }
+
+  public int[] getItemIndexes()
+   {
+    return itemIndexes;
+   }
+
+  public float[] getValues()
+   {
+    return values;
+   }
+
+  /**
+   * Returns the number of generated ratings, including the duplicated couples.
+   *
+   * @return The number of generated ratings.
+   */
+  public int getRatingsNumber()
+   {
+    return values == null ? 0 : values.length;
+   }
+
+  /**
+   * Generates the ratings with the current configuration.
+   *
+   * @return A reference to this object, so that this method can be used in
+   * a method-call chain.
+   */
+  public SyntheticRatings generate()
+   {
+    if(density <= 0.0 || density > 1.0)
+     throw new IllegalArgumentException("Invalid density " + density);
+
+    long ratings = (long)(density * usersNumber * itemsNumber);
+    if(ratings > Integer.MAX_VALUE - 8)
+     throw new IllegalArgumentException("Too many ratings (" + ratings + ")");
+
+    Random random = new Random(seed);
+    ZipfSampler users = new ZipfSampler(usersNumber, usersExponent, random);
+    ZipfSampler items = new ZipfSampler(itemsNumber, itemsExponent, random);
+
+    double[] userBiases = new double[usersNumber];
+    for(int i = 0; i < usersNumber; i++)
+     userBiases[i] = 0.5 * random.nextGaussian();
+    double[] itemBiases = new double[itemsNumber];
+    for(int j = 0; j < itemsNumber; j++)
+     itemBiases[j] = 0.7 * random.nextGaussian();
+
+    userIndexes = new int[(int)ratings];
+    itemIndexes = new int[(int)ratings];
+    values = new float[(int)ratings];
+    for(int k = 0; k < ratings; k++)
+     {
+      int userIndex = users.sample(random);
+      int itemIndex = items.sample(random);
+      double rating = 3.6 + userBiases[userIndex] + itemBiases[itemIndex] + 0.8 * random.nextGaussian();
+      userIndexes[k] = userIndex;
+      itemIndexes[k] = itemIndex;
+      values[k] = (float)(Math.round(2.0 * Math.max(1.0, Math.min(5.0, rating))) / 2.0);
+     }
+    return this;
+   }
+
+  /**
+   * Creates a new source of the provided type holding the generated ratings.
+   *
+   * @param type One of {@link #DENSE}, {@link #SPARSE}, {@link #COMPRESSED},
+   * {@link #QUANTIZED} and {@link #OFF_HEAP}.
+   *
+   * @return The new source.
+   */
+  public RatingsSource createSource(String type)
+   {
+    if(values == null)
+     throw new IllegalStateException("Ratings not generated");
+
+    try
+     {
+      if(COMPRESSED.equals(type) || QUANTIZED.equals(type))
+       {
+        CompressedSparseRatingSource source = new CompressedSparseRatingSource();
+        source.init(usersNumber, itemsNumber, COMPRESSED.equals(type) ? RatingStorage.FLOAT : RatingStorage.HALF_STARS);
+        source.load(userIndexes, itemIndexes, values, values.length);
+        return source;
+       }
+
+      if(OFF_HEAP.equals(type))
+       {
+        OffHeapRatingSource source = new OffHeapRatingSource();
+        source.init(usersNumber, itemsNumber);
+        long[] rowPointers = new long[usersNumber + 1];
+        for(int k = 0; k < values.length; k++)
+         rowPointers[userIndexes[k] + 1]++;
+        for(int i = 0; i < usersNumber; i++)
+         rowPointers[i + 1] += rowPointers[i];
+        source.allocateRows(rowPointers);
+        for(int k = 0; k < values.length; k++)
+         source.putRowRating(rowPointers[userIndexes[k]]++, itemIndexes[k], values[k]);
+        source.build();
+        return source;
+       }
+
+      RatingsSource source;
+      if(DENSE.equals(type))
+       source = new RealDenseMatrixRatingSource();
+      else if(SPARSE.equals(type))
+       source = new RealSparseMatrixRatingSource();
+      else
+       throw new IllegalArgumentException("Unknown source type " + type);
+
+      source.init(usersNumber, itemsNumber);
+      for(int k = 0; k < values.length; k++)
+       source.setRating(userIndexes[k], itemIndexes[k], values[k]);
+      return source;
+     }
+    catch(RatingSourceAlreadyInitializedException e)
+     {
+      // cannot happen on a new source
+      throw new IllegalStateException(e);
+     }
+   }
+
+  /**
+   * Creates an empty source where a suggester can store the effects removed
+   * from the provided source.
+   *
+   * @param source The training source.
+   *
+   * @return The effects source.
+   */
+  public static RatingsSource createEffectsSource(RatingsSource source)
+   {
+    if(source instanceof CompactRatingsSource)
+     return ((CompactRatingsSource)source).createEmptyCopy();
+
+    RatingsSource effects = new RealSparseMatrixRatingSource();
+    try
+     {
+      effects.init(source.getUsersNumber(), source.getItemsNumber());
+     }
+    catch(RatingSourceAlreadyInitializedException e)
+     {
+      // cannot happen on a new source
+      throw new IllegalStateException(e);
+     }
+    return effects;
+   }
+ }
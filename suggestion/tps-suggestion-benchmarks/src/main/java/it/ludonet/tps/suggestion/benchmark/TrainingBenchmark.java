@@ -0,0 +1,70 @@
+package it.ludonet.tps.suggestion.benchmark;
+
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.impl.BellKorenNetflixPrice2007Suggester;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of a whole training of a {@link BellKorenNetflixPrice2007Suggester}:
+ * global effects removal, similar items index and neighbourhood. Each training
+ * works on a fresh copy of the synthetic ratings, created outside of the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrainingBenchmark
+ {
+
+  @Param({SyntheticRatings.SPARSE, SyntheticRatings.COMPRESSED, SyntheticRatings.OFF_HEAP})
+  public String source;
+
+  @Param("1")
+  public int parallelism;
+
+  @Param({"false", "true"})
+  public boolean fused;
+
+  @Param("10000")
+  public int users;
+
+  @Param("1000")
+  public int items;
+
+  @Param("0.01")
+  public double density;
+
+  private SyntheticRatings synthetic;
+  private RatingsSource ratings;
+  private BellKorenNetflixPrice2007Suggester suggester;
+
+  @Setup(Level.Trial)
+  public void setUpData()
+   {
+    synthetic = new SyntheticRatings();
+    synthetic.setUsersNumber(users);
+    synthetic.setItemsNumber(items);
+    synthetic.setDensity(density);
+    synthetic.generate();
+   }
+
+  @Setup(Level.Iteration)
+  public void setUpIteration()
+   {
+    ratings = synthetic.createSource(source);
+    suggester = SuggesterBenchmark.createSuggester(ratings, parallelism);
+    suggester.setFusedPipeline(fused);
+   }
+
+  @Benchmark
+  public BellKorenNetflixPrice2007Suggester train() throws SuggesterTrainException
+   {
+    suggester.train(ratings);
+    return suggester;
+   }
+ }
@@ -0,0 +1,76 @@
+package it.ludonet.tps.suggestion.benchmark;
+
+import java.util.Random;
+
+/**
+ * This class samples indexes in <code>[0, size)</code> following a Zipf distribution:
+ * the element of rank <code>k</code> is drawn with a probability proportional to
+ * <code>1 / k<sup>exponent</sup></code>. The ranks are assigned to the indexes by
+ * a random permutation, so that the popular indexes are spread over the whole range.
+ */
+public class ZipfSampler
+ {
+
+  private final double[] cumulative;
+  private final int[] indexes;
+
+  /**
+   * Creates a new sampler.
+   *
+   * @param size The number of indexes.
+   * @param exponent The exponent of the distribution; <code>0</code> gives
+   * a uniform distribution.
+   * @param random The random generator used to assign the ranks.
+   */
+  public ZipfSampler(int size, double exponent, Random random)
+   {
+    if(size < 1)
+     throw new IllegalArgumentException("Invalid size " + size);
+    if(exponent < 0.0)
+     throw new IllegalArgumentException("Invalid exponent " + exponent);
+
+    cumulative = new double[size];
+    double sum = 0.0;
+    for(int k = 0; k < size; k++)
+     {
+      sum += 1.0 / Math.pow(k + 1, exponent);
+      cumulative[k] = sum;
+     }
+    for(int k = 0; k < size; k++)
+     cumulative[k] /= sum;
+
+    indexes = new int[size];
+    for(int k = 0; k < size; k++)
+     indexes[k] = k;
+    for(int k = size - 1; k > 0; k--)
+     {
+      int other = random.nextInt(k + 1);
+      int tmp = indexes[k];
+      indexes[k] = indexes[other];
+      indexes[other] = tmp;
+     }
+   }
+
+  /**
+   * Draws an index.
+   *
+   * @param random The random generator.
+   *
+   * @return The drawn index.
+   */
+  public int sample(Random random)
+   {
+    double x = random.nextDouble();
+    int low = 0;
+    int high = cumulative.length - 1;
+    while(low < high)
+     {
+      int middle = (low + high) >>> 1;
+      if(cumulative[middle] < x)
+       low = middle + 1;
+      else
+       high = middle;
+     }
+    return indexes[low];
+   }
+ }
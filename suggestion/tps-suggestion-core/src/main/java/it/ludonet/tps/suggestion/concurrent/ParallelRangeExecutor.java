@@ -0,0 +1,233 @@
+package it.ludonet.tps.suggestion.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs a {@link RangeTask} over a range of indexes, splitting
+ * it in contiguous chunks that are processed by a fixed pool of threads
+ * together with the calling thread. When the executor is created with a
+ * single thread, the tasks are run directly in the calling thread.
+ * <p>
+ * The calling thread processes the chunks that the pool didn't take yet,
+ * so a task can run another task on the same executor without waiting for
+ * the threads busy with the outer one. The executors returned by
+ * {@link #getShared(int)} can therefore be reused by all the training steps,
+ * even when they are nested.
+ */
+public class ParallelRangeExecutor
+ {
+
+  // number of chunks assigned to each thread, so that threads that finish
+  // early can help with the remaining work
+  private static final int CHUNKS_PER_THREAD = 8;
+
+  private static final AtomicInteger poolNumber = new AtomicInteger();
+
+  private static final Map<Integer, ParallelRangeExecutor> sharedExecutors = new HashMap<Integer, ParallelRangeExecutor>();
+
+  private final int threads;
+  private final ExecutorService executor;
+  private final boolean shared;
+
+  public ParallelRangeExecutor(int threads)
+   {
+    this(threads, false);
+   }
+
+  private ParallelRangeExecutor(int threads, boolean shared)
+   {
+    if(threads < 1)
+     throw new IllegalArgumentException("Invalid number of threads " + threads);
+
+    this.threads = threads;
+    this.shared = shared;
+    if(threads == 1)
+     executor = null;
+    else
+     {
+      final int pool = poolNumber.incrementAndGet();
+      // the calling thread is one of the threads running the chunks
+      executor = Executors.newFixedThreadPool(threads - 1, new ThreadFactory()
+       {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable)
+         {
+          Thread thread = new Thread(runnable, "tps-suggestion-" + pool + "-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+         }
+       });
+     }
+   }
+
+  /**
+   * Returns the executor with the provided number of threads shared by all
+   * the callers. Its threads are daemon threads that are never stopped.
+   *
+   * @param threads The number of threads.
+   *
+   * @return The shared executor.
+   */
+  public static ParallelRangeExecutor getShared(int threads)
+   {
+    if(threads < 1)
+     throw new IllegalArgumentException("Invalid number of threads " + threads);
+
+    synchronized(sharedExecutors)
+     {
+      ParallelRangeExecutor executor = sharedExecutors.get(threads);
+      if(executor == null)
+       {
+        executor = new ParallelRangeExecutor(threads, true);
+        sharedExecutors.put(threads, executor);
+       }
+      return executor;
+     }
+   }
+
+  /**
+   * Returns the cause of a failed execution, so that the callers only have to
+   * convert it to their own exception. The unchecked causes, which are the ones
+   * thrown by a {@link RangeTask}, are rethrown as they are.
+   *
+   * @param e The exception thrown by {@link #execute(int, RangeTask)}.
+   *
+   * @return The cause of the failure, if it is a checked exception.
+   */
+  public static Throwable getCheckedCause(ExecutionException e)
+   {
+    Throwable cause = e.getCause();
+    if(cause instanceof RuntimeException)
+     throw (RuntimeException)cause;
+    if(cause instanceof Error)
+     throw (Error)cause;
+    return cause;
+   }
+
+  public int getThreads()
+   {
+    return threads;
+   }
+
+  /**
+   * Runs the task over the indexes in the range <code>[0, size)</code>
+   * and waits for its completion. Once a chunk has failed, the chunks not
+   * started yet are skipped.
+   *
+   * @param size The number of indexes to process.
+   * @param task The task to run.
+   *
+   * @throws ExecutionException If the task throws an exception while
+   * processing a chunk.
+   * @throws InterruptedException If the calling thread is interrupted
+   * while waiting for the task completion.
+   */
+  public void execute(int size, RangeTask task) throws ExecutionException, InterruptedException
+   {
+    if(executor == null || size <= 1)
+     {
+      task.run(0, size);
+      return;
+     }
+
+    Chunks chunks = new Chunks(size, Math.min(size, threads * CHUNKS_PER_THREAD), task);
+    List<Future<?>> helpers = new ArrayList<Future<?>>(threads - 1);
+    try
+     {
+      for(int h = 1; h < threads; h++)
+       helpers.add(executor.submit(chunks));
+      chunks.run();
+      chunks.await();
+     }
+    finally
+     {
+      // the helpers still queued have nothing left to do
+      chunks.stop();
+      for(Future<?> helper : helpers)
+       helper.cancel(false);
+     }
+
+    Throwable failure = chunks.getFailure();
+    if(failure != null)
+     throw new ExecutionException(failure);
+   }
+
+  /**
+   * Stops the threads of this executor.
+   *
+   * @throws IllegalStateException If the executor is shared.
+   */
+  public void shutdown()
+   {
+    if(shared)
+     throw new IllegalStateException("A shared executor cannot be shut down");
+    if(executor != null)
+     executor.shutdownNow();
+   }
+
+  /**
+   * The chunks of a range, taken in order by the threads running them.
+   */
+  private static class Chunks implements Runnable
+   {
+    private final int size;
+    private final int chunksNumber;
+    private final RangeTask task;
+    private final AtomicInteger nextChunk;
+    // counts the chunks not processed yet
+    private final CountDownLatch pending;
+    private volatile Throwable failure;
+
+    Chunks(int size, int chunksNumber, RangeTask task)
+     {
+      this.size = size;
+      this.chunksNumber = chunksNumber;
+      this.task = task;
+      nextChunk = new AtomicInteger();
+      pending = new CountDownLatch(chunksNumber);
+     }
+
+    public void run()
+     {
+      int c;
+      while((c = nextChunk.getAndIncrement()) < chunksNumber)
+       {
+        try
+         {
+          if(failure == null)
+           task.run((int)((long)size * c / chunksNumber), (int)((long)size * (c + 1) / chunksNumber));
+         }
+        catch(Throwable t)
+         {
+          synchronized(this)
+           {
+            if(failure == null)
+             failure = t;
+           }
+         }
+        finally
+         {
+          pending.countDown();
+         }
+       }
+     }
+
+    void await() throws InterruptedException
+     {
+      pending.await();
+     }
+
+    void stop()
+     {
+      nextChunk.set(chunksNumber);
+     }
+
+    Throwable getFailure()
+     {
+      return failure;
+     }
+   }
+ }
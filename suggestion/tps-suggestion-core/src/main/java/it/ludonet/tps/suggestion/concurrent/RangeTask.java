@@ -0,0 +1,19 @@
+package it.ludonet.tps.suggestion.concurrent;
+
+/**
+ * Implementations of this interface process a range
+ * of indexes (users, items, ...) and can be run in parallel
+ * by a {@link ParallelRangeExecutor}.
+ */
+public interface RangeTask
+ {
+
+  /**
+   * Processes the indexes in the range <code>[from, to)</code>.
+   *
+   * @param from The first index to process.
+   * @param to The index after the last one to process.
+   */
+  public void run(int from, int to);
+
+ }
@@ -0,0 +1,27 @@
+package it.ludonet.tps.suggestion.evaluation;
+
+import it.ludonet.tps.suggestion.Suggester;
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+/**
+ * Implementations of this interface create suggesters whose global effects
+ * removers use the provided shrinking parameter, so that it can be tuned by
+ * {@link CrossValidation#tuneAlpha(RatingsSource, double[], AlphaSuggesterFactory, EvaluationListener)}.
+ */
+public interface AlphaSuggesterFactory
+ {
+
+  /**
+   * Creates a new untrained suggester for the provided training data.
+   *
+   * @param trainingData The training data the suggester will be trained on.
+   * @param alpha The shrinking parameter.
+   *
+   * @return The new suggester.
+   *
+   * @throws SuggesterTrainException If the suggester cannot be created.
+   */
+  public Suggester createSuggester(RatingsSource trainingData, double alpha) throws SuggesterTrainException;
+
+ }
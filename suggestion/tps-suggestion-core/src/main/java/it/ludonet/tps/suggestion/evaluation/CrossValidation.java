@@ -0,0 +1,419 @@
+package it.ludonet.tps.suggestion.evaluation;
+
+import it.ludonet.tps.suggestion.Suggester;
+import it.ludonet.tps.suggestion.concurrent.ParallelRangeExecutor;
+import it.ludonet.tps.suggestion.concurrent.RangeTask;
+import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * This class runs a k-fold cross validation of one or more suggester configurations.
+ * Each rating is assigned to a fold by hashing its couple user-item, so that no
+ * assignment has to be stored. For each fold, the ratings of the other folds are
+ * streamed into a new compressed training source, while the ratings of the fold
+ * are collected in primitive arrays and used as probe set. The couples configuration-fold
+ * are evaluated concurrently by a bounded pool of threads, and each result is notified
+ * to the listener as soon as it's available.
+ * <p>
+ * The ratings source is only read, but it's read concurrently by all the folds, so it
+ * must support concurrent readers.
+ */
+public class CrossValidation
+ {
+
+  private int folds;
+  private int parallelism;
+  private long seed;
+
+  public CrossValidation()
+   {
+    folds = 5;
+    parallelism = 1;
+   }
+
+  public int getFolds()
+   {
+    return folds;
+   }
+
+  public void setFolds(int folds)
+   {
+    if(folds < 2)
+     throw new IllegalArgumentException("Invalid number of folds " + folds);
+    this.folds = folds;
+   }
+
+  /**
+   * Returns the number of folds evaluated concurrently.
+   */
+  public int getParallelism()
+   {
+    return parallelism;
+   }
+
+  public void setParallelism(int parallelism)
+   {
+    if(parallelism < 1)
+     throw new IllegalArgumentException("Invalid parallelism " + parallelism);
+    this.parallelism = parallelism;
+   }
+
+  /**
+   * Returns the seed of the assignment of the ratings to the folds.
+   */
+  public long getSeed()
+   {
+    return seed;
+   }
+
+  public void setSeed(long seed)
+   {
+    this.seed = seed;
+   }
+
+  /**
+   * Returns the fold the rating of the couple user-item belongs to.
+   *
+   * @param userIndex The 0-based user index.
+   * @param itemIndex The 0-based item index.
+   *
+   * @return The 0-based fold index.
+   */
+  public int getFold(int userIndex, int itemIndex)
+   {
+    // splitmix64 finalizer
+    long z = seed + (((long)userIndex << 32) | (itemIndex & 0xffffffffL)) * 0x9e3779b97f4a7c15L;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    z ^= z >>> 31;
+    return (int)((z >>> 1) % folds);
+   }
+
+  /**
+   * Evaluates all the configurations on all the folds.
+   *
+   * @param ratings The ratings to evaluate the configurations on.
+   * @param configurations The factories of the suggesters to evaluate, indexed by
+   * the name of the configuration.
+   * @param listener The listener that will receive the result of each fold, or
+   * <code>null</code>.
+   *
+   * @return The results of all the folds, ordered by configuration and fold.
+   *
+   * @throws SuggesterTrainException If a suggester cannot be created or trained.
+   */
+  public List<FoldResult> evaluate(final RatingsSource ratings, Map<String, SuggesterFactory> configurations,
+                                   final EvaluationListener listener) throws SuggesterTrainException
+   {
+    final String[] names = configurations.keySet().toArray(new String[configurations.size()]);
+    final SuggesterFactory[] factories = new SuggesterFactory[names.length];
+    for(int c = 0; c < names.length; c++)
+     factories[c] = configurations.get(names[c]);
+
+    final FoldResult[] results = new FoldResult[names.length * folds];
+    final SuggesterTrainException[] failure = new SuggesterTrainException[1];
+    RangeTask task = new RangeTask()
+     {
+      public void run(int from, int to)
+       {
+        for(int t = from; t < to; t++)
+         {
+          int c = t / folds;
+          FoldResult result;
+          try
+           {
+            result = evaluate(ratings, names[c], factories[c], t % folds);
+           }
+          catch(SuggesterTrainException e)
+           {
+            synchronized(failure)
+             {
+              if(failure[0] == null)
+               failure[0] = e;
+             }
+            return;
+           }
+
+          results[t] = result;
+          if(listener != null)
+           {
+            synchronized(listener)
+             {
+              listener.foldEvaluated(result);
+             }
+           }
+         }
+       }
+     };
+
+    ParallelRangeExecutor executor = ParallelRangeExecutor.getShared(parallelism);
+    try
+     {
+      executor.execute(results.length, task);
+     }
+    catch(ExecutionException e)
+     {
+      throw new SuggesterTrainException("Cannot evaluate the configurations", ParallelRangeExecutor.getCheckedCause(e));
+     }
+    catch(InterruptedException e)
+     {
+      Thread.currentThread().interrupt();
+      throw new SuggesterTrainException("Interrupted while evaluating the configurations", e);
+     }
+
+    if(failure[0] != null)
+     throw failure[0];
+
+    return Arrays.asList(results);
+   }
+
+  /**
+   * Evaluates the suggesters created by the factory for each value of the grid and returns
+   * the one with the lowest RMSE over all the folds. The configurations are named
+   * <code>"alpha=" + alpha</code>.
+   *
+   * @param ratings The ratings to evaluate the suggesters on.
+   * @param alphas The values of the shrinking parameter to evaluate.
+   * @param factory The factory of the suggesters.
+   * @param listener The listener that will receive the result of each fold, or
+   * <code>null</code>.
+   *
+   * @return The value of the shrinking parameter with the lowest RMSE.
+   *
+   * @throws SuggesterTrainException If a suggester cannot be created or trained.
+   */
+  public double tuneAlpha(RatingsSource ratings, double[] alphas, final AlphaSuggesterFactory factory,
+                          EvaluationListener listener) throws SuggesterTrainException
+   {
+    if(alphas.length == 0)
+     throw new IllegalArgumentException("Empty alpha grid");
+
+    Map<String, SuggesterFactory> configurations = new LinkedHashMap<String, SuggesterFactory>();
+    for(final double alpha : alphas)
+     {
+      configurations.put("alpha=" + alpha, new SuggesterFactory()
+       {
+        public Suggester createSuggester(RatingsSource trainingData) throws SuggesterTrainException
+         {
+          return factory.createSuggester(trainingData, alpha);
+         }
+       });
+     }
+
+    List<FoldResult> results = evaluate(ratings, configurations, listener);
+    double best = alphas[0];
+    double bestRmse = Double.POSITIVE_INFINITY;
+    for(double alpha : alphas)
+     {
+      double rmse = getRmse(results, "alpha=" + alpha);
+      if(rmse < bestRmse)
+       {
+        best = alpha;
+        bestRmse = rmse;
+       }
+     }
+    return best;
+   }
+
+  /**
+   * Returns the RMSE of a configuration over all its folds.
+   *
+   * @param results The results of the folds.
+   * @param configuration The name of the configuration.
+   *
+   * @return The RMSE of the configuration, or <code>NaN</code> if there are no probe ratings.
+   */
+  public static double getRmse(List<FoldResult> results, String configuration)
+   {
+    double errors = 0;
+    long count = 0;
+    for(FoldResult result : results)
+     {
+      if(result.getConfiguration().equals(configuration))
+       {
+        errors += result.getSquaredErrors();
+        count += result.getProbeRatings();
+       }
+     }
+    return count == 0 ? Double.NaN : Math.sqrt(errors / count);
+   }
+
+  /**
+   * Returns the MAE of a configuration over all its folds.
+   *
+   * @param results The results of the folds.
+   * @param configuration The name of the configuration.
+   *
+   * @return The MAE of the configuration, or <code>NaN</code> if there are no probe ratings.
+   */
+  public static double getMae(List<FoldResult> results, String configuration)
+   {
+    double errors = 0;
+    long count = 0;
+    for(FoldResult result : results)
+     {
+      if(result.getConfiguration().equals(configuration))
+       {
+        errors += result.getAbsoluteErrors();
+        count += result.getProbeRatings();
+       }
+     }
+    return count == 0 ? Double.NaN : errors / count;
+   }
+
+  /**
+   * Evaluates a configuration on a single fold.
+   */
+  protected FoldResult evaluate(RatingsSource ratings, String configuration, SuggesterFactory factory, int fold) throws SuggesterTrainException
+   {
+    long start = System.nanoTime();
+    Split split = new Split(ratings, fold);
+    long splitNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    Suggester suggester = factory.createSuggester(split.training);
+    suggester.train(split.training);
+    long trainNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    double[] predictions = suggester.getPredictedRatings(split.probeUsers, split.probeItems);
+    long predictionNanos = System.nanoTime() - start;
+
+    double squaredErrors = 0;
+    double absoluteErrors = 0;
+    for(int p = 0; p < predictions.length; p++)
+     {
+      double error = predictions[p] - split.probeValues[p];
+      squaredErrors += error * error;
+      absoluteErrors += Math.abs(error);
+     }
+
+    return new FoldResult(configuration, fold, split.trainingRatings, predictions.length,
+                          squaredErrors, absoluteErrors, splitNanos, trainNanos, predictionNanos);
+   }
+
+  /**
+   * The training and probe sets of a fold.
+   */
+  private class Split
+   {
+    private final CompressedSparseRatingSource training;
+    private final int trainingRatings;
+    private final int[] probeUsers;
+    private final int[] probeItems;
+    private final double[] probeValues;
+
+    private Split(RatingsSource ratings, int fold)
+     {
+      int usersNumber = ratings.getUsersNumber();
+      int[] rowPointers = new int[usersNumber + 1];
+
+      // count the ratings of each row and the probe ones
+      FoldCounter counter = new FoldCounter(fold);
+      for(int u = 0; u < usersNumber; u++)
+       {
+        counter.userIndex = u;
+        counter.rowCount = 0;
+        ratings.walkUserRatings(u, counter);
+        rowPointers[u + 1] = rowPointers[u] + counter.rowCount;
+       }
+
+      trainingRatings = rowPointers[usersNumber];
+      int[] rowItems = new int[trainingRatings];
+      float[] rowValues = new float[trainingRatings];
+      probeUsers = new int[counter.probeCount];
+      probeItems = new int[counter.probeCount];
+      probeValues = new double[counter.probeCount];
+
+      // stream the ratings in the training and probe sets
+      FoldStreamer streamer = new FoldStreamer(fold, rowItems, rowValues);
+      for(int u = 0; u < usersNumber; u++)
+       {
+        streamer.userIndex = u;
+        streamer.rowPosition = rowPointers[u];
+        ratings.walkUserRatings(u, streamer);
+       }
+
+      training = new CompressedSparseRatingSource();
+      try
+       {
+        training.init(usersNumber, ratings.getItemsNumber());
+       }
+      catch(RatingSourceAlreadyInitializedException e)
+       {
+        // cannot happen on a new source
+        throw new IllegalStateException(e);
+       }
+      training.loadRows(rowPointers, rowItems, rowValues);
+     }
+
+    /**
+     * Counts the training ratings of a user and the probe ratings of all the users.
+     * The same instance is reused for every user.
+     */
+    private class FoldCounter implements RatingVisitor
+     {
+      private final int fold;
+      private int userIndex;
+      private int rowCount;
+      private int probeCount;
+
+      private FoldCounter(int fold)
+       {
+        this.fold = fold;
+       }
+
+      public void visit(int itemIndex, double value)
+       {
+        if(getFold(userIndex, itemIndex) == fold)
+         probeCount++;
+        else
+         rowCount++;
+       }
+     }
+
+    /**
+     * Copies the ratings of a user in the training rows or in the probe set.
+     * The same instance is reused for every user.
+     */
+    private class FoldStreamer implements RatingVisitor
+     {
+      private final int fold;
+      private final int[] rowItems;
+      private final float[] rowValues;
+      private int userIndex;
+      private int rowPosition;
+      private int probePosition;
+
+      private FoldStreamer(int fold, int[] rowItems, float[] rowValues)
+       {
+        this.fold = fold;
+        this.rowItems = rowItems;
+        this.rowValues = rowValues;
+       }
+
+      public void visit(int itemIndex, double value)
+       {
+        if(getFold(userIndex, itemIndex) == fold)
+         {
+          int p = probePosition++;
+          probeUsers[p] = userIndex;
+          probeItems[p] = itemIndex;
+          probeValues[p] = value;
+         }
+        else
+         {
+          int r = rowPosition++;
+          rowItems[r] = itemIndex;
+          rowValues[r] = (float)value;
+         }
+       }
+     }
+   }
+ }
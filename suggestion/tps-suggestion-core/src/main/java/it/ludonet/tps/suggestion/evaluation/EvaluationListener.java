@@ -0,0 +1,18 @@
+package it.ludonet.tps.suggestion.evaluation;
+
+/**
+ * Implementations of this interface receive the result of each fold of
+ * a {@link CrossValidation} as soon as it is evaluated.
+ */
+public interface EvaluationListener
+ {
+
+  /**
+   * Called when a fold has been evaluated. The calls are serialized, but
+   * they come from the threads of the evaluation, in completion order.
+   *
+   * @param result The result of the fold.
+   */
+  public void foldEvaluated(FoldResult result);
+
+ }
@@ -0,0 +1,107 @@
+package it.ludonet.tps.suggestion.evaluation;
+
+/**
+ * The result of the evaluation of a suggester configuration on a single fold.
+ */
+public class FoldResult
+ {
+
+  private final String configuration;
+  private final int fold;
+  private final int trainingRatings;
+  private final int probeRatings;
+  private final double squaredErrors;
+  private final double absoluteErrors;
+  private final long splitNanos;
+  private final long trainNanos;
+  private final long predictionNanos;
+
+  public FoldResult(String configuration, int fold, int trainingRatings, int probeRatings,
+                    double squaredErrors, double absoluteErrors,
+                    long splitNanos, long trainNanos, long predictionNanos)
+   {
+    this.configuration = configuration;
+    this.fold = fold;
+    this.trainingRatings = trainingRatings;
+    this.probeRatings = probeRatings;
+    this.squaredErrors = squaredErrors;
+    this.absoluteErrors = absoluteErrors;
+    this.splitNanos = splitNanos;
+    this.trainNanos = trainNanos;
+    this.predictionNanos = predictionNanos;
+   }
+
+  public String getConfiguration()
+   {
+    return configuration;
+   }
+
+  public int getFold()
+   {
+    return fold;
+   }
+
+  public int getTrainingRatings()
+   {
+    return trainingRatings;
+   }
+
+  public int getProbeRatings()
+   {
+    return probeRatings;
+   }
+
+  /**
+   * Returns the sum of the squared errors on the probe ratings.
+   */
+  public double getSquaredErrors()
+   {
+    return squaredErrors;
+   }
+
+  /**
+   * Returns the sum of the absolute errors on the probe ratings.
+   */
+  public double getAbsoluteErrors()
+   {
+    return absoluteErrors;
+   }
+
+  /**
+   * Returns the root mean squared error on the probe ratings.
+   */
+  public double getRmse()
+   {
+    return probeRatings == 0 ? Double.NaN : Math.sqrt(squaredErrors / probeRatings);
+   }
+
+  /**
+   * Returns the mean absolute error on the probe ratings.
+   */
+  public double getMae()
+   {
+    return probeRatings == 0 ? Double.NaN : absoluteErrors / probeRatings;
+   }
+
+  public long getSplitNanos()
+   {
+    return splitNanos;
+   }
+
+  public long getTrainNanos()
+   {
+    return trainNanos;
+   }
+
+  public long getPredictionNanos()
+   {
+    return predictionNanos;
+   }
+
+  public String toString()
+   {
+    return String.format("%s fold %d: RMSE %.6f, MAE %.6f (%d training, %d probe ratings; split %d ms, train %d ms, predict %d ms)",
+                         configuration, fold, getRmse(), getMae(), trainingRatings, probeRatings,
+                         splitNanos / 1000000, trainNanos / 1000000, predictionNanos / 1000000);
+   }
+ }
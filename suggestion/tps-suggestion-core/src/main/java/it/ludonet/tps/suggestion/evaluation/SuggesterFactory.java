@@ -0,0 +1,26 @@
+package it.ludonet.tps.suggestion.evaluation;
+
+import it.ludonet.tps.suggestion.Suggester;
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+/**
+ * Implementations of this interface create the suggesters evaluated by a
+ * {@link CrossValidation}. Each call must return a new suggester, with its own
+ * global effects removers, since the folds are trained concurrently.
+ */
+public interface SuggesterFactory
+ {
+
+  /**
+   * Creates a new untrained suggester for the provided training data.
+   *
+   * @param trainingData The training data the suggester will be trained on.
+   *
+   * @return The new suggester.
+   *
+   * @throws SuggesterTrainException If the suggester cannot be created.
+   */
+  public Suggester createSuggester(RatingsSource trainingData) throws SuggesterTrainException;
+
+ }
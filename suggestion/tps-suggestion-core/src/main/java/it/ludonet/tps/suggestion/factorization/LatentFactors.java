@@ -0,0 +1,164 @@
+package it.ludonet.tps.suggestion.factorization;
+
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * This class stores the latent factors of users and items learned by a
+ * {@link LatentFactorsBuilder}. The factors of all the users and of all the
+ * items are stored in two flat arrays, indexed by <code>index * F + factor</code>,
+ * so that a prediction is a single dot product over two contiguous slices.
+ */
+public class LatentFactors
+ {
+
+  protected final int usersNumber;
+  protected final int itemsNumber;
+  protected final int factorsNumber;
+  protected final float[] userFactors;
+  protected final float[] itemFactors;
+
+  protected LatentFactors(int usersNumber, int itemsNumber, int factorsNumber)
+   {
+    this(usersNumber, itemsNumber, factorsNumber,
+         new float[usersNumber * factorsNumber], new float[itemsNumber * factorsNumber]);
+   }
+
+  protected LatentFactors(int usersNumber, int itemsNumber, int factorsNumber, float[] userFactors, float[] itemFactors)
+   {
+    this.usersNumber = usersNumber;
+    this.itemsNumber = itemsNumber;
+    this.factorsNumber = factorsNumber;
+    this.userFactors = userFactors;
+    this.itemFactors = itemFactors;
+   }
+
+  public int getUsersNumber()
+   {
+    return usersNumber;
+   }
+
+  public int getItemsNumber()
+   {
+    return itemsNumber;
+   }
+
+  public int getFactorsNumber()
+   {
+    return factorsNumber;
+   }
+
+  /**
+   * Returns the factors of all the users, indexed by <code>user * F + factor</code>.
+   * The array is not copied.
+   */
+  public float[] getUserFactors()
+   {
+    return userFactors;
+   }
+
+  /**
+   * Returns the factors of all the items, indexed by <code>item * F + factor</code>.
+   * The array is not copied.
+   */
+  public float[] getItemFactors()
+   {
+    return itemFactors;
+   }
+
+  /**
+   * Returns the dot product between the factors of the user and the ones of the item.
+   * The indexes are not checked.
+   *
+   * @param userIndex The 0-based user index.
+   * @param itemIndex The 0-based item index.
+   *
+   * @return The predicted residual of the couple user-item.
+   */
+  public double predict(int userIndex, int itemIndex)
+   {
+    int f = factorsNumber;
+    int u = userIndex * f;
+    int i = itemIndex * f;
+    float sum = 0.0f;
+    for(int k = 0; k < f; k++)
+     sum += userFactors[u + k] * itemFactors[i + k];
+    return sum;
+   }
+
+  /**
+   * Returns the cosine similarity between the factors of two items.
+   *
+   * @param itemIndex The 0-based index of the first item.
+   * @param otherIndex The 0-based index of the second item.
+   *
+   * @return The similarity, or 0 if the factors of one of the items are all zero.
+   */
+  public double similarity(int itemIndex, int otherIndex)
+   {
+    int f = factorsNumber;
+    int i = itemIndex * f;
+    int j = otherIndex * f;
+    double product = 0.0;
+    double normI = 0.0;
+    double normJ = 0.0;
+    for(int k = 0; k < f; k++)
+     {
+      double a = itemFactors[i + k];
+      double b = itemFactors[j + k];
+      product += a * b;
+      normI += a * a;
+      normJ += b * b;
+     }
+    return normI == 0.0 || normJ == 0.0 ? 0.0 : product / Math.sqrt(normI * normJ);
+   }
+
+  /**
+   * Adds the factors to a snapshot.
+   *
+   * @param writer The snapshot writer.
+   * @param prefix The prefix of the names of the sections of the factors.
+   */
+  public void writeSnapshot(SnapshotWriter writer, String prefix)
+   {
+    writer.putInt(prefix + "usersNumber", usersNumber);
+    writer.putInt(prefix + "itemsNumber", itemsNumber);
+    writer.putInt(prefix + "factorsNumber", factorsNumber);
+    writer.putFloats(prefix + "userFactors", userFactors);
+    writer.putFloats(prefix + "itemFactors", itemFactors);
+   }
+
+  /**
+   * Reads the factors written by {@link #writeSnapshot(SnapshotWriter, String)}. Unlike
+   * the other parts of a snapshot, the factors are copied in heap arrays, so that the
+   * dot products don't go through the mapped buffers.
+   *
+   * @param snapshot The snapshot.
+   * @param prefix The prefix of the names of the sections of the factors.
+   *
+   * @return The factors.
+   *
+   * @throws IOException If the snapshot doesn't contain valid factors.
+   */
+  public static LatentFactors readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    int usersNumber = snapshot.getInt(prefix + "usersNumber");
+    int itemsNumber = snapshot.getInt(prefix + "itemsNumber");
+    int factorsNumber = snapshot.getInt(prefix + "factorsNumber");
+    float[] userFactors = copy(snapshot.getFloats(prefix + "userFactors"), usersNumber * factorsNumber);
+    float[] itemFactors = copy(snapshot.getFloats(prefix + "itemFactors"), itemsNumber * factorsNumber);
+    return new LatentFactors(usersNumber, itemsNumber, factorsNumber, userFactors, itemFactors);
+   }
+
+  private static float[] copy(FloatBuffer buffer, int size) throws IOException
+   {
+    if(buffer.remaining() != size)
+     throw new IOException("Invalid latent factors size " + buffer.remaining() + ", expected " + size);
+    float[] values = new float[size];
+    buffer.duplicate().get(values);
+    return values;
+   }
+ }
@@ -0,0 +1,478 @@
+package it.ludonet.tps.suggestion.factorization;
+
+import it.ludonet.tps.suggestion.concurrent.ParallelRangeExecutor;
+import it.ludonet.tps.suggestion.concurrent.RangeTask;
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * This class learns the {@link LatentFactors} of users and items from the residuals
+ * left by the global effects removal, minimizing the regularized squared error
+ * <code>&Sigma;(r<sub>ui</sub> - p<sub>u</sub>q<sub>i</sub>)<sup>2</sup> +
+ * &lambda;(|p<sub>u</sub>|<sup>2</sup> + |q<sub>i</sub>|<sup>2</sup>)</code>
+ * with one of two methods:
+ * <ul>
+ * <li>{@link #SGD}: stochastic gradient descent over the ratings, visited in a random
+ * order that is drawn once. The ratings are split among the threads, which update
+ * the shared factors without any lock (the "Hogwild" scheme): since each rating
+ * touches only two rows of factors, conflicting updates are rare and they only add
+ * a little noise to the descent.</li>
+ * <li>{@link #ALS}: alternating least squares. The item factors are fixed while the
+ * factors of each user are computed exactly by solving a small <code>F &times; F</code>
+ * system, then the roles are swapped. The users (items) are split in contiguous blocks
+ * among the threads, which never write the same factors. The regularization is
+ * weighted by the support of each user and item.</li>
+ * </ul>
+ */
+public class LatentFactorsBuilder
+ {
+
+  public static final int SGD = 0;
+  public static final int ALS = 1;
+
+  protected int factorsNumber;
+  protected int method;
+  protected int iterations;
+  protected double learningRate;
+  protected double learningRateDecay;
+  protected double regularization;
+  protected double initialScale;
+  protected long seed;
+  protected int parallelism;
+
+  public LatentFactorsBuilder()
+   {
+    factorsNumber = 20;
+    method = SGD;
+    iterations = 20;
+    learningRate = 0.01;
+    learningRateDecay = 0.95;
+    regularization = 0.02;
+    initialScale = 0.1;
+    parallelism = 1;
+   }
+
+  public int getFactorsNumber()
+   {
+    return factorsNumber;
+   }
+
+  public void setFactorsNumber(int factorsNumber)
+   {
+    this.factorsNumber = factorsNumber;
+   }
+
+  public int getMethod()
+   {
+    return method;
+   }
+
+  /**
+   * Sets the training method, {@link #SGD} or {@link #ALS}. The default is {@link #SGD}.
+   *
+   * @param method The training method.
+   */
+  public void setMethod(int method)
+   {
+    this.method = method;
+   }
+
+  /**
+   * Returns the number of epochs of {@link #SGD}, or of alternations of {@link #ALS}.
+   */
+  public int getIterations()
+   {
+    return iterations;
+   }
+
+  public void setIterations(int iterations)
+   {
+    this.iterations = iterations;
+   }
+
+  public double getLearningRate()
+   {
+    return learningRate;
+   }
+
+  /**
+   * Sets the learning rate of the first epoch of {@link #SGD}.
+   *
+   * @param learningRate The learning rate.
+   */
+  public void setLearningRate(double learningRate)
+   {
+    this.learningRate = learningRate;
+   }
+
+  public double getLearningRateDecay()
+   {
+    return learningRateDecay;
+   }
+
+  /**
+   * Sets the factor the learning rate of {@link #SGD} is multiplied by after each epoch.
+   *
+   * @param learningRateDecay The learning rate decay.
+   */
+  public void setLearningRateDecay(double learningRateDecay)
+   {
+    this.learningRateDecay = learningRateDecay;
+   }
+
+  public double getRegularization()
+   {
+    return regularization;
+   }
+
+  public void setRegularization(double regularization)
+   {
+    this.regularization = regularization;
+   }
+
+  public double getInitialScale()
+   {
+    return initialScale;
+   }
+
+  /**
+   * Sets the scale of the random initial factors, which are drawn uniformly
+   * in <code>[-scale, scale]</code>.
+   *
+   * @param initialScale The scale of the initial factors.
+   */
+  public void setInitialScale(double initialScale)
+   {
+    this.initialScale = initialScale;
+   }
+
+  public long getSeed()
+   {
+    return seed;
+   }
+
+  public void setSeed(long seed)
+   {
+    this.seed = seed;
+   }
+
+  public int getParallelism()
+   {
+    return parallelism;
+   }
+
+  /**
+   * Sets the number of threads used to learn the factors. The default
+   * value is 1, which means that the factors are learned in the calling thread.
+   * With more threads, the {@link #SGD} results are not reproducible.
+   *
+   * @param parallelism The number of threads used to learn the factors.
+   */
+  public void setParallelism(int parallelism)
+   {
+    this.parallelism = parallelism;
+   }
+
+  /**
+   * Learns the latent factors of the provided residuals.
+   *
+   * @param residuals The residuals of the ratings after the global effects removal.
+   *
+   * @return The latent factors.
+   *
+   * @throws SuggesterTrainException If the factors cannot be learned.
+   */
+  public LatentFactors build(RatingsSource residuals) throws SuggesterTrainException
+   {
+    if(factorsNumber < 1)
+     throw new IllegalArgumentException("Invalid number of factors " + factorsNumber);
+    if(method != SGD && method != ALS)
+     throw new IllegalArgumentException("Invalid training method " + method);
+
+    int usersNumber = residuals.getUsersNumber();
+    int itemsNumber = residuals.getItemsNumber();
+    if((long)Math.max(usersNumber, itemsNumber) * factorsNumber > Integer.MAX_VALUE)
+     throw new SuggesterTrainException("Too many latent factors: " + factorsNumber);
+
+    LatentFactors factors = new LatentFactors(usersNumber, itemsNumber, factorsNumber);
+    Random random = new Random(seed);
+    if(method == SGD)
+     randomize(factors.userFactors, random);
+    randomize(factors.itemFactors, random);
+
+    ParallelRangeExecutor executor = ParallelRangeExecutor.getShared(Math.max(1, parallelism));
+    try
+     {
+      if(method == SGD)
+       trainSgd(residuals, factors, random, executor);
+      else
+       trainAls(residuals, factors, executor);
+     }
+    catch(ExecutionException e)
+     {
+      throw new SuggesterTrainException("Cannot learn the latent factors", ParallelRangeExecutor.getCheckedCause(e));
+     }
+    catch(InterruptedException e)
+     {
+      Thread.currentThread().interrupt();
+      throw new SuggesterTrainException("Interrupted while learning the latent factors", e);
+     }
+    return factors;
+   }
+
+  private void randomize(float[] values, Random random)
+   {
+    for(int k = 0; k < values.length; k++)
+     values[k] = (float)((2.0 * random.nextDouble() - 1.0) * initialScale);
+   }
+
+  /**
+   * Runs the SGD epochs over a shuffled copy of the ratings.
+   */
+  protected void trainSgd(RatingsSource residuals, LatentFactors factors, Random random,
+                          ParallelRangeExecutor executor) throws SuggesterTrainException, ExecutionException,
+                                                                 InterruptedException
+   {
+    // copy the ratings in flat arrays, then shuffle them all together, so that
+    // the epochs read them sequentially
+    int usersNumber = residuals.getUsersNumber();
+    long count = 0;
+    for(int u = 0; u < usersNumber; u++)
+     count += residuals.getUserSupport(u);
+    if(count > Integer.MAX_VALUE)
+     throw new SuggesterTrainException("Too many ratings for SGD: " + count);
+
+    final Ratings ratings = new Ratings((int)count);
+    for(int u = 0; u < usersNumber; u++)
+     {
+      ratings.userIndex = u;
+      residuals.walkUserRatings(u, ratings);
+     }
+    ratings.shuffle(random);
+
+    final float[] userFactors = factors.userFactors;
+    final float[] itemFactors = factors.itemFactors;
+    final int f = factorsNumber;
+    final float lambda = (float)regularization;
+    double rate = learningRate;
+    for(int epoch = 0; epoch < iterations; epoch++)
+     {
+      final float gamma = (float)rate;
+      executor.execute(ratings.count, new RangeTask()
+       {
+        public void run(int from, int to)
+         {
+          int[] users = ratings.users;
+          int[] items = ratings.items;
+          float[] values = ratings.values;
+          for(int r = from; r < to; r++)
+           {
+            int u = users[r] * f;
+            int i = items[r] * f;
+            float prediction = 0.0f;
+            for(int k = 0; k < f; k++)
+             prediction += userFactors[u + k] * itemFactors[i + k];
+
+            float error = values[r] - prediction;
+            for(int k = 0; k < f; k++)
+             {
+              float p = userFactors[u + k];
+              float q = itemFactors[i + k];
+              userFactors[u + k] = p + gamma * (error * q - lambda * p);
+              itemFactors[i + k] = q + gamma * (error * p - lambda * q);
+             }
+           }
+         }
+       });
+      rate *= learningRateDecay;
+     }
+   }
+
+  /**
+   * Runs the ALS alternations, solving the users and the items in parallel blocks.
+   */
+  protected void trainAls(final RatingsSource residuals, LatentFactors factors,
+                          ParallelRangeExecutor executor) throws ExecutionException, InterruptedException
+   {
+    final float[] userFactors = factors.userFactors;
+    final float[] itemFactors = factors.itemFactors;
+    for(int iteration = 0; iteration < iterations; iteration++)
+     {
+      executor.execute(factors.usersNumber, new RangeTask()
+       {
+        public void run(int from, int to)
+         {
+          LeastSquares solver = new LeastSquares(itemFactors, userFactors);
+          for(int u = from; u < to; u++)
+           {
+            solver.clear();
+            residuals.walkUserRatings(u, solver);
+            solver.solve(u);
+           }
+         }
+       });
+      executor.execute(factors.itemsNumber, new RangeTask()
+       {
+        public void run(int from, int to)
+         {
+          LeastSquares solver = new LeastSquares(userFactors, itemFactors);
+          for(int i = from; i < to; i++)
+           {
+            solver.clear();
+            residuals.walkItemRatings(i, solver);
+            solver.solve(i);
+           }
+         }
+       });
+     }
+   }
+
+  /**
+   * The ratings copied for SGD, in parallel arrays.
+   */
+  private static class Ratings implements RatingVisitor
+   {
+    final int[] users;
+    final int[] items;
+    final float[] values;
+    int count;
+    int userIndex;
+
+    Ratings(int size)
+     {
+      users = new int[size];
+      items = new int[size];
+      values = new float[size];
+     }
+
+    public void visit(int itemIndex, double value)
+     {
+      users[count] = userIndex;
+      items[count] = itemIndex;
+      values[count] = (float)value;
+      count++;
+     }
+
+    void shuffle(Random random)
+     {
+      for(int r = count - 1; r > 0; r--)
+       {
+        int s = random.nextInt(r + 1);
+        int user = users[r];
+        users[r] = users[s];
+        users[s] = user;
+        int item = items[r];
+        items[r] = items[s];
+        items[s] = item;
+        float value = values[r];
+        values[r] = values[s];
+        values[s] = value;
+       }
+     }
+   }
+
+  /**
+   * Accumulates the normal equations of a user (item) over the factors of the
+   * items (users) it rated, and solves them with a Cholesky decomposition. A solver
+   * must not be used by more than one thread at a time.
+   */
+  private class LeastSquares implements RatingVisitor
+   {
+    final float[] fixed;
+    final float[] target;
+    final int f;
+    final double[] a;
+    final double[] b;
+    int support;
+
+    LeastSquares(float[] fixed, float[] target)
+     {
+      this.fixed = fixed;
+      this.target = target;
+      f = factorsNumber;
+      a = new double[f * f];
+      b = new double[f];
+     }
+
+    void clear()
+     {
+      Arrays.fill(a, 0.0);
+      Arrays.fill(b, 0.0);
+      support = 0;
+     }
+
+    public void visit(int index, double value)
+     {
+      int o = index * f;
+      for(int j = 0; j < f; j++)
+       {
+        double q = fixed[o + j];
+        b[j] += value * q;
+        int row = j * f;
+        for(int k = 0; k <= j; k++)
+         a[row + k] += q * fixed[o + k];
+       }
+      support++;
+     }
+
+    /**
+     * Solves the accumulated system and stores the factors of the unit. Units
+     * without ratings, or whose system is singular, get zero factors.
+     */
+    void solve(int unit)
+     {
+      int o = unit * f;
+      double lambda = regularization * support;
+      for(int j = 0; j < f; j++)
+       a[j * f + j] += lambda;
+
+      // in place Cholesky decomposition of the lower triangle
+      for(int j = 0; j < f; j++)
+       {
+        int rowJ = j * f;
+        for(int k = 0; k <= j; k++)
+         {
+          int rowK = k * f;
+          double sum = a[rowJ + k];
+          for(int h = 0; h < k; h++)
+           sum -= a[rowJ + h] * a[rowK + h];
+          if(k < j)
+           a[rowJ + k] = sum / a[rowK + k];
+          else if(sum <= 0.0)
+           {
+            for(int h = 0; h < f; h++)
+             target[o + h] = 0.0f;
+            return;
+           }
+          else
+           a[rowJ + j] = Math.sqrt(sum);
+         }
+       }
+
+      // forward and backward substitutions
+      for(int j = 0; j < f; j++)
+       {
+        int rowJ = j * f;
+        double sum = b[j];
+        for(int h = 0; h < j; h++)
+         sum -= a[rowJ + h] * b[h];
+        b[j] = sum / a[rowJ + j];
+       }
+      for(int j = f - 1; j >= 0; j--)
+       {
+        double sum = b[j];
+        for(int h = j + 1; h < f; h++)
+         sum -= a[h * f + j] * b[h];
+        b[j] = sum / a[j * f + j];
+       }
+
+      for(int j = 0; j < f; j++)
+       target[o + j] = (float)b[j];
+     }
+   }
+ }
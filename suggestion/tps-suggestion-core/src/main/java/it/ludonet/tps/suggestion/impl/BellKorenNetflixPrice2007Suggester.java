@@ -1,9 +1,18 @@
 package it.ludonet.tps.suggestion.impl;
 
 import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.neighbourhood.ItemNeighbourhood;
+import it.ludonet.tps.suggestion.neighbourhood.ItemNeighbourhoodBuilder;
+import it.ludonet.tps.suggestion.neighbourhood.SimilarItemsIndex;
+import it.ludonet.tps.suggestion.neighbourhood.SimilarItemsIndexBuilder;
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
 import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.util.BoundedMinHeap;
 
-import java.util.List;
+import java.io.IOException;
+import java.util.*;
 
 /**
  * This class is the Bell-Koren suggester,
@@ -12,10 +21,64 @@ import java.util.List;
  * Scalable Collaborative Filtering with Jointly Derived Nighborhood Interpolation Weights</a>
  * <p>
  * for the Netflix prize in 2007.
+ * <p>
+ * After the global effects removal, the suggester builds an item-item
+ * {@link ItemNeighbourhood} on the residuals. Predictions add to the global
+ * effects an interpolation of the residuals of the user on the neighbours
+ * of the item, whose weights are derived jointly by solving a small
+ * <code>K &times; K</code> non-negative quadratic problem.
+ * <p>
+ * The similar items are served from a {@link SimilarItemsIndex} built at training
+ * time, which also provides the neighbours of the neighbourhood.
  */
 public class BellKorenNetflixPrice2007Suggester extends GlobalEffectRemoverSuggester
  {
 
+  protected static final int DEFAULT_ITEMS_NUMBER = 5;
+
+  protected ItemNeighbourhoodBuilder neighbourhoodBuilder;
+  protected ItemNeighbourhood neighbourhood;
+  protected SimilarItemsIndexBuilder similarItemsIndexBuilder;
+  protected SimilarItemsIndex similarItemsIndex;
+  private final ThreadLocal<Workspace> workspaces;
+
+  public BellKorenNetflixPrice2007Suggester()
+   {
+    neighbourhoodBuilder = new ItemNeighbourhoodBuilder();
+    similarItemsIndexBuilder = new SimilarItemsIndexBuilder();
+    workspaces = new ThreadLocal<Workspace>();
+   }
+
+  public ItemNeighbourhoodBuilder getNeighbourhoodBuilder()
+   {
+    return neighbourhoodBuilder;
+   }
+
+  public void setNeighbourhoodBuilder(ItemNeighbourhoodBuilder neighbourhoodBuilder)
+   {
+    this.neighbourhoodBuilder = neighbourhoodBuilder;
+   }
+
+  public ItemNeighbourhood getNeighbourhood()
+   {
+    return neighbourhood;
+   }
+
+  public SimilarItemsIndexBuilder getSimilarItemsIndexBuilder()
+   {
+    return similarItemsIndexBuilder;
+   }
+
+  public void setSimilarItemsIndexBuilder(SimilarItemsIndexBuilder similarItemsIndexBuilder)
+   {
+    this.similarItemsIndexBuilder = similarItemsIndexBuilder;
+   }
+
+  public SimilarItemsIndex getSimilarItemsIndex()
+   {
+    return similarItemsIndex;
+   }
+
   /**
    * This method will train the suggester using the data
    * provided in the training ratings.
@@ -29,6 +92,69 @@ public class BellKorenNetflixPrice2007Suggester extends GlobalEffectRemoverSugge
   public void train(RatingsSource trainingRatings) throws SuggesterTrainException
    {
     super.train(trainingRatings);
+
+    similarItemsIndex = similarItemsIndexBuilder == null ? null : similarItemsIndexBuilder.build(residuals);
+    neighbourhood = neighbourhoodBuilder.build(residuals, similarItemsIndex);
+   }
+
+  /**
+   * Adds the neighbourhood and the similar items index to the snapshot
+   * of the global effects and of the residuals.
+   *
+   * @param writer The snapshot writer.
+   *
+   * @throws IOException If a part of the state cannot be saved.
+   * @throws IllegalStateException If the suggester has not been trained.
+   */
+  @Override
+  protected void writeSnapshot(SnapshotWriter writer) throws IOException, IllegalStateException
+   {
+    if(neighbourhood == null)
+     throw new IllegalStateException("The suggester has not been trained");
+
+    super.writeSnapshot(writer);
+    neighbourhood.writeSnapshot(writer, "neighbourhood.");
+    if(similarItemsIndex != null)
+     similarItemsIndex.writeSnapshot(writer, "similarItems.");
+   }
+
+  /**
+   * Restores the neighbourhood and the similar items index together with
+   * the global effects and the residuals.
+   *
+   * @param snapshot The snapshot.
+   *
+   * @throws IOException If the snapshot doesn't contain a valid state for this suggester.
+   */
+  @Override
+  protected void readSnapshot(Snapshot snapshot) throws IOException
+   {
+    super.readSnapshot(snapshot);
+    if(residuals == null)
+     throw new IOException("Missing snapshot section residuals.");
+    neighbourhood = ItemNeighbourhood.readSnapshot(snapshot, "neighbourhood.");
+    similarItemsIndex = snapshot.contains("similarItems.itemsNumber") ?
+                        SimilarItemsIndex.readSnapshot(snapshot, "similarItems.") : null;
+   }
+
+  /**
+   * Recomputes the similar items of the provided items after their residual
+   * ratings changed, without rebuilding the whole index. The neighbourhood
+   * used for the predictions is not updated.
+   *
+   * @param itemIndexes The indexes of the items whose residual ratings changed.
+   *
+   * @throws IndexOutOfBoundsException If an item index falls outside the suggester range.
+   * @throws SuggesterTrainException If the suggester has not been trained or if
+   * the index cannot be refreshed.
+   */
+  public void refreshSimilarItems(int[] itemIndexes) throws IndexOutOfBoundsException,
+                                                            SuggesterTrainException
+   {
+    if(similarItemsIndex == null)
+     throw new SuggesterTrainException("The similar items index has not been built");
+
+    similarItemsIndexBuilder.refresh(similarItemsIndex, residuals, itemIndexes);
    }
 
   /**
@@ -50,11 +176,77 @@ public class BellKorenNetflixPrice2007Suggester extends GlobalEffectRemoverSugge
    {
     double val = super.getPredictedRating(userIndex, itemIndex);
 
-    double prediction = 0.0;
+    if(neighbourhood == null)
+     throw new SuggesterTrainException("The suggester has not been trained");
+
+    double prediction = neighbourhood.interpolate(residuals, userIndex, itemIndex, getWorkspace().interpolation);
 
     return val + prediction;
    }
 
+  /**
+   * Computes the predicted ratings of a batch of user-item couples. The global effects are
+   * computed for the whole batch first; then the couples are visited grouped by user, and the
+   * residuals of each user are scattered once in a dense array, so that the neighbourhood
+   * interpolation doesn't look up each residual in the source.
+   *
+   * @param userIndexes The indexes of the users.
+   * @param itemIndexes The indexes of the items.
+   * @param predictions The array the predictions are stored in.
+   * @param from The first couple of the batch, inclusive.
+   * @param to The last couple of the batch, exclusive.
+   *
+   * @throws IndexOutOfBoundsException If a user or item index falls outside the
+   * suggester ranges.
+   * @throws SuggesterTrainException If an error occurs during the computation of
+   * the predictions.
+   */
+  public void getPredictedRatings(int[] userIndexes, int[] itemIndexes, double[] predictions, int from, int to) throws IndexOutOfBoundsException,
+                                                                                                                      SuggesterTrainException
+   {
+    if(neighbourhood == null)
+     throw new SuggesterTrainException("The suggester has not been trained");
+
+    super.getPredictedRatings(userIndexes, itemIndexes, predictions, from, to);
+
+    // visit the couples sorted by user, unless they already are
+    long[] order = null;
+    for(int k = from + 1; k < to; k++)
+     {
+      if(userIndexes[k] < userIndexes[k - 1])
+       {
+        order = new long[to - from];
+        for(int h = from; h < to; h++)
+         order[h - from] = ((long)userIndexes[h] << 32) | (h - from);
+        Arrays.sort(order);
+        break;
+       }
+     }
+
+    Workspace workspace = getWorkspace();
+    double[] userResiduals = workspace.getUserResiduals();
+    ItemNeighbourhood.Workspace interpolation = workspace.interpolation;
+    int lastUser = -1;
+    try
+     {
+      for(int h = from; h < to; h++)
+       {
+        int k = order == null ? h : from + (int)order[h - from];
+        int userIndex = userIndexes[k];
+        if(userIndex != lastUser)
+         {
+          workspace.collectRatedItems(residuals, userIndex);
+          lastUser = userIndex;
+         }
+        predictions[k] += neighbourhood.interpolate(userResiduals, itemIndexes[k], interpolation);
+       }
+     }
+    finally
+     {
+      workspace.releaseUserResiduals();
+     }
+   }
+
   /**
    * This method will predict the items an user will like the most. The number of
    * returned items can be specified.
@@ -62,6 +254,10 @@ public class BellKorenNetflixPrice2007Suggester extends GlobalEffectRemoverSugge
    * @param userIndex The index of the user whose favourite items will be computed.
    * @param maxNumberOfItems The maximum number of items to return. This parameters can be
    * <code>null</code>and in this case a default number of 5 items will be returned.
+   * <p>
+   * Only the items that have at least one of the items rated by the user among their
+   * neighbours are scored, and the best ones are selected with a bounded heap. If the
+   * user didn't rate any neighbour, the unrated items are ranked by their global effects.
    *
    * @return A <code>{@link List}&lt;{@link Integer}&gt;</code> with the item indexes that the
    * specified user will like the most, ordered from the most liked to the less liked one.
@@ -73,7 +269,57 @@ public class BellKorenNetflixPrice2007Suggester extends GlobalEffectRemoverSugge
   public List<Integer> getSuggestedItems(int userIndex, Integer maxNumberOfItems) throws IndexOutOfBoundsException,
                                                                                          SuggesterTrainException
    {
-    return null;
+    if(neighbourhood == null)
+     throw new SuggesterTrainException("The suggester has not been trained");
+    if(userIndex < 0 || userIndex >= usersNumber)
+     throw new IndexOutOfBoundsException("Invalid user index " + userIndex);
+
+    int max = maxNumberOfItems == null ? DEFAULT_ITEMS_NUMBER : maxNumberOfItems;
+    if(max <= 0)
+     return new ArrayList<Integer>(0);
+    // no more than all the items can be returned
+    max = Math.min(max, itemsNumber);
+
+    Workspace workspace = getWorkspace();
+    int ratedNumber = workspace.collectRatedItems(residuals, userIndex);
+    int[] ratedItems = workspace.ratedItems;
+    int[] marks = workspace.marks;
+    int ratedMark = workspace.ratedMark;
+    int candidateMark = ratedMark + 1;
+    BoundedMinHeap heap = workspace.getHeap(max);
+
+    for(int r = 0; r < ratedNumber; r++)
+     {
+      int ratedItem = ratedItems[r];
+      for(int p = 0, n = neighbourhood.getReverseNeighboursNumber(ratedItem); p < n; p++)
+       {
+        int itemIndex = neighbourhood.getReverseNeighbour(ratedItem, p);
+        int mark = marks[itemIndex];
+        if(mark == ratedMark || mark == candidateMark)
+         continue;
+        marks[itemIndex] = candidateMark;
+
+        double prediction = getGlobalEffects(userIndex, itemIndex) +
+                            neighbourhood.interpolate(residuals, userIndex, itemIndex, workspace.interpolation);
+        heap.offer(itemIndex, prediction);
+       }
+     }
+
+    if(heap.size() == 0)
+     {
+      for(int itemIndex = 0; itemIndex < itemsNumber; itemIndex++)
+       {
+        if(marks[itemIndex] != ratedMark)
+         heap.offer(itemIndex, getGlobalEffects(userIndex, itemIndex));
+       }
+     }
+
+    int[] selected = workspace.selected;
+    int count = heap.drainSorted(selected, null, 0);
+    List<Integer> ret = new ArrayList<Integer>(count);
+    for(int s = 0; s < count; s++)
+     ret.add(selected[s]);
+    return ret;
    }
 
   /**
@@ -83,6 +329,8 @@ public class BellKorenNetflixPrice2007Suggester extends GlobalEffectRemoverSugge
    * @param itemIndex The index of the item whose similar ones will be computed.
    * @param maxNumberOfItems The maximum number of items to return. This parameters can be
    * <code>null</code> and in this case a default number of 5 items will be returned.
+   * The items are read from the similar items index, so no more than
+   * {@link SimilarItemsIndexBuilder#getSimilarItemsNumber()} items are returned.
    *
    * @return A <code>{@link List}&lt;{@link Integer}&gt;</code> with the item indexes that are
    * more similar to the provided one, ordered from the most similar to the less one.
@@ -94,7 +342,141 @@ public class BellKorenNetflixPrice2007Suggester extends GlobalEffectRemoverSugge
   public List<Integer> getSimilarItems(int itemIndex, Integer maxNumberOfItems) throws IndexOutOfBoundsException,
                                                                                        SuggesterTrainException
    {
-    return null;
+    if(similarItemsIndex == null)
+     throw new SuggesterTrainException("The similar items index has not been built");
+
+    int max = maxNumberOfItems == null ? DEFAULT_ITEMS_NUMBER : maxNumberOfItems;
+    int count = Math.min(Math.max(max, 0), similarItemsIndex.getSimilarItemsNumber(itemIndex));
+    List<Integer> ret = new ArrayList<Integer>(count);
+    for(int p = 0; p < count; p++)
+     ret.add(similarItemsIndex.getSimilarItem(itemIndex, p));
+    return ret;
+   }
+
+  /**
+   * Returns the workspace of the calling thread.
+   */
+  protected Workspace getWorkspace()
+   {
+    Workspace workspace = workspaces.get();
+    if(workspace == null || !workspace.fits(neighbourhood))
+     {
+      workspace = new Workspace(neighbourhood);
+      workspaces.set(workspace);
+     }
+    return workspace;
+   }
+
+  /**
+   * The work arrays used by a thread to compute predictions and suggestions,
+   * so that serving a request doesn't allocate memory proportional to the
+   * number of items.
+   */
+  protected static class Workspace implements RatingVisitor
+   {
+    final ItemNeighbourhood.Workspace interpolation;
+    // marks[i] == ratedMark if the user rated the item i, ratedMark + 1
+    // if the item has already been scored
+    final int[] marks;
+    int ratedMark;
+    int[] ratedItems;
+    int ratedNumber;
+    // the residuals of the collected user, indexed by item, while a batch is
+    // predicted; NaN for the items the user didn't rate
+    double[] userResiduals;
+    boolean scatter;
+    BoundedMinHeap heap;
+    int[] selected;
+
+    Workspace(ItemNeighbourhood neighbourhood)
+     {
+      interpolation = neighbourhood.createWorkspace();
+      marks = new int[neighbourhood.getItemsNumber()];
+      ratedItems = new int[16];
+     }
+
+    boolean fits(ItemNeighbourhood neighbourhood)
+     {
+      return marks.length == neighbourhood.getItemsNumber() &&
+             interpolation.getNeighboursNumber() == neighbourhood.getNeighboursNumber();
+     }
+
+    /**
+     * Collects and marks the items rated by the user.
+     */
+    int collectRatedItems(RatingsSource residuals, int userIndex)
+     {
+      if(ratedMark >= Integer.MAX_VALUE - 2)
+       {
+        Arrays.fill(marks, 0);
+        ratedMark = 0;
+       }
+      ratedMark += 2;
+      if(scatter)
+       {
+        for(int r = 0; r < ratedNumber; r++)
+         userResiduals[ratedItems[r]] = Double.NaN;
+       }
+      ratedNumber = 0;
+      residuals.walkUserRatings(userIndex, this);
+      return ratedNumber;
+     }
+
+    public void visit(int itemIndex, double value)
+     {
+      if(ratedNumber == ratedItems.length)
+       {
+        int[] newRatedItems = new int[2 * ratedItems.length];
+        System.arraycopy(ratedItems, 0, newRatedItems, 0, ratedNumber);
+        ratedItems = newRatedItems;
+       }
+      ratedItems[ratedNumber++] = itemIndex;
+      marks[itemIndex] = ratedMark;
+      if(scatter)
+       userResiduals[itemIndex] = value;
+     }
+
+    /**
+     * Returns the dense residuals array, which is filled by the following
+     * {@link #collectRatedItems(RatingsSource, int)} calls.
+     */
+    double[] getUserResiduals()
+     {
+      if(userResiduals == null)
+       {
+        userResiduals = new double[marks.length];
+        Arrays.fill(userResiduals, Double.NaN);
+       }
+      scatter = true;
+      ratedNumber = 0;
+      return userResiduals;
+     }
+
+    /**
+     * Clears the dense residuals array and stops filling it.
+     */
+    void releaseUserResiduals()
+     {
+      for(int r = 0; r < ratedNumber; r++)
+       userResiduals[ratedItems[r]] = Double.NaN;
+      ratedNumber = 0;
+      scatter = false;
+     }
+
+    /**
+     * Returns the heap limited to the provided number of items, reusing the
+     * current one if it is large enough.
+     */
+    BoundedMinHeap getHeap(int max)
+     {
+      if(heap == null || heap.getCapacity() < max)
+       {
+        heap = new BoundedMinHeap(max);
+        selected = new int[max];
+       }
+      heap.clear(max);
+      return heap;
+     }
    }
 
  }
@@ -31,4 +31,19 @@ public abstract class GenericSuggester implements Suggester
    itemsNumber = trainingRatings.getItemsNumber();
   }
 
+  /**
+   * This implementation calls {@link #getPredictedRating(int, int)} for each couple.
+   */
+  public double[] getPredictedRatings(int[] userIndexes, int[] itemIndexes) throws IndexOutOfBoundsException,
+                                                                                   SuggesterTrainException
+   {
+    if(userIndexes.length != itemIndexes.length)
+     throw new IllegalArgumentException("Different numbers of users and items");
+
+    double[] predictions = new double[userIndexes.length];
+    for(int k = 0; k < predictions.length; k++)
+     predictions[k] = getPredictedRating(userIndexes[k], itemIndexes[k]);
+    return predictions;
+   }
+
  }
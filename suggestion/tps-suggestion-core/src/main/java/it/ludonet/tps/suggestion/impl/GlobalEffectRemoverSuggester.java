@@ -2,21 +2,54 @@ package it.ludonet.tps.suggestion.impl;
 
 import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
 import it.ludonet.tps.suggestion.preprocessor.GlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.EstimationShrinkGlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.GlobalEffectsPipeline;
+import it.ludonet.tps.suggestion.preprocessor.impl.MainGlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.TimeGlobalEffectRemover;
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotSupport;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
 import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.source.impl.CompactRatingsSource;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This abstract suggester applies global effects removal on training datas.
  * Descendants of this implementation can use this class
  * {@link GlobalEffectRemoverSuggester#train(RatingsSource)} train(RatingsSource)}
  * method to preprocess the training data by removing the global effects.
+ * <p>
+ * A trained suggester can be saved with {@link #saveSnapshot(File)} and
+ * restored with {@link #loadSnapshot(File, boolean)} into a suggester configured
+ * with the same global effects removers, without training it again.
+ * <p>
+ * A suggester can be queried by many threads once trained, but not while it is
+ * trained or updated: to keep serving predictions during a new training, publish a
+ * {@link #createServingCopy() serving copy} in a {@link ServingSuggester}.
  */
 public abstract class GlobalEffectRemoverSuggester extends GenericSuggester
  {
 
   protected List<GlobalEffectRemover> globalEffectsRemovers;
   protected RatingsSource ratingEffects;
+  protected boolean fusedPipeline;
+  // the training ratings after the global effects removal
+  protected RatingsSource residuals;
+  // the updated ratings of new couples that the residuals cannot store
+  private PendingRatings pendingRatings = new PendingRatings();
 
   public List<GlobalEffectRemover> getGlobalEffectsRemovers()
    {
@@ -38,13 +71,33 @@ public abstract class GlobalEffectRemoverSuggester extends GenericSuggester
     this.ratingEffects = ratingEffects;
    }
 
+  public boolean isFusedPipeline()
+   {
+    return fusedPipeline;
+   }
+
+  /**
+   * Enables the fused global effects pipeline (see {@link GlobalEffectsPipeline}): the effects
+   * are written in place into the rating effects source, without a temporary effects source
+   * for each remover, and consecutive effects along the same axis are removed with a single
+   * pass. The predictions are the same; the default value is <code>false</code>.
+   *
+   * @param fusedPipeline Whether the fused pipeline is enabled.
+   */
+  public void setFusedPipeline(boolean fusedPipeline)
+   {
+    this.fusedPipeline = fusedPipeline;
+   }
+
   /**
    * This method will train the suggester using the data
    * provided in the training ratings.
    *
    * In this implementations, global effects will be removed from the
    * training data. Descendant of this class, after calling this method,
-   * will find a modified training ratings source.
+   * will find the residuals in the {@link #residuals} field: they are the
+   * modified training ratings source itself, unless its values are stored
+   * quantized, in which case they are a float copy of it.
    *
    * @param trainingRatings The training ratings.
    *
@@ -59,20 +112,655 @@ public abstract class GlobalEffectRemoverSuggester extends GenericSuggester
    if(ratingEffects == null)
     throw new SuggesterTrainException("Cannot train the suggester without a rating source to store effects in");
 
-   if(globalEffectsRemovers != null)
+   residuals = createResiduals(trainingRatings);
+   pendingRatings = new PendingRatings();
+   if(globalEffectsRemovers != null && fusedPipeline)
+    new GlobalEffectsPipeline().removeEffects(globalEffectsRemovers, residuals, ratingEffects);
+   else if(globalEffectsRemovers != null)
     {
      boolean center = false;
      for(GlobalEffectRemover globalEffectRemover : globalEffectsRemovers)
       {
-       RatingsSource effects = globalEffectRemover.removeEffects(trainingRatings, center);
+       RatingsSource effects = globalEffectRemover.removeEffects(residuals, center);
        center = true;
        ratingEffects.sum(effects);
       }
     }
   }
 
+  /**
+   * Updates the global effects with a new rating, without training the suggester again.
+   * See {@link #updateRatings(int[], int[], double[])}.
+   *
+   * @param userIndex The index of the user.
+   * @param itemIndex The index of the item.
+   * @param rating The new rating.
+   *
+   * @throws SuggesterTrainException If the global effects removers don't support
+   * incremental updates.
+   * @throws IndexOutOfBoundsException If the user or item index falls outside the
+   * suggester ranges.
+   * @throws IllegalStateException If the suggester has not been trained.
+   */
+  public void updateRating(int userIndex, int itemIndex, double rating) throws SuggesterTrainException,
+                                                                             IndexOutOfBoundsException,
+                                                                             IllegalStateException
+   {
+    updateRatings(new int[] {userIndex}, new int[] {itemIndex}, new double[] {rating});
+   }
+
+  /**
+   * Updates the global effects with new ratings, without training the suggester again. Each
+   * rating replaces the training rating of the same couple, if any. The global effects removers
+   * must all be {@link MainGlobalEffectRemover}s, whose sufficient statistics are updated in turn:
+   * the parameters of the user and of the item of each rating are estimated again, and the change
+   * of a parameter is propagated to the statistics of the following removers. Then the residuals
+   * and the rating effects of the row of the user and of the column of the item are computed
+   * again with the new parameters.
+   * <p>
+   * The other residuals are left as they are until the next training, as are the changes that
+   * would cascade beyond the removers immediately following an updated parameter, so the
+   * suggester should still be trained periodically. Residuals sources with a fixed structure,
+   * like the compressed ones, cannot store ratings of new couples: these ratings update the
+   * global effects only, and they are kept aside until the next training, so that a further
+   * update of the same couple replaces them.
+   * <p>
+   * The updates are serialized with each other, but not with the predictions, which can
+   * observe a partially applied update.
+   *
+   * @param userIndexes The indexes of the users.
+   * @param itemIndexes The indexes of the items.
+   * @param ratings The new ratings.
+   *
+   * @throws SuggesterTrainException If the global effects removers don't support
+   * incremental updates.
+   * @throws IndexOutOfBoundsException If a user or item index falls outside the
+   * suggester ranges.
+   * @throws IllegalStateException If the suggester has not been trained.
+   */
+  public synchronized void updateRatings(int[] userIndexes, int[] itemIndexes, double[] ratings) throws SuggesterTrainException,
+                                                                                                      IndexOutOfBoundsException,
+                                                                                                      IllegalStateException
+   {
+    if(residuals == null || ratingEffects == null)
+     throw new IllegalStateException("The suggester has not been trained");
+    if(userIndexes.length != itemIndexes.length || userIndexes.length != ratings.length)
+     throw new IllegalArgumentException("Different numbers of users, items and ratings");
+
+    int removersNumber = globalEffectsRemovers == null ? 0 : globalEffectsRemovers.size();
+    MainGlobalEffectRemover[] removers = new MainGlobalEffectRemover[removersNumber];
+    for(int r = 0; r < removersNumber; r++)
+     {
+      GlobalEffectRemover remover = globalEffectsRemovers.get(r);
+      if(!(remover instanceof MainGlobalEffectRemover))
+       throw new SuggesterTrainException("The global effect remover " + remover.getClass().getName() +
+                                         " doesn't support incremental updates");
+      removers[r] = (MainGlobalEffectRemover)remover;
+     }
+
+    OnlineUpdate update = new OnlineUpdate(removers);
+    for(int k = 0; k < ratings.length; k++)
+     {
+      int userIndex = userIndexes[k];
+      int itemIndex = itemIndexes[k];
+      if(userIndex < 0 || userIndex >= usersNumber || itemIndex < 0 || itemIndex >= itemsNumber)
+       throw new IndexOutOfBoundsException("Invalid indexes (" + userIndex + ", " + itemIndex + ")");
+
+      update.apply(userIndex, itemIndex, ratings[k]);
+     }
+   }
+
+  /**
+   * Returns the source the global effects will be removed from. Quantized
+   * compressed sources cannot hold the residuals with enough precision, so
+   * they are copied in a float source sharing their structure.
+   *
+   * @param trainingRatings The training ratings.
+   *
+   * @return The source that will hold the residuals.
+   */
+  protected RatingsSource createResiduals(RatingsSource trainingRatings)
+   {
+    if(trainingRatings instanceof CompressedSparseRatingSource)
+     {
+      CompressedSparseRatingSource compressed = (CompressedSparseRatingSource)trainingRatings;
+      if(compressed.getStorage().isQuantized())
+       return compressed.createEmptyCopy().sum(compressed);
+     }
+    return trainingRatings;
+   }
+
+  /**
+   * Saves the trained state of this suggester in a snapshot file.
+   *
+   * @param file The snapshot file.
+   *
+   * @throws IOException If an error occurs while writing the file, or if a
+   * global effect remover cannot be saved.
+   * @throws IllegalStateException If the suggester has not been trained.
+   */
+  public void saveSnapshot(File file) throws IOException, IllegalStateException
+   {
+    SnapshotWriter writer = new SnapshotWriter();
+    writeSnapshot(writer);
+    writer.writeTo(file);
+   }
+
+  /**
+   * Restores the trained state of this suggester from a snapshot file written by
+   * {@link #saveSnapshot(File)}. The data is mapped in memory and used in place.
+   *
+   * @param file The snapshot file.
+   * @param copyOnWrite <code>true</code> if the restored state can be modified,
+   * for example to update it with new ratings, without changing the file.
+   *
+   * @throws IOException If an error occurs while reading the file, or if the snapshot
+   * has been written by a suggester with a different configuration.
+   */
+  public void loadSnapshot(File file, boolean copyOnWrite) throws IOException
+   {
+    readSnapshot(Snapshot.open(file, copyOnWrite));
+   }
+
+  /**
+   * Creates a copy of this trained suggester that can serve predictions while this
+   * one is trained again or updated. The trained state is copied through a snapshot
+   * held in memory (see {@link SnapshotWriter#toSnapshot()}) into a new suggester of
+   * the same class, with new global effects removers of the same classes, so the copy
+   * doesn't share any mutable state with this suggester: its buffers are read only, and
+   * it can be queried by many threads without locking. The only shared object is the
+   * dates source of the {@link TimeGlobalEffectRemover}s, which is never modified.
+   * <p>
+   * The copy must not be trained or updated; {@link ServingSuggester} publishes copies
+   * through the {@link it.ludonet.tps.suggestion.Suggester} interface only.
+   *
+   * @return The serving copy.
+   *
+   * @throws IOException If a global effect remover doesn't support snapshots.
+   * @throws IllegalStateException If the suggester has not been trained, or if the
+   * suggester or a global effect remover has no public constructor without arguments.
+   */
+  public GlobalEffectRemoverSuggester createServingCopy() throws IOException, IllegalStateException
+   {
+    SnapshotWriter writer = new SnapshotWriter();
+    writeSnapshot(writer);
+
+    GlobalEffectRemoverSuggester copy = newInstance(getClass());
+    copy.fusedPipeline = fusedPipeline;
+    if(globalEffectsRemovers != null)
+     {
+      List<GlobalEffectRemover> removers = new ArrayList<GlobalEffectRemover>(globalEffectsRemovers.size());
+      for(GlobalEffectRemover globalEffectRemover : globalEffectsRemovers)
+       {
+        GlobalEffectRemover removerCopy = newInstance(globalEffectRemover.getClass());
+        if(globalEffectRemover instanceof TimeGlobalEffectRemover)
+         ((TimeGlobalEffectRemover)removerCopy).setDates(((TimeGlobalEffectRemover)globalEffectRemover).getDates());
+        removers.add(removerCopy);
+       }
+      copy.globalEffectsRemovers = Collections.unmodifiableList(removers);
+     }
+    copy.readSnapshot(writer.toSnapshot());
+    return copy;
+   }
+
+  private static <T> T newInstance(Class<? extends T> type) throws IllegalStateException
+   {
+    try
+     {
+      return type.newInstance();
+     }
+    catch(InstantiationException e)
+     {
+      throw new IllegalStateException("Cannot create a new " + type.getName(), e);
+     }
+    catch(IllegalAccessException e)
+     {
+      throw new IllegalStateException("Cannot create a new " + type.getName(), e);
+     }
+   }
+
+  /**
+   * Adds the trained state of this suggester, including the residuals, to the
+   * snapshot. Descendants of this class can override this method to save their
+   * own state.
+   *
+   * @param writer The snapshot writer.
+   *
+   * @throws IOException If a part of the state cannot be saved.
+   * @throws IllegalStateException If the suggester has not been trained.
+   */
+  protected void writeSnapshot(SnapshotWriter writer) throws IOException, IllegalStateException
+   {
+    if(ratingEffects == null || ratingEffects.getUsersNumber() != usersNumber)
+     throw new IllegalStateException("The suggester has not been trained");
+
+    writer.putString("suggester", getClass().getName());
+    writer.putInt("usersNumber", usersNumber);
+    writer.putInt("itemsNumber", itemsNumber);
+
+    int removersNumber = globalEffectsRemovers == null ? 0 : globalEffectsRemovers.size();
+    writer.putInt("removersNumber", removersNumber);
+    for(int r = 0; r < removersNumber; r++)
+     {
+      GlobalEffectRemover globalEffectRemover = globalEffectsRemovers.get(r);
+      if(!(globalEffectRemover instanceof SnapshotSupport))
+       throw new IOException("The global effect remover " + globalEffectRemover.getClass().getName() +
+                             " doesn't support snapshots");
+      writer.putString("remover." + r + ".class", globalEffectRemover.getClass().getName());
+      ((SnapshotSupport)globalEffectRemover).writeSnapshot(writer, "remover." + r + ".");
+     }
+
+    toCompressed(ratingEffects).writeSnapshot(writer, "ratingEffects.");
+    if(residuals != null)
+     toCompressed(residuals).writeSnapshot(writer, "residuals.");
+    pendingRatings.writeSnapshot(writer, "pendingRatings.");
+   }
+
+  /**
+   * Restores the trained state of this suggester, including the residuals, from
+   * the snapshot. Descendants of this class can override this method to restore
+   * their own state.
+   *
+   * @param snapshot The snapshot.
+   *
+   * @throws IOException If the snapshot doesn't contain a valid state for this suggester.
+   */
+  protected void readSnapshot(Snapshot snapshot) throws IOException
+   {
+    String suggester = snapshot.getString("suggester");
+    if(!suggester.equals(getClass().getName()))
+     throw new IOException("The snapshot has been written by " + suggester);
+
+    int removersNumber = snapshot.getInt("removersNumber");
+    int configured = globalEffectsRemovers == null ? 0 : globalEffectsRemovers.size();
+    if(removersNumber != configured)
+     throw new IOException("The snapshot has " + removersNumber + " global effect removers, " +
+                           configured + " are configured");
+    for(int r = 0; r < removersNumber; r++)
+     {
+      GlobalEffectRemover globalEffectRemover = globalEffectsRemovers.get(r);
+      String remover = snapshot.getString("remover." + r + ".class");
+      if(!remover.equals(globalEffectRemover.getClass().getName()) || !(globalEffectRemover instanceof SnapshotSupport))
+       throw new IOException("The global effect remover " + r + " of the snapshot is a " + remover);
+      ((SnapshotSupport)globalEffectRemover).readSnapshot(snapshot, "remover." + r + ".");
+     }
+
+    usersNumber = snapshot.getInt("usersNumber");
+    itemsNumber = snapshot.getInt("itemsNumber");
+    ratingEffects = CompressedSparseRatingSource.readSnapshot(snapshot, "ratingEffects.");
+    residuals = snapshot.contains("residuals.usersNumber") ?
+                CompressedSparseRatingSource.readSnapshot(snapshot, "residuals.") : null;
+    pendingRatings = PendingRatings.readSnapshot(snapshot, "pendingRatings.");
+   }
+
+  /**
+   * Returns the provided source if it is a {@link CompressedSparseRatingSource},
+   * or a compressed copy of it, so that it can be saved in a snapshot.
+   */
+  protected static CompressedSparseRatingSource toCompressed(RatingsSource source)
+   {
+    if(source instanceof CompressedSparseRatingSource)
+     return (CompressedSparseRatingSource)source;
+    return CompressedSparseRatingSource.copyOf(source);
+   }
+
   public double getPredictedRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException, SuggesterTrainException
   {
-   return ratingEffects.getRating(userIndex, itemIndex);
+   return getGlobalEffects(userIndex, itemIndex);
   }
+
+  public double[] getPredictedRatings(int[] userIndexes, int[] itemIndexes) throws IndexOutOfBoundsException,
+                                                                                   SuggesterTrainException
+   {
+    if(userIndexes.length != itemIndexes.length)
+     throw new IllegalArgumentException("Different numbers of users and items");
+
+    double[] predictions = new double[userIndexes.length];
+    getPredictedRatings(userIndexes, itemIndexes, predictions, 0, predictions.length);
+    return predictions;
+   }
+
+  /**
+   * Computes the predicted ratings of a batch of user-item couples, storing them in the
+   * provided array, so that large evaluations can reuse the same arrays for every batch.
+   *
+   * @param userIndexes The indexes of the users.
+   * @param itemIndexes The indexes of the items.
+   * @param predictions The array the predictions are stored in.
+   * @param from The first couple of the batch, inclusive.
+   * @param to The last couple of the batch, exclusive.
+   *
+   * @throws IndexOutOfBoundsException If a user or item index falls outside the
+   * suggester ranges.
+   * @throws SuggesterTrainException If an error occurs during the computation of
+   * the predictions.
+   */
+  public void getPredictedRatings(int[] userIndexes, int[] itemIndexes, double[] predictions, int from, int to) throws IndexOutOfBoundsException,
+                                                                                                                      SuggesterTrainException
+   {
+    getGlobalEffects(userIndexes, itemIndexes, predictions, from, to);
+   }
+
+  /**
+   * Stores in the provided array the sums of the global effects of a batch of
+   * user-item couples. The indexes are checked once, then the effects are added
+   * one remover at a time with tight loops over the batch.
+   *
+   * @param userIndexes The indexes of the users.
+   * @param itemIndexes The indexes of the items.
+   * @param effects The array the sums of the effects are stored in.
+   * @param from The first couple of the batch, inclusive.
+   * @param to The last couple of the batch, exclusive.
+   *
+   * @throws IndexOutOfBoundsException If a user or item index falls outside the
+   * suggester ranges.
+   */
+  protected void getGlobalEffects(int[] userIndexes, int[] itemIndexes, double[] effects, int from, int to) throws IndexOutOfBoundsException
+   {
+    if(from < 0 || from > to || to > userIndexes.length || to > itemIndexes.length || to > effects.length)
+     throw new IndexOutOfBoundsException("Invalid batch [" + from + ", " + to + ")");
+
+    for(int k = from; k < to; k++)
+     {
+      int userIndex = userIndexes[k];
+      int itemIndex = itemIndexes[k];
+      if(userIndex < 0 || userIndex >= usersNumber || itemIndex < 0 || itemIndex >= itemsNumber)
+       throw new IndexOutOfBoundsException("Invalid indexes (" + userIndex + ", " + itemIndex + ")");
+     }
+
+    Arrays.fill(effects, from, to, 0.0);
+    if(globalEffectsRemovers != null)
+     {
+      for(GlobalEffectRemover globalEffectRemover : globalEffectsRemovers)
+       {
+        if(globalEffectRemover instanceof EstimationShrinkGlobalEffectRemover)
+         ((EstimationShrinkGlobalEffectRemover)globalEffectRemover).addEffects(userIndexes, itemIndexes, effects, from, to);
+        else
+         {
+          for(int k = from; k < to; k++)
+           effects[k] += globalEffectRemover.getEffect(userIndexes[k], itemIndexes[k]);
+         }
+       }
+     }
+   }
+
+  /**
+   * Returns the sum of the global effects estimated for the couple user-item
+   * by the global effects removers. The effects are available also for the
+   * couples that weren't rated in the training data.
+   *
+   * @param userIndex The index of the user.
+   * @param itemIndex The index of the item.
+   *
+   * @return The sum of the global effects.
+   *
+   * @throws IndexOutOfBoundsException If the user or item index falls outside the
+   * suggester ranges.
+   */
+  protected double getGlobalEffects(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    if(userIndex < 0 || userIndex >= usersNumber || itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid indexes (" + userIndex + ", " + itemIndex + ")");
+
+    double ret = 0.0;
+    if(globalEffectsRemovers != null)
+     {
+      for(GlobalEffectRemover globalEffectRemover : globalEffectsRemovers)
+       ret += globalEffectRemover.getEffect(userIndex, itemIndex);
+     }
+    return ret;
+   }
+
+  /**
+   * The state of an incremental update. The visitors are reused for every
+   * rating, so that no object is allocated for each walked rating.
+   */
+  private class OnlineUpdate
+   {
+    final MainGlobalEffectRemover[] removers;
+    final Finder finder;
+    final Propagation propagation;
+    final Refresh refresh;
+
+    OnlineUpdate(MainGlobalEffectRemover[] removers)
+     {
+      this.removers = removers;
+      finder = new Finder();
+      propagation = new Propagation();
+      refresh = new Refresh();
+     }
+
+    void apply(int userIndex, int itemIndex, double rating)
+     {
+      // the raw rating of a stored couple is its residual plus its effects
+      finder.itemIndex = itemIndex;
+      finder.found = false;
+      residuals.walkUserRatings(userIndex, finder);
+      if(finder.found)
+       updateStatistics(userIndex, itemIndex, finder.value + ratingEffects.getRating(userIndex, itemIndex), -1);
+      else
+       {
+        // a new couple updated before has its raw rating kept aside
+        Double pending = pendingRatings.get(userIndex, itemIndex);
+        if(pending != null)
+         updateStatistics(userIndex, itemIndex, pending, -1);
+       }
+      updateStatistics(userIndex, itemIndex, rating, 1);
+
+      // a stored couple gets its new rating during the row walk
+      refresh.updatedItem = finder.found ? itemIndex : -1;
+      refresh.updatedRating = rating;
+      refresh.userIndex = userIndex;
+      residuals.walkUserRatings(userIndex, refresh);
+      refresh.userIndex = -1;
+      refresh.itemIndex = itemIndex;
+      residuals.walkItemRatings(itemIndex, refresh);
+      refresh.itemIndex = -1;
+
+      if(finder.found)
+       return;
+      if(residuals instanceof CompactRatingsSource || ratingEffects instanceof CompactRatingsSource)
+       pendingRatings.put(userIndex, itemIndex, rating);
+      else
+       {
+        double effects = getGlobalEffects(userIndex, itemIndex);
+        ratingEffects.setRating(userIndex, itemIndex, effects);
+        residuals.setRating(userIndex, itemIndex, rating - effects);
+       }
+     }
+
+    /**
+     * Adds (or removes) a rating to the statistics of the removers. The input of
+     * each remover is the rating minus the effects of the previous ones.
+     */
+    void updateStatistics(int userIndex, int itemIndex, double rating, int countChange)
+     {
+      double input = rating;
+      for(int r = 0; r < removers.length; r++)
+       {
+        MainGlobalEffectRemover remover = removers[r];
+        boolean users = remover.getAxis() == EstimationShrinkGlobalEffectRemover.USERS_AXIS;
+        int unit = users ? userIndex : itemIndex;
+        // a removed rating leaves with the effect it has been added with, a new
+        // one sees the effect that includes it, like the other ratings of the unit
+        double effect = remover.getEffect(userIndex, itemIndex);
+        double change = remover.updateStatistics(unit, countChange * input, countChange);
+        input -= countChange < 0 ? effect : effect + change;
+
+        // the other ratings of the unit see a different input in the following removers
+        if(change != 0.0 && r + 1 < removers.length)
+         {
+          propagation.remover = r;
+          propagation.users = users;
+          propagation.unit = unit;
+          propagation.skippedIndex = users ? itemIndex : userIndex;
+          propagation.change = change;
+          if(users)
+           {
+            residuals.walkUserRatings(unit, propagation);
+            pendingRatings.walkUserRatings(unit, propagation);
+           }
+          else
+           {
+            residuals.walkItemRatings(unit, propagation);
+            pendingRatings.walkItemRatings(unit, propagation);
+           }
+         }
+       }
+     }
+
+    private class Finder implements RatingVisitor
+     {
+      int itemIndex;
+      boolean found;
+      double value;
+
+      public void visit(int index, double value)
+       {
+        if(index == itemIndex)
+         {
+          found = true;
+          this.value = value;
+         }
+       }
+     }
+
+    private class Propagation implements RatingVisitor
+     {
+      int remover;
+      boolean users;
+      int unit;
+      int skippedIndex;
+      double change;
+
+      public void visit(int index, double value)
+       {
+        if(index == skippedIndex)
+         return;
+
+        int userIndex = users ? unit : index;
+        int itemIndex = users ? index : unit;
+        for(int r = remover + 1; r < removers.length; r++)
+         {
+          MainGlobalEffectRemover next = removers[r];
+          int nextUnit = next.getAxis() == EstimationShrinkGlobalEffectRemover.USERS_AXIS ? userIndex : itemIndex;
+          next.updateStatistics(nextUnit, -change, 0);
+         }
+       }
+     }
+
+    /**
+     * Computes again the effects and the residual of each visited rating.
+     */
+    private class Refresh implements RatingChangingVisitor
+     {
+      int userIndex = -1;
+      int itemIndex = -1;
+      int updatedItem = -1;
+      double updatedRating;
+
+      public double visit(int index, double value)
+       {
+        int user = userIndex >= 0 ? userIndex : index;
+        int item = itemIndex >= 0 ? itemIndex : index;
+        double rating = userIndex >= 0 && item == updatedItem ? updatedRating : value + ratingEffects.getRating(user, item);
+        double effects = getGlobalEffects(user, item);
+        ratingEffects.setRating(user, item, effects);
+        return rating - effects;
+       }
+     }
+   }
+
+  /**
+   * The raw ratings of the new couples updated since the training, when the
+   * residuals cannot store them, indexed both by user and by item.
+   */
+  private static class PendingRatings
+   {
+    private final Map<Integer, Map<Integer, Double>> byUser = new HashMap<Integer, Map<Integer, Double>>();
+    private final Map<Integer, Map<Integer, Double>> byItem = new HashMap<Integer, Map<Integer, Double>>();
+    private int size;
+
+    Double get(int userIndex, int itemIndex)
+     {
+      Map<Integer, Double> ratings = byUser.get(userIndex);
+      return ratings == null ? null : ratings.get(itemIndex);
+     }
+
+    void put(int userIndex, int itemIndex, double rating)
+     {
+      if(put(byUser, userIndex, itemIndex, rating))
+       size++;
+      put(byItem, itemIndex, userIndex, rating);
+     }
+
+    void walkUserRatings(int userIndex, RatingVisitor visitor)
+     {
+      walk(byUser.get(userIndex), visitor);
+     }
+
+    void walkItemRatings(int itemIndex, RatingVisitor visitor)
+     {
+      walk(byItem.get(itemIndex), visitor);
+     }
+
+    void writeSnapshot(SnapshotWriter writer, String prefix)
+     {
+      if(size == 0)
+       return;
+
+      int[] userIndexes = new int[size];
+      int[] itemIndexes = new int[size];
+      double[] ratings = new double[size];
+      int k = 0;
+      for(Map.Entry<Integer, Map<Integer, Double>> user : byUser.entrySet())
+       {
+        for(Map.Entry<Integer, Double> rating : user.getValue().entrySet())
+         {
+          userIndexes[k] = user.getKey();
+          itemIndexes[k] = rating.getKey();
+          ratings[k] = rating.getValue();
+          k++;
+         }
+       }
+      writer.putInts(prefix + "users", userIndexes);
+      writer.putInts(prefix + "items", itemIndexes);
+      writer.putDoubles(prefix + "ratings", ratings);
+     }
+
+    static PendingRatings readSnapshot(Snapshot snapshot, String prefix) throws IOException
+     {
+      PendingRatings pending = new PendingRatings();
+      if(!snapshot.contains(prefix + "users"))
+       return pending;
+
+      IntBuffer userIndexes = snapshot.getInts(prefix + "users");
+      IntBuffer itemIndexes = snapshot.getInts(prefix + "items");
+      DoubleBuffer ratings = snapshot.getDoubles(prefix + "ratings");
+      if(itemIndexes.capacity() != userIndexes.capacity() || ratings.capacity() != userIndexes.capacity())
+       throw new IOException("Inconsistent pending ratings " + prefix + " in the snapshot");
+      for(int k = 0; k < userIndexes.capacity(); k++)
+       pending.put(userIndexes.get(k), itemIndexes.get(k), ratings.get(k));
+      return pending;
+     }
+
+    private static boolean put(Map<Integer, Map<Integer, Double>> index, int unit, int other, double rating)
+     {
+      Map<Integer, Double> ratings = index.get(unit);
+      if(ratings == null)
+       {
+        ratings = new HashMap<Integer, Double>();
+        index.put(unit, ratings);
+       }
+      return ratings.put(other, rating) == null;
+     }
+
+    private static void walk(Map<Integer, Double> ratings, RatingVisitor visitor)
+     {
+      if(ratings == null)
+       return;
+      for(Map.Entry<Integer, Double> rating : ratings.entrySet())
+       visitor.visit(rating.getKey(), rating.getValue());
+     }
+   }
  }
@@ -0,0 +1,264 @@
+package it.ludonet.tps.suggestion.impl;
+
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.factorization.LatentFactors;
+import it.ludonet.tps.suggestion.factorization.LatentFactorsBuilder;
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.util.BoundedMinHeap;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * This suggester is a latent factor model trained on the residuals of the global
+ * effects removal. Each user and each item is described by a vector of <code>F</code>
+ * factors learned by a {@link LatentFactorsBuilder}, and predictions add to the global
+ * effects the dot product of the factors of the user and of the item.
+ * <p>
+ * The residuals are only used after the training to exclude the items rated by
+ * a user from its suggestions.
+ */
+public class MatrixFactorizationSuggester extends GlobalEffectRemoverSuggester
+ {
+
+  protected static final int DEFAULT_ITEMS_NUMBER = 5;
+
+  protected LatentFactorsBuilder factorsBuilder;
+  protected LatentFactors factors;
+
+  public MatrixFactorizationSuggester()
+   {
+    factorsBuilder = new LatentFactorsBuilder();
+   }
+
+  public LatentFactorsBuilder getFactorsBuilder()
+   {
+    return factorsBuilder;
+   }
+
+  public void setFactorsBuilder(LatentFactorsBuilder factorsBuilder)
+   {
+    this.factorsBuilder = factorsBuilder;
+   }
+
+  public LatentFactors getFactors()
+   {
+    return factors;
+   }
+
+  /**
+   * This method will train the suggester using the data
+   * provided in the training ratings.
+   *
+   * @param trainingRatings The training ratings.
+   *
+   * @throws SuggesterTrainException If an error occurs while
+   * training the suggester.
+   */
+  @Override
+  public void train(RatingsSource trainingRatings) throws SuggesterTrainException
+   {
+    super.train(trainingRatings);
+
+    factors = factorsBuilder.build(residuals);
+   }
+
+  /**
+   * Adds the latent factors to the snapshot of the global effects and of the residuals.
+   *
+   * @param writer The snapshot writer.
+   *
+   * @throws IOException If a part of the state cannot be saved.
+   * @throws IllegalStateException If the suggester has not been trained.
+   */
+  @Override
+  protected void writeSnapshot(SnapshotWriter writer) throws IOException, IllegalStateException
+   {
+    if(factors == null)
+     throw new IllegalStateException("The suggester has not been trained");
+
+    super.writeSnapshot(writer);
+    factors.writeSnapshot(writer, "factors.");
+   }
+
+  /**
+   * Restores the latent factors together with the global effects and the residuals.
+   *
+   * @param snapshot The snapshot.
+   *
+   * @throws IOException If the snapshot doesn't contain a valid state for this suggester.
+   */
+  @Override
+  protected void readSnapshot(Snapshot snapshot) throws IOException
+   {
+    super.readSnapshot(snapshot);
+    factors = LatentFactors.readSnapshot(snapshot, "factors.");
+   }
+
+  /**
+   * This method calculates and returns the predicted rating that an user
+   * will make on an item.
+   *
+   * @param userIndex The index of the user whose rating must be predicted.
+   * @param itemIndex The index of the item on which the rating must be predicted.
+   *
+   * @return The predicted rating.
+   *
+   * @throws IndexOutOfBoundsException If the user or item index falls outside the
+   * suggester ranges.
+   * @throws SuggesterTrainException If the suggester has not been trained.
+   */
+  public double getPredictedRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException,
+                                                                        SuggesterTrainException
+   {
+    double val = super.getPredictedRating(userIndex, itemIndex);
+
+    if(factors == null)
+     throw new SuggesterTrainException("The suggester has not been trained");
+
+    return val + factors.predict(userIndex, itemIndex);
+   }
+
+  /**
+   * Computes the predicted ratings of a batch of user-item couples, adding the
+   * factors scores to the global effects of the whole batch.
+   *
+   * @param userIndexes The indexes of the users.
+   * @param itemIndexes The indexes of the items.
+   * @param predictions The array the predictions are stored in.
+   * @param from The first couple of the batch, inclusive.
+   * @param to The last couple of the batch, exclusive.
+   *
+   * @throws IndexOutOfBoundsException If a user or item index falls outside the
+   * suggester ranges.
+   * @throws SuggesterTrainException If the suggester has not been trained.
+   */
+  public void getPredictedRatings(int[] userIndexes, int[] itemIndexes, double[] predictions, int from, int to) throws IndexOutOfBoundsException,
+                                                                                                                      SuggesterTrainException
+   {
+    if(factors == null)
+     throw new SuggesterTrainException("The suggester has not been trained");
+
+    super.getPredictedRatings(userIndexes, itemIndexes, predictions, from, to);
+    for(int k = from; k < to; k++)
+     predictions[k] += factors.predict(userIndexes[k], itemIndexes[k]);
+   }
+
+  /**
+   * This method will predict the items an user will like the most. The number of
+   * returned items can be specified.
+   *
+   * @param userIndex The index of the user whose favourite items will be computed.
+   * @param maxNumberOfItems The maximum number of items to return. This parameters can be
+   * <code>null</code>and in this case a default number of 5 items will be returned.
+   * <p>
+   * All the items are scored, and the best ones are selected with a bounded heap. The
+   * items rated by the user are excluded.
+   *
+   * @return A <code>{@link List}&lt;{@link Integer}&gt;</code> with the item indexes that the
+   * specified user will like the most, ordered from the most liked to the less liked one.
+   *
+   * @throws IndexOutOfBoundsException If the user index falls outside the suggester range.
+   * @throws SuggesterTrainException If the suggester has not been trained.
+   */
+  public List<Integer> getSuggestedItems(int userIndex, Integer maxNumberOfItems) throws IndexOutOfBoundsException,
+                                                                                         SuggesterTrainException
+   {
+    if(factors == null)
+     throw new SuggesterTrainException("The suggester has not been trained");
+    if(userIndex < 0 || userIndex >= usersNumber)
+     throw new IndexOutOfBoundsException("Invalid user index " + userIndex);
+
+    int max = maxNumberOfItems == null ? DEFAULT_ITEMS_NUMBER : maxNumberOfItems;
+    if(max <= 0)
+     return new ArrayList<Integer>(0);
+    // no more than all the items can be returned
+    max = Math.min(max, itemsNumber);
+
+    final boolean[] rated = new boolean[itemsNumber];
+    if(residuals != null)
+     {
+      residuals.walkUserRatings(userIndex, new RatingVisitor()
+       {
+        public void visit(int itemIndex, double value)
+         {
+          rated[itemIndex] = true;
+         }
+       });
+     }
+
+    int[] userIndexes = new int[itemsNumber];
+    int[] itemIndexes = new int[itemsNumber];
+    for(int itemIndex = 0; itemIndex < itemsNumber; itemIndex++)
+     {
+      userIndexes[itemIndex] = userIndex;
+      itemIndexes[itemIndex] = itemIndex;
+     }
+    double[] predictions = new double[itemsNumber];
+    getPredictedRatings(userIndexes, itemIndexes, predictions, 0, itemsNumber);
+
+    BoundedMinHeap heap = new BoundedMinHeap(max);
+    for(int itemIndex = 0; itemIndex < itemsNumber; itemIndex++)
+     {
+      if(!rated[itemIndex])
+       heap.offer(itemIndex, predictions[itemIndex]);
+     }
+    return drain(heap, max);
+   }
+
+  /**
+   * This method will calculate the items that are similar to the provided one. The number of
+   * returned items can be specified.
+   *
+   * @param itemIndex The index of the item whose similar ones will be computed.
+   * @param maxNumberOfItems The maximum number of items to return. This parameters can be
+   * <code>null</code> and in this case a default number of 5 items will be returned.
+   * The similarity of two items is the cosine between their factors; only the items
+   * with a positive similarity are returned.
+   *
+   * @return A <code>{@link List}&lt;{@link Integer}&gt;</code> with the item indexes that are
+   * more similar to the provided one, ordered from the most similar to the less one.
+   *
+   * @throws IndexOutOfBoundsException If the item index falls outside the suggester range.
+   * @throws SuggesterTrainException If the suggester has not been trained.
+   */
+  public List<Integer> getSimilarItems(int itemIndex, Integer maxNumberOfItems) throws IndexOutOfBoundsException,
+                                                                                       SuggesterTrainException
+   {
+    if(factors == null)
+     throw new SuggesterTrainException("The suggester has not been trained");
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+
+    int max = maxNumberOfItems == null ? DEFAULT_ITEMS_NUMBER : maxNumberOfItems;
+    if(max <= 0)
+     return new ArrayList<Integer>(0);
+    // no more than all the other items can be returned
+    max = Math.min(max, itemsNumber - 1);
+
+    BoundedMinHeap heap = new BoundedMinHeap(max);
+    for(int otherIndex = 0; otherIndex < itemsNumber; otherIndex++)
+     {
+      if(otherIndex == itemIndex)
+       continue;
+      double similarity = factors.similarity(itemIndex, otherIndex);
+      if(similarity > 0.0)
+       heap.offer(otherIndex, similarity);
+     }
+    return drain(heap, max);
+   }
+
+  private static List<Integer> drain(BoundedMinHeap heap, int max)
+   {
+    int[] selected = new int[max];
+    int count = heap.drainSorted(selected, null, 0);
+    List<Integer> ret = new ArrayList<Integer>(count);
+    for(int s = 0; s < count; s++)
+     ret.add(selected[s]);
+    return ret;
+   }
+
+ }
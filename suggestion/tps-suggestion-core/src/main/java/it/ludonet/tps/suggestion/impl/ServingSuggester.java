@@ -0,0 +1,138 @@
+package it.ludonet.tps.suggestion.impl;
+
+import it.ludonet.tps.suggestion.Suggester;
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * This suggester serves the predictions of the last published trained suggester
+ * to many threads, without locking. Publishing a suggester stores a
+ * {@link GlobalEffectRemoverSuggester#createServingCopy() serving copy} of it in
+ * a volatile field, so the new model replaces the previous one atomically: each
+ * call reads the field once and is answered entirely by the model it has read,
+ * and the calls in progress while a model is published complete on the previous one.
+ * <p>
+ * The published suggester can be trained again or updated while the copy is being
+ * served, and published again when it's ready:
+ * <pre>
+ * ServingSuggester serving = new ServingSuggester(suggester);
+ * ...
+ * suggester.train(newRatings);
+ * serving.publish(suggester);
+ * </pre>
+ * This suggester cannot be trained itself.
+ */
+public class ServingSuggester implements Suggester
+ {
+
+  private volatile GlobalEffectRemoverSuggester current;
+
+  public ServingSuggester()
+   {
+   }
+
+  /**
+   * Creates a serving suggester and publishes the provided trained suggester.
+   *
+   * @param trained The trained suggester.
+   *
+   * @throws IOException If the suggester cannot be copied.
+   */
+  public ServingSuggester(GlobalEffectRemoverSuggester trained) throws IOException
+   {
+    publish(trained);
+   }
+
+  /**
+   * Replaces the served model with a copy of the provided trained suggester.
+   * The copy is created in the calling thread, while the previous model is still
+   * served.
+   *
+   * @param trained The trained suggester.
+   *
+   * @throws IOException If the suggester cannot be copied.
+   * @throws IllegalStateException If the suggester has not been trained.
+   */
+  public void publish(GlobalEffectRemoverSuggester trained) throws IOException, IllegalStateException
+   {
+    current = trained.createServingCopy();
+   }
+
+  /**
+   * Returns <code>true</code> if a model has been published.
+   */
+  public boolean isAvailable()
+   {
+    return current != null;
+   }
+
+  public int getUsersNumber()
+   {
+    GlobalEffectRemoverSuggester model = current;
+    return model == null ? 0 : model.getUsersNumber();
+   }
+
+  public int getItemsNumber()
+   {
+    GlobalEffectRemoverSuggester model = current;
+    return model == null ? 0 : model.getItemsNumber();
+   }
+
+  /**
+   * A serving suggester cannot be trained: train a suggester and
+   * {@link #publish(GlobalEffectRemoverSuggester) publish} it instead.
+   *
+   * @param trainingRatings The training ratings.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  public void train(RatingsSource trainingRatings) throws UnsupportedOperationException
+   {
+    throw new UnsupportedOperationException("A serving suggester cannot be trained, publish a trained suggester instead");
+   }
+
+  public double getPredictedRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException,
+                                                                        SuggesterTrainException
+   {
+    return getModel().getPredictedRating(userIndex, itemIndex);
+   }
+
+  public double[] getPredictedRatings(int[] userIndexes, int[] itemIndexes) throws IndexOutOfBoundsException,
+                                                                                   SuggesterTrainException
+   {
+    return getModel().getPredictedRatings(userIndexes, itemIndexes);
+   }
+
+  /**
+   * See {@link GlobalEffectRemoverSuggester#getPredictedRatings(int[], int[], double[], int, int)}.
+   */
+  public void getPredictedRatings(int[] userIndexes, int[] itemIndexes, double[] predictions, int from, int to) throws IndexOutOfBoundsException,
+                                                                                                                      SuggesterTrainException
+   {
+    getModel().getPredictedRatings(userIndexes, itemIndexes, predictions, from, to);
+   }
+
+  public List<Integer> getSuggestedItems(int userIndex, Integer maxNumberOfItems) throws IndexOutOfBoundsException,
+                                                                                         SuggesterTrainException
+   {
+    return getModel().getSuggestedItems(userIndex, maxNumberOfItems);
+   }
+
+  public List<Integer> getSimilarItems(int itemIndex, Integer maxNumberOfItems) throws IndexOutOfBoundsException,
+                                                                                       SuggesterTrainException
+   {
+    return getModel().getSimilarItems(itemIndex, maxNumberOfItems);
+   }
+
+  private GlobalEffectRemoverSuggester getModel() throws SuggesterTrainException
+   {
+    GlobalEffectRemoverSuggester model = current;
+    if(model == null)
+     throw new SuggesterTrainException("No trained suggester has been published");
+    return model;
+   }
+
+ }
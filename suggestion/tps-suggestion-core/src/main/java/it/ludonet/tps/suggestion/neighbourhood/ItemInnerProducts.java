@@ -0,0 +1,187 @@
+package it.ludonet.tps.suggestion.neighbourhood;
+
+import it.ludonet.tps.suggestion.concurrent.ParallelRangeExecutor;
+import it.ludonet.tps.suggestion.concurrent.RangeTask;
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The shrunk inner products between the residuals of the items, shared by the
+ * neighbourhood and similar items builders.
+ * <p>
+ * The inner product between the residuals of two items <code>j</code> and
+ * <code>k</code> is estimated on the <code>n<sub>jk</sub></code> users that
+ * rated both of them and shrunk towards zero:
+ * <code>&acirc;<sub>jk</sub> = &Sigma;<sub>u</sub> r<sub>uj</sub>r<sub>uk</sub> / (n<sub>jk</sub> + &beta;)</code>.
+ * The diagonal entries are shrunk towards the average squared residual.
+ */
+class ItemInnerProducts
+ {
+
+  final RatingsSource residuals;
+  final double shrinkage;
+  final double[] diagonal;
+  final double averageSquare;
+
+  ItemInnerProducts(RatingsSource residuals, double shrinkage)
+   {
+    this.residuals = residuals;
+    this.shrinkage = shrinkage;
+
+    int itemsNumber = residuals.getItemsNumber();
+    diagonal = new double[itemsNumber];
+    int[] supports = new int[itemsNumber];
+
+    SquaresSum squares = new SquaresSum();
+    double total = 0.0;
+    long totalSupport = 0;
+    for(int j = 0; j < itemsNumber; j++)
+     {
+      squares.sum = 0.0;
+      residuals.walkItemRatings(j, squares);
+      diagonal[j] = squares.sum;
+      supports[j] = residuals.getItemSupport(j);
+      total += squares.sum;
+      totalSupport += supports[j];
+     }
+
+    averageSquare = totalSupport == 0 ? 1.0 : total / totalSupport;
+    for(int j = 0; j < itemsNumber; j++)
+     diagonal[j] = (diagonal[j] + shrinkage * averageSquare) / (supports[j] + shrinkage);
+   }
+
+  /**
+   * Reuses a diagonal computed previously, for example to refresh only some items.
+   */
+  ItemInnerProducts(RatingsSource residuals, double shrinkage, double[] diagonal, double averageSquare)
+   {
+    this.residuals = residuals;
+    this.shrinkage = shrinkage;
+    this.diagonal = diagonal;
+    this.averageSquare = averageSquare;
+   }
+
+  /**
+   * Recomputes the diagonal entry of an item whose residuals changed, keeping
+   * the average squared residual unchanged.
+   */
+  void refreshDiagonal(int itemIndex)
+   {
+    SquaresSum squares = new SquaresSum();
+    residuals.walkItemRatings(itemIndex, squares);
+    diagonal[itemIndex] = (squares.sum + shrinkage * averageSquare) /
+                          (residuals.getItemSupport(itemIndex) + shrinkage);
+   }
+
+  /**
+   * Normalizes a shrunk inner product to a similarity.
+   */
+  double similarity(int i, int j, double product)
+   {
+    return product / Math.sqrt(diagonal[i] * diagonal[j]);
+   }
+
+  /**
+   * Runs the task on <code>parallelism</code> threads, converting the failures
+   * to {@link SuggesterTrainException}s.
+   */
+  static void execute(int parallelism, int size, RangeTask task) throws SuggesterTrainException
+   {
+    ParallelRangeExecutor executor = ParallelRangeExecutor.getShared(Math.max(1, parallelism));
+    try
+     {
+      executor.execute(size, task);
+     }
+    catch(ExecutionException e)
+     {
+      throw new SuggesterTrainException("Cannot compute the item inner products", ParallelRangeExecutor.getCheckedCause(e));
+     }
+    catch(InterruptedException e)
+     {
+      Thread.currentThread().interrupt();
+      throw new SuggesterTrainException("Interrupted while computing the item inner products", e);
+     }
+   }
+
+  private static class SquaresSum implements RatingVisitor
+   {
+    double sum;
+
+    public void visit(int userIndex, double value)
+     {
+      sum += value * value;
+     }
+   }
+
+  /**
+   * Accumulates the inner products between the residuals of an item and the ones
+   * of all the other items, walking the ratings of the users who rated the item.
+   * An accumulator must not be used by more than one thread at a time.
+   */
+  class Accumulator implements RatingVisitor
+   {
+    final double[] products;
+    final int[] supports;
+    final int[] touched;
+    int touchedNumber;
+    final RowVisitor rowVisitor;
+
+    Accumulator()
+     {
+      int itemsNumber = residuals.getItemsNumber();
+      products = new double[itemsNumber];
+      supports = new int[itemsNumber];
+      touched = new int[itemsNumber];
+      rowVisitor = new RowVisitor();
+     }
+
+    void accumulate(int itemIndex)
+     {
+      rowVisitor.itemIndex = itemIndex;
+      residuals.walkItemRatings(itemIndex, this);
+     }
+
+    public void visit(int userIndex, double value)
+     {
+      rowVisitor.factor = value;
+      residuals.walkUserRatings(userIndex, rowVisitor);
+     }
+
+    /**
+     * Returns the shrunk inner product with the provided item.
+     */
+    double get(int itemIndex)
+     {
+      return products[itemIndex] / (supports[itemIndex] + shrinkage);
+     }
+
+    void reset()
+     {
+      for(int t = 0; t < touchedNumber; t++)
+       {
+        int j = touched[t];
+        products[j] = 0.0;
+        supports[j] = 0;
+       }
+      touchedNumber = 0;
+     }
+
+    private class RowVisitor implements RatingVisitor
+     {
+      int itemIndex;
+      double factor;
+
+      public void visit(int otherIndex, double value)
+       {
+        if(otherIndex == itemIndex)
+         return;
+        if(supports[otherIndex]++ == 0)
+         touched[touchedNumber++] = otherIndex;
+        products[otherIndex] += factor * value;
+       }
+     }
+   }
+ }
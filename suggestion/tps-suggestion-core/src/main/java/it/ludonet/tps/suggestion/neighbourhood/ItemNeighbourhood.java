@@ -0,0 +1,333 @@
+package it.ludonet.tps.suggestion.neighbourhood;
+
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.source.impl.CompactRatingsSource;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * This class stores, for each item, the list of its most similar items
+ * (its neighbours) together with the statistics needed to compute the
+ * neighbourhood interpolation weights of Bell and Koren at prediction time:
+ * <ul>
+ * <li>the shrunk inner products <code>&acirc;<sub>ij</sub></code> between the
+ * residuals of the item and the ones of each neighbour;</li>
+ * <li>the <code>K &times; K</code> matrix of the shrunk inner products
+ * <code>&acirc;<sub>jk</sub></code> between the neighbours.</li>
+ * </ul>
+ * All the data is stored in flat primitive buffers, indexed by
+ * <code>item * K + neighbour</code>. Instances are built by an
+ * {@link ItemNeighbourhoodBuilder}, or read from a snapshot by
+ * {@link #readSnapshot(Snapshot, String)}.
+ */
+public class ItemNeighbourhood
+ {
+
+  protected final int itemsNumber;
+  protected final int neighboursNumber;
+
+  // neighbours of each item, sorted by decreasing similarity and
+  // padded with -1 when an item has less than K neighbours
+  protected final IntBuffer neighbours;
+  protected final FloatBuffer similarities;
+  // shrunk inner products between each item and its neighbours
+  protected final FloatBuffer targets;
+  // for each item, the K x K shrunk inner products between its neighbours
+  protected final FloatBuffer interpolation;
+
+  // reverse index: the positions in the neighbours buffer where item j
+  // appears are stored in [reversePointers[j], reversePointers[j + 1])
+  protected IntBuffer reversePointers;
+  protected IntBuffer reverseSlots;
+
+  protected ItemNeighbourhood(int itemsNumber, int neighboursNumber)
+   {
+    this.itemsNumber = itemsNumber;
+    this.neighboursNumber = neighboursNumber;
+
+    int size = itemsNumber * neighboursNumber;
+    int[] emptyNeighbours = new int[size];
+    Arrays.fill(emptyNeighbours, -1);
+    neighbours = IntBuffer.wrap(emptyNeighbours);
+    similarities = FloatBuffer.wrap(new float[size]);
+    targets = FloatBuffer.wrap(new float[size]);
+    interpolation = FloatBuffer.wrap(new float[size * neighboursNumber]);
+   }
+
+  private ItemNeighbourhood(int itemsNumber, int neighboursNumber, IntBuffer neighbours, FloatBuffer similarities,
+                            FloatBuffer targets, FloatBuffer interpolation)
+   {
+    this.itemsNumber = itemsNumber;
+    this.neighboursNumber = neighboursNumber;
+    this.neighbours = neighbours;
+    this.similarities = similarities;
+    this.targets = targets;
+    this.interpolation = interpolation;
+   }
+
+  public int getItemsNumber()
+   {
+    return itemsNumber;
+   }
+
+  /**
+   * Returns the maximum number of neighbours stored for each item.
+   *
+   * @return The maximum number of neighbours stored for each item.
+   */
+  public int getNeighboursNumber()
+   {
+    return neighboursNumber;
+   }
+
+  /**
+   * Returns the number of items that have the provided item among their neighbours.
+   *
+   * @param itemIndex The 0-based item index.
+   *
+   * @return The number of items that have the provided item among their neighbours.
+   *
+   * @throws IndexOutOfBoundsException If the item index is not valid.
+   */
+  public int getReverseNeighboursNumber(int itemIndex) throws IndexOutOfBoundsException
+   {
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+
+    return reversePointers.get(itemIndex + 1) - reversePointers.get(itemIndex);
+   }
+
+  /**
+   * Returns one of the items that have the provided item among their neighbours.
+   *
+   * @param itemIndex The 0-based item index.
+   * @param position The position of the returned item, between 0 and
+   * <code>{@link #getReverseNeighboursNumber(int)} - 1</code>.
+   *
+   * @return The index of the item.
+   */
+  public int getReverseNeighbour(int itemIndex, int position)
+   {
+    return reverseSlots.get(reversePointers.get(itemIndex) + position) / neighboursNumber;
+   }
+
+  /**
+   * Computes the neighbourhood interpolation of the residual rating of a user
+   * on an item, using the residuals of the user on the neighbours of the item.
+   * The interpolation weights are obtained by solving the non-negative
+   * quadratic problem restricted to the neighbours rated by the user. With a
+   * {@link CompactRatingsSource} the rated neighbours are the stored couples, so
+   * a residual of <code>0.0</code> is used as any other; with the other sources
+   * a residual of <code>0.0</code> can't be told apart from a missing rating.
+   *
+   * @param residuals The residuals the neighbourhood has been built from.
+   * @param userIndex The 0-based user index.
+   * @param itemIndex The 0-based item index.
+   * @param workspace The work arrays used for the computation.
+   *
+   * @return The interpolated residual, or <code>0.0</code> if the user
+   * didn't rate any neighbour of the item.
+   *
+   * @throws IndexOutOfBoundsException If the user or item index falls outside
+   * the residuals ranges.
+   */
+  public double interpolate(RatingsSource residuals, int userIndex, int itemIndex, Workspace workspace) throws IndexOutOfBoundsException
+   {
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+
+    int k = neighboursNumber;
+    int base = itemIndex * k;
+    int[] slots = workspace.slots;
+    double[] ratings = workspace.ratings;
+    CompactRatingsSource compact = residuals instanceof CompactRatingsSource ? (CompactRatingsSource)residuals : null;
+
+    int n = 0;
+    for(int s = 0; s < k; s++)
+     {
+      int neighbour = neighbours.get(base + s);
+      if(neighbour < 0)
+       break;
+      if(compact != null && !compact.containsRating(userIndex, neighbour))
+       continue;
+      double rating = residuals.getRating(userIndex, neighbour);
+      if(compact != null || rating != 0.0)
+       {
+        slots[n] = s;
+        ratings[n] = rating;
+        n++;
+       }
+     }
+    return solve(base, n, workspace);
+   }
+
+  /**
+   * Computes the neighbourhood interpolation of the residual rating of a user
+   * on an item, like {@link #interpolate(RatingsSource, int, int, Workspace)}, reading
+   * the residuals of the user from a dense array indexed by item. Predicting many items
+   * for the same user this way avoids looking up each residual in the source.
+   *
+   * @param userResiduals The residuals of the user, indexed by item, with <code>NaN</code>
+   * for the items the user didn't rate.
+   * @param itemIndex The 0-based item index.
+   * @param workspace The work arrays used for the computation.
+   *
+   * @return The interpolated residual, or <code>0.0</code> if the user
+   * didn't rate any neighbour of the item.
+   *
+   * @throws IndexOutOfBoundsException If the item index falls outside the
+   * neighbourhood range.
+   */
+  public double interpolate(double[] userResiduals, int itemIndex, Workspace workspace) throws IndexOutOfBoundsException
+   {
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+
+    int k = neighboursNumber;
+    int base = itemIndex * k;
+    int[] slots = workspace.slots;
+    double[] ratings = workspace.ratings;
+
+    int n = 0;
+    for(int s = 0; s < k; s++)
+     {
+      int neighbour = neighbours.get(base + s);
+      if(neighbour < 0)
+       break;
+      double rating = userResiduals[neighbour];
+      if(!Double.isNaN(rating))
+       {
+        slots[n] = s;
+        ratings[n] = rating;
+        n++;
+       }
+     }
+
+    return solve(base, n, workspace);
+   }
+
+  /**
+   * Solves the interpolation problem restricted to the <code>n</code> neighbours
+   * collected in the workspace.
+   */
+  private double solve(int base, int n, Workspace workspace)
+   {
+    if(n == 0)
+     return 0.0;
+
+    int k = neighboursNumber;
+    int[] slots = workspace.slots;
+    double[] ratings = workspace.ratings;
+    double[] a = workspace.a;
+    double[] b = workspace.b;
+    for(int p = 0; p < n; p++)
+     {
+      int row = (base + slots[p]) * k;
+      b[p] = targets.get(base + slots[p]);
+      for(int q = 0; q < n; q++)
+       a[p * n + q] = interpolation.get(row + slots[q]);
+     }
+
+    double[] weights = workspace.weights;
+    NonNegativeQuadraticSolver.solve(a, b, n, weights, workspace.r, workspace.ar);
+
+    double prediction = 0.0;
+    for(int p = 0; p < n; p++)
+     prediction += weights[p] * ratings[p];
+    return prediction;
+   }
+
+  /**
+   * Adds this neighbourhood to the snapshot.
+   *
+   * @param writer The snapshot writer.
+   * @param prefix The prefix of the names of the sections of this neighbourhood.
+   */
+  public void writeSnapshot(SnapshotWriter writer, String prefix)
+   {
+    writer.putInt(prefix + "itemsNumber", itemsNumber);
+    writer.putInt(prefix + "neighboursNumber", neighboursNumber);
+    writer.putInts(prefix + "neighbours", neighbours);
+    writer.putFloats(prefix + "similarities", similarities);
+    writer.putFloats(prefix + "targets", targets);
+    writer.putFloats(prefix + "interpolation", interpolation);
+    writer.putInts(prefix + "reversePointers", reversePointers);
+    writer.putInts(prefix + "reverseSlots", reverseSlots);
+   }
+
+  /**
+   * Reads a neighbourhood written by {@link #writeSnapshot(SnapshotWriter, String)},
+   * using the mapped buffers of the snapshot directly.
+   *
+   * @param snapshot The snapshot.
+   * @param prefix The prefix of the names of the sections of the neighbourhood.
+   *
+   * @return The neighbourhood.
+   *
+   * @throws IOException If the snapshot doesn't contain a valid neighbourhood.
+   */
+  public static ItemNeighbourhood readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    int itemsNumber = snapshot.getInt(prefix + "itemsNumber");
+    int neighboursNumber = snapshot.getInt(prefix + "neighboursNumber");
+    ItemNeighbourhood neighbourhood = new ItemNeighbourhood(itemsNumber, neighboursNumber,
+                                                            snapshot.getInts(prefix + "neighbours"),
+                                                            snapshot.getFloats(prefix + "similarities"),
+                                                            snapshot.getFloats(prefix + "targets"),
+                                                            snapshot.getFloats(prefix + "interpolation"));
+    neighbourhood.reversePointers = snapshot.getInts(prefix + "reversePointers");
+    neighbourhood.reverseSlots = snapshot.getInts(prefix + "reverseSlots");
+
+    int size = itemsNumber * neighboursNumber;
+    if(neighbourhood.neighbours.capacity() != size || neighbourhood.interpolation.capacity() != size * neighboursNumber ||
+       neighbourhood.reversePointers.capacity() != itemsNumber + 1)
+     throw new IOException("Inconsistent neighbourhood " + prefix + " in the snapshot");
+    return neighbourhood;
+   }
+
+  /**
+   * Creates the work arrays needed by {@link #interpolate(RatingsSource, int, int, Workspace)}.
+   * A workspace must not be used by more than one thread at a time.
+   *
+   * @return The new workspace.
+   */
+  public Workspace createWorkspace()
+   {
+    return new Workspace(neighboursNumber);
+   }
+
+  /**
+   * The work arrays used to compute an interpolation.
+   */
+  public static class Workspace
+   {
+    final int[] slots;
+    final double[] ratings;
+    final double[] a;
+    final double[] b;
+    final double[] weights;
+    final double[] r;
+    final double[] ar;
+
+    Workspace(int neighboursNumber)
+     {
+      slots = new int[neighboursNumber];
+      ratings = new double[neighboursNumber];
+      a = new double[neighboursNumber * neighboursNumber];
+      b = new double[neighboursNumber];
+      weights = new double[neighboursNumber];
+      r = new double[neighboursNumber];
+      ar = new double[neighboursNumber];
+     }
+
+    public int getNeighboursNumber()
+     {
+      return slots.length;
+     }
+   }
+ }
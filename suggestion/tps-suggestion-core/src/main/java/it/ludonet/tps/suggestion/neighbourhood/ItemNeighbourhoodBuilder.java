@@ -0,0 +1,235 @@
+package it.ludonet.tps.suggestion.neighbourhood;
+
+import it.ludonet.tps.suggestion.concurrent.RangeTask;
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.util.BoundedMinHeap;
+
+import java.nio.IntBuffer;
+
+/**
+ * This class builds an {@link ItemNeighbourhood} from the residuals left
+ * by the global effects removal.
+ * <p>
+ * The inner product between the residuals of two items <code>j</code> and
+ * <code>k</code> is estimated on the <code>n<sub>jk</sub></code> users that
+ * rated both of them and shrunk towards zero:
+ * <code>&acirc;<sub>jk</sub> = &Sigma;<sub>u</sub> r<sub>uj</sub>r<sub>uk</sub> / (n<sub>jk</sub> + &beta;)</code>.
+ * The diagonal entries are shrunk towards the average squared residual.
+ * The neighbours of each item are the <code>K</code> items with the highest
+ * positive normalized inner product
+ * <code>&acirc;<sub>jk</sub> / &radic;(&acirc;<sub>jj</sub>&acirc;<sub>kk</sub>)</code>.
+ * <p>
+ * The neighbours can be taken from a {@link SimilarItemsIndex} built on the same
+ * residuals with the same shrinkage, to avoid computing the similarities twice.
+ */
+public class ItemNeighbourhoodBuilder
+ {
+
+  protected int neighboursNumber;
+  protected double shrinkage;
+  protected int parallelism;
+
+  public ItemNeighbourhoodBuilder()
+   {
+    neighboursNumber = 20;
+    shrinkage = 50.0;
+    parallelism = 1;
+   }
+
+  public int getNeighboursNumber()
+   {
+    return neighboursNumber;
+   }
+
+  public void setNeighboursNumber(int neighboursNumber)
+   {
+    this.neighboursNumber = neighboursNumber;
+   }
+
+  public double getShrinkage()
+   {
+    return shrinkage;
+   }
+
+  public void setShrinkage(double shrinkage)
+   {
+    this.shrinkage = shrinkage;
+   }
+
+  public int getParallelism()
+   {
+    return parallelism;
+   }
+
+  /**
+   * Sets the number of threads used to build the neighbourhood. The default
+   * value is 1, which means that the neighbourhood is built in the calling thread.
+   *
+   * @param parallelism The number of threads used to build the neighbourhood.
+   */
+  public void setParallelism(int parallelism)
+   {
+    this.parallelism = parallelism;
+   }
+
+  /**
+   * Builds the neighbourhood of the items of the provided residuals.
+   *
+   * @param residuals The residuals of the ratings after the global effects removal.
+   *
+   * @return The items neighbourhood.
+   *
+   * @throws SuggesterTrainException If the neighbourhood cannot be built.
+   */
+  public ItemNeighbourhood build(RatingsSource residuals) throws SuggesterTrainException
+   {
+    return build(residuals, null);
+   }
+
+  /**
+   * Builds the neighbourhood of the items of the provided residuals, taking the
+   * neighbours from the provided index when it is compatible with this builder,
+   * that is when it has been built with the same shrinkage and stores at least
+   * {@link #getNeighboursNumber()} similar items for each item.
+   *
+   * @param residuals The residuals of the ratings after the global effects removal.
+   * @param similarItems The similar items index built on the same residuals.
+   * It can be <code>null</code>.
+   *
+   * @return The items neighbourhood.
+   *
+   * @throws SuggesterTrainException If the neighbourhood cannot be built.
+   */
+  public ItemNeighbourhood build(RatingsSource residuals, final SimilarItemsIndex similarItems) throws SuggesterTrainException
+   {
+    if(neighboursNumber < 1)
+     throw new IllegalArgumentException("Invalid number of neighbours " + neighboursNumber);
+
+    final int itemsNumber = residuals.getItemsNumber();
+    final int k = neighboursNumber;
+    final ItemNeighbourhood neighbourhood = new ItemNeighbourhood(itemsNumber, k);
+
+    // first pass: select the neighbours of each item
+    final ItemInnerProducts products;
+    if(similarItems != null && similarItems.itemsNumber == itemsNumber &&
+       similarItems.shrinkage == shrinkage && similarItems.similarItemsNumber >= k)
+     {
+      products = new ItemInnerProducts(residuals, shrinkage, similarItems.diagonal, similarItems.averageSquare);
+      copyNeighbours(similarItems, products, neighbourhood);
+     }
+    else
+     {
+      products = new ItemInnerProducts(residuals, shrinkage);
+      ItemInnerProducts.execute(parallelism, itemsNumber, new RangeTask()
+       {
+        public void run(int from, int to)
+         {
+          ItemInnerProducts.Accumulator accumulator = products.new Accumulator();
+          BoundedMinHeap heap = new BoundedMinHeap(k);
+          int[] selected = new int[k];
+          for(int i = from; i < to; i++)
+           {
+            accumulator.accumulate(i);
+            for(int t = 0; t < accumulator.touchedNumber; t++)
+             {
+              int j = accumulator.touched[t];
+              double similarity = products.similarity(i, j, accumulator.get(j));
+              if(similarity > 0.0)
+               heap.offer(j, similarity);
+             }
+
+            int base = i * k;
+            int count = heap.drainSorted(selected, null, 0);
+            for(int s = 0; s < count; s++)
+             {
+              int j = selected[s];
+              double target = accumulator.get(j);
+              neighbourhood.neighbours.put(base + s, j);
+              neighbourhood.targets.put(base + s, (float)target);
+              neighbourhood.similarities.put(base + s, (float)products.similarity(i, j, target));
+             }
+            accumulator.reset();
+           }
+         }
+       });
+     }
+
+    // reverse index: for each item, the positions where it appears as a neighbour
+    final int[] reversePointers = new int[itemsNumber + 1];
+    final IntBuffer neighbours = neighbourhood.neighbours;
+    for(int s = 0, size = neighbours.capacity(); s < size; s++)
+     {
+      if(neighbours.get(s) >= 0)
+       reversePointers[neighbours.get(s) + 1]++;
+     }
+    for(int j = 0; j < itemsNumber; j++)
+     reversePointers[j + 1] += reversePointers[j];
+    final int[] reverseSlots = new int[reversePointers[itemsNumber]];
+    int[] cursors = new int[itemsNumber];
+    System.arraycopy(reversePointers, 0, cursors, 0, itemsNumber);
+    for(int s = 0, size = neighbours.capacity(); s < size; s++)
+     {
+      if(neighbours.get(s) >= 0)
+       reverseSlots[cursors[neighbours.get(s)]++] = s;
+     }
+    neighbourhood.reversePointers = IntBuffer.wrap(reversePointers);
+    neighbourhood.reverseSlots = IntBuffer.wrap(reverseSlots);
+
+    // second pass: fill the interpolation matrices, one row for each
+    // position where the item appears as a neighbour
+    ItemInnerProducts.execute(parallelism, itemsNumber, new RangeTask()
+     {
+      public void run(int from, int to)
+       {
+        ItemInnerProducts.Accumulator accumulator = products.new Accumulator();
+        for(int j = from; j < to; j++)
+         {
+          if(reversePointers[j + 1] == reversePointers[j])
+           continue;
+
+          accumulator.accumulate(j);
+          for(int p = reversePointers[j], end = reversePointers[j + 1]; p < end; p++)
+           {
+            int slot = reverseSlots[p];
+            int base = (slot / k) * k;
+            int row = slot * k;
+            for(int s = 0; s < k; s++)
+             {
+              int other = neighbours.get(base + s);
+              if(other < 0)
+               break;
+              double value = (other == j) ? products.diagonal[j] : accumulator.get(other);
+              neighbourhood.interpolation.put(row + s, (float)value);
+             }
+           }
+          accumulator.reset();
+         }
+       }
+     });
+
+    return neighbourhood;
+   }
+
+  /**
+   * Takes the first <code>K</code> similar items of each item as its neighbours.
+   */
+  private void copyNeighbours(SimilarItemsIndex similarItems, ItemInnerProducts products, ItemNeighbourhood neighbourhood)
+   {
+    int k = neighboursNumber;
+    int indexK = similarItems.similarItemsNumber;
+    for(int i = 0; i < neighbourhood.itemsNumber; i++)
+     {
+      for(int s = 0; s < k; s++)
+       {
+        int j = similarItems.items.get(i * indexK + s);
+        if(j < 0)
+         break;
+        float similarity = similarItems.similarities.get(i * indexK + s);
+        neighbourhood.neighbours.put(i * k + s, j);
+        neighbourhood.similarities.put(i * k + s, similarity);
+        neighbourhood.targets.put(i * k + s, (float)(similarity * Math.sqrt(products.diagonal[i] * products.diagonal[j])));
+       }
+     }
+   }
+ }
@@ -0,0 +1,79 @@
+package it.ludonet.tps.suggestion.neighbourhood;
+
+/**
+ * This class solves the non-negative quadratic problem
+ * <code>min x<sup>T</sup>Ax - 2b<sup>T</sup>x, x &ge; 0</code>
+ * with the projected gradient method used by Bell and Koren to
+ * compute the neighbourhood interpolation weights.
+ */
+public class NonNegativeQuadraticSolver
+ {
+
+  private static final int MAX_ITERATIONS = 100;
+  private static final double EPSILON = 1e-10;
+
+  private NonNegativeQuadraticSolver()
+   {
+   }
+
+  /**
+   * Solves the problem for the <code>n &times; n</code> symmetric
+   * positive definite matrix <code>A</code>, stored in row-major order.
+   *
+   * @param a The matrix <code>A</code>, with at least <code>n * n</code> elements.
+   * @param b The vector <code>b</code>, with at least <code>n</code> elements.
+   * @param n The size of the problem.
+   * @param x The array that will receive the solution, with at least <code>n</code> elements.
+   * @param r A work array with at least <code>n</code> elements.
+   * @param ar A work array with at least <code>n</code> elements.
+   */
+  public static void solve(double[] a, double[] b, int n, double[] x, double[] r, double[] ar)
+   {
+    for(int i = 0; i < n; i++)
+     x[i] = 0.0;
+
+    for(int iteration = 0; iteration < MAX_ITERATIONS; iteration++)
+     {
+      // residual r = b - Ax, projected on the feasible directions
+      double rr = 0.0;
+      for(int i = 0, row = 0; i < n; i++, row += n)
+       {
+        double sum = b[i];
+        for(int j = 0; j < n; j++)
+         sum -= a[row + j] * x[j];
+        if(x[i] == 0.0 && sum < 0.0)
+         sum = 0.0;
+        r[i] = sum;
+        rr += sum * sum;
+       }
+      if(rr < EPSILON)
+       break;
+
+      // step length along r, bounded so that x stays non negative
+      double rar = 0.0;
+      for(int i = 0, row = 0; i < n; i++, row += n)
+       {
+        double sum = 0.0;
+        for(int j = 0; j < n; j++)
+         sum += a[row + j] * r[j];
+        ar[i] = sum;
+        rar += r[i] * sum;
+       }
+      if(rar <= 0.0)
+       break;
+
+      double step = rr / rar;
+      for(int i = 0; i < n; i++)
+       {
+        if(r[i] < 0.0)
+         step = Math.min(step, -x[i] / r[i]);
+       }
+
+      for(int i = 0; i < n; i++)
+       {
+        double value = x[i] + step * r[i];
+        x[i] = value > 0.0 ? value : 0.0;
+       }
+     }
+   }
+ }
@@ -0,0 +1,282 @@
+package it.ludonet.tps.suggestion.neighbourhood;
+
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * This class stores, for each item, the items with the highest similarity
+ * between their residuals, so that the similar items can be served without
+ * scanning the ratings. The data is stored in flat primitive buffers, indexed
+ * by <code>item * K + position</code>. Instances are built and refreshed by a
+ * {@link SimilarItemsIndexBuilder}, or read from a snapshot by
+ * {@link #readSnapshot(Snapshot, String)}.
+ * <p>
+ * The index can be read by several threads at the same time, but a
+ * {@link SimilarItemsIndexBuilder#refresh(SimilarItemsIndex, it.ludonet.tps.suggestion.source.RatingsSource, int[]) refresh}
+ * updates the rows in place, so readers may see a row while it is being updated.
+ * An index read from a snapshot may use read only buffers: they are copied on the
+ * heap before the first refresh.
+ */
+public class SimilarItemsIndex
+ {
+
+  protected final int itemsNumber;
+  protected final int similarItemsNumber;
+  protected final double shrinkage;
+
+  // similar items of each item, sorted by decreasing similarity and
+  // padded with -1 when an item has less than K similar items; replaced
+  // by a writable copy when they are read only and the index is refreshed
+  protected volatile IntBuffer items;
+  protected volatile FloatBuffer similarities;
+
+  // shrunk squared residuals of each item, kept to refresh the index
+  protected final double[] diagonal;
+  protected final double averageSquare;
+
+  protected SimilarItemsIndex(int itemsNumber, int similarItemsNumber, double shrinkage,
+                              double[] diagonal, double averageSquare)
+   {
+    this.itemsNumber = itemsNumber;
+    this.similarItemsNumber = similarItemsNumber;
+    this.shrinkage = shrinkage;
+    this.diagonal = diagonal;
+    this.averageSquare = averageSquare;
+
+    int size = itemsNumber * similarItemsNumber;
+    int[] emptyItems = new int[size];
+    Arrays.fill(emptyItems, -1);
+    items = IntBuffer.wrap(emptyItems);
+    similarities = FloatBuffer.wrap(new float[size]);
+   }
+
+  private SimilarItemsIndex(int itemsNumber, int similarItemsNumber, double shrinkage, double[] diagonal,
+                            double averageSquare, IntBuffer items, FloatBuffer similarities)
+   {
+    this.itemsNumber = itemsNumber;
+    this.similarItemsNumber = similarItemsNumber;
+    this.shrinkage = shrinkage;
+    this.diagonal = diagonal;
+    this.averageSquare = averageSquare;
+    this.items = items;
+    this.similarities = similarities;
+   }
+
+  public int getItemsNumber()
+   {
+    return itemsNumber;
+   }
+
+  /**
+   * Returns the maximum number of similar items stored for each item.
+   *
+   * @return The maximum number of similar items stored for each item.
+   */
+  public int getSimilarItemsNumber()
+   {
+    return similarItemsNumber;
+   }
+
+  /**
+   * Returns the shrinkage of the inner products the similarities are computed from.
+   *
+   * @return The shrinkage of the inner products.
+   */
+  public double getShrinkage()
+   {
+    return shrinkage;
+   }
+
+  /**
+   * Returns the number of similar items stored for the provided item.
+   *
+   * @param itemIndex The 0-based item index.
+   *
+   * @return The number of similar items stored for the item.
+   *
+   * @throws IndexOutOfBoundsException If the item index is not valid.
+   */
+  public int getSimilarItemsNumber(int itemIndex) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+
+    int base = itemIndex * similarItemsNumber;
+    int count = 0;
+    while(count < similarItemsNumber && items.get(base + count) >= 0)
+     count++;
+    return count;
+   }
+
+  /**
+   * Returns one of the items similar to the provided one.
+   *
+   * @param itemIndex The 0-based item index.
+   * @param position The position of the similar item, between 0 and
+   * <code>{@link #getSimilarItemsNumber(int)} - 1</code>. Items are sorted
+   * from the most similar to the less one.
+   *
+   * @return The index of the similar item.
+   *
+   * @throws IndexOutOfBoundsException If the item index or the position is not valid.
+   */
+  public int getSimilarItem(int itemIndex, int position) throws IndexOutOfBoundsException
+   {
+    return items.get(checkPosition(itemIndex, position));
+   }
+
+  /**
+   * Returns the similarity between an item and one of its similar items.
+   *
+   * @param itemIndex The 0-based item index.
+   * @param position The position of the similar item.
+   *
+   * @return The similarity between the two items.
+   *
+   * @throws IndexOutOfBoundsException If the item index or the position is not valid.
+   */
+  public double getSimilarity(int itemIndex, int position) throws IndexOutOfBoundsException
+   {
+    return similarities.get(checkPosition(itemIndex, position));
+   }
+
+  /**
+   * Replaces the buffers of this index with writable copies, if they are read
+   * only, so that the index can be refreshed. The copies have the same content,
+   * so the readers can go on using the old buffers until they are swapped.
+   */
+  synchronized void ensureWritable()
+   {
+    if(items.isReadOnly())
+     {
+      IntBuffer source = items.duplicate();
+      source.clear();
+      IntBuffer copy = IntBuffer.allocate(source.capacity());
+      copy.put(source);
+      copy.clear();
+      items = copy;
+     }
+    if(similarities.isReadOnly())
+     {
+      FloatBuffer source = similarities.duplicate();
+      source.clear();
+      FloatBuffer copy = FloatBuffer.allocate(source.capacity());
+      copy.put(source);
+      copy.clear();
+      similarities = copy;
+     }
+   }
+
+  /**
+   * Updates the similarity between an item and another one, keeping the row
+   * of the item sorted. If the row is full and the similarity is not higher
+   * than the last one, the other item is left out.
+   */
+  void update(int itemIndex, int otherIndex, float similarity)
+   {
+    int k = similarItemsNumber;
+    int base = itemIndex * k;
+    int end = base + k;
+
+    // remove the old entry
+    int last = base;
+    while(last < end && items.get(last) >= 0)
+     last++;
+    for(int p = base; p < last; p++)
+     {
+      if(items.get(p) == otherIndex)
+       {
+        for(int q = p + 1; q < last; q++)
+         {
+          items.put(q - 1, items.get(q));
+          similarities.put(q - 1, similarities.get(q));
+         }
+        last--;
+        items.put(last, -1);
+        similarities.put(last, 0.0f);
+        break;
+       }
+     }
+    if(similarity <= 0.0f)
+     return;
+
+    // same ordering of the builder: decreasing similarity, then increasing index
+    int p = last;
+    while(p > base && (similarities.get(p - 1) < similarity ||
+                       (similarities.get(p - 1) == similarity && items.get(p - 1) > otherIndex)))
+     p--;
+    if(p == end)
+     return;
+
+    for(int q = Math.min(last, end - 1); q > p; q--)
+     {
+      items.put(q, items.get(q - 1));
+      similarities.put(q, similarities.get(q - 1));
+     }
+    items.put(p, otherIndex);
+    similarities.put(p, similarity);
+   }
+
+  /**
+   * Adds this index to the snapshot.
+   *
+   * @param writer The snapshot writer.
+   * @param prefix The prefix of the names of the sections of this index.
+   */
+  public void writeSnapshot(SnapshotWriter writer, String prefix)
+   {
+    writer.putInt(prefix + "itemsNumber", itemsNumber);
+    writer.putInt(prefix + "similarItemsNumber", similarItemsNumber);
+    writer.putDouble(prefix + "shrinkage", shrinkage);
+    writer.putDoubles(prefix + "diagonal", diagonal);
+    writer.putDouble(prefix + "averageSquare", averageSquare);
+    writer.putInts(prefix + "items", items);
+    writer.putFloats(prefix + "similarities", similarities);
+   }
+
+  /**
+   * Reads an index written by {@link #writeSnapshot(SnapshotWriter, String)},
+   * using the mapped buffers of the snapshot directly. If the snapshot is read
+   * only, the buffers are copied on the heap when the index is first refreshed.
+   *
+   * @param snapshot The snapshot.
+   * @param prefix The prefix of the names of the sections of the index.
+   *
+   * @return The index.
+   *
+   * @throws IOException If the snapshot doesn't contain a valid index.
+   */
+  public static SimilarItemsIndex readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    int itemsNumber = snapshot.getInt(prefix + "itemsNumber");
+    int similarItemsNumber = snapshot.getInt(prefix + "similarItemsNumber");
+    SimilarItemsIndex index = new SimilarItemsIndex(itemsNumber, similarItemsNumber,
+                                                    snapshot.getDouble(prefix + "shrinkage"),
+                                                    snapshot.copyDoubles(prefix + "diagonal"),
+                                                    snapshot.getDouble(prefix + "averageSquare"),
+                                                    snapshot.getInts(prefix + "items"),
+                                                    snapshot.getFloats(prefix + "similarities"));
+
+    if(index.items.capacity() != itemsNumber * similarItemsNumber || index.diagonal.length != itemsNumber)
+     throw new IOException("Inconsistent similar items index " + prefix + " in the snapshot");
+    return index;
+   }
+
+  private void checkItemIndex(int itemIndex) throws IndexOutOfBoundsException
+   {
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+   }
+
+  private int checkPosition(int itemIndex, int position) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+    if(position < 0 || position >= similarItemsNumber || items.get(itemIndex * similarItemsNumber + position) < 0)
+     throw new IndexOutOfBoundsException("Invalid position " + position + " for item " + itemIndex);
+    return itemIndex * similarItemsNumber + position;
+   }
+ }
@@ -0,0 +1,218 @@
+package it.ludonet.tps.suggestion.neighbourhood;
+
+import it.ludonet.tps.suggestion.concurrent.RangeTask;
+import it.ludonet.tps.suggestion.exception.SuggesterTrainException;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.util.BoundedMinHeap;
+
+/**
+ * This class builds a {@link SimilarItemsIndex} from the residuals left
+ * by the global effects removal. The similarity between two items is the
+ * normalized shrunk inner product of their residuals
+ * <code>&acirc;<sub>jk</sub> / &radic;(&acirc;<sub>jj</sub>&acirc;<sub>kk</sub>)</code>,
+ * the same used to select the neighbours of an {@link ItemNeighbourhood}.
+ * <p>
+ * The items are processed in contiguous blocks on {@link #setParallelism(int) parallelism}
+ * threads, each one walking the columns of its items. When new ratings are added to the
+ * residuals, {@link #refresh(SimilarItemsIndex, RatingsSource, int[])} recomputes only
+ * the columns of the touched items.
+ */
+public class SimilarItemsIndexBuilder
+ {
+
+  // number of locks used to update the rows of the untouched items during a refresh
+  private static final int LOCKS_NUMBER = 64;
+
+  protected int similarItemsNumber;
+  protected double shrinkage;
+  protected int parallelism;
+
+  public SimilarItemsIndexBuilder()
+   {
+    similarItemsNumber = 20;
+    shrinkage = 50.0;
+    parallelism = 1;
+   }
+
+  public int getSimilarItemsNumber()
+   {
+    return similarItemsNumber;
+   }
+
+  public void setSimilarItemsNumber(int similarItemsNumber)
+   {
+    this.similarItemsNumber = similarItemsNumber;
+   }
+
+  public double getShrinkage()
+   {
+    return shrinkage;
+   }
+
+  public void setShrinkage(double shrinkage)
+   {
+    this.shrinkage = shrinkage;
+   }
+
+  public int getParallelism()
+   {
+    return parallelism;
+   }
+
+  /**
+   * Sets the number of threads used to build the index. The default
+   * value is 1, which means that the index is built in the calling thread.
+   *
+   * @param parallelism The number of threads used to build the index.
+   */
+  public void setParallelism(int parallelism)
+   {
+    this.parallelism = parallelism;
+   }
+
+  /**
+   * Builds the similar items index of the items of the provided residuals.
+   *
+   * @param residuals The residuals of the ratings after the global effects removal.
+   *
+   * @return The similar items index.
+   *
+   * @throws SuggesterTrainException If the index cannot be built.
+   */
+  public SimilarItemsIndex build(RatingsSource residuals) throws SuggesterTrainException
+   {
+    if(similarItemsNumber < 1)
+     throw new IllegalArgumentException("Invalid number of similar items " + similarItemsNumber);
+
+    final ItemInnerProducts products = new ItemInnerProducts(residuals, shrinkage);
+    final SimilarItemsIndex index = new SimilarItemsIndex(residuals.getItemsNumber(), similarItemsNumber, shrinkage,
+                                                          products.diagonal, products.averageSquare);
+
+    ItemInnerProducts.execute(parallelism, index.itemsNumber, new RangeTask()
+     {
+      public void run(int from, int to)
+       {
+        RowBuilder rowBuilder = new RowBuilder(products, index);
+        for(int i = from; i < to; i++)
+         {
+          rowBuilder.accumulator.accumulate(i);
+          rowBuilder.fill(i);
+          rowBuilder.accumulator.reset();
+         }
+       }
+     });
+
+    return index;
+   }
+
+  /**
+   * Recomputes the similar items of the provided items, whose residuals changed
+   * after the index was built, and updates their similarity in the rows of the
+   * other items. The rows of the other items are not rebuilt: if a touched item
+   * drops out of one of them, the row keeps one less similar item until the
+   * index is built again.
+   *
+   * @param index The index to refresh.
+   * @param residuals The updated residuals. They must have the same items of the
+   * residuals the index has been built from.
+   * @param touchedItems The indexes of the items whose residuals changed.
+   *
+   * @throws SuggesterTrainException If the index cannot be refreshed.
+   */
+  public void refresh(final SimilarItemsIndex index, RatingsSource residuals, final int[] touchedItems) throws SuggesterTrainException
+   {
+    if(residuals.getItemsNumber() != index.itemsNumber)
+     throw new IndexOutOfBoundsException("The residuals have " + residuals.getItemsNumber() +
+                                         " items, the index " + index.itemsNumber);
+    for(int t : touchedItems)
+     {
+      if(t < 0 || t >= index.itemsNumber)
+       throw new IndexOutOfBoundsException("Invalid item index " + t);
+     }
+
+    index.ensureWritable();
+    final ItemInnerProducts products = new ItemInnerProducts(residuals, index.shrinkage,
+                                                             index.diagonal, index.averageSquare);
+    for(int t : touchedItems)
+     products.refreshDiagonal(t);
+
+    final boolean[] touched = new boolean[index.itemsNumber];
+    for(int t : touchedItems)
+     touched[t] = true;
+    final Object[] locks = new Object[LOCKS_NUMBER];
+    for(int l = 0; l < LOCKS_NUMBER; l++)
+     locks[l] = new Object();
+
+    ItemInnerProducts.execute(parallelism, touchedItems.length, new RangeTask()
+     {
+      public void run(int from, int to)
+       {
+        RowBuilder rowBuilder = new RowBuilder(products, index);
+        ItemInnerProducts.Accumulator accumulator = rowBuilder.accumulator;
+        for(int p = from; p < to; p++)
+         {
+          int t = touchedItems[p];
+          accumulator.accumulate(t);
+          rowBuilder.fill(t);
+
+          // the rows of the touched items are rebuilt by their own task
+          for(int s = 0; s < accumulator.touchedNumber; s++)
+           {
+            int j = accumulator.touched[s];
+            if(touched[j])
+             continue;
+            float similarity = (float)products.similarity(t, j, accumulator.get(j));
+            synchronized(locks[j % LOCKS_NUMBER])
+             {
+              index.update(j, t, similarity);
+             }
+           }
+          accumulator.reset();
+         }
+       }
+     });
+   }
+
+  /**
+   * Fills the rows of the index from the accumulated inner products.
+   */
+  private static class RowBuilder
+   {
+    final ItemInnerProducts products;
+    final SimilarItemsIndex index;
+    final ItemInnerProducts.Accumulator accumulator;
+    final BoundedMinHeap heap;
+    final int[] selected;
+    final double[] scores;
+
+    RowBuilder(ItemInnerProducts products, SimilarItemsIndex index)
+     {
+      this.products = products;
+      this.index = index;
+      accumulator = products.new Accumulator();
+      heap = new BoundedMinHeap(index.similarItemsNumber);
+      selected = new int[index.similarItemsNumber];
+      scores = new double[index.similarItemsNumber];
+     }
+
+    void fill(int i)
+     {
+      for(int t = 0; t < accumulator.touchedNumber; t++)
+       {
+        int j = accumulator.touched[t];
+        double similarity = products.similarity(i, j, accumulator.get(j));
+        if(similarity > 0.0)
+         heap.offer(j, similarity);
+       }
+
+      int k = index.similarItemsNumber;
+      int base = i * k;
+      int count = heap.drainSorted(selected, scores, 0);
+      for(int s = 0; s < k; s++)
+       {
+        index.items.put(base + s, s < count ? selected[s] : -1);
+        index.similarities.put(base + s, s < count ? (float)scores[s] : 0.0f);
+       }
+     }
+   }
+ }
@@ -1,15 +1,49 @@
 package it.ludonet.tps.suggestion.preprocessor.impl;
 
+import it.ludonet.tps.suggestion.concurrent.ParallelRangeExecutor;
+import it.ludonet.tps.suggestion.concurrent.RangeTask;
+import it.ludonet.tps.suggestion.exception.GlobalEffectRemovalException;
+import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
 import it.ludonet.tps.suggestion.preprocessor.GlobalEffectRemover;
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotSupport;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.source.impl.CompactRatingsSource;
+import it.ludonet.tps.suggestion.source.impl.RealSparseMatrixRatingSource;
 
-public abstract class EstimationShrinkGlobalEffectRemover implements GlobalEffectRemover
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * This abstract global effect remover estimates one effect parameter
+ * for each user or item (the "units" of the effect) and shrinks it
+ * towards zero according to the number of ratings it is estimated from.
+ * <p>
+ * The units are independent, so the estimation can be run on several threads
+ * by setting the {@link #setParallelism(int) parallelism}. The results are
+ * identical to the ones of the sequential execution.
+ * <p>
+ * The estimated parameters can be saved in a snapshot and restored, so that
+ * {@link #getEffect(int, int)} can be used without removing the effects again.
+ */
+public abstract class EstimationShrinkGlobalEffectRemover implements GlobalEffectRemover, SnapshotSupport
  {
 
+  public static final int USERS_AXIS = 0;
+  public static final int ITEMS_AXIS = 1;
+
   protected double alpha;
+  protected int parallelism;
+  // effect parameters estimated by the last removeEffects call, NaN for the
+  // units without ratings
+  protected double[] thetas;
 
   public EstimationShrinkGlobalEffectRemover()
    {
     alpha = 0.1;
+    parallelism = 1;
    }
 
   public double getAlpha()
@@ -22,9 +56,379 @@ public abstract class EstimationShrinkGlobalEffectRemover implements GlobalEffec
     this.alpha = alpha;
    }
 
+  public int getParallelism()
+   {
+    return parallelism;
+   }
+
+  /**
+   * Sets the number of threads used to remove the effects. The default
+   * value is 1, which means that the effects are removed in the calling thread.
+   *
+   * @param parallelism The number of threads used to remove the effects.
+   */
+  public void setParallelism(int parallelism)
+   {
+    this.parallelism = parallelism;
+   }
+
+  public RatingsSource removeEffects(final RatingsSource trainingData, final boolean needCentering) throws GlobalEffectRemovalException
+   {
+    prepare(trainingData);
+    final RatingsSource effects = createEffectsSource(trainingData);
+    final boolean aligned = isAligned(effects, trainingData);
+    int units = getUnitsNumber(trainingData);
+    final double[] thetas = new double[units];
+
+    ParallelRangeExecutor executor = ParallelRangeExecutor.getShared(Math.max(1, parallelism));
+    try
+     {
+      // the estimation only reads the training data, so it can always run in parallel
+      executor.execute(units, new RangeTask()
+       {
+        public void run(int from, int to)
+         {
+          UnitWorker worker = createWorker(trainingData, needCentering);
+          for(int unit = from; unit < to; unit++)
+           thetas[unit] = worker.estimate(unit);
+         }
+       });
+
+      RangeTask apply = new RangeTask()
+       {
+        public void run(int from, int to)
+         {
+          UnitWorker worker = createWorker(trainingData, needCentering);
+          EffectsBuffer buffer = new EffectsBuffer();
+          for(int unit = from; unit < to; unit++)
+           {
+            if(!Double.isNaN(thetas[unit]))
+             {
+              buffer.clear();
+              worker.remove(unit, thetas[unit], buffer);
+              buffer.store(effects, getAxis(), unit, aligned, false);
+             }
+           }
+         }
+       };
+
+      if(supportsConcurrentUpdates(trainingData) && supportsConcurrentUpdates(effects))
+       executor.execute(units, apply);
+      else
+       apply.run(0, units);
+     }
+    catch(ExecutionException e)
+     {
+      throw new GlobalEffectRemovalException("Cannot remove the global effect", ParallelRangeExecutor.getCheckedCause(e));
+     }
+    catch(InterruptedException e)
+     {
+      Thread.currentThread().interrupt();
+      throw new GlobalEffectRemovalException("Interrupted while removing the global effect", e);
+     }
+
+    this.thetas = thetas;
+    return effects;
+   }
+
+  /**
+   * Returns the axis the effect is estimated along: {@link #USERS_AXIS} if
+   * there is one parameter for each user, {@link #ITEMS_AXIS} if there is one
+   * parameter for each item.
+   *
+   * @return The axis of the effect.
+   */
+  public abstract int getAxis();
+
+  /**
+   * Adds the effects of a batch of user-item couples to the provided predictions.
+   * The default implementation calls {@link #getEffect(int, int)} for each couple.
+   *
+   * @param userIndexes The indexes of the users.
+   * @param itemIndexes The indexes of the items.
+   * @param predictions The predictions the effects are added to.
+   * @param from The first couple of the batch, inclusive.
+   * @param to The last couple of the batch, exclusive.
+   *
+   * @throws IndexOutOfBoundsException If a user or item index falls outside the
+   * ranges of the last training data.
+   */
+  public void addEffects(int[] userIndexes, int[] itemIndexes, double[] predictions, int from, int to) throws IndexOutOfBoundsException
+   {
+    for(int k = from; k < to; k++)
+     predictions[k] += getEffect(userIndexes[k], itemIndexes[k]);
+   }
+
+  public void writeSnapshot(SnapshotWriter writer, String prefix) throws IllegalStateException
+   {
+    if(thetas == null)
+     throw new IllegalStateException("The effects have not been removed yet");
+
+    writer.putDouble(prefix + "alpha", alpha);
+    writer.putDoubles(prefix + "thetas", thetas);
+   }
+
+  public void readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    // the parameters are one for each user or item, copying them is cheap
+    alpha = snapshot.getDouble(prefix + "alpha");
+    thetas = snapshot.copyDoubles(prefix + "thetas");
+   }
+
+  /**
+   * Returns the effect parameter estimated for the provided unit
+   * by the last {@link #removeEffects(RatingsSource, boolean)} call.
+   *
+   * @param unit The user or item index.
+   *
+   * @return The effect parameter, or <code>0.0</code> if the unit had no ratings.
+   *
+   * @throws IndexOutOfBoundsException If the unit falls outside the ranges of the
+   * last training data.
+   */
+  protected double getTheta(int unit) throws IndexOutOfBoundsException
+   {
+    if(thetas == null)
+     throw new IllegalStateException("The effects have not been removed yet");
+    if(unit < 0 || unit >= thetas.length)
+     throw new IndexOutOfBoundsException("Invalid index " + unit);
+
+    double theta = thetas[unit];
+    return Double.isNaN(theta) ? 0.0 : theta;
+   }
+
+  /**
+   * Returns the number of units (users or items) of the effect.
+   *
+   * @param trainingData The training data.
+   *
+   * @return The number of units of the effect.
+   */
+  protected abstract int getUnitsNumber(RatingsSource trainingData);
+
+  /**
+   * Prepares the removal of the effect from the provided training data, before
+   * any worker is created. The default implementation does nothing.
+   *
+   * @param trainingData The training data.
+   *
+   * @throws GlobalEffectRemovalException If the effect cannot be removed from the training data.
+   */
+  protected void prepare(RatingsSource trainingData) throws GlobalEffectRemovalException
+   {
+   }
+
+  /**
+   * Creates a worker that estimates and removes the effect from the units. A worker
+   * is used by a single thread at a time, so it can hold any temporary state.
+   *
+   * @param trainingData The training data.
+   * @param needCentering A boolean switch that indicates if the
+   * effects must be centered on the mean value.
+   *
+   * @return The new worker.
+   */
+  protected abstract UnitWorker createWorker(RatingsSource trainingData, boolean needCentering);
+
+  /**
+   * Checks if different ratings of the provided source can be updated concurrently
+   * by different threads.
+   *
+   * @param source The ratings source.
+   *
+   * @return <code>true</code> if different ratings can be updated concurrently.
+   */
+  protected boolean supportsConcurrentUpdates(RatingsSource source)
+   {
+    return source instanceof CompactRatingsSource;
+   }
+
+  /**
+   * Checks if the ratings of each unit are walked in the same order in the effects
+   * source and in the training data, so that the effects can be stored by walking
+   * the effects source instead of looking up each rating.
+   *
+   * @param effects The effects source.
+   * @param trainingData The training data.
+   *
+   * @return <code>true</code> if the two sources share the same structure.
+   */
+  protected static boolean isAligned(RatingsSource effects, RatingsSource trainingData)
+   {
+    return effects instanceof CompactRatingsSource && ((CompactRatingsSource)effects).hasSameStructure(trainingData);
+   }
+
   protected double shrinkEstimate(int support, double theta)
    {
     theta = support * theta / (support + alpha);
     return theta;
    }
+
+  /**
+   * Creates the source that will store the effects removed from the training data.
+   * If the training data is a {@link CompactRatingsSource}, the effects
+   * source shares its structure, so that the effects can be summed with a
+   * single pass over the stored values.
+   *
+   * @param trainingData The training data.
+   *
+   * @return The initialized effects source.
+   *
+   * @throws GlobalEffectRemovalException If the effects source cannot be initialized.
+   */
+  protected RatingsSource createEffectsSource(RatingsSource trainingData) throws GlobalEffectRemovalException
+   {
+    if(trainingData instanceof CompactRatingsSource)
+     return ((CompactRatingsSource)trainingData).createEmptyCopy();
+
+    RatingsSource effects = new RealSparseMatrixRatingSource();
+    try
+     {
+      effects.init(trainingData.getUsersNumber(), trainingData.getItemsNumber());
+     }
+    catch(RatingSourceAlreadyInitializedException e)
+     {
+      throw new GlobalEffectRemovalException("Cannot initialize the effects source", e);
+     }
+    return effects;
+   }
+
+  /**
+   * A worker estimates and removes the effect of single units.
+   */
+  protected interface UnitWorker
+   {
+
+    /**
+     * Estimates the effect parameter of the unit, without modifying the training data.
+     *
+     * @param unit The user or item index.
+     *
+     * @return The effect parameter, or {@link Double#NaN} if the unit has no ratings.
+     */
+    public double estimate(int unit);
+
+    /**
+     * Removes the effect of the unit from the training data, adding the removed
+     * estimates to the buffer in the order the ratings of the unit are walked.
+     *
+     * @param unit The user or item index.
+     * @param theta The effect parameter, as returned by {@link #estimate(int)}.
+     * @param effects The buffer of the effects removed from the unit.
+     */
+    public void remove(int unit, double theta, EffectsBuffer effects);
+
+   }
+
+  /**
+   * A buffer of the effects removed from the ratings of a single unit, in the order
+   * they are walked. Several effects on the same axis can be added to the buffer
+   * before storing their sum with a single pass. The buffer grows as needed and is
+   * reused for every unit, so that no object is allocated for each rating.
+   */
+  protected static class EffectsBuffer implements RatingChangingVisitor
+   {
+    private int[] indexes;
+    private double[] values;
+    private int size;
+    private int cursor;
+    private boolean accumulate;
+
+    public EffectsBuffer()
+     {
+      indexes = new int[64];
+      values = new double[64];
+     }
+
+    /**
+     * Empties the buffer, before the effects of a new unit are added.
+     */
+    public void clear()
+     {
+      size = 0;
+      cursor = 0;
+     }
+
+    /**
+     * Restarts from the first rating of the unit, so that the next effect
+     * is summed to the ones already in the buffer.
+     */
+    public void rewind()
+     {
+      cursor = 0;
+     }
+
+    /**
+     * Adds the effect of the next rating of the unit.
+     *
+     * @param index The index of the rating on the other axis.
+     * @param value The effect.
+     */
+    public void add(int index, double value)
+     {
+      if(cursor < size)
+       values[cursor] += value;
+      else
+       {
+        if(size == values.length)
+         {
+          int[] newIndexes = new int[2 * size];
+          System.arraycopy(indexes, 0, newIndexes, 0, size);
+          indexes = newIndexes;
+          double[] newValues = new double[2 * size];
+          System.arraycopy(values, 0, newValues, 0, size);
+          values = newValues;
+         }
+        indexes[size] = index;
+        values[size] = value;
+        size++;
+       }
+      cursor++;
+     }
+
+    /**
+     * Stores the buffered effects of the unit in the effects source.
+     *
+     * @param effects The effects source.
+     * @param axis The axis of the unit.
+     * @param unit The user or item index.
+     * @param aligned Whether the effects source walks the ratings of the unit like
+     * the training data (see {@link EstimationShrinkGlobalEffectRemover#isAligned(RatingsSource, RatingsSource)}).
+     * @param accumulate If <code>true</code> the effects are summed to the ones already
+     * stored, otherwise they replace them.
+     */
+    public void store(RatingsSource effects, int axis, int unit, boolean aligned, boolean accumulate)
+     {
+      if(size == 0)
+       return;
+
+      if(aligned)
+       {
+        this.accumulate = accumulate;
+        cursor = 0;
+        if(axis == USERS_AXIS)
+         effects.walkUserRatings(unit, this);
+        else
+         effects.walkItemRatings(unit, this);
+        return;
+       }
+
+      for(int k = 0; k < size; k++)
+       {
+        int userIndex = axis == USERS_AXIS ? unit : indexes[k];
+        int itemIndex = axis == USERS_AXIS ? indexes[k] : unit;
+        double value = values[k];
+        if(accumulate)
+         value += effects.getRating(userIndex, itemIndex);
+        effects.setRating(userIndex, itemIndex, value);
+       }
+     }
+
+    public double visit(int index, double value)
+     {
+      double effect = values[cursor++];
+      return accumulate ? value + effect : effect;
+     }
+   }
+
  }
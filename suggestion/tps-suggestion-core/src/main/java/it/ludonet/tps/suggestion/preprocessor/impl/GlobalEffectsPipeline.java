@@ -0,0 +1,144 @@
+package it.ludonet.tps.suggestion.preprocessor.impl;
+
+import it.ludonet.tps.suggestion.concurrent.ParallelRangeExecutor;
+import it.ludonet.tps.suggestion.concurrent.RangeTask;
+import it.ludonet.tps.suggestion.exception.GlobalEffectRemovalException;
+import it.ludonet.tps.suggestion.preprocessor.GlobalEffectRemover;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * This class removes a sequence of global effects writing all of them in place
+ * into a single effects source, instead of creating a new effects source for each
+ * remover and summing it.
+ * <p>
+ * Consecutive {@link EstimationShrinkGlobalEffectRemover}s along the same axis are fused:
+ * since the effect of a user (or item) only depends on the ratings of that user (or item),
+ * each unit is processed by all the removers of the group in turn, while its ratings are
+ * hot in cache, and their estimates are summed in a per-thread buffer and stored with
+ * a single pass. The results are the same as the ones of removing the effects one at a time.
+ * Other removers are applied one at a time, summing their effects into the effects source.
+ * <p>
+ * The effects are stored with a walk over the effects source when it shares the structure
+ * of the training data (see {@link it.ludonet.tps.suggestion.source.impl.CompactRatingsSource#hasSameStructure(RatingsSource)}),
+ * and by looking up each rating otherwise.
+ */
+public class GlobalEffectsPipeline
+ {
+
+  /**
+   * Removes the global effects from the training data, in the order of the list, adding
+   * them to the effects source. The first effect is not centered, the following ones are.
+   *
+   * @param removers The global effect removers.
+   * @param trainingData The training data, that will hold the residuals.
+   * @param effects The source the removed effects will be added to.
+   *
+   * @throws GlobalEffectRemovalException If an error occurs while removing an effect.
+   */
+  public void removeEffects(List<GlobalEffectRemover> removers, RatingsSource trainingData, RatingsSource effects) throws GlobalEffectRemovalException
+   {
+    boolean center = false;
+    int r = 0;
+    while(r < removers.size())
+     {
+      GlobalEffectRemover remover = removers.get(r);
+      if(!(remover instanceof EstimationShrinkGlobalEffectRemover))
+       {
+        effects.sum(remover.removeEffects(trainingData, center));
+        center = true;
+        r++;
+        continue;
+       }
+
+      // group the following removers along the same axis
+      int axis = ((EstimationShrinkGlobalEffectRemover)remover).getAxis();
+      List<EstimationShrinkGlobalEffectRemover> group = new ArrayList<EstimationShrinkGlobalEffectRemover>();
+      while(r < removers.size() && removers.get(r) instanceof EstimationShrinkGlobalEffectRemover &&
+            ((EstimationShrinkGlobalEffectRemover)removers.get(r)).getAxis() == axis)
+       {
+        group.add((EstimationShrinkGlobalEffectRemover)removers.get(r));
+        r++;
+       }
+
+      removeEffects(group, axis, trainingData, effects, center);
+      center = true;
+     }
+   }
+
+  /**
+   * Removes a group of effects along the same axis with a single pass over the units.
+   */
+  protected void removeEffects(final List<EstimationShrinkGlobalEffectRemover> group, final int axis,
+                               final RatingsSource trainingData, final RatingsSource effects,
+                               final boolean firstCentering) throws GlobalEffectRemovalException
+   {
+    final int removersNumber = group.size();
+    final int units = axis == EstimationShrinkGlobalEffectRemover.USERS_AXIS ? trainingData.getUsersNumber() :
+                                                                             trainingData.getItemsNumber();
+    final double[][] thetas = new double[removersNumber][units];
+    final boolean aligned = EstimationShrinkGlobalEffectRemover.isAligned(effects, trainingData);
+
+    int parallelism = 1;
+    boolean concurrent = true;
+    for(EstimationShrinkGlobalEffectRemover remover : group)
+     {
+      remover.prepare(trainingData);
+      parallelism = Math.max(parallelism, remover.getParallelism());
+      concurrent &= remover.supportsConcurrentUpdates(trainingData) && remover.supportsConcurrentUpdates(effects);
+     }
+
+    RangeTask task = new RangeTask()
+     {
+      public void run(int from, int to)
+       {
+        EstimationShrinkGlobalEffectRemover.UnitWorker[] workers = new EstimationShrinkGlobalEffectRemover.UnitWorker[removersNumber];
+        for(int w = 0; w < removersNumber; w++)
+         workers[w] = group.get(w).createWorker(trainingData, firstCentering || w > 0);
+        EstimationShrinkGlobalEffectRemover.EffectsBuffer buffer = new EstimationShrinkGlobalEffectRemover.EffectsBuffer();
+
+        for(int unit = from; unit < to; unit++)
+         {
+          buffer.clear();
+          for(int w = 0; w < removersNumber; w++)
+           {
+            double theta = workers[w].estimate(unit);
+            thetas[w][unit] = theta;
+            if(!Double.isNaN(theta))
+             {
+              buffer.rewind();
+              workers[w].remove(unit, theta, buffer);
+             }
+           }
+          buffer.store(effects, axis, unit, aligned, true);
+         }
+       }
+     };
+
+    if(!concurrent || parallelism <= 1)
+     task.run(0, units);
+    else
+     {
+      ParallelRangeExecutor executor = ParallelRangeExecutor.getShared(parallelism);
+      try
+       {
+        executor.execute(units, task);
+       }
+      catch(ExecutionException e)
+       {
+        throw new GlobalEffectRemovalException("Cannot remove the global effects", ParallelRangeExecutor.getCheckedCause(e));
+       }
+      catch(InterruptedException e)
+       {
+        Thread.currentThread().interrupt();
+        throw new GlobalEffectRemovalException("Interrupted while removing the global effects", e);
+       }
+     }
+
+    for(int w = 0; w < removersNumber; w++)
+     group.get(w).thetas = thetas[w];
+   }
+ }
@@ -1,54 +1,98 @@
 package it.ludonet.tps.suggestion.preprocessor.impl;
 
-import it.ludonet.tps.suggestion.exception.GlobalEffectRemovalException;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
 import it.ludonet.tps.suggestion.source.RatingsSource;
-import it.ludonet.tps.suggestion.source.impl.RealSparseMatrixRatingSource;
-
-import java.util.Map;
 
 /**
  * This global effect remover implementation removes
  * the items main global effect.
  */
-public class ItemMainGlobalEffectRemover extends EstimationShrinkGlobalEffectRemover
+public class ItemMainGlobalEffectRemover extends MainGlobalEffectRemover
  {
 
-  public RatingsSource removeEffects(RatingsSource trainingData, boolean needCentering) throws GlobalEffectRemovalException
+  public int getAxis()
+   {
+    return ITEMS_AXIS;
+   }
+
+  protected UnitWorker createWorker(RatingsSource trainingData, boolean needCentering)
+   {
+    return new Worker(trainingData);
+   }
+
+  /**
+   * The visitors of the worker are reused for every item, so that no object
+   * is allocated for each rating.
+   */
+  private class Worker implements UnitWorker
    {
-    RatingsSource effects = new RealSparseMatrixRatingSource();
+    final RatingsSource trainingData;
+    final Regression regression;
+    final Residuals residuals;
 
-    for(int j = 0, n = trainingData.getItemsNumber(); j < n; j++)
+    Worker(RatingsSource trainingData)
      {
-      Map<Integer,Double> itemRatings = trainingData.getItemRatings(j);
-      int support = itemRatings.size();
+      this.trainingData = trainingData;
+      regression = new Regression();
+      residuals = new Residuals();
+     }
+
+    public double estimate(int unit)
+     {
+      int support = trainingData.getItemSupport(unit);
+      if(support == 0)
+       return Double.NaN;
 
-      double num = 0.0;
-      double den = 0.0;
-      for(Map.Entry<Integer, Double> entry : itemRatings.entrySet())
+      regression.num = 0.0;
+      regression.den = 0.0;
+      trainingData.walkItemRatings(unit, regression);
+
+      sums[unit] = regression.num;
+      counts[unit] = support;
+
+      double theta = regression.num / regression.den;
+      theta = shrinkEstimate(support, theta);
+      return theta;
+     }
+
+    public void remove(int unit, double theta, EffectsBuffer effects)
+     {
+      residuals.theta = theta;
+      residuals.effects = effects;
+      trainingData.walkItemRatings(unit, residuals);
+     }
+
+    private class Regression implements RatingVisitor
+     {
+      double num;
+      double den;
+
+      public void visit(int userIndex, double value)
        {
         // item main global effect doesn't need centering and the explanatory variables
         // are identically 1.
         double Xij = 1.0;
-        num += entry.getValue() * Xij;
+        num += value * Xij;
         den += Xij * Xij;
        }
+     }
 
-      double theta = num / den;
-      theta = shrinkEstimate(support, theta);
+    private class Residuals implements RatingChangingVisitor
+     {
+      double theta;
+      EffectsBuffer effects;
 
-      for(Map.Entry<Integer, Double> entry : itemRatings.entrySet())
+      public double visit(int userIndex, double value)
        {
         // item main global effect doesn't need centering and the explanatory variables
         // are identically 1.
         double Xij = 1.0;
         double estimate = theta * Xij;
-        effects.setRating(entry.getKey(), j, estimate);
-        trainingData.setRating(entry.getKey(), j, entry.getValue() - estimate);
+        effects.add(userIndex, estimate);
+        return value - estimate;
        }
-
      }
-
-    return effects;
    }
 
  }
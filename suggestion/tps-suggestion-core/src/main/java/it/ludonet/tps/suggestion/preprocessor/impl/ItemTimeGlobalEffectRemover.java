@@ -0,0 +1,15 @@
+package it.ludonet.tps.suggestion.preprocessor.impl;
+
+/**
+ * This global effect remover implementation removes the item &times; time effect:
+ * the drift of the ratings of each item since the first one.
+ */
+public class ItemTimeGlobalEffectRemover extends TimeGlobalEffectRemover
+ {
+
+  public int getAxis()
+   {
+    return ITEMS_AXIS;
+   }
+
+ }
@@ -0,0 +1,120 @@
+package it.ludonet.tps.suggestion.preprocessor.impl;
+
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+/**
+ * This abstract global effect remover is the base of the main effects, whose explanatory
+ * variables are identically 1: the effect of a unit is its shrunk mean rating. The remover
+ * keeps the sufficient statistics of each unit (the sum and the number of its ratings),
+ * so that the effect parameters can be updated incrementally when ratings are added,
+ * changed or removed, without removing the effects again.
+ */
+public abstract class MainGlobalEffectRemover extends EstimationShrinkGlobalEffectRemover
+ {
+
+  // sufficient statistics of each unit, as seen by the last removeEffects call
+  // and the following updates
+  protected double[] sums;
+  protected int[] counts;
+
+  public double getEffect(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    // the explanatory variables are identically 1
+    return getTheta(getAxis() == USERS_AXIS ? userIndex : itemIndex);
+   }
+
+  public void addEffects(int[] userIndexes, int[] itemIndexes, double[] predictions, int from, int to) throws IndexOutOfBoundsException
+   {
+    double[] thetas = this.thetas;
+    if(thetas == null)
+     throw new IllegalStateException("The effects have not been removed yet");
+
+    // a plain gather loop, without calls nor checks beyond the array bounds
+    int[] units = getAxis() == USERS_AXIS ? userIndexes : itemIndexes;
+    for(int k = from; k < to; k++)
+     {
+      double theta = thetas[units[k]];
+      predictions[k] += theta == theta ? theta : 0.0;
+     }
+   }
+
+  protected int getUnitsNumber(RatingsSource trainingData)
+   {
+    return getAxis() == USERS_AXIS ? trainingData.getUsersNumber() : trainingData.getItemsNumber();
+   }
+
+  protected void prepare(RatingsSource trainingData)
+   {
+    int units = getUnitsNumber(trainingData);
+    sums = new double[units];
+    counts = new int[units];
+   }
+
+  /**
+   * Updates the sufficient statistics of a unit and estimates again its parameter.
+   * This method must not be called concurrently with other updates.
+   *
+   * @param unit The user or item index.
+   * @param sumChange The change of the sum of the ratings of the unit.
+   * @param countChange The change of the number of ratings of the unit.
+   *
+   * @return The change of the effect parameter of the unit.
+   *
+   * @throws IndexOutOfBoundsException If the unit falls outside the ranges of the
+   * training data.
+   * @throws IllegalStateException If the effects have not been removed yet.
+   */
+  public double updateStatistics(int unit, double sumChange, int countChange) throws IndexOutOfBoundsException,
+                                                                                    IllegalStateException
+   {
+    double oldTheta = getTheta(unit);
+    if(sums == null)
+     throw new IllegalStateException("The statistics of the effect are not available");
+
+    double sum = sums[unit] + sumChange;
+    int count = counts[unit] + countChange;
+    if(count < 0)
+     throw new IllegalStateException("Negative support for unit " + unit);
+
+    sums[unit] = sum;
+    counts[unit] = count;
+    if(count == 0)
+     {
+      thetas[unit] = Double.NaN;
+      return -oldTheta;
+     }
+
+    double theta = shrinkEstimate(count, sum / count);
+    thetas[unit] = theta;
+    return theta - oldTheta;
+   }
+
+  public void writeSnapshot(SnapshotWriter writer, String prefix) throws IllegalStateException
+   {
+    super.writeSnapshot(writer, prefix);
+    writer.putDoubles(prefix + "sums", sums);
+    writer.putInts(prefix + "counts", counts);
+   }
+
+  public void readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    super.readSnapshot(snapshot, prefix);
+
+    // the statistics are changed by the updates, so they are copied; snapshots
+    // written before the statistics were kept don't support updates
+    sums = null;
+    counts = null;
+    if(snapshot.contains(prefix + "sums"))
+     {
+      sums = snapshot.copyDoubles(prefix + "sums");
+      IntBuffer buffer = snapshot.getInts(prefix + "counts");
+      counts = new int[buffer.capacity()];
+      buffer.get(counts);
+     }
+   }
+ }
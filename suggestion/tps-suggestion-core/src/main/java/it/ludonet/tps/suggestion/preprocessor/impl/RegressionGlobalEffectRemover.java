@@ -0,0 +1,165 @@
+package it.ludonet.tps.suggestion.preprocessor.impl;
+
+import it.ludonet.tps.suggestion.exception.GlobalEffectRemovalException;
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.io.IOException;
+
+/**
+ * This abstract global effect remover estimates, for each unit, the parameter of
+ * the model <code>r<sub>ij</sub> = theta * x<sub>ij</sub></code>, where the explanatory
+ * variable <code>x<sub>ij</sub></code> is provided by the subclasses, using the
+ * {@link ShrunkenRegression} kernel. When the effect must be centered, the explanatory
+ * variables are centered on their mean over the ratings of the unit, and the means are
+ * kept to compute the effect of any user-item couple.
+ */
+public abstract class RegressionGlobalEffectRemover extends EstimationShrinkGlobalEffectRemover
+ {
+
+  // means of the explanatory variables of each unit, 0 if they are not centered
+  protected double[] means;
+
+  public double getEffect(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    int unit = getAxis() == USERS_AXIS ? userIndex : itemIndex;
+    double theta = getTheta(unit);
+    if(theta == 0.0)
+     return 0.0;
+    return theta * (getVariable(userIndex, itemIndex) - means[unit]);
+   }
+
+  protected int getUnitsNumber(RatingsSource trainingData)
+   {
+    return getAxis() == USERS_AXIS ? trainingData.getUsersNumber() : trainingData.getItemsNumber();
+   }
+
+  protected void prepare(RatingsSource trainingData) throws GlobalEffectRemovalException
+   {
+    prepareVariables(trainingData);
+    means = new double[getUnitsNumber(trainingData)];
+   }
+
+  /**
+   * Prepares the data needed by {@link #getVariable(int, int)} for the
+   * provided training data.
+   *
+   * @param trainingData The training data.
+   *
+   * @throws GlobalEffectRemovalException If the explanatory variables cannot be computed.
+   */
+  protected abstract void prepareVariables(RatingsSource trainingData) throws GlobalEffectRemovalException;
+
+  /**
+   * Returns the explanatory variable of a user-item couple. This method is called
+   * concurrently by the workers, so it must not modify the state of the remover.
+   *
+   * @param userIndex The 0-based user index.
+   * @param itemIndex The 0-based item index.
+   *
+   * @return The explanatory variable.
+   */
+  protected abstract double getVariable(int userIndex, int itemIndex);
+
+  protected UnitWorker createWorker(RatingsSource trainingData, boolean needCentering)
+   {
+    return new Worker(trainingData, needCentering);
+   }
+
+  public void writeSnapshot(SnapshotWriter writer, String prefix) throws IllegalStateException
+   {
+    super.writeSnapshot(writer, prefix);
+    writer.putDoubles(prefix + "means", means);
+   }
+
+  public void readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    super.readSnapshot(snapshot, prefix);
+    means = snapshot.copyDoubles(prefix + "means");
+   }
+
+  /**
+   * The worker gathers the ratings of a unit in the kernel, and keeps them
+   * until the effect of the same unit is removed.
+   */
+  private class Worker implements UnitWorker
+   {
+    final RatingsSource trainingData;
+    final boolean needCentering;
+    final ShrunkenRegression kernel;
+    final Gather gather;
+    final Residuals residuals;
+    int lastUnit;
+
+    Worker(RatingsSource trainingData, boolean needCentering)
+     {
+      this.trainingData = trainingData;
+      this.needCentering = needCentering;
+      kernel = new ShrunkenRegression();
+      gather = new Gather();
+      residuals = new Residuals();
+      lastUnit = -1;
+     }
+
+    public double estimate(int unit)
+     {
+      double theta = solve(unit);
+      means[unit] = kernel.getMean();
+      return theta;
+     }
+
+    public void remove(int unit, double theta, EffectsBuffer effects)
+     {
+      if(unit != lastUnit)
+       solve(unit);
+
+      residuals.theta = theta;
+      residuals.effects = effects;
+      residuals.position = 0;
+      if(getAxis() == USERS_AXIS)
+       trainingData.walkUserRatings(unit, residuals);
+      else
+       trainingData.walkItemRatings(unit, residuals);
+     }
+
+    private double solve(int unit)
+     {
+      kernel.clear();
+      gather.unit = unit;
+      if(getAxis() == USERS_AXIS)
+       trainingData.walkUserRatings(unit, gather);
+      else
+       trainingData.walkItemRatings(unit, gather);
+      lastUnit = unit;
+      return kernel.solve(alpha, needCentering);
+     }
+
+    private class Gather implements RatingVisitor
+     {
+      int unit;
+
+      public void visit(int index, double value)
+       {
+        double x = getAxis() == USERS_AXIS ? getVariable(unit, index) : getVariable(index, unit);
+        kernel.add(value, x);
+       }
+     }
+
+    private class Residuals implements RatingChangingVisitor
+     {
+      double theta;
+      EffectsBuffer effects;
+      int position;
+
+      public double visit(int index, double value)
+       {
+        double estimate = theta * kernel.getVariable(position++);
+        effects.add(index, estimate);
+        return value - estimate;
+       }
+     }
+   }
+ }
@@ -0,0 +1,124 @@
+package it.ludonet.tps.suggestion.preprocessor.impl;
+
+/**
+ * This class is the kernel shared by the regression-based global effects: it estimates
+ * the parameter <code>theta</code> of the model <code>r = theta * x</code> from the ratings
+ * of a single unit (user or item) and shrinks it towards zero according to their number,
+ * as described in the Bell-Koren paper.
+ * <p>
+ * The ratings and the explanatory variables are held in primitive arrays that grow as
+ * needed and are reused for every unit, so that no object is allocated for each rating.
+ * An instance is used by a single thread at a time.
+ */
+public class ShrunkenRegression
+ {
+
+  private double[] values;
+  private double[] variables;
+  private int size;
+  private double mean;
+
+  public ShrunkenRegression()
+   {
+    values = new double[64];
+    variables = new double[64];
+   }
+
+  /**
+   * Empties the kernel, before the ratings of a new unit are added.
+   */
+  public void clear()
+   {
+    size = 0;
+    mean = 0.0;
+   }
+
+  /**
+   * Adds a rating of the unit.
+   *
+   * @param value The rating value.
+   * @param variable The explanatory variable of the rating.
+   */
+  public void add(double value, double variable)
+   {
+    if(size == values.length)
+     {
+      double[] newValues = new double[2 * size];
+      System.arraycopy(values, 0, newValues, 0, size);
+      values = newValues;
+      double[] newVariables = new double[2 * size];
+      System.arraycopy(variables, 0, newVariables, 0, size);
+      variables = newVariables;
+     }
+    values[size] = value;
+    variables[size] = variable;
+    size++;
+   }
+
+  public int size()
+   {
+    return size;
+   }
+
+  /**
+   * Estimates the shrunk parameter from the added ratings.
+   *
+   * @param alpha The shrinkage: the raw estimate is multiplied by <code>n / (n + alpha)</code>,
+   * where <code>n</code> is the number of ratings.
+   * @param center If <code>true</code> the explanatory variables are centered on their mean
+   * over the ratings of the unit.
+   *
+   * @return The shrunk parameter, <code>0.0</code> if the explanatory variables are
+   * identically zero, or {@link Double#NaN} if no rating was added.
+   */
+  public double solve(double alpha, boolean center)
+   {
+    if(size == 0)
+     return Double.NaN;
+
+    mean = 0.0;
+    if(center)
+     {
+      for(int k = 0; k < size; k++)
+       mean += variables[k];
+      mean /= size;
+     }
+
+    double num = 0.0;
+    double den = 0.0;
+    for(int k = 0; k < size; k++)
+     {
+      double x = variables[k] - mean;
+      num += values[k] * x;
+      den += x * x;
+     }
+    if(den == 0.0)
+     return 0.0;
+
+    return size * (num / den) / (size + alpha);
+   }
+
+  /**
+   * Returns the mean the explanatory variables have been centered on by
+   * the last {@link #solve(double, boolean)} call.
+   *
+   * @return The mean of the explanatory variables, or <code>0.0</code> if they
+   * have not been centered.
+   */
+  public double getMean()
+   {
+    return mean;
+   }
+
+  /**
+   * Returns the centered explanatory variable of a rating.
+   *
+   * @param k The position of the rating, in the order it has been added.
+   *
+   * @return The explanatory variable of the rating minus the mean.
+   */
+  public double getVariable(int k)
+   {
+    return variables[k] - mean;
+   }
+ }
@@ -0,0 +1,105 @@
+package it.ludonet.tps.suggestion.preprocessor.impl;
+
+import it.ludonet.tps.suggestion.exception.GlobalEffectRemovalException;
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.io.IOException;
+
+/**
+ * This abstract global effect remover models the drift of the ratings of a unit
+ * over time: the explanatory variable of a rating is the square root of the number
+ * of days elapsed since the first rating of the unit.
+ * <p>
+ * The dates of the ratings are read from a {@link #setDates(RatingsSource) dates source},
+ * with the same users and items of the training data, holding the day number of each
+ * rating (numbers start from 1, <code>0</code> means that the date is unknown). The couples
+ * without a date, like the ones whose rating is predicted, are considered as rated on the
+ * last date of the unit.
+ */
+public abstract class TimeGlobalEffectRemover extends RegressionGlobalEffectRemover
+ {
+
+  protected RatingsSource dates;
+  // first and last day of each unit
+  protected double[] firstDates;
+  protected double[] lastDates;
+
+  public RatingsSource getDates()
+   {
+    return dates;
+   }
+
+  public void setDates(RatingsSource dates)
+   {
+    this.dates = dates;
+   }
+
+  protected void prepareVariables(RatingsSource trainingData) throws GlobalEffectRemovalException
+   {
+    if(dates == null)
+     throw new GlobalEffectRemovalException("Cannot remove a time effect without the dates of the ratings");
+    if(dates.getUsersNumber() != trainingData.getUsersNumber() || dates.getItemsNumber() != trainingData.getItemsNumber())
+     throw new GlobalEffectRemovalException("The dates source doesn't match the training data");
+
+    int units = getUnitsNumber(trainingData);
+    double[] firstDates = new double[units];
+    double[] lastDates = new double[units];
+    DateRange range = new DateRange();
+    for(int unit = 0; unit < units; unit++)
+     {
+      range.first = Double.POSITIVE_INFINITY;
+      range.last = 0.0;
+      if(getAxis() == USERS_AXIS)
+       dates.walkUserRatings(unit, range);
+      else
+       dates.walkItemRatings(unit, range);
+      firstDates[unit] = range.last > 0.0 ? range.first : 0.0;
+      lastDates[unit] = range.last;
+     }
+
+    this.firstDates = firstDates;
+    this.lastDates = lastDates;
+   }
+
+  protected double getVariable(int userIndex, int itemIndex)
+   {
+    int unit = getAxis() == USERS_AXIS ? userIndex : itemIndex;
+    double date = dates == null ? 0.0 : dates.getRating(userIndex, itemIndex);
+    if(date <= 0.0)
+     date = lastDates[unit];
+    return Math.sqrt(Math.max(0.0, date - firstDates[unit]));
+   }
+
+  public void writeSnapshot(SnapshotWriter writer, String prefix) throws IllegalStateException
+   {
+    super.writeSnapshot(writer, prefix);
+    writer.putDoubles(prefix + "firstDates", firstDates);
+    writer.putDoubles(prefix + "lastDates", lastDates);
+   }
+
+  public void readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    super.readSnapshot(snapshot, prefix);
+    firstDates = snapshot.copyDoubles(prefix + "firstDates");
+    lastDates = snapshot.copyDoubles(prefix + "lastDates");
+   }
+
+  private static class DateRange implements RatingVisitor
+   {
+    double first;
+    double last;
+
+    public void visit(int index, double value)
+     {
+      if(value <= 0.0)
+       return;
+      if(value < first)
+       first = value;
+      if(value > last)
+       last = value;
+     }
+   }
+ }
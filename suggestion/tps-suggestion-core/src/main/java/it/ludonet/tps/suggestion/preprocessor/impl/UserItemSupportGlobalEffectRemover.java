@@ -0,0 +1,51 @@
+package it.ludonet.tps.suggestion.preprocessor.impl;
+
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.io.IOException;
+
+/**
+ * This global effect remover implementation removes the user &times; item support
+ * effect: how much each user likes popular items, where the explanatory variable
+ * of a rating is the square root of the number of ratings of the item.
+ */
+public class UserItemSupportGlobalEffectRemover extends RegressionGlobalEffectRemover
+ {
+
+  // square root of the support of each item in the training data
+  protected double[] itemSupports;
+
+  public int getAxis()
+   {
+    return USERS_AXIS;
+   }
+
+  protected void prepareVariables(RatingsSource trainingData)
+   {
+    int items = trainingData.getItemsNumber();
+    double[] itemSupports = new double[items];
+    for(int j = 0; j < items; j++)
+     itemSupports[j] = Math.sqrt(trainingData.getItemSupport(j));
+    this.itemSupports = itemSupports;
+   }
+
+  protected double getVariable(int userIndex, int itemIndex)
+   {
+    return itemSupports[itemIndex];
+   }
+
+  public void writeSnapshot(SnapshotWriter writer, String prefix) throws IllegalStateException
+   {
+    super.writeSnapshot(writer, prefix);
+    writer.putDoubles(prefix + "itemSupports", itemSupports);
+   }
+
+  public void readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    super.readSnapshot(snapshot, prefix);
+    itemSupports = snapshot.copyDoubles(prefix + "itemSupports");
+   }
+
+ }
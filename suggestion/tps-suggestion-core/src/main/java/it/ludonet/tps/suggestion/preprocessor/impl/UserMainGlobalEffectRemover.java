@@ -1,53 +1,98 @@
 package it.ludonet.tps.suggestion.preprocessor.impl;
 
-import it.ludonet.tps.suggestion.exception.GlobalEffectRemovalException;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
 import it.ludonet.tps.suggestion.source.RatingsSource;
-import it.ludonet.tps.suggestion.source.impl.RealSparseMatrixRatingSource;
-
-import java.util.Map;
 
 /**
  * This global effect remover implementation removes
  * the users main global effect.
  */
-public class UserMainGlobalEffectRemover extends EstimationShrinkGlobalEffectRemover
+public class UserMainGlobalEffectRemover extends MainGlobalEffectRemover
  {
 
-  public RatingsSource removeEffects(RatingsSource trainingData, boolean needCentering) throws GlobalEffectRemovalException
+  public int getAxis()
+   {
+    return USERS_AXIS;
+   }
+
+  protected UnitWorker createWorker(RatingsSource trainingData, boolean needCentering)
+   {
+    return new Worker(trainingData);
+   }
+
+  /**
+   * The visitors of the worker are reused for every user, so that no object
+   * is allocated for each rating.
+   */
+  private class Worker implements UnitWorker
    {
-    RatingsSource effects = new RealSparseMatrixRatingSource();
+    final RatingsSource trainingData;
+    final Regression regression;
+    final Residuals residuals;
+
+    Worker(RatingsSource trainingData)
+     {
+      this.trainingData = trainingData;
+      regression = new Regression();
+      residuals = new Residuals();
+     }
+
+    public double estimate(int unit)
+     {
+      int support = trainingData.getUserSupport(unit);
+      if(support == 0)
+       return Double.NaN;
+
+      regression.num = 0.0;
+      regression.den = 0.0;
+      trainingData.walkUserRatings(unit, regression);
 
-    for(int i = 0, m = trainingData.getUsersNumber(); i < m; i++)
+      sums[unit] = regression.num;
+      counts[unit] = support;
+
+      double theta = regression.num / regression.den;
+      theta = shrinkEstimate(support, theta);
+      return theta;
+     }
+
+    public void remove(int unit, double theta, EffectsBuffer effects)
+     {
+      residuals.theta = theta;
+      residuals.effects = effects;
+      trainingData.walkUserRatings(unit, residuals);
+     }
+
+    private class Regression implements RatingVisitor
      {
-      Map<Integer, Double> userRatings = trainingData.getUserRatings(i);
-      int support = userRatings.size();
-      double num = 0.0;
-      double den = 0.0;
-      for(Map.Entry<Integer, Double> entry : userRatings.entrySet())
+      double num;
+      double den;
+
+      public void visit(int itemIndex, double value)
        {
         // user main global effect doesn't need centering and the explanatory variables
         // are identically 1.
         double Xij = 1.0;
-        num += entry.getValue() * Xij;
+        num += value * Xij;
         den += Xij * Xij;
        }
+     }
 
-      double theta = num / den;
-      theta = shrinkEstimate(support, theta);
+    private class Residuals implements RatingChangingVisitor
+     {
+      double theta;
+      EffectsBuffer effects;
 
-      for(Map.Entry<Integer, Double> entry : userRatings.entrySet())
+      public double visit(int itemIndex, double value)
        {
         // user main global effect doesn't need centering and the explanatory variables
         // are identically 1.
         double Xij = 1.0;
         double estimate = theta * Xij;
-        effects.setRating(i, entry.getKey(), estimate);
-        trainingData.setRating(i, entry.getKey(), entry.getValue() - estimate);
+        effects.add(itemIndex, estimate);
+        return value - estimate;
        }
-
      }
-
-    return effects;
    }
 
  }
@@ -0,0 +1,15 @@
+package it.ludonet.tps.suggestion.preprocessor.impl;
+
+/**
+ * This global effect remover implementation removes the user &times; time effect:
+ * the drift of the ratings of each user since the first one.
+ */
+public class UserTimeGlobalEffectRemover extends TimeGlobalEffectRemover
+ {
+
+  public int getAxis()
+   {
+    return USERS_AXIS;
+   }
+
+ }
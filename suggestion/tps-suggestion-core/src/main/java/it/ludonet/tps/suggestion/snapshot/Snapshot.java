@@ -0,0 +1,237 @@
+package it.ludonet.tps.suggestion.snapshot;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A snapshot file written by a {@link SnapshotWriter}, mapped in memory.
+ * <p>
+ * The sections are mapped with {@link FileChannel#map(FileChannel.MapMode, long, long)}
+ * and returned as views of the mapped regions, so opening a snapshot only reads its
+ * header, and several processes opening the same file share the same pages of the
+ * operating system cache.
+ * <p>
+ * A snapshot is read only, unless it is opened in copy on write mode: in this case
+ * the buffers can be modified, and the modified pages become private to the process
+ * without changing the file.
+ * <p>
+ * A snapshot can also be held in memory, when it is created by
+ * {@link SnapshotWriter#toSnapshot()}; its buffers are read only.
+ */
+public class Snapshot
+ {
+
+  private final int version;
+  private final Map<String, Buffer> sections;
+
+  Snapshot(int version, Map<String, Buffer> sections)
+   {
+    this.version = version;
+    this.sections = sections;
+   }
+
+  /**
+   * Opens and maps a snapshot file.
+   *
+   * @param file The snapshot file.
+   * @param copyOnWrite <code>true</code> if the returned buffers can be modified.
+   * In this case the file must be writable, even if it is never modified.
+   *
+   * @return The mapped snapshot.
+   *
+   * @throws IOException If the file cannot be read or isn't a valid snapshot.
+   */
+  public static Snapshot open(File file, boolean copyOnWrite) throws IOException
+   {
+    // private mappings need a channel open for writing, even if the file is never modified
+    RandomAccessFile input = new RandomAccessFile(file, copyOnWrite ? "rw" : "r");
+    try
+     {
+      FileChannel channel = input.getChannel();
+      long fileSize = channel.size();
+
+      DataInputStream header = new DataInputStream(new BufferedInputStream(new FileInputStream(input.getFD())));
+      int magic = header.readInt();
+      if(magic != SnapshotFormat.MAGIC)
+       throw new IOException(file + " is not a snapshot file");
+      int version = header.readInt();
+      if(version > SnapshotFormat.VERSION)
+       throw new IOException("Unsupported snapshot version " + version + " in " + file);
+      ByteOrder order = header.readByte() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+      FileChannel.MapMode mode = copyOnWrite ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY;
+      int sectionsNumber = header.readInt();
+      Map<String, Buffer> sections = new HashMap<String, Buffer>(2 * sectionsNumber);
+      // sections sharing the same data are mapped once; an empty section has the
+      // offset of the next one, so the type and the length are part of the key
+      Map<SectionKey, Buffer> mapped = new HashMap<SectionKey, Buffer>();
+      for(int s = 0; s < sectionsNumber; s++)
+       {
+        String name = header.readUTF();
+        byte type = header.readByte();
+        long offset = header.readLong();
+        int length = header.readInt();
+
+        long size = (long)length * SnapshotFormat.getElementSize(type);
+        if(offset < 0 || length < 0 || offset + size > fileSize)
+         throw new IOException("Invalid section " + name + " in " + file);
+
+        SectionKey key = new SectionKey(offset, type, length);
+        Buffer values = mapped.get(key);
+        if(values == null)
+         {
+          values = view(channel.map(mode, offset, size).order(order), type);
+          mapped.put(key, values);
+         }
+        sections.put(name, values);
+       }
+
+      return new Snapshot(version, sections);
+     }
+    finally
+     {
+      // the mapped regions stay valid after the file is closed
+      input.close();
+     }
+   }
+
+  public int getVersion()
+   {
+    return version;
+   }
+
+  public boolean contains(String name)
+   {
+    return sections.containsKey(name);
+   }
+
+  public ByteBuffer getBytes(String name) throws IOException
+   {
+    return get(name, ByteBuffer.class);
+   }
+
+  public ShortBuffer getShorts(String name) throws IOException
+   {
+    return get(name, ShortBuffer.class);
+   }
+
+  public IntBuffer getInts(String name) throws IOException
+   {
+    return get(name, IntBuffer.class);
+   }
+
+  public LongBuffer getLongs(String name) throws IOException
+   {
+    return get(name, LongBuffer.class);
+   }
+
+  public FloatBuffer getFloats(String name) throws IOException
+   {
+    return get(name, FloatBuffer.class);
+   }
+
+  public DoubleBuffer getDoubles(String name) throws IOException
+   {
+    return get(name, DoubleBuffer.class);
+   }
+
+  public int getInt(String name) throws IOException
+   {
+    return getInts(name).get(0);
+   }
+
+  public double getDouble(String name) throws IOException
+   {
+    return getDoubles(name).get(0);
+   }
+
+  public String getString(String name) throws IOException
+   {
+    ByteBuffer bytes = getBytes(name);
+    byte[] value = new byte[bytes.capacity()];
+    for(int b = 0; b < value.length; b++)
+     value[b] = bytes.get(b);
+    return new String(value, "UTF-8");
+   }
+
+  /**
+   * Copies a section of doubles in a new array.
+   *
+   * @param name The name of the section.
+   *
+   * @return The new array.
+   *
+   * @throws IOException If the section doesn't exist or has a different type.
+   */
+  public double[] copyDoubles(String name) throws IOException
+   {
+    DoubleBuffer values = getDoubles(name).duplicate();
+    values.clear();
+    double[] ret = new double[values.capacity()];
+    values.get(ret);
+    return ret;
+   }
+
+  private <T extends Buffer> T get(String name, Class<T> type) throws IOException
+   {
+    Buffer values = sections.get(name);
+    if(values == null)
+     throw new IOException("Missing snapshot section " + name);
+    if(!type.isInstance(values))
+     throw new IOException("Invalid type of the snapshot section " + name);
+    return type.cast(values);
+   }
+
+  static Buffer view(ByteBuffer bytes, byte type)
+   {
+    switch(type)
+     {
+      case SnapshotFormat.BYTE:
+       return bytes;
+      case SnapshotFormat.SHORT:
+       return bytes.asShortBuffer();
+      case SnapshotFormat.INT:
+       return bytes.asIntBuffer();
+      case SnapshotFormat.LONG:
+       return bytes.asLongBuffer();
+      case SnapshotFormat.FLOAT:
+       return bytes.asFloatBuffer();
+      default:
+       return bytes.asDoubleBuffer();
+     }
+   }
+
+  /**
+   * The region of the file of a section, used to map the shared sections once.
+   */
+  private static class SectionKey
+   {
+    private final long offset;
+    private final byte type;
+    private final int length;
+
+    SectionKey(long offset, byte type, int length)
+     {
+      this.offset = offset;
+      this.type = type;
+      this.length = length;
+     }
+
+    @Override
+    public boolean equals(Object other)
+     {
+      if(!(other instanceof SectionKey))
+       return false;
+      SectionKey key = (SectionKey)other;
+      return offset == key.offset && type == key.type && length == key.length;
+     }
+
+    @Override
+    public int hashCode()
+     {
+      return (int)(offset ^ (offset >>> 32)) * 31 * 31 + type * 31 + length;
+     }
+   }
+ }
@@ -0,0 +1,62 @@
+package it.ludonet.tps.suggestion.snapshot;
+
+/**
+ * The constants of the snapshot file format.
+ * <p>
+ * A snapshot file starts with a header, always written in big endian order:
+ * <ul>
+ * <li>the magic number {@link #MAGIC} and the format {@link #VERSION};</li>
+ * <li>the byte order of the sections data (0 for big endian, 1 for little endian);</li>
+ * <li>the number of sections and, for each section, its name, its element type,
+ * the offset of its data and its number of elements.</li>
+ * </ul>
+ * The data of each section follows the header, aligned to {@link #ALIGNMENT} bytes,
+ * in the raw binary layout of the corresponding primitive array, so that it can be
+ * mapped in memory and used without any parsing.
+ */
+public final class SnapshotFormat
+ {
+
+  public static final int MAGIC = 0x54505353;
+
+  public static final int VERSION = 1;
+
+  public static final int ALIGNMENT = 64;
+
+  public static final byte BYTE = 1;
+  public static final byte SHORT = 2;
+  public static final byte INT = 3;
+  public static final byte LONG = 4;
+  public static final byte FLOAT = 5;
+  public static final byte DOUBLE = 6;
+
+  private SnapshotFormat()
+   {
+   }
+
+  /**
+   * Returns the size in bytes of the elements of the provided type.
+   *
+   * @param type The element type.
+   *
+   * @return The size in bytes of an element.
+   */
+  public static int getElementSize(byte type)
+   {
+    switch(type)
+     {
+      case BYTE:
+       return 1;
+      case SHORT:
+       return 2;
+      case INT:
+      case FLOAT:
+       return 4;
+      case LONG:
+      case DOUBLE:
+       return 8;
+      default:
+       throw new IllegalArgumentException("Invalid element type " + type);
+     }
+   }
+ }
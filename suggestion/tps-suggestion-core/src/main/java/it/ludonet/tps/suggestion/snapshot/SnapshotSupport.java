@@ -0,0 +1,32 @@
+package it.ludonet.tps.suggestion.snapshot;
+
+import java.io.IOException;
+
+/**
+ * Implemented by the configurable components of a suggester, such as the global
+ * effect removers, that can save their trained state in a snapshot and restore it.
+ */
+public interface SnapshotSupport
+ {
+
+  /**
+   * Adds the trained state of this component to the snapshot.
+   *
+   * @param writer The snapshot writer.
+   * @param prefix The prefix of the names of the sections of this component.
+   *
+   * @throws IllegalStateException If this component has not been trained.
+   */
+  public void writeSnapshot(SnapshotWriter writer, String prefix) throws IllegalStateException;
+
+  /**
+   * Restores the trained state of this component from the snapshot.
+   *
+   * @param snapshot The snapshot.
+   * @param prefix The prefix of the names of the sections of this component.
+   *
+   * @throws IOException If the snapshot doesn't contain a valid state for this component.
+   */
+  public void readSnapshot(Snapshot snapshot, String prefix) throws IOException;
+
+ }
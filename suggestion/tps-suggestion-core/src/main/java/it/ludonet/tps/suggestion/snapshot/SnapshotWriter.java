@@ -0,0 +1,311 @@
+package it.ludonet.tps.suggestion.snapshot;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * This class collects the primitive arrays of a trained model as named sections
+ * and writes them to a snapshot file, that can be mapped back in memory by
+ * {@link Snapshot#open(File, boolean)}.
+ * <p>
+ * The sections are only referenced until {@link #writeTo(File)} is called, so
+ * they must not be modified in the meantime. If the same buffer is added as
+ * more than one section, its data is written once and the sections are mapped
+ * back to the same buffer.
+ * <p>
+ * The sections can also be copied in a read only {@link Snapshot} in memory
+ * with {@link #toSnapshot()}, without writing a file.
+ */
+public class SnapshotWriter
+ {
+
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private final List<String> names;
+  private final Map<String, Buffer> sections;
+
+  public SnapshotWriter()
+   {
+    names = new ArrayList<String>();
+    sections = new HashMap<String, Buffer>();
+   }
+
+  public SnapshotWriter putBytes(String name, ByteBuffer values)
+   {
+    return put(name, values);
+   }
+
+  public SnapshotWriter putShorts(String name, ShortBuffer values)
+   {
+    return put(name, values);
+   }
+
+  public SnapshotWriter putInts(String name, IntBuffer values)
+   {
+    return put(name, values);
+   }
+
+  public SnapshotWriter putInts(String name, int[] values)
+   {
+    return put(name, IntBuffer.wrap(values));
+   }
+
+  public SnapshotWriter putLongs(String name, LongBuffer values)
+   {
+    return put(name, values);
+   }
+
+  public SnapshotWriter putFloats(String name, FloatBuffer values)
+   {
+    return put(name, values);
+   }
+
+  public SnapshotWriter putFloats(String name, float[] values)
+   {
+    return put(name, FloatBuffer.wrap(values));
+   }
+
+  public SnapshotWriter putDoubles(String name, DoubleBuffer values)
+   {
+    return put(name, values);
+   }
+
+  public SnapshotWriter putDoubles(String name, double[] values)
+   {
+    return put(name, DoubleBuffer.wrap(values));
+   }
+
+  public SnapshotWriter putInt(String name, int value)
+   {
+    return putInts(name, new int[] { value });
+   }
+
+  public SnapshotWriter putDouble(String name, double value)
+   {
+    return putDoubles(name, new double[] { value });
+   }
+
+  public SnapshotWriter putString(String name, String value)
+   {
+    try
+     {
+      return put(name, ByteBuffer.wrap(value.getBytes("UTF-8")));
+     }
+    catch(UnsupportedEncodingException e)
+     {
+      throw new IllegalStateException("UTF-8 not supported", e);
+     }
+   }
+
+  /**
+   * Writes the collected sections to the provided file, replacing it. The sections
+   * are written to a temporary file in the same directory, which is then renamed to
+   * the provided one: readers never see a partially written snapshot, and the processes
+   * that have mapped the old file keep using its data. On platforms where a file cannot
+   * be renamed over an existing one, the old file is deleted first.
+   *
+   * @param file The snapshot file.
+   *
+   * @throws IOException If an error occurs while writing the file, or if a section
+   * is larger than the maximum size of a mapped region.
+   */
+  public void writeTo(File file) throws IOException
+   {
+    ByteOrder order = ByteOrder.nativeOrder();
+
+    // assign the offsets, writing once the buffers added more than once
+    Map<Buffer, Long> offsets = new IdentityHashMap<Buffer, Long>();
+    List<Buffer> distinct = new ArrayList<Buffer>();
+    long offset = align(getHeaderSize());
+    for(String name : names)
+     {
+      Buffer values = sections.get(name);
+      long size = (long)values.capacity() * SnapshotFormat.getElementSize(getType(values));
+      if(size > Integer.MAX_VALUE)
+       throw new IOException("Section " + name + " is too large (" + size + " bytes)");
+      if(!offsets.containsKey(values))
+       {
+        offsets.put(values, offset);
+        distinct.add(values);
+        offset = align(offset + size);
+       }
+     }
+
+    File directory = file.getAbsoluteFile().getParentFile();
+    File temporary = File.createTempFile(file.getName() + ".", ".tmp", directory);
+    boolean written = false;
+    RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+    try
+     {
+      FileChannel channel = output.getChannel();
+
+      ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream(headerBytes);
+      header.writeInt(SnapshotFormat.MAGIC);
+      header.writeInt(SnapshotFormat.VERSION);
+      header.writeByte(order == ByteOrder.BIG_ENDIAN ? 0 : 1);
+      header.writeInt(names.size());
+      for(String name : names)
+       {
+        Buffer values = sections.get(name);
+        header.writeUTF(name);
+        header.writeByte(getType(values));
+        header.writeLong(offsets.get(values));
+        header.writeInt(values.capacity());
+       }
+      header.flush();
+      channel.write(ByteBuffer.wrap(headerBytes.toByteArray()), 0);
+
+      ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE).order(order);
+      for(Buffer values : distinct)
+       writeSection(channel, offsets.get(values), values, chunk);
+
+      output.setLength(offset);
+      channel.force(true);
+      output.close();
+
+      if(!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file)))
+       throw new IOException("Cannot replace " + file + " with " + temporary);
+      written = true;
+     }
+    finally
+     {
+      output.close();
+      if(!written)
+       temporary.delete();
+     }
+   }
+
+  /**
+   * Copies the collected sections in a new snapshot held in memory, with the same
+   * layout of a snapshot file written by {@link #writeTo(File)} and opened in read only
+   * mode. The snapshot doesn't share any data with the sections, which can be modified
+   * after this method returns.
+   *
+   * @return The snapshot.
+   *
+   * @throws IOException If a section is larger than the maximum size of a buffer.
+   */
+  public Snapshot toSnapshot() throws IOException
+   {
+    ByteOrder order = ByteOrder.nativeOrder();
+
+    Map<Buffer, Buffer> copies = new IdentityHashMap<Buffer, Buffer>();
+    Map<String, Buffer> copied = new HashMap<String, Buffer>(2 * names.size());
+    for(String name : names)
+     {
+      Buffer values = sections.get(name);
+      Buffer copy = copies.get(values);
+      if(copy == null)
+       {
+        byte type = getType(values);
+        int capacity = values.capacity();
+        long size = (long)capacity * SnapshotFormat.getElementSize(type);
+        if(size > Integer.MAX_VALUE)
+         throw new IOException("Section " + name + " is too large (" + size + " bytes)");
+        ByteBuffer bytes = ByteBuffer.allocate((int)size).order(order);
+        for(int position = 0; position < capacity; position++)
+         putElement(bytes, values, type, position);
+        bytes.flip();
+        copy = Snapshot.view(bytes.asReadOnlyBuffer().order(order), type);
+        copies.put(values, copy);
+       }
+      copied.put(name, copy);
+     }
+    return new Snapshot(SnapshotFormat.VERSION, copied);
+   }
+
+  private SnapshotWriter put(String name, Buffer values)
+   {
+    if(sections.containsKey(name))
+     throw new IllegalArgumentException("Duplicate section " + name);
+
+    names.add(name);
+    sections.put(name, values);
+    return this;
+   }
+
+  private int getHeaderSize() throws IOException
+   {
+    // same layout written by writeTo
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(bytes);
+    header.writeInt(0);
+    header.writeInt(0);
+    header.writeByte(0);
+    header.writeInt(0);
+    for(String name : names)
+     {
+      header.writeUTF(name);
+      header.writeByte(0);
+      header.writeLong(0);
+      header.writeInt(0);
+     }
+    header.flush();
+    return bytes.size();
+   }
+
+  private static void writeSection(FileChannel channel, long offset, Buffer values, ByteBuffer chunk) throws IOException
+   {
+    byte type = getType(values);
+    int elementSize = SnapshotFormat.getElementSize(type);
+    int capacity = values.capacity();
+    int position = 0;
+    while(position < capacity)
+     {
+      chunk.clear();
+      int count = Math.min(capacity - position, chunk.capacity() / elementSize);
+      for(int end = position + count; position < end; position++)
+       putElement(chunk, values, type, position);
+      chunk.flip();
+      while(chunk.hasRemaining())
+       offset += channel.write(chunk, offset);
+     }
+   }
+
+  private static void putElement(ByteBuffer target, Buffer values, byte type, int position)
+   {
+    switch(type)
+     {
+      case SnapshotFormat.BYTE:
+       target.put(((ByteBuffer)values).get(position));
+       break;
+      case SnapshotFormat.SHORT:
+       target.putShort(((ShortBuffer)values).get(position));
+       break;
+      case SnapshotFormat.INT:
+       target.putInt(((IntBuffer)values).get(position));
+       break;
+      case SnapshotFormat.LONG:
+       target.putLong(((LongBuffer)values).get(position));
+       break;
+      case SnapshotFormat.FLOAT:
+       target.putFloat(((FloatBuffer)values).get(position));
+       break;
+      default:
+       target.putDouble(((DoubleBuffer)values).get(position));
+     }
+   }
+
+  private static byte getType(Buffer values)
+   {
+    if(values instanceof ByteBuffer)
+     return SnapshotFormat.BYTE;
+    if(values instanceof ShortBuffer)
+     return SnapshotFormat.SHORT;
+    if(values instanceof IntBuffer)
+     return SnapshotFormat.INT;
+    if(values instanceof LongBuffer)
+     return SnapshotFormat.LONG;
+    if(values instanceof FloatBuffer)
+     return SnapshotFormat.FLOAT;
+    return SnapshotFormat.DOUBLE;
+   }
+
+  private static long align(long offset)
+   {
+    return (offset + SnapshotFormat.ALIGNMENT - 1) / SnapshotFormat.ALIGNMENT * SnapshotFormat.ALIGNMENT;
+   }
+ }
@@ -0,0 +1,48 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+/**
+ * Implemented by the rating sources whose structure (the set of user-item
+ * couples holding a rating) is fixed once they are loaded. Since updates never
+ * change the structure, different ratings can be updated concurrently by
+ * different threads, and sources with the same structure can share it.
+ */
+public interface CompactRatingsSource extends RatingsSource
+ {
+
+  /**
+   * Creates a new source with the same users, items and stored couples
+   * of this one, but with all the ratings set to <code>0.0</code>, sharing
+   * the structure of this source whenever possible.
+   *
+   * @return The new source.
+   */
+  public CompactRatingsSource createEmptyCopy();
+
+  /**
+   * Checks if the provided couple is stored in this source, so that a stored
+   * rating of <code>0.0</code> can be told apart from a missing one.
+   *
+   * @param userIndex The 0-based user index.
+   * @param itemIndex The 0-based item index.
+   *
+   * @return <code>true</code> if the couple is stored in this source.
+   *
+   * @throws IndexOutOfBoundsException If the user index or the item index
+   * falls of the source ranges.
+   */
+  public boolean containsRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException;
+
+  /**
+   * Checks if the provided source shares the structure of this one, like the
+   * sources created by {@link #createEmptyCopy()}. In this case the ratings of each
+   * user and of each item are walked in the same order in both sources.
+   *
+   * @param other The other source.
+   *
+   * @return <code>true</code> if the two sources share the same structure.
+   */
+  public boolean hasSameStructure(RatingsSource other);
+
+ }
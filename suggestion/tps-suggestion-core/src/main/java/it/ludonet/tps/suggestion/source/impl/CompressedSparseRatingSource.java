@@ -0,0 +1,850 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * This class implements an in-memory rating source that stores the
+ * ratings both in compressed sparse row (by user) and in compressed
+ * sparse column (by item) layout, using only primitive buffers. The buffers
+ * wrap heap arrays, or regions of a snapshot file mapped in memory when the
+ * source is read by {@link #readSnapshot(Snapshot, String)}. The rating values
+ * are stored as floats or quantized, according to the {@link RatingStorage}
+ * selected by {@link #init(int, int, RatingStorage)}.
+ * <p>
+ * The structure of the source (the set of user-item couples holding a
+ * rating) is built once by the {@link #load(int[], int[], float[], int)}
+ * or {@link #loadRows(int[], int[], float[])} methods and cannot be changed later: {@link #setRating(int, int, double)}
+ * can update the value of a stored rating, but cannot add new ones.
+ * Every stored couple is considered a valid rating, even if its value is
+ * <code>0.0</code>, so that residuals equal to zero are not lost.
+ * <p>
+ * Since updates never change the structure, different ratings can be
+ * updated concurrently by different threads.
+ */
+public class CompressedSparseRatingSource implements CompactRatingsSource
+ {
+
+  protected int usersNumber;
+  protected int itemsNumber;
+
+  // compressed sparse row layout: the ratings of user i are stored
+  // in positions [rowPointers[i], rowPointers[i + 1]), sorted by item index
+  protected IntBuffer rowPointers;
+  protected IntBuffer rowItems;
+  protected RatingValues rowValues;
+
+  // compressed sparse column layout: the ratings of item j are stored
+  // in positions [columnPointers[j], columnPointers[j + 1]), sorted by user index
+  protected IntBuffer columnPointers;
+  protected IntBuffer columnUsers;
+  protected RatingValues columnValues;
+
+  // for each position in the row layout, the position of the same rating
+  // in the column layout, and vice versa
+  protected IntBuffer rowToColumn;
+  protected IntBuffer columnToRow;
+
+  protected RatingStorage storage;
+
+  public void init(int usersNumber, int itemsNumber) throws RatingSourceAlreadyInitializedException
+   {
+    init(usersNumber, itemsNumber, RatingStorage.FLOAT);
+   }
+
+  /**
+   * Inits this rating source by setting the users and items number and
+   * the storage of the rating values. This method must be called only <b>once</b>.
+   *
+   * @param usersNumber The number of users.
+   * @param itemsNumber The number of items.
+   * @param storage The storage of the rating values.
+   *
+   * @throws RatingSourceAlreadyInitializedException If the source is already initialized when this
+   * method is called.
+   */
+  public void init(int usersNumber, int itemsNumber, RatingStorage storage) throws RatingSourceAlreadyInitializedException
+   {
+    if(rowPointers != null)
+     throw new RatingSourceAlreadyInitializedException("Rating source already initialized");
+
+    if(usersNumber < 0 || itemsNumber < 0)
+     throw new IllegalArgumentException("Invalid sizes (" + usersNumber + ", " + itemsNumber + ")");
+
+    this.usersNumber = usersNumber;
+    this.itemsNumber = itemsNumber;
+    this.storage = storage;
+
+    rowPointers = IntBuffer.wrap(new int[usersNumber + 1]);
+    rowItems = IntBuffer.wrap(new int[0]);
+    rowValues = storage.allocate(0);
+
+    columnPointers = IntBuffer.wrap(new int[itemsNumber + 1]);
+    columnUsers = IntBuffer.wrap(new int[0]);
+    columnValues = storage.allocate(0);
+
+    rowToColumn = IntBuffer.wrap(new int[0]);
+    columnToRow = IntBuffer.wrap(new int[0]);
+   }
+
+  /**
+   * Loads the provided ratings in this source, replacing the previous structure.
+   * The ratings are provided as three parallel arrays of user indexes, item indexes
+   * and values; only the first <code>count</code> elements of each array are read.
+   * If the same user-item couple appears more than once, the last value wins.
+   *
+   * @param userIndexes The 0-based user indexes.
+   * @param itemIndexes The 0-based item indexes.
+   * @param values The ratings values.
+   * @param count The number of ratings to load.
+   *
+   * @return A reference to this rating source, so that this method can be used in
+   * a method-call chain.
+   *
+   * @throws IndexOutOfBoundsException If a user or item index falls of the source ranges.
+   * @throws IllegalArgumentException If a value cannot be stored by the storage of this source.
+   */
+  public CompressedSparseRatingSource load(int[] userIndexes, int[] itemIndexes, float[] values, int count) throws IndexOutOfBoundsException
+   {
+    checkInitialized();
+
+    // count the ratings of each item
+    int[] pointers = new int[itemsNumber + 1];
+    for(int k = 0; k < count; k++)
+     {
+      int userIndex = userIndexes[k];
+      int itemIndex = itemIndexes[k];
+      if(userIndex < 0 || userIndex >= usersNumber || itemIndex < 0 || itemIndex >= itemsNumber)
+       throw new IndexOutOfBoundsException("Invalid indexes (" + userIndex + ", " + itemIndex + ")");
+      pointers[itemIndex + 1]++;
+     }
+    for(int j = 0; j < itemsNumber; j++)
+     pointers[j + 1] += pointers[j];
+
+    // scatter the ratings by item, keeping the input order inside each item
+    int[] users = new int[count];
+    float[] itemValues = new float[count];
+    int[] cursors = new int[itemsNumber];
+    System.arraycopy(pointers, 0, cursors, 0, itemsNumber);
+    for(int k = 0; k < count; k++)
+     {
+      int position = cursors[itemIndexes[k]]++;
+      users[position] = userIndexes[k];
+      itemValues[position] = values[k];
+     }
+
+    // scatter again by user walking the items in order, so that each row
+    // ends up sorted by item index and duplicates become adjacent
+    int[] newRowPointers = new int[usersNumber + 1];
+    for(int k = 0; k < count; k++)
+     newRowPointers[users[k] + 1]++;
+    for(int i = 0; i < usersNumber; i++)
+     newRowPointers[i + 1] += newRowPointers[i];
+
+    int[] newRowItems = new int[count];
+    float[] newRowValues = new float[count];
+    cursors = new int[usersNumber];
+    System.arraycopy(newRowPointers, 0, cursors, 0, usersNumber);
+    boolean duplicates = false;
+    for(int j = 0; j < itemsNumber; j++)
+     {
+      for(int k = pointers[j], end = pointers[j + 1]; k < end; k++)
+       {
+        int userIndex = users[k];
+        int position = cursors[userIndex];
+        if(position > newRowPointers[userIndex] && newRowItems[position - 1] == j)
+         {
+          newRowValues[position - 1] = itemValues[k];
+          duplicates = true;
+         }
+        else
+         {
+          newRowItems[position] = j;
+          newRowValues[position] = itemValues[k];
+          cursors[userIndex]++;
+         }
+       }
+     }
+
+    if(duplicates)
+     {
+      // rows have unused slots at their ends, compact them
+      int written = 0;
+      for(int i = 0; i < usersNumber; i++)
+       {
+        int start = newRowPointers[i];
+        int length = cursors[i] - start;
+        System.arraycopy(newRowItems, start, newRowItems, written, length);
+        System.arraycopy(newRowValues, start, newRowValues, written, length);
+        newRowPointers[i] = written;
+        written += length;
+       }
+      newRowPointers[usersNumber] = written;
+      newRowItems = trim(newRowItems, written);
+      newRowValues = trim(newRowValues, written);
+     }
+
+    rowPointers = IntBuffer.wrap(newRowPointers);
+    rowItems = IntBuffer.wrap(newRowItems);
+    rowValues = storage.wrap(newRowValues);
+    buildColumns();
+
+    return this;
+   }
+
+  /**
+   * Loads ratings already grouped by user in this source, replacing the previous
+   * structure. The ratings of user <code>i</code> are the ones stored in positions
+   * <code>[rowPointers[i], rowPointers[i + 1])</code> of the item and value arrays,
+   * in any order. The arrays are sorted and compacted in place and become part of
+   * this source, so they must not be modified afterwards. If the same user-item
+   * couple appears more than once in a row, the last value wins.
+   *
+   * @param rowPointers The <code>usersNumber + 1</code> row pointers.
+   * @param rowItems The 0-based item indexes.
+   * @param rowValues The ratings values.
+   *
+   * @return A reference to this rating source, so that this method can be used in
+   * a method-call chain.
+   *
+   * @throws IndexOutOfBoundsException If an item index falls of the source ranges.
+   * @throws IllegalArgumentException If the row pointers are not valid, or if a value
+   * cannot be stored by the storage of this source.
+   */
+  public CompressedSparseRatingSource loadRows(int[] rowPointers, int[] rowItems, float[] rowValues) throws IndexOutOfBoundsException,
+                                                                                                           IllegalArgumentException
+   {
+    checkInitialized();
+
+    if(rowPointers.length != usersNumber + 1 || rowPointers[0] != 0 ||
+       rowPointers[usersNumber] > rowItems.length || rowPointers[usersNumber] > rowValues.length)
+     throw new IllegalArgumentException("Invalid row pointers");
+
+    long[] keys = new long[16];
+    float[] values = new float[16];
+    int written = 0;
+    int start = 0;
+    for(int i = 0; i < usersNumber; i++)
+     {
+      int end = rowPointers[i + 1];
+      if(end < start)
+       throw new IllegalArgumentException("Invalid row pointers");
+
+      boolean sorted = true;
+      for(int k = start; k < end; k++)
+       {
+        int itemIndex = rowItems[k];
+        if(itemIndex < 0 || itemIndex >= itemsNumber)
+         throw new IndexOutOfBoundsException("Invalid indexes (" + i + ", " + itemIndex + ")");
+        if(k > start && itemIndex <= rowItems[k - 1])
+         sorted = false;
+       }
+
+      int length = end - start;
+      if(sorted)
+       {
+        if(written != start)
+         {
+          System.arraycopy(rowItems, start, rowItems, written, length);
+          System.arraycopy(rowValues, start, rowValues, written, length);
+         }
+        rowPointers[i] = written;
+        written += length;
+       }
+      else
+       {
+        // sort by item, keeping the input order of the duplicates
+        if(keys.length < length)
+         {
+          keys = new long[Math.max(length, 2 * keys.length)];
+          values = new float[keys.length];
+         }
+        for(int k = 0; k < length; k++)
+         {
+          keys[k] = ((long)rowItems[start + k] << 32) | k;
+          values[k] = rowValues[start + k];
+         }
+        Arrays.sort(keys, 0, length);
+
+        rowPointers[i] = written;
+        for(int k = 0; k < length; k++)
+         {
+          int itemIndex = (int)(keys[k] >>> 32);
+          if(k + 1 < length && (int)(keys[k + 1] >>> 32) == itemIndex)
+           continue;
+          rowItems[written] = itemIndex;
+          rowValues[written] = values[(int)keys[k]];
+          written++;
+         }
+       }
+      start = end;
+     }
+    rowPointers[usersNumber] = written;
+
+    this.rowPointers = IntBuffer.wrap(rowPointers);
+    this.rowItems = IntBuffer.wrap(written == rowItems.length ? rowItems : trim(rowItems, written));
+    this.rowValues = storage.wrap(written == rowValues.length ? rowValues : trim(rowValues, written));
+    buildColumns();
+
+    return this;
+   }
+
+  /**
+   * Rebuilds the column layout from the row layout.
+   */
+  protected void buildColumns()
+   {
+    int nonZeros = rowPointers.get(usersNumber);
+
+    int[] newColumnPointers = new int[itemsNumber + 1];
+    for(int k = 0; k < nonZeros; k++)
+     newColumnPointers[rowItems.get(k) + 1]++;
+    for(int j = 0; j < itemsNumber; j++)
+     newColumnPointers[j + 1] += newColumnPointers[j];
+
+    int[] newColumnUsers = new int[nonZeros];
+    RatingValues newColumnValues = storage.allocate(nonZeros);
+    int[] newRowToColumn = new int[nonZeros];
+    int[] newColumnToRow = new int[nonZeros];
+    int[] cursors = new int[itemsNumber];
+    System.arraycopy(newColumnPointers, 0, cursors, 0, itemsNumber);
+    // walking the rows in order keeps each column sorted by user index
+    for(int i = 0; i < usersNumber; i++)
+     {
+      for(int k = rowPointers.get(i), end = rowPointers.get(i + 1); k < end; k++)
+       {
+        int position = cursors[rowItems.get(k)]++;
+        newColumnUsers[position] = i;
+        newColumnValues.put(position, rowValues.get(k));
+        newRowToColumn[k] = position;
+        newColumnToRow[position] = k;
+       }
+     }
+
+    columnPointers = IntBuffer.wrap(newColumnPointers);
+    columnUsers = IntBuffer.wrap(newColumnUsers);
+    columnValues = newColumnValues;
+    rowToColumn = IntBuffer.wrap(newRowToColumn);
+    columnToRow = IntBuffer.wrap(newColumnToRow);
+   }
+
+  /**
+   * Returns the number of ratings stored in this source.
+   *
+   * @return The number of ratings stored in this source.
+   */
+  public int getRatingsNumber()
+   {
+    checkInitialized();
+    return rowPointers.get(usersNumber);
+   }
+
+  public RatingStorage getStorage()
+   {
+    return storage;
+   }
+
+  public int getUsersNumber()
+   {
+    return usersNumber;
+   }
+
+  public int getItemsNumber()
+   {
+    return itemsNumber;
+   }
+
+  public double getRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    int position = findPosition(userIndex, itemIndex);
+    return position < 0 ? 0.0 : rowValues.get(position);
+   }
+
+  public boolean containsRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    return findPosition(userIndex, itemIndex) >= 0;
+   }
+
+  /**
+   * Updates the rating for the couple user-item. Only the couples
+   * already stored in this source can be updated; setting a <code>0.0</code>
+   * rating on a couple that isn't stored has no effect.
+   *
+   * @param userIndex The 0-based user index.
+   * @param itemIndex The 0-based item index.
+   * @param newRating The new rating.
+   *
+   * @return A reference to this rating source, so that this method can be used in
+   * a method-call chain.
+   *
+   * @throws IndexOutOfBoundsException If the user index or the item index
+   * falls of the source ranges.
+   * @throws UnsupportedOperationException If a non-zero rating is set on a couple
+   * that isn't stored in this source.
+   * @throws IllegalArgumentException If the rating cannot be stored by the storage
+   * of this source.
+   */
+  public RatingsSource setRating(int userIndex, int itemIndex, double newRating) throws IndexOutOfBoundsException
+   {
+    int position = findPosition(userIndex, itemIndex);
+    if(position < 0)
+     {
+      if(newRating != 0.0)
+       throw new UnsupportedOperationException("Cannot add the rating (" + userIndex + ", " + itemIndex + ") " +
+                                               "to a compressed rating source");
+      return this;
+     }
+
+    float value = (float)newRating;
+    rowValues.put(position, value);
+    columnValues.put(rowToColumn.get(position), value);
+    return this;
+   }
+
+  public int getUserSupport(int userIndex) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+    return rowPointers.get(userIndex + 1) - rowPointers.get(userIndex);
+   }
+
+  public int getItemSupport(int itemIndex) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+    return columnPointers.get(itemIndex + 1) - columnPointers.get(itemIndex);
+   }
+
+  public List<Integer> getUsersWithRatings()
+   {
+    checkInitialized();
+
+    List<Integer> users = new ArrayList<Integer>();
+    for(int i = 0; i < usersNumber; i++)
+     {
+      if(rowPointers.get(i + 1) > rowPointers.get(i))
+       users.add(i);
+     }
+    return users;
+   }
+
+  public Map<Integer, Double> getUserRatings(int userIndex) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+
+    int start = rowPointers.get(userIndex);
+    int end = rowPointers.get(userIndex + 1);
+    Map<Integer, Double> ret = new LinkedHashMap<Integer, Double>(2 * (end - start));
+    for(int k = start; k < end; k++)
+     ret.put(rowItems.get(k), (double)rowValues.get(k));
+    return ret;
+   }
+
+  public List<Integer> getItemsWithRatings()
+   {
+    checkInitialized();
+
+    List<Integer> items = new ArrayList<Integer>();
+    for(int j = 0; j < itemsNumber; j++)
+     {
+      if(columnPointers.get(j + 1) > columnPointers.get(j))
+       items.add(j);
+     }
+    return items;
+   }
+
+  public Map<Integer, Double> getItemRatings(int itemIndex) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+
+    int start = columnPointers.get(itemIndex);
+    int end = columnPointers.get(itemIndex + 1);
+    Map<Integer, Double> ret = new LinkedHashMap<Integer, Double>(2 * (end - start));
+    for(int k = start; k < end; k++)
+     ret.put(columnUsers.get(k), (double)columnValues.get(k));
+    return ret;
+   }
+
+  public void walkUserRatings(int userIndex, RatingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+
+    for(int k = rowPointers.get(userIndex), end = rowPointers.get(userIndex + 1); k < end; k++)
+     visitor.visit(rowItems.get(k), rowValues.get(k));
+   }
+
+  public void walkUserRatings(int userIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+
+    for(int k = rowPointers.get(userIndex), end = rowPointers.get(userIndex + 1); k < end; k++)
+     {
+      float value = (float)visitor.visit(rowItems.get(k), rowValues.get(k));
+      rowValues.put(k, value);
+      columnValues.put(rowToColumn.get(k), value);
+     }
+   }
+
+  public void walkItemRatings(int itemIndex, RatingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+
+    for(int k = columnPointers.get(itemIndex), end = columnPointers.get(itemIndex + 1); k < end; k++)
+     visitor.visit(columnUsers.get(k), columnValues.get(k));
+   }
+
+  public void walkItemRatings(int itemIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+
+    for(int k = columnPointers.get(itemIndex), end = columnPointers.get(itemIndex + 1); k < end; k++)
+     {
+      float value = (float)visitor.visit(columnUsers.get(k), columnValues.get(k));
+      columnValues.put(k, value);
+      rowValues.put(columnToRow.get(k), value);
+     }
+   }
+
+  /**
+   * Sums the rating of the provided source with the ones contained in this object.
+   * The other source must not hold non-zero ratings on couples that aren't stored
+   * in this source.
+   *
+   * @param other The other ratings source.
+   *
+   * @return A reference to this rating source, so that this method can be used in
+   * a method-call chain.
+   *
+   * @throws IndexOutOfBoundsException If the sizes of the two sources don't agree.
+   * @throws UnsupportedOperationException If the other source holds a non-zero rating
+   * on a couple that isn't stored in this source.
+   */
+  public RatingsSource sum(RatingsSource other) throws IndexOutOfBoundsException
+   {
+    checkInitialized();
+
+    int otherUsers = other.getUsersNumber();
+    if(usersNumber != otherUsers)
+     throw new IndexOutOfBoundsException("Incompatible number of users (this: " + usersNumber + ", other: " + otherUsers);
+
+    int otherItems = other.getItemsNumber();
+    if(itemsNumber != otherItems)
+     throw new IndexOutOfBoundsException("Incompatible number of items (this: " + itemsNumber + ", other: " + otherItems);
+
+    if(other instanceof CompressedSparseRatingSource)
+     sumCompressed((CompressedSparseRatingSource)other);
+    else
+     {
+      RowSum rowSum = new RowSum();
+      for(int i = 0; i < usersNumber; i++)
+       {
+        if(other.getUserSupport(i) != 0)
+         {
+          rowSum.userIndex = i;
+          other.walkUserRatings(i, rowSum);
+         }
+       }
+     }
+
+    return this;
+   }
+
+  public boolean hasSameStructure(RatingsSource other)
+   {
+    if(!(other instanceof CompressedSparseRatingSource))
+     return false;
+
+    CompressedSparseRatingSource compressed = (CompressedSparseRatingSource)other;
+    return compressed.rowItems == rowItems && compressed.rowPointers == rowPointers;
+   }
+
+  /**
+   * Sums the ratings of another compressed source, merging the rows of the
+   * two sources. If the two sources share the same structure, the values
+   * are summed position by position.
+   */
+  protected void sumCompressed(CompressedSparseRatingSource other)
+   {
+    if(hasSameStructure(other))
+     {
+      for(int k = 0, nonZeros = rowValues.capacity(); k < nonZeros; k++)
+       rowValues.put(k, rowValues.get(k) + other.rowValues.get(k));
+      for(int k = 0, nonZeros = columnValues.capacity(); k < nonZeros; k++)
+       columnValues.put(k, columnValues.get(k) + other.columnValues.get(k));
+      return;
+     }
+
+    for(int i = 0; i < usersNumber; i++)
+     {
+      int k = rowPointers.get(i);
+      int end = rowPointers.get(i + 1);
+      for(int h = other.rowPointers.get(i), otherEnd = other.rowPointers.get(i + 1); h < otherEnd; h++)
+       {
+        int itemIndex = other.rowItems.get(h);
+        while(k < end && rowItems.get(k) < itemIndex)
+         k++;
+
+        float value = other.rowValues.get(h);
+        if(k < end && rowItems.get(k) == itemIndex)
+         {
+          float sum = rowValues.get(k) + value;
+          rowValues.put(k, sum);
+          columnValues.put(rowToColumn.get(k), sum);
+         }
+        else if(value != 0.0f)
+         throw new UnsupportedOperationException("Cannot add the rating (" + i + ", " + itemIndex + ") " +
+                                                 "to a compressed rating source");
+       }
+     }
+   }
+
+  /**
+   * Creates a new compressed source with the same users, items and stored couples
+   * of this one, but with all the ratings set to <code>0.0</code>. The two sources
+   * share the structure buffers, so the new source takes only the memory needed
+   * for the values, and summing one source into the other is a plain vector sum.
+   * The new source stores its values as floats, whatever the storage of this one,
+   * since it is usually used for effects or residuals.
+   *
+   * @return The new compressed source.
+   */
+  public CompressedSparseRatingSource createEmptyCopy()
+   {
+    return createEmptyCopy(RatingStorage.FLOAT);
+   }
+
+  /**
+   * Creates a new compressed source with the same users, items and stored couples
+   * of this one, but with all the ratings set to <code>0.0</code> and stored as
+   * described by the provided storage. The two sources share the structure buffers.
+   *
+   * @param storage The storage of the values of the new source.
+   *
+   * @return The new compressed source.
+   */
+  public CompressedSparseRatingSource createEmptyCopy(RatingStorage storage)
+   {
+    checkInitialized();
+
+    CompressedSparseRatingSource copy = new CompressedSparseRatingSource();
+    copy.usersNumber = usersNumber;
+    copy.itemsNumber = itemsNumber;
+    copy.rowPointers = rowPointers;
+    copy.rowItems = rowItems;
+    copy.storage = storage;
+    copy.rowValues = storage.allocate(rowValues.capacity());
+    copy.columnPointers = columnPointers;
+    copy.columnUsers = columnUsers;
+    copy.columnValues = storage.allocate(columnValues.capacity());
+    copy.rowToColumn = rowToColumn;
+    copy.columnToRow = columnToRow;
+    return copy;
+   }
+
+  /**
+   * Creates a new compressed source holding the ratings of the provided one.
+   *
+   * @param source The source to copy.
+   *
+   * @return The new compressed source.
+   */
+  public static CompressedSparseRatingSource copyOf(RatingsSource source)
+   {
+    int count = 0;
+    for(int i = 0, usersNumber = source.getUsersNumber(); i < usersNumber; i++)
+     count += source.getUserSupport(i);
+
+    final int[] userIndexes = new int[count];
+    final int[] itemIndexes = new int[count];
+    final float[] values = new float[count];
+    RowCopy rowCopy = new RowCopy(userIndexes, itemIndexes, values);
+    for(int i = 0, usersNumber = source.getUsersNumber(); i < usersNumber; i++)
+     {
+      rowCopy.userIndex = i;
+      source.walkUserRatings(i, rowCopy);
+     }
+
+    CompressedSparseRatingSource copy = new CompressedSparseRatingSource();
+    try
+     {
+      copy.init(source.getUsersNumber(), source.getItemsNumber());
+     }
+    catch(RatingSourceAlreadyInitializedException e)
+     {
+      // cannot happen on a new source
+      throw new IllegalStateException(e);
+     }
+    return copy.load(userIndexes, itemIndexes, values, rowCopy.count);
+   }
+
+  /**
+   * Adds the users, items and ratings of this source to the snapshot.
+   *
+   * @param writer The snapshot writer.
+   * @param prefix The prefix of the names of the sections of this source.
+   */
+  public void writeSnapshot(SnapshotWriter writer, String prefix)
+   {
+    checkInitialized();
+
+    writer.putInt(prefix + "usersNumber", usersNumber);
+    writer.putInt(prefix + "itemsNumber", itemsNumber);
+    writer.putInts(prefix + "rowPointers", rowPointers);
+    writer.putInts(prefix + "rowItems", rowItems);
+    rowValues.writeSnapshot(writer, prefix + "rowValues");
+    writer.putInts(prefix + "columnPointers", columnPointers);
+    writer.putInts(prefix + "columnUsers", columnUsers);
+    columnValues.writeSnapshot(writer, prefix + "columnValues");
+    writer.putInts(prefix + "rowToColumn", rowToColumn);
+    writer.putInts(prefix + "columnToRow", columnToRow);
+   }
+
+  /**
+   * Reads a source written by {@link #writeSnapshot(SnapshotWriter, String)}. The new
+   * source uses the mapped buffers of the snapshot directly; sources written with
+   * shared structure buffers, like the ones created by {@link #createEmptyCopy()},
+   * share them again.
+   *
+   * @param snapshot The snapshot.
+   * @param prefix The prefix of the names of the sections of the source.
+   *
+   * @return The new source.
+   *
+   * @throws IOException If the snapshot doesn't contain a valid source.
+   */
+  public static CompressedSparseRatingSource readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    CompressedSparseRatingSource source = new CompressedSparseRatingSource();
+    source.usersNumber = snapshot.getInt(prefix + "usersNumber");
+    source.itemsNumber = snapshot.getInt(prefix + "itemsNumber");
+    source.rowPointers = snapshot.getInts(prefix + "rowPointers");
+    source.rowItems = snapshot.getInts(prefix + "rowItems");
+    source.rowValues = RatingValues.readSnapshot(snapshot, prefix + "rowValues");
+    source.storage = source.rowValues.getStorage();
+    source.columnPointers = snapshot.getInts(prefix + "columnPointers");
+    source.columnUsers = snapshot.getInts(prefix + "columnUsers");
+    source.columnValues = RatingValues.readSnapshot(snapshot, prefix + "columnValues");
+    source.rowToColumn = snapshot.getInts(prefix + "rowToColumn");
+    source.columnToRow = snapshot.getInts(prefix + "columnToRow");
+
+    if(source.rowPointers.capacity() != source.usersNumber + 1 ||
+       source.columnPointers.capacity() != source.itemsNumber + 1 ||
+       source.rowItems.capacity() != source.rowPointers.get(source.usersNumber) ||
+       source.columnUsers.capacity() != source.rowItems.capacity())
+     throw new IOException("Inconsistent rating source " + prefix + " in the snapshot");
+    return source;
+   }
+
+  /**
+   * Returns the position in the row layout of the rating of the provided
+   * user-item couple, or a negative value if it isn't stored.
+   */
+  protected int findPosition(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid indexes (" + userIndex + ", " + itemIndex + ")");
+
+    int low = rowPointers.get(userIndex);
+    int high = rowPointers.get(userIndex + 1) - 1;
+    while(low <= high)
+     {
+      int middle = (low + high) >>> 1;
+      int item = rowItems.get(middle);
+      if(item < itemIndex)
+       low = middle + 1;
+      else if(item > itemIndex)
+       high = middle - 1;
+      else
+       return middle;
+     }
+    return -1;
+   }
+
+  protected void checkUserIndex(int userIndex) throws IndexOutOfBoundsException
+   {
+    checkInitialized();
+    if(userIndex < 0 || userIndex >= usersNumber)
+     throw new IndexOutOfBoundsException("Invalid user index " + userIndex);
+   }
+
+  protected void checkItemIndex(int itemIndex) throws IndexOutOfBoundsException
+   {
+    checkInitialized();
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+   }
+
+  protected void checkInitialized()
+   {
+    if(rowPointers == null)
+     throw new IllegalStateException("Rating source not initialized");
+   }
+
+  /**
+   * Adds the visited ratings of a user to the corresponding stored ratings.
+   */
+  private class RowSum implements RatingVisitor
+   {
+    int userIndex;
+
+    public void visit(int itemIndex, double value)
+     {
+      int position = findPosition(userIndex, itemIndex);
+      if(position < 0)
+       {
+        if(value != 0.0)
+         throw new UnsupportedOperationException("Cannot add the rating (" + userIndex + ", " + itemIndex + ") " +
+                                                 "to a compressed rating source");
+        return;
+       }
+      float sum = (float)(rowValues.get(position) + value);
+      rowValues.put(position, sum);
+      columnValues.put(rowToColumn.get(position), sum);
+     }
+   }
+
+  private static class RowCopy implements RatingVisitor
+   {
+    final int[] userIndexes;
+    final int[] itemIndexes;
+    final float[] values;
+    int userIndex;
+    int count;
+
+    RowCopy(int[] userIndexes, int[] itemIndexes, float[] values)
+     {
+      this.userIndexes = userIndexes;
+      this.itemIndexes = itemIndexes;
+      this.values = values;
+     }
+
+    public void visit(int itemIndex, double value)
+     {
+      userIndexes[count] = userIndex;
+      itemIndexes[count] = itemIndex;
+      values[count] = (float)value;
+      count++;
+     }
+   }
+
+  private static int[] trim(int[] array, int length)
+   {
+    int[] ret = new int[length];
+    System.arraycopy(array, 0, ret, 0, length);
+    return ret;
+   }
+
+  private static float[] trim(float[] array, int length)
+   {
+    float[] ret = new float[length];
+    System.arraycopy(array, 0, ret, 0, length);
+    return ret;
+   }
+ }
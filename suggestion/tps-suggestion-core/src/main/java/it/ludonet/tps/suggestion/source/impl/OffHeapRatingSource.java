@@ -0,0 +1,540 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import it.ludonet.tps.suggestion.util.*;
+
+import java.util.*;
+
+/**
+ * This class implements a rating source stored outside of the Java heap, in direct
+ * buffers or in a memory-mapped backing file (see {@link OffHeapMemory}), so that it
+ * can hold more than 2<sup>31</sup> ratings without a large heap nor long garbage
+ * collection pauses.
+ * <p>
+ * Like {@link CompressedSparseRatingSource}, the ratings are stored both in compressed
+ * sparse row and in compressed sparse column layout, with float values, and the structure
+ * cannot be changed after the source is loaded. The positions are <code>long</code>s,
+ * while each user and each item can have up to 2<sup>31</sup> - 1 ratings.
+ * <p>
+ * The source is loaded in three steps: {@link #allocateRows(long[])} with the number
+ * of ratings of each user, {@link #putRowRating(long, int, float)} for each rating,
+ * and {@link #build()}. The {@link it.ludonet.tps.suggestion.source.loader.RatingsLoader}
+ * can load a ratings file this way.
+ */
+public class OffHeapRatingSource implements CompactRatingsSource
+ {
+
+  protected int usersNumber;
+  protected int itemsNumber;
+  protected OffHeapMemory memory;
+
+  // compressed sparse row layout: the ratings of user i are stored
+  // in positions [rowPointers[i], rowPointers[i + 1]), sorted by item index
+  protected BigLongArray rowPointers;
+  protected BigIntArray rowItems;
+  protected BigFloatArray rowValues;
+
+  // compressed sparse column layout: the ratings of item j are stored
+  // in positions [columnPointers[j], columnPointers[j + 1]), sorted by user index
+  protected BigLongArray columnPointers;
+  protected BigIntArray columnUsers;
+  protected BigFloatArray columnValues;
+
+  // for each rating in the row layout, its offset from the start of its column,
+  // and vice versa
+  protected BigIntArray rowToColumn;
+  protected BigIntArray columnToRow;
+
+  private boolean initialized;
+  private boolean built;
+
+  public OffHeapMemory getMemory()
+   {
+    return memory;
+   }
+
+  /**
+   * Sets the allocator of the off-heap memory. The default allocator, used when
+   * no allocator is set before {@link #init(int, int)}, allocates direct buffers.
+   *
+   * @param memory The allocator of the off-heap memory.
+   */
+  public void setMemory(OffHeapMemory memory)
+   {
+    this.memory = memory;
+   }
+
+  public void init(int usersNumber, int itemsNumber) throws RatingSourceAlreadyInitializedException
+   {
+    if(rowPointers != null)
+     throw new RatingSourceAlreadyInitializedException("Rating source already initialized");
+
+    if(usersNumber < 0 || itemsNumber < 0)
+     throw new IllegalArgumentException("Invalid sizes (" + usersNumber + ", " + itemsNumber + ")");
+
+    this.usersNumber = usersNumber;
+    this.itemsNumber = itemsNumber;
+    initialized = true;
+    if(memory == null)
+     memory = new OffHeapMemory();
+
+    allocateRows(new long[usersNumber + 1]);
+    build();
+   }
+
+  /**
+   * Allocates the row layout, replacing the previous structure. The ratings must be
+   * stored by {@link #putRowRating(long, int, float)} before calling {@link #build()}.
+   *
+   * @param rowPointers The <code>usersNumber + 1</code> row pointers: the ratings of
+   * user <code>i</code> will be stored in the positions
+   * <code>[rowPointers[i], rowPointers[i + 1])</code>.
+   *
+   * @throws IllegalArgumentException If the row pointers are not valid.
+   */
+  public void allocateRows(long[] rowPointers) throws IllegalArgumentException
+   {
+    checkInitialized();
+    if(rowPointers.length != usersNumber + 1 || rowPointers[0] != 0)
+     throw new IllegalArgumentException("Invalid row pointers");
+
+    this.rowPointers = new BigLongArray(memory, usersNumber + 1);
+    for(int i = 0; i <= usersNumber; i++)
+     {
+      if(i > 0 && rowPointers[i] < rowPointers[i - 1])
+       throw new IllegalArgumentException("Invalid row pointers");
+      this.rowPointers.put(i, rowPointers[i]);
+     }
+
+    long ratings = rowPointers[usersNumber];
+    rowItems = new BigIntArray(memory, ratings);
+    rowValues = new BigFloatArray(memory, ratings);
+    built = false;
+   }
+
+  /**
+   * Stores a rating in the row layout. Inside a row the ratings can be stored in
+   * any order; if the same item appears more than once, the last position wins.
+   *
+   * @param position The position of the rating, inside the row of its user.
+   * @param itemIndex The 0-based item index.
+   * @param value The rating value.
+   *
+   * @throws IndexOutOfBoundsException If the position or the item index are not valid.
+   */
+  public void putRowRating(long position, int itemIndex, float value) throws IndexOutOfBoundsException
+   {
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+
+    rowItems.put(position, itemIndex);
+    rowValues.put(position, value);
+   }
+
+  /**
+   * Sorts the rows, removes the duplicated couples and builds the column layout.
+   */
+  public void build()
+   {
+    checkInitialized();
+
+    // sort the rows by item, keeping the last duplicate
+    long[] keys = new long[16];
+    float[] values = new float[16];
+    long written = 0;
+    long start = 0;
+    for(int i = 0; i < usersNumber; i++)
+     {
+      long end = rowPointers.get(i + 1);
+      long length = end - start;
+      if(length > Integer.MAX_VALUE)
+       throw new IllegalStateException("Too many ratings for user " + i);
+
+      if(keys.length < length)
+       {
+        keys = new long[(int)Math.max(length, 2L * keys.length)];
+        values = new float[keys.length];
+       }
+      for(int k = 0; k < length; k++)
+       {
+        keys[k] = ((long)rowItems.get(start + k) << 32) | k;
+        values[k] = rowValues.get(start + k);
+       }
+      Arrays.sort(keys, 0, (int)length);
+
+      rowPointers.put(i, written);
+      for(int k = 0; k < length; k++)
+       {
+        int itemIndex = (int)(keys[k] >>> 32);
+        if(k + 1 < length && (int)(keys[k + 1] >>> 32) == itemIndex)
+         continue;
+        rowItems.put(written, itemIndex);
+        rowValues.put(written, values[(int)keys[k]]);
+        written++;
+       }
+      start = end;
+     }
+    rowPointers.put(usersNumber, written);
+
+    // count the ratings of each item
+    long[] pointers = new long[itemsNumber + 1];
+    for(long k = 0; k < written; k++)
+     pointers[rowItems.get(k) + 1]++;
+    for(int j = 0; j < itemsNumber; j++)
+     pointers[j + 1] += pointers[j];
+
+    columnPointers = new BigLongArray(memory, itemsNumber + 1);
+    for(int j = 0; j <= itemsNumber; j++)
+     columnPointers.put(j, pointers[j]);
+    columnUsers = new BigIntArray(memory, written);
+    columnValues = new BigFloatArray(memory, written);
+    rowToColumn = new BigIntArray(memory, written);
+    columnToRow = new BigIntArray(memory, written);
+
+    // walking the rows in order keeps each column sorted by user index
+    long[] cursors = pointers;
+    for(int i = 0; i < usersNumber; i++)
+     {
+      long rowStart = rowPointers.get(i);
+      for(long k = rowStart, end = rowPointers.get(i + 1); k < end; k++)
+       {
+        int itemIndex = rowItems.get(k);
+        long position = cursors[itemIndex]++;
+        columnUsers.put(position, i);
+        columnValues.put(position, rowValues.get(k));
+        rowToColumn.put(k, (int)(position - columnPointers.get(itemIndex)));
+        columnToRow.put(position, (int)(k - rowStart));
+       }
+     }
+    built = true;
+   }
+
+  /**
+   * Returns the number of ratings stored in this source.
+   *
+   * @return The number of ratings stored in this source.
+   */
+  public long getRatingsNumber()
+   {
+    checkBuilt();
+    return rowPointers.get(usersNumber);
+   }
+
+  public int getUsersNumber()
+   {
+    return usersNumber;
+   }
+
+  public int getItemsNumber()
+   {
+    return itemsNumber;
+   }
+
+  public double getRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    long position = findPosition(userIndex, itemIndex);
+    return position < 0 ? 0.0 : rowValues.get(position);
+   }
+
+  public boolean containsRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    return findPosition(userIndex, itemIndex) >= 0;
+   }
+
+  /**
+   * Updates the rating for the couple user-item. Only the couples
+   * already stored in this source can be updated; setting a <code>0.0</code>
+   * rating on a couple that isn't stored has no effect.
+   *
+   * @param userIndex The 0-based user index.
+   * @param itemIndex The 0-based item index.
+   * @param newRating The new rating.
+   *
+   * @return A reference to this rating source, so that this method can be used in
+   * a method-call chain.
+   *
+   * @throws IndexOutOfBoundsException If the user index or the item index
+   * falls of the source ranges.
+   * @throws UnsupportedOperationException If a non-zero rating is set on a couple
+   * that isn't stored in this source.
+   */
+  public RatingsSource setRating(int userIndex, int itemIndex, double newRating) throws IndexOutOfBoundsException
+   {
+    long position = findPosition(userIndex, itemIndex);
+    if(position < 0)
+     {
+      if(newRating != 0.0)
+       throw new UnsupportedOperationException("Cannot add the rating (" + userIndex + ", " + itemIndex + ") " +
+                                               "to an off-heap rating source");
+      return this;
+     }
+
+    setValue(position, itemIndex, (float)newRating);
+    return this;
+   }
+
+  public int getUserSupport(int userIndex) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+    return (int)(rowPointers.get(userIndex + 1) - rowPointers.get(userIndex));
+   }
+
+  public int getItemSupport(int itemIndex) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+    return (int)(columnPointers.get(itemIndex + 1) - columnPointers.get(itemIndex));
+   }
+
+  public List<Integer> getUsersWithRatings()
+   {
+    checkBuilt();
+
+    List<Integer> users = new ArrayList<Integer>();
+    for(int i = 0; i < usersNumber; i++)
+     {
+      if(rowPointers.get(i + 1) > rowPointers.get(i))
+       users.add(i);
+     }
+    return users;
+   }
+
+  public Map<Integer, Double> getUserRatings(int userIndex) throws IndexOutOfBoundsException
+   {
+    Map<Integer, Double> ret = new LinkedHashMap<Integer, Double>(2 * getUserSupport(userIndex));
+    for(long k = rowPointers.get(userIndex), end = rowPointers.get(userIndex + 1); k < end; k++)
+     ret.put(rowItems.get(k), (double)rowValues.get(k));
+    return ret;
+   }
+
+  public List<Integer> getItemsWithRatings()
+   {
+    checkBuilt();
+
+    List<Integer> items = new ArrayList<Integer>();
+    for(int j = 0; j < itemsNumber; j++)
+     {
+      if(columnPointers.get(j + 1) > columnPointers.get(j))
+       items.add(j);
+     }
+    return items;
+   }
+
+  public Map<Integer, Double> getItemRatings(int itemIndex) throws IndexOutOfBoundsException
+   {
+    Map<Integer, Double> ret = new LinkedHashMap<Integer, Double>(2 * getItemSupport(itemIndex));
+    for(long k = columnPointers.get(itemIndex), end = columnPointers.get(itemIndex + 1); k < end; k++)
+     ret.put(columnUsers.get(k), (double)columnValues.get(k));
+    return ret;
+   }
+
+  public void walkUserRatings(int userIndex, RatingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+
+    for(long k = rowPointers.get(userIndex), end = rowPointers.get(userIndex + 1); k < end; k++)
+     visitor.visit(rowItems.get(k), rowValues.get(k));
+   }
+
+  public void walkUserRatings(int userIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+
+    for(long k = rowPointers.get(userIndex), end = rowPointers.get(userIndex + 1); k < end; k++)
+     {
+      int itemIndex = rowItems.get(k);
+      setValue(k, itemIndex, (float)visitor.visit(itemIndex, rowValues.get(k)));
+     }
+   }
+
+  public void walkItemRatings(int itemIndex, RatingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+
+    for(long k = columnPointers.get(itemIndex), end = columnPointers.get(itemIndex + 1); k < end; k++)
+     visitor.visit(columnUsers.get(k), columnValues.get(k));
+   }
+
+  public void walkItemRatings(int itemIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    checkItemIndex(itemIndex);
+
+    for(long k = columnPointers.get(itemIndex), end = columnPointers.get(itemIndex + 1); k < end; k++)
+     {
+      int userIndex = columnUsers.get(k);
+      float value = (float)visitor.visit(userIndex, columnValues.get(k));
+      columnValues.put(k, value);
+      rowValues.put(rowPointers.get(userIndex) + columnToRow.get(k), value);
+     }
+   }
+
+  /**
+   * Sums the rating of the provided source with the ones contained in this object.
+   * The other source must not hold non-zero ratings on couples that aren't stored
+   * in this source.
+   *
+   * @param other The other ratings source.
+   *
+   * @return A reference to this rating source, so that this method can be used in
+   * a method-call chain.
+   *
+   * @throws IndexOutOfBoundsException If the sizes of the two sources don't agree.
+   * @throws UnsupportedOperationException If the other source holds a non-zero rating
+   * on a couple that isn't stored in this source.
+   */
+  public RatingsSource sum(RatingsSource other) throws IndexOutOfBoundsException
+   {
+    checkBuilt();
+
+    int otherUsers = other.getUsersNumber();
+    if(usersNumber != otherUsers)
+     throw new IndexOutOfBoundsException("Incompatible number of users (this: " + usersNumber + ", other: " + otherUsers);
+
+    int otherItems = other.getItemsNumber();
+    if(itemsNumber != otherItems)
+     throw new IndexOutOfBoundsException("Incompatible number of items (this: " + itemsNumber + ", other: " + otherItems);
+
+    if(hasSameStructure(other))
+     {
+      // same structure: plain vector sum
+      OffHeapRatingSource offHeap = (OffHeapRatingSource)other;
+      for(long k = 0, nonZeros = getRatingsNumber(); k < nonZeros; k++)
+       {
+        rowValues.put(k, rowValues.get(k) + offHeap.rowValues.get(k));
+        columnValues.put(k, columnValues.get(k) + offHeap.columnValues.get(k));
+       }
+      return this;
+     }
+
+    RowSum rowSum = new RowSum();
+    for(int i = 0; i < usersNumber; i++)
+     {
+      if(other.getUserSupport(i) != 0)
+       {
+        rowSum.userIndex = i;
+        other.walkUserRatings(i, rowSum);
+       }
+     }
+    return this;
+   }
+
+  public boolean hasSameStructure(RatingsSource other)
+   {
+    return other instanceof OffHeapRatingSource && ((OffHeapRatingSource)other).rowItems == rowItems;
+   }
+
+  /**
+   * Creates a new off-heap source with the same users, items and stored couples
+   * of this one, but with all the ratings set to <code>0.0</code>. The two sources
+   * share the structure arrays, so the new source takes only the memory needed
+   * for the values, allocated from the same {@link OffHeapMemory}.
+   *
+   * @return The new off-heap source.
+   */
+  public OffHeapRatingSource createEmptyCopy()
+   {
+    checkBuilt();
+
+    long nonZeros = getRatingsNumber();
+    OffHeapRatingSource copy = new OffHeapRatingSource();
+    copy.usersNumber = usersNumber;
+    copy.itemsNumber = itemsNumber;
+    copy.memory = memory;
+    copy.initialized = true;
+    copy.rowPointers = rowPointers;
+    copy.rowItems = rowItems;
+    copy.rowValues = new BigFloatArray(memory, nonZeros);
+    copy.columnPointers = columnPointers;
+    copy.columnUsers = columnUsers;
+    copy.columnValues = new BigFloatArray(memory, nonZeros);
+    copy.rowToColumn = rowToColumn;
+    copy.columnToRow = columnToRow;
+    copy.built = true;
+    return copy;
+   }
+
+  /**
+   * Sets the value at the provided position of the row layout, and the
+   * value of the same rating in the column layout.
+   */
+  protected void setValue(long position, int itemIndex, float value)
+   {
+    rowValues.put(position, value);
+    columnValues.put(columnPointers.get(itemIndex) + rowToColumn.get(position), value);
+   }
+
+  /**
+   * Returns the position in the row layout of the rating of the provided
+   * user-item couple, or a negative value if it isn't stored.
+   */
+  protected long findPosition(int userIndex, int itemIndex) throws IndexOutOfBoundsException
+   {
+    checkUserIndex(userIndex);
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid indexes (" + userIndex + ", " + itemIndex + ")");
+
+    long low = rowPointers.get(userIndex);
+    long high = rowPointers.get(userIndex + 1) - 1;
+    while(low <= high)
+     {
+      long middle = (low + high) >>> 1;
+      int item = rowItems.get(middle);
+      if(item < itemIndex)
+       low = middle + 1;
+      else if(item > itemIndex)
+       high = middle - 1;
+      else
+       return middle;
+     }
+    return -1;
+   }
+
+  protected void checkUserIndex(int userIndex) throws IndexOutOfBoundsException
+   {
+    checkBuilt();
+    if(userIndex < 0 || userIndex >= usersNumber)
+     throw new IndexOutOfBoundsException("Invalid user index " + userIndex);
+   }
+
+  protected void checkItemIndex(int itemIndex) throws IndexOutOfBoundsException
+   {
+    checkBuilt();
+    if(itemIndex < 0 || itemIndex >= itemsNumber)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+   }
+
+  protected void checkInitialized()
+   {
+    if(!initialized)
+     throw new IllegalStateException("Rating source not initialized");
+   }
+
+  protected void checkBuilt()
+   {
+    if(!built)
+     throw new IllegalStateException("Rating source not built");
+   }
+
+  /**
+   * Adds the visited ratings of a user to the corresponding stored ratings.
+   */
+  private class RowSum implements RatingVisitor
+   {
+    int userIndex;
+
+    public void visit(int itemIndex, double value)
+     {
+      long position = findPosition(userIndex, itemIndex);
+      if(position < 0)
+       {
+        if(value != 0.0)
+         throw new UnsupportedOperationException("Cannot add the rating (" + userIndex + ", " + itemIndex + ") " +
+                                                 "to an off-heap rating source");
+        return;
+       }
+      setValue(position, itemIndex, (float)(rowValues.get(position) + value));
+     }
+   }
+ }
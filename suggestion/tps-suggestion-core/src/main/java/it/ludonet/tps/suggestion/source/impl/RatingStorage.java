@@ -0,0 +1,256 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+
+import java.io.IOException;
+import java.nio.*;
+
+/**
+ * This class describes how a {@link CompressedSparseRatingSource} stores its
+ * rating values, and it is selected when the source is initialized.
+ * <ul>
+ * <li>{@link #FLOAT} stores each value as a 32 bits float. It is the mode used for
+ * residuals and effects: the relative error of a value is below
+ * 6 &times; 10<sup>-8</sup>, far below the precision of any prediction.</li>
+ * <li>The quantized modes store each value as a byte or a short, representing
+ * <code>offset + q &times; step</code>. Values are rounded to the nearest multiple of the
+ * step, so the error is at most <code>step / 2</code>, and it is zero for values on the
+ * grid: 1-5 stars and half stars are stored exactly by {@link #HALF_STARS}, in one byte.
+ * Values outside the representable range are rejected.</li>
+ * </ul>
+ * Compared to a double, the float mode halves the memory used by the values and
+ * the byte mode divides it by eight.
+ */
+public class RatingStorage
+ {
+
+  public static final int FLOAT_TYPE = 0;
+  public static final int SHORT_TYPE = 1;
+  public static final int BYTE_TYPE = 2;
+
+  public static final RatingStorage FLOAT = new RatingStorage(FLOAT_TYPE, 0.0, 0.0);
+
+  /**
+   * One byte for each value, storing the multiples of 0.5 in [-64, 63.5].
+   */
+  public static final RatingStorage HALF_STARS = quantizedBytes(0.0, 0.5);
+
+  private final int type;
+  private final double offset;
+  private final double step;
+  private final double minValue;
+  private final double maxValue;
+
+  private RatingStorage(int type, double offset, double step)
+   {
+    this.type = type;
+    this.offset = offset;
+    this.step = step;
+
+    switch(type)
+     {
+      case BYTE_TYPE:
+       minValue = offset + Byte.MIN_VALUE * step;
+       maxValue = offset + Byte.MAX_VALUE * step;
+       break;
+      case SHORT_TYPE:
+       minValue = offset + Short.MIN_VALUE * step;
+       maxValue = offset + Short.MAX_VALUE * step;
+       break;
+      default:
+       minValue = -Float.MAX_VALUE;
+       maxValue = Float.MAX_VALUE;
+     }
+   }
+
+  /**
+   * Creates a storage that keeps each value in a byte, as <code>offset + q &times; step</code>
+   * with <code>q</code> in [-128, 127].
+   *
+   * @param offset The value represented by <code>q = 0</code>.
+   * @param step The difference between two consecutive representable values.
+   *
+   * @return The new storage.
+   */
+  public static RatingStorage quantizedBytes(double offset, double step)
+   {
+    checkStep(step);
+    return new RatingStorage(BYTE_TYPE, offset, step);
+   }
+
+  /**
+   * Creates a storage that keeps each value in a short, as <code>offset + q &times; step</code>
+   * with <code>q</code> in [-32768, 32767].
+   *
+   * @param offset The value represented by <code>q = 0</code>.
+   * @param step The difference between two consecutive representable values.
+   *
+   * @return The new storage.
+   */
+  public static RatingStorage quantizedShorts(double offset, double step)
+   {
+    checkStep(step);
+    return new RatingStorage(SHORT_TYPE, offset, step);
+   }
+
+  public int getType()
+   {
+    return type;
+   }
+
+  public double getOffset()
+   {
+    return offset;
+   }
+
+  public double getStep()
+   {
+    return step;
+   }
+
+  public boolean isQuantized()
+   {
+    return type != FLOAT_TYPE;
+   }
+
+  /**
+   * Returns the number of bytes used to store each value.
+   *
+   * @return The number of bytes used to store each value.
+   */
+  public int getBytesPerValue()
+   {
+    switch(type)
+     {
+      case BYTE_TYPE:
+       return 1;
+      case SHORT_TYPE:
+       return 2;
+      default:
+       return 4;
+     }
+   }
+
+  public double getMinValue()
+   {
+    return minValue;
+   }
+
+  public double getMaxValue()
+   {
+    return maxValue;
+   }
+
+  /**
+   * Creates the values of a source, all set to <code>0.0</code>.
+   *
+   * @param size The number of values.
+   *
+   * @return The new values.
+   */
+  public RatingValues allocate(int size)
+   {
+    switch(type)
+     {
+      case BYTE_TYPE:
+       return new RatingValues.ByteValues(this, ByteBuffer.wrap(new byte[size]));
+      case SHORT_TYPE:
+       return new RatingValues.ShortValues(this, ShortBuffer.wrap(new short[size]));
+      default:
+       return new RatingValues.FloatValues(this, FloatBuffer.wrap(new float[size]));
+     }
+   }
+
+  /**
+   * Creates values that use the provided array, that must not be used afterwards.
+   * Quantized storages copy the array.
+   *
+   * @param values The values.
+   *
+   * @return The new values.
+   *
+   * @throws IllegalArgumentException If a value cannot be stored.
+   */
+  public RatingValues wrap(float[] values) throws IllegalArgumentException
+   {
+    if(type == FLOAT_TYPE)
+     return new RatingValues.FloatValues(this, FloatBuffer.wrap(values));
+
+    RatingValues ret = allocate(values.length);
+    for(int k = 0; k < values.length; k++)
+     ret.put(k, values[k]);
+    return ret;
+   }
+
+  /**
+   * Returns the quantized representation of the provided value.
+   */
+  int quantize(double value) throws IllegalArgumentException
+   {
+    if(!(value >= minValue - step / 2 && value < maxValue + step / 2))
+     throw new IllegalArgumentException("The rating " + value + " cannot be stored in [" + minValue + ", " + maxValue + "]");
+    return (int)Math.round((value - offset) / step);
+   }
+
+  float dequantize(int quantized)
+   {
+    return (float)(offset + quantized * step);
+   }
+
+  void writeSnapshot(SnapshotWriter writer, String prefix)
+   {
+    writer.putInt(prefix + "type", type);
+    writer.putDouble(prefix + "offset", offset);
+    writer.putDouble(prefix + "step", step);
+   }
+
+  static RatingStorage readSnapshot(Snapshot snapshot, String prefix) throws IOException
+   {
+    if(!snapshot.contains(prefix + "type"))
+     return FLOAT;
+
+    int type = snapshot.getInt(prefix + "type");
+    if(type == FLOAT_TYPE)
+     return FLOAT;
+    if(type != BYTE_TYPE && type != SHORT_TYPE)
+     throw new IOException("Invalid rating storage " + type);
+    return new RatingStorage(type, snapshot.getDouble(prefix + "offset"), snapshot.getDouble(prefix + "step"));
+   }
+
+  @Override
+  public boolean equals(Object other)
+   {
+    if(!(other instanceof RatingStorage))
+     return false;
+    RatingStorage storage = (RatingStorage)other;
+    return type == storage.type && offset == storage.offset && step == storage.step;
+   }
+
+  @Override
+  public int hashCode()
+   {
+    long bits = Double.doubleToLongBits(offset) * 31 + Double.doubleToLongBits(step);
+    return type * 31 + (int)(bits ^ (bits >>> 32));
+   }
+
+  @Override
+  public String toString()
+   {
+    switch(type)
+     {
+      case BYTE_TYPE:
+       return "bytes(" + offset + " + q * " + step + ")";
+      case SHORT_TYPE:
+       return "shorts(" + offset + " + q * " + step + ")";
+      default:
+       return "floats";
+     }
+   }
+
+  private static void checkStep(double step)
+   {
+    if(!(step > 0.0) || Double.isInfinite(step))
+     throw new IllegalArgumentException("Invalid quantization step " + step);
+   }
+ }
@@ -0,0 +1,188 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import it.ludonet.tps.suggestion.snapshot.Snapshot;
+import it.ludonet.tps.suggestion.snapshot.SnapshotWriter;
+
+import java.io.IOException;
+import java.nio.*;
+
+/**
+ * The rating values of a {@link CompressedSparseRatingSource}, stored
+ * as described by a {@link RatingStorage}.
+ */
+public abstract class RatingValues
+ {
+
+  protected final RatingStorage storage;
+
+  protected RatingValues(RatingStorage storage)
+   {
+    this.storage = storage;
+   }
+
+  public RatingStorage getStorage()
+   {
+    return storage;
+   }
+
+  /**
+   * Returns the number of values.
+   *
+   * @return The number of values.
+   */
+  public abstract int capacity();
+
+  /**
+   * Returns the value at the provided position.
+   *
+   * @param position The position of the value.
+   *
+   * @return The value.
+   */
+  public abstract float get(int position);
+
+  /**
+   * Sets the value at the provided position, rounding it to the nearest
+   * value that can be stored.
+   *
+   * @param position The position of the value.
+   * @param value The new value.
+   *
+   * @throws IllegalArgumentException If the value falls outside the range of the storage.
+   */
+  public abstract void put(int position, float value) throws IllegalArgumentException;
+
+  /**
+   * Adds these values to the snapshot.
+   */
+  void writeSnapshot(SnapshotWriter writer, String name)
+   {
+    storage.writeSnapshot(writer, name + ".");
+    writeBuffer(writer, name);
+   }
+
+  abstract void writeBuffer(SnapshotWriter writer, String name);
+
+  /**
+   * Reads values written by {@link #writeSnapshot(SnapshotWriter, String)},
+   * using the mapped buffer of the snapshot directly.
+   */
+  static RatingValues readSnapshot(Snapshot snapshot, String name) throws IOException
+   {
+    RatingStorage storage = RatingStorage.readSnapshot(snapshot, name + ".");
+    switch(storage.getType())
+     {
+      case RatingStorage.BYTE_TYPE:
+       return new ByteValues(storage, snapshot.getBytes(name));
+      case RatingStorage.SHORT_TYPE:
+       return new ShortValues(storage, snapshot.getShorts(name));
+      default:
+       return new FloatValues(storage, snapshot.getFloats(name));
+     }
+   }
+
+  static class FloatValues extends RatingValues
+   {
+    private final FloatBuffer values;
+
+    FloatValues(RatingStorage storage, FloatBuffer values)
+     {
+      super(storage);
+      this.values = values;
+     }
+
+    @Override
+    public int capacity()
+     {
+      return values.capacity();
+     }
+
+    @Override
+    public float get(int position)
+     {
+      return values.get(position);
+     }
+
+    @Override
+    public void put(int position, float value)
+     {
+      values.put(position, value);
+     }
+
+    @Override
+    void writeBuffer(SnapshotWriter writer, String name)
+     {
+      writer.putFloats(name, values);
+     }
+   }
+
+  static class ShortValues extends RatingValues
+   {
+    private final ShortBuffer values;
+
+    ShortValues(RatingStorage storage, ShortBuffer values)
+     {
+      super(storage);
+      this.values = values;
+     }
+
+    @Override
+    public int capacity()
+     {
+      return values.capacity();
+     }
+
+    @Override
+    public float get(int position)
+     {
+      return storage.dequantize(values.get(position));
+     }
+
+    @Override
+    public void put(int position, float value) throws IllegalArgumentException
+     {
+      values.put(position, (short)storage.quantize(value));
+     }
+
+    @Override
+    void writeBuffer(SnapshotWriter writer, String name)
+     {
+      writer.putShorts(name, values);
+     }
+   }
+
+  static class ByteValues extends RatingValues
+   {
+    private final ByteBuffer values;
+
+    ByteValues(RatingStorage storage, ByteBuffer values)
+     {
+      super(storage);
+      this.values = values;
+     }
+
+    @Override
+    public int capacity()
+     {
+      return values.capacity();
+     }
+
+    @Override
+    public float get(int position)
+     {
+      return storage.dequantize(values.get(position));
+     }
+
+    @Override
+    public void put(int position, float value) throws IllegalArgumentException
+     {
+      values.put(position, (byte)storage.quantize(value));
+     }
+
+    @Override
+    void writeBuffer(SnapshotWriter writer, String name)
+     {
+      writer.putBytes(name, values);
+     }
+   }
+ }
@@ -0,0 +1,58 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+
+import java.util.Map;
+
+/**
+ * This class provides default implementations of the rating walking
+ * and support methods, built upon {@link #getUserRatings(int)} and {@link #getItemRatings(int)}.
+ * Rating sources that can't walk their ratings directly can extend this class,
+ * but they should override these methods to avoid allocating a map for each call.
+ */
+public abstract class RatingsSourceAdapter implements RatingsSource
+ {
+
+  public int getUserSupport(int userIndex) throws IndexOutOfBoundsException
+   {
+    return getUserRatings(userIndex).size();
+   }
+
+  public int getItemSupport(int itemIndex) throws IndexOutOfBoundsException
+   {
+    return getItemRatings(itemIndex).size();
+   }
+
+  public void walkUserRatings(int userIndex, RatingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    for(Map.Entry<Integer, Double> entry : getUserRatings(userIndex).entrySet())
+     visitor.visit(entry.getKey(), entry.getValue());
+   }
+
+  public void walkUserRatings(int userIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    for(Map.Entry<Integer, Double> entry : getUserRatings(userIndex).entrySet())
+     {
+      int itemIndex = entry.getKey();
+      setRating(userIndex, itemIndex, visitor.visit(itemIndex, entry.getValue()));
+     }
+   }
+
+  public void walkItemRatings(int itemIndex, RatingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    for(Map.Entry<Integer, Double> entry : getItemRatings(itemIndex).entrySet())
+     visitor.visit(entry.getKey(), entry.getValue());
+   }
+
+  public void walkItemRatings(int itemIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    for(Map.Entry<Integer, Double> entry : getItemRatings(itemIndex).entrySet())
+     {
+      int userIndex = entry.getKey();
+      setRating(userIndex, itemIndex, visitor.visit(userIndex, entry.getValue()));
+     }
+   }
+
+ }
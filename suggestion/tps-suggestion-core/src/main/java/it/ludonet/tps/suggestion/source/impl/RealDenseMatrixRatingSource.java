@@ -1,7 +1,7 @@
 package it.ludonet.tps.suggestion.source.impl;
 
-import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
 import org.apache.commons.math.linear.Array2DRowRealMatrix;
+import org.apache.commons.math.linear.RealMatrix;
 
 /**
  * This class implements an in-memory rating source backed-up by
@@ -10,8 +10,8 @@ import org.apache.commons.math.linear.Array2DRowRealMatrix;
 public class RealDenseMatrixRatingSource extends RealMatrixRatingSource
  {
 
-  public void init(int usersNumber, int itemsNumber) throws RatingSourceAlreadyInitializedException
+  protected RealMatrix createMatrix(int usersNumber, int itemsNumber)
    {
-    ratings = new Array2DRowRealMatrix(usersNumber, itemsNumber);
+    return new Array2DRowRealMatrix(usersNumber, itemsNumber);
    }
  }
@@ -1,5 +1,8 @@
 package it.ludonet.tps.suggestion.source.impl;
 
+import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
 import it.ludonet.tps.suggestion.source.RatingsSource;
 import org.apache.commons.math.linear.*;
 
@@ -9,11 +12,36 @@ import java.util.*;
  * This class implements an in-memory rating source backed-up by
  * a real (dense or sparse) matrix.
  */
-public abstract class RealMatrixRatingSource implements RatingsSource
+public abstract class RealMatrixRatingSource extends RatingsSourceAdapter
  {
 
   protected RealMatrix ratings;
 
+  // number of non-zero ratings of each user and of each item,
+  // kept up to date by every method that changes the matrix
+  protected int[] userSupports;
+  protected int[] itemSupports;
+
+  public void init(int usersNumber, int itemsNumber) throws RatingSourceAlreadyInitializedException
+   {
+    if(ratings != null)
+     throw new RatingSourceAlreadyInitializedException("Rating source already initialized");
+
+    ratings = createMatrix(usersNumber, itemsNumber);
+    userSupports = new int[usersNumber];
+    itemSupports = new int[itemsNumber];
+   }
+
+  /**
+   * Creates the matrix that will store the ratings.
+   *
+   * @param usersNumber The number of users (rows).
+   * @param itemsNumber The number of items (columns).
+   *
+   * @return The matrix that will store the ratings.
+   */
+  protected abstract RealMatrix createMatrix(int usersNumber, int itemsNumber);
+
   public int getUsersNumber()
    {
     return ratings.getRowDimension();
@@ -40,7 +68,9 @@ public abstract class RealMatrixRatingSource implements RatingsSource
    {
     try
      {
+      double oldRating = ratings.getEntry(userIndex, itemIndex);
       ratings.setEntry(userIndex, itemIndex, newRating);
+      updateSupports(userIndex, itemIndex, oldRating, newRating);
       return this;
      }
     catch(MatrixIndexException e)
@@ -83,49 +113,109 @@ public abstract class RealMatrixRatingSource implements RatingsSource
    return ret;
    }
 
+  public void walkUserRatings(int userIndex, RatingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    if(userIndex < 0 || userIndex >= ratings.getRowDimension())
+     throw new IndexOutOfBoundsException("Invalid user index " + userIndex);
+
+    for(int j = 0, n = ratings.getColumnDimension(); j < n; j++)
+     {
+      double val = ratings.getEntry(userIndex, j);
+      if(val != 0.0)
+       visitor.visit(j, val);
+     }
+   }
+
+  public void walkUserRatings(int userIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    if(userIndex < 0 || userIndex >= ratings.getRowDimension())
+     throw new IndexOutOfBoundsException("Invalid user index " + userIndex);
+
+    for(int j = 0, n = ratings.getColumnDimension(); j < n; j++)
+     {
+      double val = ratings.getEntry(userIndex, j);
+      if(val != 0.0)
+       {
+        double newVal = visitor.visit(j, val);
+        ratings.setEntry(userIndex, j, newVal);
+        updateSupports(userIndex, j, val, newVal);
+       }
+     }
+   }
+
+  public void walkItemRatings(int itemIndex, RatingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    if(itemIndex < 0 || itemIndex >= ratings.getColumnDimension())
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+
+    for(int i = 0, m = ratings.getRowDimension(); i < m; i++)
+     {
+      double val = ratings.getEntry(i, itemIndex);
+      if(val != 0.0)
+       visitor.visit(i, val);
+     }
+   }
+
+  public void walkItemRatings(int itemIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException
+   {
+    if(itemIndex < 0 || itemIndex >= ratings.getColumnDimension())
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+
+    for(int i = 0, m = ratings.getRowDimension(); i < m; i++)
+     {
+      double val = ratings.getEntry(i, itemIndex);
+      if(val != 0.0)
+       {
+        double newVal = visitor.visit(i, val);
+        ratings.setEntry(i, itemIndex, newVal);
+        updateSupports(i, itemIndex, val, newVal);
+       }
+     }
+   }
+
+  public int getUserSupport(int userIndex) throws IndexOutOfBoundsException
+   {
+    if(userIndex < 0 || userIndex >= userSupports.length)
+     throw new IndexOutOfBoundsException("Invalid user index " + userIndex);
+
+    return userSupports[userIndex];
+   }
+
+  public int getItemSupport(int itemIndex) throws IndexOutOfBoundsException
+   {
+    if(itemIndex < 0 || itemIndex >= itemSupports.length)
+     throw new IndexOutOfBoundsException("Invalid item index " + itemIndex);
+
+    return itemSupports[itemIndex];
+   }
+
   public List<Integer> getUsersWithRatings()
   {
-   List<Integer> users = new ArrayList<Integer>(ratings.getRowDimension());
+   List<Integer> users = new ArrayList<Integer>();
 
-   for(int i = 0, m = ratings.getRowDimension(); i < m; i++)
+   for(int i = 0, m = userSupports.length; i < m; i++)
     {
-     for(int j = 0, n = ratings.getColumnDimension(); j < n; j++)
-      {
-       double val = ratings.getEntry(i, j);
-       if(val != 0.0)
-        {
-         users.add(i);
-         break;
-        }
-      }
+     if(userSupports[i] != 0)
+      users.add(i);
     }
 
-   ((ArrayList)users).trimToSize();
    return users;
   }
 
   public List<Integer> getItemsWithRatings()
    {
-    List<Integer> items = new ArrayList<Integer>(ratings.getColumnDimension());
+    List<Integer> items = new ArrayList<Integer>();
 
-    for(int j = 0, n = ratings.getColumnDimension(); j < n; j++)
+    for(int j = 0, n = itemSupports.length; j < n; j++)
      {
-      for(int i = 0, m = ratings.getRowDimension(); i < m; i++)
-       {
-        double val = ratings.getEntry(i, j);
-        if(val != 0.0)
-         {
-          items.add(j);
-          break;
-         }
-       }
+      if(itemSupports[j] != 0)
+       items.add(j);
      }
 
-    ((ArrayList)items).trimToSize();
     return items;
    }
 
-  public RatingsSource sum(final RatingsSource other) throws IndexOutOfBoundsException
+  public RatingsSource sum(RatingsSource other) throws IndexOutOfBoundsException
   {
    int thisUsers = ratings.getRowDimension();
    int otherUsers = other.getUsersNumber();
@@ -137,15 +227,54 @@ public abstract class RealMatrixRatingSource implements RatingsSource
    if(thisItems != otherItems)
     throw new IndexOutOfBoundsException("Incompatible number of items (this: " + thisItems + ", other: " + otherItems);
 
-   ratings.walkInRowOrder(new DefaultRealMatrixChangingVisitor()
+   // only the users with at least a rating in the other source are walked,
+   // and only their ratings are added to this matrix
+   RowSum rowSum = new RowSum();
+   for(int i = 0; i < thisUsers; i++)
     {
-     @Override
-     public double visit(int row, int column, double value) throws MatrixVisitorException
+     if(other.getUserSupport(i) != 0)
       {
-       return value + other.getRating(row, column);
+       rowSum.userIndex = i;
+       other.walkUserRatings(i, rowSum);
       }
-    });
+    }
 
    return this;
   }
+
+  /**
+   * Updates the users and items supports after a change of a rating.
+   */
+  protected void updateSupports(int userIndex, int itemIndex, double oldRating, double newRating)
+   {
+    if(oldRating == 0.0)
+     {
+      if(newRating != 0.0)
+       {
+        userSupports[userIndex]++;
+        itemSupports[itemIndex]++;
+       }
+     }
+    else if(newRating == 0.0)
+     {
+      userSupports[userIndex]--;
+      itemSupports[itemIndex]--;
+     }
+   }
+
+  /**
+   * Adds the visited ratings of a user to the corresponding ratings of this matrix.
+   */
+  private class RowSum implements RatingVisitor
+   {
+    int userIndex;
+
+    public void visit(int itemIndex, double value)
+     {
+      double oldValue = ratings.getEntry(userIndex, itemIndex);
+      double newValue = oldValue + value;
+      ratings.setEntry(userIndex, itemIndex, newValue);
+      updateSupports(userIndex, itemIndex, oldValue, newValue);
+     }
+   }
  }
@@ -1,7 +1,7 @@
 package it.ludonet.tps.suggestion.source.impl;
 
-import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
 import org.apache.commons.math.linear.OpenMapRealMatrix;
+import org.apache.commons.math.linear.RealMatrix;
 
 /**
  * This class implements an in-memory rating source backed-up by
@@ -10,8 +10,8 @@ import org.apache.commons.math.linear.OpenMapRealMatrix;
 public class RealSparseMatrixRatingSource extends RealMatrixRatingSource
  {
 
-  public void init(int usersNumber, int itemsNumber) throws RatingSourceAlreadyInitializedException
+  protected RealMatrix createMatrix(int usersNumber, int itemsNumber)
    {
-    ratings = new OpenMapRealMatrix(usersNumber, itemsNumber);
+    return new OpenMapRealMatrix(usersNumber, itemsNumber);
    }
  }
@@ -0,0 +1,25 @@
+package it.ludonet.tps.suggestion.source.loader;
+
+/**
+ * The constants of the compact binary ratings format.
+ * <p>
+ * A binary ratings file starts with the magic number {@link #MAGIC} and
+ * the format {@link #VERSION}, followed by one {@link #RECORD_SIZE} bytes
+ * record for each rating: the user index and the item index as 32 bits
+ * integers and the rating as a 32 bits float, all in big endian order.
+ */
+public final class BinaryRatingsFormat
+ {
+
+  public static final int MAGIC = 0x54505352;
+
+  public static final int VERSION = 1;
+
+  public static final int HEADER_SIZE = 8;
+
+  public static final int RECORD_SIZE = 12;
+
+  private BinaryRatingsFormat()
+   {
+   }
+ }
@@ -0,0 +1,110 @@
+package it.ludonet.tps.suggestion.source.loader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * This class reads ratings from a file in the compact binary format
+ * described by {@link BinaryRatingsFormat}, in large chunks.
+ */
+public class BinaryRatingsReader implements RatingsReader
+ {
+
+  private static final int BUFFER_SIZE = BinaryRatingsFormat.RECORD_SIZE << 16;
+
+  private final ReadableByteChannel channel;
+  private final ByteBuffer buffer;
+  private long bytesRead;
+  private boolean headerRead;
+
+  public BinaryRatingsReader(File file) throws IOException
+   {
+    this(new FileInputStream(file).getChannel());
+   }
+
+  public BinaryRatingsReader(InputStream input)
+   {
+    this(Channels.newChannel(input));
+   }
+
+  public BinaryRatingsReader(ReadableByteChannel channel)
+   {
+    this.channel = channel;
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    buffer.flip();
+   }
+
+  public int read(int[] userIndexes, int[] itemIndexes, float[] values) throws IOException
+   {
+    if(!headerRead)
+     {
+      if(!fill(BinaryRatingsFormat.HEADER_SIZE))
+       throw new IOException("Missing binary ratings header");
+      if(buffer.getInt() != BinaryRatingsFormat.MAGIC)
+       throw new IOException("Not a binary ratings file");
+      int version = buffer.getInt();
+      if(version != BinaryRatingsFormat.VERSION)
+       throw new IOException("Unsupported binary ratings version " + version);
+      headerRead = true;
+     }
+
+    int count = 0;
+    while(count < userIndexes.length && fill(BinaryRatingsFormat.RECORD_SIZE))
+     {
+      int records = Math.min(userIndexes.length - count, buffer.remaining() / BinaryRatingsFormat.RECORD_SIZE);
+      for(int r = 0; r < records; r++)
+       {
+        userIndexes[count] = buffer.getInt();
+        itemIndexes[count] = buffer.getInt();
+        values[count] = buffer.getFloat();
+        count++;
+       }
+     }
+    return count == 0 && userIndexes.length > 0 ? -1 : count;
+   }
+
+  public long getBytesRead()
+   {
+    return bytesRead;
+   }
+
+  public void close() throws IOException
+   {
+    channel.close();
+   }
+
+  /**
+   * Makes sure that at least <code>size</code> bytes are available in the buffer.
+   *
+   * @return <code>false</code> if the stream ended before.
+   */
+  private boolean fill(int size) throws IOException
+   {
+    if(buffer.remaining() >= size)
+     return true;
+
+    buffer.compact();
+    try
+     {
+      while(buffer.position() < size)
+       {
+        int read = channel.read(buffer);
+        if(read < 0)
+         break;
+        bytesRead += read;
+       }
+     }
+    finally
+     {
+      buffer.flip();
+     }
+
+    if(buffer.remaining() >= size)
+     return true;
+    if(buffer.hasRemaining())
+     throw new IOException("Truncated binary ratings file");
+    return false;
+   }
+ }
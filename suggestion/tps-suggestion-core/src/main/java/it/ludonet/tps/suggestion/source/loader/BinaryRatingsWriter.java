@@ -0,0 +1,64 @@
+package it.ludonet.tps.suggestion.source.loader;
+
+import java.io.*;
+
+/**
+ * This class writes ratings in the compact binary format described by
+ * {@link BinaryRatingsFormat}, for example to convert a text file once
+ * and load it faster afterwards.
+ */
+public class BinaryRatingsWriter
+ {
+
+  private final DataOutputStream output;
+
+  public BinaryRatingsWriter(File file) throws IOException
+   {
+    this(new FileOutputStream(file));
+   }
+
+  public BinaryRatingsWriter(OutputStream output) throws IOException
+   {
+    this.output = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+    this.output.writeInt(BinaryRatingsFormat.MAGIC);
+    this.output.writeInt(BinaryRatingsFormat.VERSION);
+   }
+
+  public BinaryRatingsWriter write(int userIndex, int itemIndex, float rating) throws IOException
+   {
+    output.writeInt(userIndex);
+    output.writeInt(itemIndex);
+    output.writeFloat(rating);
+    return this;
+   }
+
+  /**
+   * Writes all the ratings read from the provided reader.
+   *
+   * @param reader The reader.
+   *
+   * @return The number of ratings written.
+   *
+   * @throws IOException If an error occurs while reading or writing.
+   */
+  public long writeAll(RatingsReader reader) throws IOException
+   {
+    int[] userIndexes = new int[4096];
+    int[] itemIndexes = new int[4096];
+    float[] values = new float[4096];
+    long count = 0;
+    int read;
+    while((read = reader.read(userIndexes, itemIndexes, values)) >= 0)
+     {
+      for(int r = 0; r < read; r++)
+       write(userIndexes[r], itemIndexes[r], values[r]);
+      count += read;
+     }
+    return count;
+   }
+
+  public void close() throws IOException
+   {
+    output.close();
+   }
+ }
@@ -0,0 +1,96 @@
+package it.ludonet.tps.suggestion.source.loader;
+
+/**
+ * The statistics of a ratings load performed by a {@link RatingsLoader}.
+ */
+public class RatingsLoadStatistics
+ {
+
+  private final long ratingsRead;
+  private final long ratingsStored;
+  private final long bytesRead;
+  private final long countNanos;
+  private final long fillNanos;
+  private final long buildNanos;
+
+  public RatingsLoadStatistics(long ratingsRead, long ratingsStored, long bytesRead,
+                               long countNanos, long fillNanos, long buildNanos)
+   {
+    this.ratingsRead = ratingsRead;
+    this.ratingsStored = ratingsStored;
+    this.bytesRead = bytesRead;
+    this.countNanos = countNanos;
+    this.fillNanos = fillNanos;
+    this.buildNanos = buildNanos;
+   }
+
+  /**
+   * Returns the number of ratings read from the file.
+   */
+  public long getRatingsRead()
+   {
+    return ratingsRead;
+   }
+
+  /**
+   * Returns the number of ratings stored in the source, after the removal of
+   * the duplicated user-item couples.
+   */
+  public long getRatingsStored()
+   {
+    return ratingsStored;
+   }
+
+  /**
+   * Returns the number of bytes read by both the passes over the file.
+   */
+  public long getBytesRead()
+   {
+    return bytesRead;
+   }
+
+  public long getCountNanos()
+   {
+    return countNanos;
+   }
+
+  public long getFillNanos()
+   {
+    return fillNanos;
+   }
+
+  public long getBuildNanos()
+   {
+    return buildNanos;
+   }
+
+  public long getTotalNanos()
+   {
+    return countNanos + fillNanos + buildNanos;
+   }
+
+  public double getRatingsPerSecond()
+   {
+    return perSecond(ratingsRead);
+   }
+
+  public double getMegabytesPerSecond()
+   {
+    return perSecond(bytesRead) / (1024.0 * 1024.0);
+   }
+
+  @Override
+  public String toString()
+   {
+    return String.format("%d ratings (%d stored) in %.3f s (count %.3f s, fill %.3f s, build %.3f s): " +
+                         "%.0f ratings/s, %.1f MB/s",
+                         ratingsRead, ratingsStored, getTotalNanos() / 1e9, countNanos / 1e9, fillNanos / 1e9,
+                         buildNanos / 1e9, getRatingsPerSecond(), getMegabytesPerSecond());
+   }
+
+  private double perSecond(long value)
+   {
+    long nanos = getTotalNanos();
+    return nanos == 0 ? 0.0 : value * 1e9 / nanos;
+   }
+ }
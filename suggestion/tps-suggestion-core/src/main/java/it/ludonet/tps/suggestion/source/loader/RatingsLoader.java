@@ -0,0 +1,375 @@
+package it.ludonet.tps.suggestion.source.loader;
+
+import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
+import it.ludonet.tps.suggestion.source.impl.OffHeapRatingSource;
+import it.ludonet.tps.suggestion.source.impl.RatingStorage;
+import it.ludonet.tps.suggestion.util.OffHeapMemory;
+
+import java.io.*;
+
+/**
+ * This class loads a {@link CompressedSparseRatingSource} from a ratings file,
+ * either in text format (see {@link TextRatingsReader}) or in the compact binary
+ * format (see {@link BinaryRatingsFormat}), detected from the first bytes of the file.
+ * <p>
+ * The file is read twice, in chunks of {@link #setChunkSize(int) chunkSize} ratings:
+ * the first pass counts the ratings of each user, the second one stores each rating
+ * directly in its final position of the compressed row layout. No per-rating object
+ * is created and no temporary copy of the whole data set is needed.
+ * Data sets larger than the Java heap can be loaded in an {@link OffHeapRatingSource}
+ * by {@link #loadOffHeap(File, OffHeapMemory)}.
+ * The statistics of the last load, including its throughput, are available
+ * from {@link #getStatistics()}.
+ */
+public class RatingsLoader
+ {
+
+  protected int chunkSize;
+  protected int usersNumber;
+  protected int itemsNumber;
+  protected RatingStorage storage;
+  private RatingsLoadStatistics statistics;
+
+  public RatingsLoader()
+   {
+    chunkSize = 1 << 16;
+    storage = RatingStorage.FLOAT;
+   }
+
+  public RatingStorage getStorage()
+   {
+    return storage;
+   }
+
+  /**
+   * Sets the storage of the rating values of the loaded sources. The default
+   * value is {@link RatingStorage#FLOAT}.
+   *
+   * @param storage The storage of the rating values.
+   */
+  public void setStorage(RatingStorage storage)
+   {
+    this.storage = storage;
+   }
+
+  public int getChunkSize()
+   {
+    return chunkSize;
+   }
+
+  public void setChunkSize(int chunkSize)
+   {
+    this.chunkSize = chunkSize;
+   }
+
+  public int getUsersNumber()
+   {
+    return usersNumber;
+   }
+
+  /**
+   * Sets the number of users of the loaded sources. The default value is 0,
+   * which means that the number of users is the highest user index found in
+   * the file plus one.
+   *
+   * @param usersNumber The number of users.
+   */
+  public void setUsersNumber(int usersNumber)
+   {
+    this.usersNumber = usersNumber;
+   }
+
+  public int getItemsNumber()
+   {
+    return itemsNumber;
+   }
+
+  /**
+   * Sets the number of items of the loaded sources. The default value is 0,
+   * which means that the number of items is the highest item index found in
+   * the file plus one.
+   *
+   * @param itemsNumber The number of items.
+   */
+  public void setItemsNumber(int itemsNumber)
+   {
+    this.itemsNumber = itemsNumber;
+   }
+
+  /**
+   * Returns the statistics of the last load.
+   *
+   * @return The statistics of the last load, or <code>null</code> if no
+   * file has been loaded yet.
+   */
+  public RatingsLoadStatistics getStatistics()
+   {
+    return statistics;
+   }
+
+  /**
+   * Loads the ratings of the provided file in a new compressed source.
+   * If the same user-item couple appears more than once, the last value wins.
+   *
+   * @param file The ratings file.
+   *
+   * @return The new source.
+   *
+   * @throws IOException If an error occurs while reading the file, or if it contains
+   * indexes that fall outside the configured numbers of users and items.
+   * @throws IllegalArgumentException If a rating cannot be stored by the configured storage.
+   */
+  public CompressedSparseRatingSource load(File file) throws IOException
+   {
+    long start = System.nanoTime();
+    Counts counts = count(file);
+    if(counts.ratingsRead > Integer.MAX_VALUE)
+     throw new IOException("Too many ratings in " + file + " (" + counts.ratingsRead + ")");
+
+    int users = counts.users;
+    int[] rowPointers = new int[users + 1];
+    for(int i = 0; i < users; i++)
+     rowPointers[i + 1] = rowPointers[i] + counts.supports[i];
+    long countNanos = System.nanoTime() - start;
+
+    // second pass: store each rating in its row
+    start = System.nanoTime();
+    int[] rowItems = new int[(int)counts.ratingsRead];
+    float[] rowValues = new float[(int)counts.ratingsRead];
+    int[] cursors = counts.supports;
+    System.arraycopy(rowPointers, 0, cursors, 0, users);
+    int[] userIndexes = new int[chunkSize];
+    int[] itemIndexes = new int[chunkSize];
+    float[] values = new float[chunkSize];
+    long filled = 0;
+    long bytesRead;
+    RatingsReader reader = openReader(file);
+    try
+     {
+      int read;
+      while((read = reader.read(userIndexes, itemIndexes, values)) >= 0)
+       {
+        if(filled + read > counts.ratingsRead)
+         throw new IOException(file + " changed while loading it");
+        for(int r = 0; r < read; r++)
+         {
+          int position = cursors[userIndexes[r]]++;
+          rowItems[position] = itemIndexes[r];
+          rowValues[position] = values[r];
+         }
+        filled += read;
+       }
+      bytesRead = reader.getBytesRead();
+     }
+    finally
+     {
+      reader.close();
+     }
+    if(filled != counts.ratingsRead)
+     throw new IOException(file + " changed while loading it");
+    long fillNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    CompressedSparseRatingSource source = new CompressedSparseRatingSource();
+    try
+     {
+      source.init(users, counts.items, storage);
+     }
+    catch(RatingSourceAlreadyInitializedException e)
+     {
+      // cannot happen on a new source
+      throw new IllegalStateException(e);
+     }
+    source.loadRows(rowPointers, rowItems, rowValues);
+    long buildNanos = System.nanoTime() - start;
+
+    statistics = new RatingsLoadStatistics(counts.ratingsRead, source.getRatingsNumber(), counts.bytesRead + bytesRead,
+                                           countNanos, fillNanos, buildNanos);
+    return source;
+   }
+
+  /**
+   * Loads the ratings of the provided file in a new off-heap source, allocated
+   * from the provided memory. Unlike {@link #load(File)}, the file can contain more
+   * than 2<sup>31</sup> ratings; the rating values are always stored as floats.
+   * If the same user-item couple appears more than once, the last value wins.
+   *
+   * @param file The ratings file.
+   * @param memory The off-heap memory of the new source, or <code>null</code> to allocate
+   * direct buffers.
+   *
+   * @return The new source.
+   *
+   * @throws IOException If an error occurs while reading the file, or if it contains
+   * indexes that fall outside the configured numbers of users and items.
+   */
+  public OffHeapRatingSource loadOffHeap(File file, OffHeapMemory memory) throws IOException
+   {
+    long start = System.nanoTime();
+    Counts counts = count(file);
+
+    int users = counts.users;
+    long[] rowPointers = new long[users + 1];
+    for(int i = 0; i < users; i++)
+     rowPointers[i + 1] = rowPointers[i] + counts.supports[i];
+    counts.supports = null;
+    long countNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    OffHeapRatingSource source = new OffHeapRatingSource();
+    source.setMemory(memory);
+    try
+     {
+      source.init(users, counts.items);
+     }
+    catch(RatingSourceAlreadyInitializedException e)
+     {
+      // cannot happen on a new source
+      throw new IllegalStateException(e);
+     }
+    source.allocateRows(rowPointers);
+
+    // second pass: store each rating in its row
+    long[] cursors = rowPointers;
+    int[] userIndexes = new int[chunkSize];
+    int[] itemIndexes = new int[chunkSize];
+    float[] values = new float[chunkSize];
+    long filled = 0;
+    long bytesRead;
+    RatingsReader reader = openReader(file);
+    try
+     {
+      int read;
+      while((read = reader.read(userIndexes, itemIndexes, values)) >= 0)
+       {
+        if(filled + read > counts.ratingsRead)
+         throw new IOException(file + " changed while loading it");
+        for(int r = 0; r < read; r++)
+         source.putRowRating(cursors[userIndexes[r]]++, itemIndexes[r], values[r]);
+        filled += read;
+       }
+      bytesRead = reader.getBytesRead();
+     }
+    finally
+     {
+      reader.close();
+     }
+    if(filled != counts.ratingsRead)
+     throw new IOException(file + " changed while loading it");
+    long fillNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    source.build();
+    long buildNanos = System.nanoTime() - start;
+
+    statistics = new RatingsLoadStatistics(counts.ratingsRead, source.getRatingsNumber(), counts.bytesRead + bytesRead,
+                                           countNanos, fillNanos, buildNanos);
+    return source;
+   }
+
+  /**
+   * First pass of a load: checks the indexes and counts the ratings of each user.
+   */
+  private Counts count(File file) throws IOException
+   {
+    if(chunkSize < 1)
+     throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+
+    int[] userIndexes = new int[chunkSize];
+    int[] itemIndexes = new int[chunkSize];
+    float[] values = new float[chunkSize];
+
+    int[] supports = new int[Math.max(usersNumber, 1024)];
+    int maxUser = -1;
+    int maxItem = -1;
+    Counts counts = new Counts();
+    RatingsReader reader = openReader(file);
+    try
+     {
+      int read;
+      while((read = reader.read(userIndexes, itemIndexes, values)) >= 0)
+       {
+        for(int r = 0; r < read; r++)
+         {
+          int userIndex = userIndexes[r];
+          int itemIndex = itemIndexes[r];
+          if(userIndex < 0 || itemIndex < 0 || (usersNumber > 0 && userIndex >= usersNumber) ||
+             (itemsNumber > 0 && itemIndex >= itemsNumber))
+           throw new IOException("Invalid indexes (" + userIndex + ", " + itemIndex + ") in " + file);
+
+          if(userIndex >= supports.length)
+           supports = grow(supports, userIndex + 1);
+          if(supports[userIndex] == Integer.MAX_VALUE)
+           throw new IOException("Too many ratings for user " + userIndex + " in " + file);
+          supports[userIndex]++;
+          if(userIndex > maxUser)
+           maxUser = userIndex;
+          if(itemIndex > maxItem)
+           maxItem = itemIndex;
+         }
+        counts.ratingsRead += read;
+       }
+      counts.bytesRead = reader.getBytesRead();
+     }
+    finally
+     {
+      reader.close();
+     }
+
+    counts.users = usersNumber > 0 ? usersNumber : maxUser + 1;
+    counts.items = itemsNumber > 0 ? itemsNumber : maxItem + 1;
+    counts.supports = supports.length >= counts.users ? supports : grow(supports, counts.users);
+    return counts;
+   }
+
+  /**
+   * Opens a reader for the provided file, choosing the format from its first bytes.
+   *
+   * @param file The ratings file.
+   *
+   * @return The reader.
+   *
+   * @throws IOException If the file cannot be opened.
+   */
+  protected RatingsReader openReader(File file) throws IOException
+   {
+    DataInputStream input = new DataInputStream(new FileInputStream(file));
+    int magic;
+    try
+     {
+      magic = input.readInt();
+     }
+    catch(EOFException e)
+     {
+      magic = 0;
+     }
+    finally
+     {
+      input.close();
+     }
+
+    if(magic == BinaryRatingsFormat.MAGIC)
+     return new BinaryRatingsReader(file);
+    return new TextRatingsReader(file);
+   }
+
+  /**
+   * Results of the first pass of a load.
+   */
+  private static class Counts
+   {
+    int users;
+    int items;
+    int[] supports;
+    long ratingsRead;
+    long bytesRead;
+   }
+
+  private static int[] grow(int[] array, int minLength)
+   {
+    int[] ret = new int[Math.max(minLength, 2 * array.length)];
+    System.arraycopy(array, 0, ret, 0, array.length);
+    return ret;
+   }
+ }
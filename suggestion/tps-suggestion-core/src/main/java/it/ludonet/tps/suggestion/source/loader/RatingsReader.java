@@ -0,0 +1,40 @@
+package it.ludonet.tps.suggestion.source.loader;
+
+import java.io.IOException;
+
+/**
+ * Implementations of this interface read user-item-rating triples
+ * from a stream, in chunks stored in primitive arrays.
+ */
+public interface RatingsReader
+ {
+
+  /**
+   * Reads the next ratings in the provided arrays.
+   *
+   * @param userIndexes The array that will receive the 0-based user indexes.
+   * @param itemIndexes The array that will receive the 0-based item indexes.
+   * @param values The array that will receive the ratings values.
+   *
+   * @return The number of ratings read, at most the length of the arrays,
+   * or <code>-1</code> if there are no more ratings.
+   *
+   * @throws IOException If an error occurs while reading, or if the data is not valid.
+   */
+  public int read(int[] userIndexes, int[] itemIndexes, float[] values) throws IOException;
+
+  /**
+   * Returns the number of bytes read so far.
+   *
+   * @return The number of bytes read so far.
+   */
+  public long getBytesRead();
+
+  /**
+   * Closes the underlying stream.
+   *
+   * @throws IOException If an error occurs while closing the stream.
+   */
+  public void close() throws IOException;
+
+ }
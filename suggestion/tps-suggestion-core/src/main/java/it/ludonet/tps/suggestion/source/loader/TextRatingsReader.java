@@ -0,0 +1,233 @@
+package it.ludonet.tps.suggestion.source.loader;
+
+import java.io.*;
+
+/**
+ * This class reads ratings from a text file with one
+ * <code>user,item,rating</code> triple for each line. The fields can be
+ * separated by commas, semicolons, tabs or spaces, and any field after the
+ * rating (for example a timestamp) is ignored. Empty lines and lines starting
+ * with <code>#</code> are skipped, as well as a header on the first line.
+ * <p>
+ * The file is parsed directly from a large byte buffer, without creating
+ * any object for each line.
+ */
+public class TextRatingsReader implements RatingsReader
+ {
+
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  // exactly representable as doubles
+  private static final double[] POWERS_OF_TEN = new double[19];
+
+  static
+   {
+    POWERS_OF_TEN[0] = 1.0;
+    for(int p = 1; p < POWERS_OF_TEN.length; p++)
+     POWERS_OF_TEN[p] = POWERS_OF_TEN[p - 1] * 10.0;
+   }
+
+  private final InputStream input;
+  private final byte[] buffer;
+  private int position;
+  private int limit;
+  private long bytesRead;
+  private long line;
+
+  // the fields parsed from the current line
+  private long longValue;
+  private final StringBuilder number;
+
+  public TextRatingsReader(File file) throws IOException
+   {
+    this(new FileInputStream(file));
+   }
+
+  public TextRatingsReader(InputStream input)
+   {
+    this.input = input;
+    buffer = new byte[BUFFER_SIZE];
+    number = new StringBuilder();
+   }
+
+  public int read(int[] userIndexes, int[] itemIndexes, float[] values) throws IOException
+   {
+    int count = 0;
+    while(count < userIndexes.length)
+     {
+      int c = peek();
+      if(c < 0)
+       break;
+
+      line++;
+      if(c == '\n' || c == '\r' || c == '#')
+       {
+        skipLine();
+        continue;
+       }
+
+      if(!parseInteger())
+       {
+        if(line == 1)
+         {
+          // header
+          skipLine();
+          continue;
+         }
+        throw invalid("user index");
+       }
+      userIndexes[count] = checkIndex(longValue, "user index");
+
+      if(!skipSeparator() || !parseInteger())
+       throw invalid("item index");
+      itemIndexes[count] = checkIndex(longValue, "item index");
+
+      if(!skipSeparator())
+       throw invalid("rating");
+      values[count] = parseRating();
+
+      skipLine();
+      count++;
+     }
+    return count == 0 && userIndexes.length > 0 ? -1 : count;
+   }
+
+  public long getBytesRead()
+   {
+    return bytesRead;
+   }
+
+  public void close() throws IOException
+   {
+    input.close();
+   }
+
+  private int peek() throws IOException
+   {
+    if(position == limit)
+     {
+      limit = input.read(buffer, 0, buffer.length);
+      position = 0;
+      if(limit <= 0)
+       {
+        limit = 0;
+        return -1;
+       }
+      bytesRead += limit;
+     }
+    return buffer[position];
+   }
+
+  private void skipLine() throws IOException
+   {
+    int c;
+    while((c = peek()) >= 0)
+     {
+      position++;
+      if(c == '\n')
+       return;
+     }
+   }
+
+  private boolean skipSeparator() throws IOException
+   {
+    boolean found = false;
+    int c;
+    while((c = peek()) == ',' || c == ';' || c == '\t' || c == ' ')
+     {
+      position++;
+      found = true;
+     }
+    return found;
+   }
+
+  private boolean parseInteger() throws IOException
+   {
+    long value = 0;
+    int digits = 0;
+    int c;
+    while((c = peek()) >= '0' && c <= '9')
+     {
+      value = value * 10 + (c - '0');
+      position++;
+      if(++digits > 10)
+       return false;
+     }
+    longValue = value;
+    return digits > 0;
+   }
+
+  private float parseRating() throws IOException
+   {
+    boolean negative = false;
+    int c = peek();
+    if(c == '-' || c == '+')
+     {
+      negative = c == '-';
+      position++;
+     }
+
+    // fast path for plain decimal numbers
+    long mantissa = 0;
+    int digits = 0;
+    int decimals = 0;
+    boolean point = false;
+    number.setLength(0);
+    while(((c = peek()) >= '0' && c <= '9') || (c == '.' && !point))
+     {
+      number.append((char)c);
+      position++;
+      if(c == '.')
+       point = true;
+      else
+       {
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if(point)
+         decimals++;
+       }
+     }
+
+    if(c == 'e' || c == 'E')
+     {
+      // exponents are rare, let the JDK parse them
+      while(((c = peek()) >= '0' && c <= '9') || c == 'e' || c == 'E' || c == '-' || c == '+')
+       {
+        number.append((char)c);
+        position++;
+       }
+      try
+       {
+        float value = Float.parseFloat(number.toString());
+        return negative ? -value : value;
+       }
+      catch(NumberFormatException e)
+       {
+        throw invalid("rating");
+       }
+     }
+
+    if(digits == 0 || digits > 18)
+     {
+      if(digits == 0)
+       throw invalid("rating");
+      float value = Float.parseFloat(number.toString());
+      return negative ? -value : value;
+     }
+
+    double value = mantissa / POWERS_OF_TEN[decimals];
+    return (float)(negative ? -value : value);
+   }
+
+  private int checkIndex(long value, String field) throws IOException
+   {
+    if(value > Integer.MAX_VALUE)
+     throw invalid(field);
+    return (int)value;
+   }
+
+  private IOException invalid(String field)
+   {
+    return new IOException("Invalid " + field + " at line " + line);
+   }
+ }
@@ -0,0 +1,50 @@
+package it.ludonet.tps.suggestion.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The base class of the primitive arrays indexed by a <code>long</code>, stored
+ * off-heap in segments allocated by an {@link OffHeapMemory}. Each segment is at
+ * most 1 GB large, so that it can be mapped from a file (see
+ * {@link OffHeapMemory#setSegmentBytes(int)}).
+ * <p>
+ * Different elements can be read and written concurrently by different threads.
+ */
+public abstract class BigArray
+ {
+
+  protected final long length;
+  protected final int segmentShift;
+  protected final long segmentMask;
+
+  protected BigArray(OffHeapMemory memory, long length, int elementSize)
+   {
+    if(length < 0)
+     throw new IllegalArgumentException("Invalid length " + length);
+
+    this.length = length;
+    segmentShift = Integer.numberOfTrailingZeros(memory.getSegmentBytes() / elementSize);
+    segmentMask = (1L << segmentShift) - 1;
+   }
+
+  public long length()
+   {
+    return length;
+   }
+
+  /**
+   * Allocates the segments of the array.
+   */
+  protected ByteBuffer[] allocate(OffHeapMemory memory, int elementSize)
+   {
+    long elementsPerSegment = 1L << segmentShift;
+    int segmentsNumber = (int)((length + elementsPerSegment - 1) >>> segmentShift);
+    ByteBuffer[] segments = new ByteBuffer[segmentsNumber];
+    for(int s = 0; s < segmentsNumber; s++)
+     {
+      long elements = Math.min(elementsPerSegment, length - s * elementsPerSegment);
+      segments[s] = memory.allocate((int)(elements * elementSize));
+     }
+    return segments;
+   }
+ }
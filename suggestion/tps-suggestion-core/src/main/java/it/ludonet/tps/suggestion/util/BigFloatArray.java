@@ -0,0 +1,33 @@
+package it.ludonet.tps.suggestion.util;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * An off-heap array of floats indexed by a <code>long</code>.
+ */
+public class BigFloatArray extends BigArray
+ {
+
+  private final FloatBuffer[] segments;
+
+  public BigFloatArray(OffHeapMemory memory, long length)
+   {
+    super(memory, length, 4);
+
+    ByteBuffer[] bytes = allocate(memory, 4);
+    segments = new FloatBuffer[bytes.length];
+    for(int s = 0; s < bytes.length; s++)
+     segments[s] = bytes[s].asFloatBuffer();
+   }
+
+  public float get(long index)
+   {
+    return segments[(int)(index >>> segmentShift)].get((int)(index & segmentMask));
+   }
+
+  public void put(long index, float value)
+   {
+    segments[(int)(index >>> segmentShift)].put((int)(index & segmentMask), value);
+   }
+ }
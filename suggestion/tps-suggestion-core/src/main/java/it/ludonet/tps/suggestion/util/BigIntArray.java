@@ -0,0 +1,33 @@
+package it.ludonet.tps.suggestion.util;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * An off-heap array of ints indexed by a <code>long</code>.
+ */
+public class BigIntArray extends BigArray
+ {
+
+  private final IntBuffer[] segments;
+
+  public BigIntArray(OffHeapMemory memory, long length)
+   {
+    super(memory, length, 4);
+
+    ByteBuffer[] bytes = allocate(memory, 4);
+    segments = new IntBuffer[bytes.length];
+    for(int s = 0; s < bytes.length; s++)
+     segments[s] = bytes[s].asIntBuffer();
+   }
+
+  public int get(long index)
+   {
+    return segments[(int)(index >>> segmentShift)].get((int)(index & segmentMask));
+   }
+
+  public void put(long index, int value)
+   {
+    segments[(int)(index >>> segmentShift)].put((int)(index & segmentMask), value);
+   }
+ }
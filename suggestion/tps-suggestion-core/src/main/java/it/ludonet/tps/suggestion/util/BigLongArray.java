@@ -0,0 +1,33 @@
+package it.ludonet.tps.suggestion.util;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * An off-heap array of longs indexed by a <code>long</code>.
+ */
+public class BigLongArray extends BigArray
+ {
+
+  private final LongBuffer[] segments;
+
+  public BigLongArray(OffHeapMemory memory, long length)
+   {
+    super(memory, length, 8);
+
+    ByteBuffer[] bytes = allocate(memory, 8);
+    segments = new LongBuffer[bytes.length];
+    for(int s = 0; s < bytes.length; s++)
+     segments[s] = bytes[s].asLongBuffer();
+   }
+
+  public long get(long index)
+   {
+    return segments[(int)(index >>> segmentShift)].get((int)(index & segmentMask));
+   }
+
+  public void put(long index, long value)
+   {
+    segments[(int)(index >>> segmentShift)].put((int)(index & segmentMask), value);
+   }
+ }
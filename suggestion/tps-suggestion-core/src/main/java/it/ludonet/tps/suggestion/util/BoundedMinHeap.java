@@ -0,0 +1,196 @@
+package it.ludonet.tps.suggestion.util;
+
+/**
+ * A min-heap of (index, score) couples, backed by primitive arrays, that
+ * keeps only the couples with the highest scores up to a maximum size.
+ * When two couples have the same score, the one with the lower index
+ * is considered better, so that the selection is deterministic.
+ * <p>
+ * Instances of this class are not thread-safe, but can be reused
+ * by calling {@link #clear()}.
+ */
+public class BoundedMinHeap
+ {
+
+  private final int capacity;
+  private final int[] indexes;
+  private final double[] scores;
+  private int size;
+  // the maximum number of couples kept, up to the capacity
+  private int limit;
+
+  public BoundedMinHeap(int capacity)
+   {
+    if(capacity < 0)
+     throw new IllegalArgumentException("Invalid capacity " + capacity);
+
+    this.capacity = capacity;
+    limit = capacity;
+    indexes = new int[capacity];
+    scores = new double[capacity];
+   }
+
+  public int getCapacity()
+   {
+    return capacity;
+   }
+
+  /**
+   * Returns the maximum number of couples currently kept by the heap.
+   *
+   * @return The maximum number of couples kept, not larger than the capacity.
+   */
+  public int getLimit()
+   {
+    return limit;
+   }
+
+  public int size()
+   {
+    return size;
+   }
+
+  public boolean isFull()
+   {
+    return size == limit;
+   }
+
+  /**
+   * Returns the lowest score kept in the heap.
+   *
+   * @return The lowest score kept in the heap.
+   *
+   * @throws IllegalStateException If the heap is empty.
+   */
+  public double getMinScore()
+   {
+    if(size == 0)
+     throw new IllegalStateException("Empty heap");
+    return scores[0];
+   }
+
+  /**
+   * Offers a couple to the heap. The couple is kept if the heap is not full
+   * or if it is better than the worst couple in the heap, which is discarded.
+   *
+   * @param index The index.
+   * @param score The score of the index.
+   *
+   * @return <code>true</code> if the couple has been kept.
+   */
+  public boolean offer(int index, double score)
+   {
+    if(size < limit)
+     {
+      int position = size++;
+      // sift up
+      while(position > 0)
+       {
+        int parent = (position - 1) >>> 1;
+        if(!worse(index, score, indexes[parent], scores[parent]))
+         break;
+        indexes[position] = indexes[parent];
+        scores[position] = scores[parent];
+        position = parent;
+       }
+      indexes[position] = index;
+      scores[position] = score;
+      return true;
+     }
+
+    if(limit == 0 || !worse(indexes[0], scores[0], index, score))
+     return false;
+
+    // replace the root and sift down
+    int position = 0;
+    int half = size >>> 1;
+    while(position < half)
+     {
+      int child = 2 * position + 1;
+      int right = child + 1;
+      if(right < size && worse(indexes[right], scores[right], indexes[child], scores[child]))
+       child = right;
+      if(!worse(indexes[child], scores[child], index, score))
+       break;
+      indexes[position] = indexes[child];
+      scores[position] = scores[child];
+      position = child;
+     }
+    indexes[position] = index;
+    scores[position] = score;
+    return true;
+   }
+
+  /**
+   * Moves the couples kept in the heap to the provided arrays, sorted from the
+   * best to the worst one, and empties the heap.
+   *
+   * @param outIndexes The array that will receive the indexes.
+   * @param outScores The array that will receive the scores. It can be <code>null</code>.
+   * @param offset The position of the arrays where the first couple will be stored.
+   *
+   * @return The number of couples moved to the arrays.
+   */
+  public int drainSorted(int[] outIndexes, double[] outScores, int offset)
+   {
+    int count = size;
+    // repeatedly remove the worst couple, filling the arrays from the end
+    while(size > 0)
+     {
+      int last = --size;
+      outIndexes[offset + last] = indexes[0];
+      if(outScores != null)
+       outScores[offset + last] = scores[0];
+
+      int index = indexes[last];
+      double score = scores[last];
+      int position = 0;
+      int half = size >>> 1;
+      while(position < half)
+       {
+        int child = 2 * position + 1;
+        int right = child + 1;
+        if(right < size && worse(indexes[right], scores[right], indexes[child], scores[child]))
+         child = right;
+        if(!worse(indexes[child], scores[child], index, score))
+         break;
+        indexes[position] = indexes[child];
+        scores[position] = scores[child];
+        position = child;
+       }
+      if(size > 0)
+       {
+        indexes[position] = index;
+        scores[position] = score;
+       }
+     }
+    return count;
+   }
+
+  public void clear()
+   {
+    size = 0;
+   }
+
+  /**
+   * Empties the heap and changes the maximum number of couples it keeps, so that
+   * a heap can be reused for selections of different sizes.
+   *
+   * @param limit The maximum number of couples to keep.
+   *
+   * @throws IllegalArgumentException If the limit is negative or larger than the capacity.
+   */
+  public void clear(int limit)
+   {
+    if(limit < 0 || limit > capacity)
+     throw new IllegalArgumentException("Invalid limit " + limit);
+
+    size = 0;
+    this.limit = limit;
+   }
+
+  private static boolean worse(int index1, double score1, int index2, double score2)
+   {
+    return score1 < score2 || (score1 == score2 && index1 > index2);
+   }
+ }
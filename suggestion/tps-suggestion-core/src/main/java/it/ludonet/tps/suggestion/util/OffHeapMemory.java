@@ -0,0 +1,121 @@
+package it.ludonet.tps.suggestion.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class allocates memory outside of the Java heap, either as direct
+ * buffers or as regions of a backing file mapped in memory. In the second
+ * case the operating system can page the data in and out, so the allocated
+ * memory can exceed the physical one.
+ * <p>
+ * Direct buffers are released when they are garbage collected, so the
+ * maximum direct memory of the JVM (<code>-XX:MaxDirectMemorySize</code>)
+ * must be large enough for the allocated data.
+ */
+public class OffHeapMemory
+ {
+
+  /**
+   * The default size of the segments of the arrays, that is the largest
+   * region that can be mapped from a file.
+   */
+  public static final int DEFAULT_SEGMENT_BYTES = 1 << 30;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private long fileSize;
+  private int segmentBytes = DEFAULT_SEGMENT_BYTES;
+
+  /**
+   * Creates an allocator of direct buffers.
+   */
+  public OffHeapMemory()
+   {
+    file = null;
+    channel = null;
+   }
+
+  /**
+   * Creates an allocator that maps regions of the provided file, replacing its content.
+   *
+   * @param backingFile The backing file.
+   *
+   * @throws IOException If the file cannot be opened.
+   */
+  public OffHeapMemory(File backingFile) throws IOException
+   {
+    file = new RandomAccessFile(backingFile, "rw");
+    file.setLength(0);
+    channel = file.getChannel();
+   }
+
+  public boolean isFileBacked()
+   {
+    return channel != null;
+   }
+
+  public int getSegmentBytes()
+   {
+    return segmentBytes;
+   }
+
+  /**
+   * Sets the size of the segments of the arrays allocated from now on. Smaller
+   * segments split the arrays in more buffers, which is mostly useful to check
+   * the indexing of the arrays without allocating gigabytes.
+   *
+   * @param segmentBytes The segment size in bytes, a power of two between 8 and
+   * {@link #DEFAULT_SEGMENT_BYTES}.
+   *
+   * @throws IllegalArgumentException If the size is not valid.
+   */
+  public void setSegmentBytes(int segmentBytes) throws IllegalArgumentException
+   {
+    if(segmentBytes < 8 || segmentBytes > DEFAULT_SEGMENT_BYTES || Integer.bitCount(segmentBytes) != 1)
+     throw new IllegalArgumentException("Invalid segment size " + segmentBytes);
+
+    this.segmentBytes = segmentBytes;
+   }
+
+  /**
+   * Allocates a new buffer, filled with zeros and in the native byte order.
+   *
+   * @param size The size of the buffer in bytes.
+   *
+   * @return The new buffer.
+   *
+   * @throws IllegalStateException If the backing file cannot be extended or mapped.
+   */
+  public synchronized ByteBuffer allocate(int size) throws IllegalStateException
+   {
+    if(channel == null)
+     return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+
+    try
+     {
+      // the new region of the file is read as zeros
+      long offset = fileSize;
+      fileSize += size;
+      file.setLength(fileSize);
+      return channel.map(FileChannel.MapMode.READ_WRITE, offset, size).order(ByteOrder.nativeOrder());
+     }
+    catch(IOException e)
+     {
+      throw new IllegalStateException("Cannot allocate " + size + " bytes in the backing file", e);
+     }
+   }
+
+  /**
+   * Closes the backing file. The buffers allocated so far remain valid.
+   *
+   * @throws IOException If an error occurs while closing the file.
+   */
+  public void close() throws IOException
+   {
+    if(file != null)
+     file.close();
+   }
+ }
@@ -0,0 +1,75 @@
+package it.ludonet.tps.suggestion;
+
+import it.ludonet.tps.suggestion.exception.RatingSourceAlreadyInitializedException;
+import it.ludonet.tps.suggestion.preprocessor.GlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.ItemMainGlobalEffectRemover;
+import it.ludonet.tps.suggestion.preprocessor.impl.UserMainGlobalEffectRemover;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
+import it.ludonet.tps.suggestion.source.impl.RatingStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Small random rating matrices used by the tests.
+ */
+public class TestRatings
+ {
+
+  /**
+   * Creates a source with random ratings between 1 and 5, in half stars.
+   *
+   * @param usersNumber The number of users.
+   * @param itemsNumber The number of items.
+   * @param density The probability of each couple to be rated.
+   * @param seed The seed of the random generator.
+   *
+   * @return The ratings.
+   */
+  public static CompressedSparseRatingSource create(int usersNumber, int itemsNumber, double density, long seed)
+   {
+    Random random = new Random(seed);
+    int capacity = usersNumber * itemsNumber;
+    int[] userIndexes = new int[capacity];
+    int[] itemIndexes = new int[capacity];
+    float[] values = new float[capacity];
+    int count = 0;
+    for(int u = 0; u < usersNumber; u++)
+     {
+      for(int i = 0; i < itemsNumber; i++)
+       {
+        if(random.nextDouble() >= density)
+         continue;
+        userIndexes[count] = u;
+        itemIndexes[count] = i;
+        values[count] = 1.0f + random.nextInt(9) * 0.5f;
+        count++;
+       }
+     }
+
+    CompressedSparseRatingSource source = new CompressedSparseRatingSource();
+    try
+     {
+      source.init(usersNumber, itemsNumber, RatingStorage.FLOAT);
+     }
+    catch(RatingSourceAlreadyInitializedException e)
+     {
+      throw new IllegalStateException(e);
+     }
+    return source.load(userIndexes, itemIndexes, values, count);
+   }
+
+  /**
+   * Creates the user and item main global effect removers.
+   *
+   * @return The removers.
+   */
+  public static List<GlobalEffectRemover> createMainRemovers()
+   {
+    List<GlobalEffectRemover> removers = new ArrayList<GlobalEffectRemover>();
+    removers.add(new UserMainGlobalEffectRemover());
+    removers.add(new ItemMainGlobalEffectRemover());
+    return removers;
+   }
+ }
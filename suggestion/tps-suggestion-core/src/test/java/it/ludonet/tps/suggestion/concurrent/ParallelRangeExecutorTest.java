@@ -0,0 +1,91 @@
+package it.ludonet.tps.suggestion.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelRangeExecutorTest
+ {
+
+  @Test
+  public void everyIndexIsProcessedOnce() throws Exception
+   {
+    final AtomicIntegerArray counts = new AtomicIntegerArray(1000);
+    ParallelRangeExecutor.getShared(4).execute(counts.length(), new RangeTask()
+     {
+      public void run(int from, int to)
+       {
+        for(int k = from; k < to; k++)
+         counts.incrementAndGet(k);
+       }
+     });
+
+    for(int k = 0; k < counts.length(); k++)
+     assertEquals("Index " + k, 1, counts.get(k));
+   }
+
+  @Test(timeout = 10000)
+  public void nestedExecutionOnSharedExecutor() throws Exception
+   {
+    final ParallelRangeExecutor executor = ParallelRangeExecutor.getShared(2);
+    final AtomicLong sum = new AtomicLong();
+    // every thread of the pool is busy with the outer task when the inner ones start
+    executor.execute(16, new RangeTask()
+     {
+      public void run(int from, int to)
+       {
+        for(int k = from; k < to; k++)
+         {
+          try
+           {
+            executor.execute(100, new RangeTask()
+             {
+              public void run(int innerFrom, int innerTo)
+               {
+                sum.addAndGet(innerTo - innerFrom);
+               }
+             });
+           }
+          catch(Exception e)
+           {
+            throw new IllegalStateException(e);
+           }
+         }
+       }
+     });
+
+    assertEquals(16 * 100, sum.get());
+   }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void uncheckedFailureIsRethrown() throws Exception
+   {
+    try
+     {
+      ParallelRangeExecutor.getShared(3).execute(10, new RangeTask()
+       {
+        public void run(int from, int to)
+         {
+          if(from == 0)
+           throw new IllegalArgumentException("Failed chunk");
+         }
+       });
+      fail("The failure of the chunk has not been reported");
+     }
+    catch(ExecutionException e)
+     {
+      ParallelRangeExecutor.getCheckedCause(e);
+     }
+   }
+
+  @Test(expected = IllegalStateException.class)
+  public void sharedExecutorCannotBeShutDown()
+   {
+    ParallelRangeExecutor.getShared(2).shutdown();
+   }
+ }
@@ -0,0 +1,136 @@
+package it.ludonet.tps.suggestion.factorization;
+
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class LatentFactorsBuilderTest
+ {
+
+  private CompressedSparseRatingSource residuals;
+
+  @Before
+  public void setUp() throws Exception
+   {
+    // residuals of rank 3 on about half of the couples
+    int usersNumber = 40;
+    int itemsNumber = 25;
+    int rank = 3;
+    Random random = new Random(11);
+    double[][] users = new double[usersNumber][rank];
+    double[][] items = new double[itemsNumber][rank];
+    for(double[] factors : users)
+     for(int k = 0; k < rank; k++)
+      factors[k] = random.nextGaussian();
+    for(double[] factors : items)
+     for(int k = 0; k < rank; k++)
+      factors[k] = random.nextGaussian();
+
+    int[] userIndexes = new int[usersNumber * itemsNumber];
+    int[] itemIndexes = new int[userIndexes.length];
+    float[] values = new float[userIndexes.length];
+    int count = 0;
+    for(int i = 0; i < usersNumber; i++)
+     for(int j = 0; j < itemsNumber; j++)
+      {
+       if(random.nextDouble() >= 0.5)
+        continue;
+       double value = 0.0;
+       for(int k = 0; k < rank; k++)
+        value += users[i][k] * items[j][k];
+       userIndexes[count] = i;
+       itemIndexes[count] = j;
+       values[count++] = (float)value;
+      }
+
+    residuals = new CompressedSparseRatingSource();
+    residuals.init(usersNumber, itemsNumber);
+    residuals.load(userIndexes, itemIndexes, values, count);
+   }
+
+  @Test
+  public void sgdReducesTrainingError() throws Exception
+   {
+    checkTrainingErrorDecreases(LatentFactorsBuilder.SGD);
+   }
+
+  @Test
+  public void alsReducesTrainingError() throws Exception
+   {
+    checkTrainingErrorDecreases(LatentFactorsBuilder.ALS);
+   }
+
+  @Test
+  public void sgdIsDeterministic() throws Exception
+   {
+    checkDeterministic(LatentFactorsBuilder.SGD);
+   }
+
+  @Test
+  public void alsIsDeterministic() throws Exception
+   {
+    checkDeterministic(LatentFactorsBuilder.ALS);
+   }
+
+  private void checkTrainingErrorDecreases(int method) throws Exception
+   {
+    double previous = rmse(createBuilder(method, 0).build(residuals));
+    for(int iterations = 1; iterations <= 16; iterations *= 2)
+     {
+      double error = rmse(createBuilder(method, iterations).build(residuals));
+      assertTrue("RMSE after " + iterations + " iterations: " + error + ", before: " + previous, error < previous);
+      previous = error;
+     }
+    assertTrue("Final RMSE " + previous, previous < 0.5);
+   }
+
+  private void checkDeterministic(int method) throws Exception
+   {
+    LatentFactors first = createBuilder(method, 5).build(residuals);
+    LatentFactors second = createBuilder(method, 5).build(residuals);
+    assertTrue(Arrays.equals(first.getUserFactors(), second.getUserFactors()));
+    assertTrue(Arrays.equals(first.getItemFactors(), second.getItemFactors()));
+
+    LatentFactorsBuilder builder = createBuilder(method, 5);
+    builder.setSeed(8);
+    assertTrue(!Arrays.equals(first.getItemFactors(), builder.build(residuals).getItemFactors()));
+   }
+
+  private static LatentFactorsBuilder createBuilder(int method, int iterations)
+   {
+    LatentFactorsBuilder builder = new LatentFactorsBuilder();
+    builder.setMethod(method);
+    builder.setFactorsNumber(3);
+    builder.setIterations(iterations);
+    builder.setLearningRate(0.05);
+    builder.setLearningRateDecay(1.0);
+    builder.setRegularization(0.01);
+    builder.setSeed(7);
+    builder.setParallelism(1);
+    return builder;
+   }
+
+  private double rmse(final LatentFactors factors)
+   {
+    final double[] sum = new double[1];
+    for(int i = 0; i < residuals.getUsersNumber(); i++)
+     {
+      final int userIndex = i;
+      residuals.walkUserRatings(i, new RatingVisitor()
+       {
+        public void visit(int itemIndex, double value)
+         {
+          double error = value - factors.predict(userIndex, itemIndex);
+          sum[0] += error * error;
+         }
+       });
+     }
+    return Math.sqrt(sum[0] / residuals.getRatingsNumber());
+   }
+ }
@@ -0,0 +1,89 @@
+package it.ludonet.tps.suggestion.impl;
+
+import it.ludonet.tps.suggestion.TestRatings;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BellKorenNetflixPrice2007SuggesterTest
+ {
+
+  private static final int USERS = 60;
+  private static final int ITEMS = 20;
+
+  private File file;
+  private BellKorenNetflixPrice2007Suggester trained;
+
+  @Before
+  public void setUp() throws Exception
+   {
+    file = File.createTempFile("bellkoren", ".snapshot");
+    trained = createSuggester();
+    CompressedSparseRatingSource ratings = TestRatings.create(USERS, ITEMS, 0.4, 1);
+    trained.setRatingEffects(ratings.createEmptyCopy());
+    trained.train(ratings);
+    trained.saveSnapshot(file);
+   }
+
+  @After
+  public void tearDown()
+   {
+    file.delete();
+   }
+
+  @Test
+  public void refreshSimilarItemsOfReadOnlySnapshot() throws Exception
+   {
+    BellKorenNetflixPrice2007Suggester loaded = createSuggester();
+    loaded.loadSnapshot(file, false);
+
+    // the residuals didn't change, so the refreshed rows are the trained ones
+    loaded.refreshSimilarItems(new int[] { 0, 3, 7 });
+    assertSameSimilarItems(trained, loaded);
+   }
+
+  @Test
+  public void refreshSimilarItemsOfServingCopy() throws Exception
+   {
+    BellKorenNetflixPrice2007Suggester copy = (BellKorenNetflixPrice2007Suggester)trained.createServingCopy();
+
+    copy.refreshSimilarItems(new int[] { 1, 2 });
+    assertSameSimilarItems(trained, copy);
+   }
+
+  @Test
+  public void suggestedItemsOfUnboundedRequest() throws Exception
+   {
+    List<Integer> all = trained.getSuggestedItems(0, Integer.MAX_VALUE);
+    assertTrue(all.size() >= 3 && all.size() <= ITEMS);
+
+    // the heap of the larger request is reused for the smaller ones
+    assertEquals(all.subList(0, 3), trained.getSuggestedItems(0, 3));
+    assertEquals(all, trained.getSuggestedItems(0, ITEMS * 2));
+   }
+
+  private static BellKorenNetflixPrice2007Suggester createSuggester()
+   {
+    BellKorenNetflixPrice2007Suggester suggester = new BellKorenNetflixPrice2007Suggester();
+    suggester.setGlobalEffectsRemovers(TestRatings.createMainRemovers());
+    return suggester;
+   }
+
+  private static void assertSameSimilarItems(BellKorenNetflixPrice2007Suggester expected,
+                                             BellKorenNetflixPrice2007Suggester actual) throws Exception
+   {
+    for(int i = 0; i < ITEMS; i++)
+     {
+      List<Integer> similarItems = expected.getSimilarItems(i, ITEMS);
+      assertEquals("Similar items of " + i, similarItems, actual.getSimilarItems(i, ITEMS));
+     }
+   }
+ }
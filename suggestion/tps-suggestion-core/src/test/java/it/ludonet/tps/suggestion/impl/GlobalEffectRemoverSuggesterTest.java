@@ -0,0 +1,127 @@
+package it.ludonet.tps.suggestion.impl;
+
+import it.ludonet.tps.suggestion.TestRatings;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GlobalEffectRemoverSuggesterTest
+ {
+
+  private static final int USERS = 40;
+  private static final int ITEMS = 15;
+  private static final double TOLERANCE = 1e-9;
+
+  private File file;
+  private int newUser;
+  private int newItem;
+
+  @Before
+  public void setUp() throws Exception
+   {
+    file = File.createTempFile("effects", ".snapshot");
+
+    // a couple that is not in the training ratings
+    CompressedSparseRatingSource ratings = createRatings();
+    newUser = -1;
+    for(int u = 0; u < USERS && newUser < 0; u++)
+     {
+      for(int i = 0; i < ITEMS && newUser < 0; i++)
+       {
+        if(!ratings.getUserRatings(u).containsKey(i))
+         {
+          newUser = u;
+          newItem = i;
+         }
+       }
+     }
+    assertTrue(newUser >= 0);
+   }
+
+  @After
+  public void tearDown()
+   {
+    file.delete();
+   }
+
+  @Test
+  public void newCoupleUpdatedTwice() throws Exception
+   {
+    BellKorenNetflixPrice2007Suggester twice = createTrainedSuggester();
+    twice.updateRating(newUser, newItem, 2.0);
+    twice.updateRating(newUser, newItem, 4.5);
+
+    BellKorenNetflixPrice2007Suggester once = createTrainedSuggester();
+    once.updateRating(newUser, newItem, 4.5);
+
+    assertSameGlobalEffects(once, twice);
+   }
+
+  @Test
+  public void newCoupleUpdatedAgainAfterSnapshot() throws Exception
+   {
+    BellKorenNetflixPrice2007Suggester saved = createTrainedSuggester();
+    saved.updateRating(newUser, newItem, 2.0);
+    saved.saveSnapshot(file);
+
+    BellKorenNetflixPrice2007Suggester loaded = createSuggester();
+    loaded.loadSnapshot(file, true);
+    loaded.updateRating(newUser, newItem, 4.5);
+
+    BellKorenNetflixPrice2007Suggester once = createTrainedSuggester();
+    once.updateRating(newUser, newItem, 4.5);
+
+    assertSameGlobalEffects(once, loaded);
+   }
+
+  @Test
+  public void updateAfterLoadingSnapshot() throws Exception
+   {
+    BellKorenNetflixPrice2007Suggester trained = createTrainedSuggester();
+    trained.saveSnapshot(file);
+
+    BellKorenNetflixPrice2007Suggester loaded = createSuggester();
+    loaded.loadSnapshot(file, true);
+    loaded.updateRatings(new int[] { 0, newUser }, new int[] { 0, newItem }, new double[] { 1.0, 3.5 });
+    trained.updateRatings(new int[] { 0, newUser }, new int[] { 0, newItem }, new double[] { 1.0, 3.5 });
+
+    assertSameGlobalEffects(trained, loaded);
+   }
+
+  private static CompressedSparseRatingSource createRatings()
+   {
+    return TestRatings.create(USERS, ITEMS, 0.5, 3);
+   }
+
+  private static BellKorenNetflixPrice2007Suggester createSuggester()
+   {
+    BellKorenNetflixPrice2007Suggester suggester = new BellKorenNetflixPrice2007Suggester();
+    suggester.setGlobalEffectsRemovers(TestRatings.createMainRemovers());
+    return suggester;
+   }
+
+  private static BellKorenNetflixPrice2007Suggester createTrainedSuggester() throws Exception
+   {
+    BellKorenNetflixPrice2007Suggester suggester = createSuggester();
+    CompressedSparseRatingSource ratings = createRatings();
+    suggester.setRatingEffects(ratings.createEmptyCopy());
+    suggester.train(ratings);
+    return suggester;
+   }
+
+  private static void assertSameGlobalEffects(GlobalEffectRemoverSuggester expected, GlobalEffectRemoverSuggester actual)
+   {
+    for(int u = 0; u < USERS; u++)
+     {
+      for(int i = 0; i < ITEMS; i++)
+       assertEquals("Global effects of (" + u + ", " + i + ")",
+                    expected.getGlobalEffects(u, i), actual.getGlobalEffects(u, i), TOLERANCE);
+     }
+   }
+ }
@@ -0,0 +1,49 @@
+package it.ludonet.tps.suggestion.impl;
+
+import it.ludonet.tps.suggestion.TestRatings;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MatrixFactorizationSuggesterTest
+ {
+
+  private static final int USERS = 40;
+  private static final int ITEMS = 15;
+
+  private MatrixFactorizationSuggester suggester;
+
+  @Before
+  public void setUp() throws Exception
+   {
+    suggester = new MatrixFactorizationSuggester();
+    suggester.setGlobalEffectsRemovers(TestRatings.createMainRemovers());
+    suggester.getFactorsBuilder().setFactorsNumber(4);
+    suggester.getFactorsBuilder().setIterations(5);
+    CompressedSparseRatingSource ratings = TestRatings.create(USERS, ITEMS, 0.4, 2);
+    suggester.setRatingEffects(ratings.createEmptyCopy());
+    suggester.train(ratings);
+   }
+
+  @Test
+  public void suggestedItemsOfUnboundedRequest() throws Exception
+   {
+    List<Integer> all = suggester.getSuggestedItems(0, Integer.MAX_VALUE);
+    assertTrue(all.size() >= 3 && all.size() <= ITEMS);
+    assertEquals(all.subList(0, 3), suggester.getSuggestedItems(0, 3));
+   }
+
+  @Test
+  public void similarItemsOfUnboundedRequest() throws Exception
+   {
+    List<Integer> all = suggester.getSimilarItems(0, Integer.MAX_VALUE);
+    assertTrue(all.size() <= ITEMS - 1);
+    assertTrue(!all.contains(0));
+    assertEquals(all, suggester.getSimilarItems(0, ITEMS - 1));
+   }
+ }
@@ -0,0 +1,67 @@
+package it.ludonet.tps.suggestion.neighbourhood;
+
+import it.ludonet.tps.suggestion.TestRatings;
+import it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSource;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ItemNeighbourhoodTest
+ {
+
+  private static final int USERS = 80;
+  private static final int ITEMS = 12;
+
+  @Test
+  public void zeroResidualIsARating() throws Exception
+   {
+    CompressedSparseRatingSource residuals = TestRatings.create(USERS, ITEMS, 0.6, 5);
+    ItemNeighbourhood neighbourhood = new ItemNeighbourhoodBuilder().build(residuals);
+    ItemNeighbourhood.Workspace workspace = neighbourhood.createWorkspace();
+
+    // a user with at least two rated neighbours of an item not rated by the user
+    for(int u = 0; u < USERS; u++)
+     {
+      Map<Integer, Double> ratings = residuals.getUserRatings(u);
+      for(int i = 0; i < ITEMS; i++)
+       {
+        if(ratings.containsKey(i))
+         continue;
+        int rated = -1;
+        int ratedNumber = 0;
+        for(int s = 0; s < neighbourhood.getNeighboursNumber(); s++)
+         {
+          int neighbour = neighbourhood.neighbours.get(i * neighbourhood.getNeighboursNumber() + s);
+          if(neighbour >= 0 && ratings.containsKey(neighbour))
+           {
+            rated = neighbour;
+            ratedNumber++;
+           }
+         }
+        if(ratedNumber < 2)
+         continue;
+
+        residuals.setRating(u, rated, 0.0);
+        double zero = neighbourhood.interpolate(residuals, u, i, workspace);
+
+        double[] userResiduals = new double[ITEMS];
+        Arrays.fill(userResiduals, Double.NaN);
+        for(Map.Entry<Integer, Double> entry : residuals.getUserRatings(u).entrySet())
+         userResiduals[entry.getKey()] = entry.getValue();
+        assertEquals(zero, neighbourhood.interpolate(userResiduals, i, workspace), 1e-12);
+
+        // the zero residual keeps its neighbour in the system, which changes the
+        // weights of the other neighbours
+        userResiduals[rated] = Double.NaN;
+        double dropped = neighbourhood.interpolate(userResiduals, i, workspace);
+        assertTrue("Zero residual dropped for (" + u + ", " + i + ")", dropped != zero);
+        return;
+       }
+     }
+    throw new AssertionError("No user rated two neighbours of an unrated item");
+   }
+ }
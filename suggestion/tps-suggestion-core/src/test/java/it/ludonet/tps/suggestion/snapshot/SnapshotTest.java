@@ -0,0 +1,87 @@
+package it.ludonet.tps.suggestion.snapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotTest
+ {
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception
+   {
+    file = File.createTempFile("snapshot", ".snapshot");
+   }
+
+  @After
+  public void tearDown()
+   {
+    file.delete();
+   }
+
+  @Test
+  public void emptySectionFollowedByNonEmptyOne() throws Exception
+   {
+    SnapshotWriter writer = new SnapshotWriter();
+    writer.putInts("empty", new int[0]);
+    writer.putFloats("values", new float[] { 1.5f, 2.5f, 3.5f });
+    writer.putInts("emptyToo", new int[0]);
+    writer.putInts("indexes", new int[] { 7, 8 });
+    writer.writeTo(file);
+
+    for(boolean copyOnWrite : new boolean[] { false, true })
+     {
+      Snapshot snapshot = Snapshot.open(file, copyOnWrite);
+      assertEquals(0, snapshot.getInts("empty").capacity());
+      assertEquals(0, snapshot.getInts("emptyToo").capacity());
+      FloatBuffer values = snapshot.getFloats("values");
+      assertEquals(3, values.capacity());
+      assertEquals(2.5f, values.get(1), 0.0f);
+      IntBuffer indexes = snapshot.getInts("indexes");
+      assertEquals(2, indexes.capacity());
+      assertEquals(8, indexes.get(1));
+     }
+   }
+
+  @Test
+  public void sharedSectionsAreMappedOnce() throws Exception
+   {
+    int[] shared = new int[] { 1, 2, 3 };
+    SnapshotWriter writer = new SnapshotWriter();
+    IntBuffer buffer = IntBuffer.wrap(shared);
+    writer.putInts("first", buffer);
+    writer.putInts("second", buffer);
+    writer.writeTo(file);
+
+    Snapshot snapshot = Snapshot.open(file, false);
+    assertTrue(snapshot.getInts("first") == snapshot.getInts("second"));
+   }
+
+  @Test
+  public void replacedFileKeepsMappedSnapshotValid() throws Exception
+   {
+    new SnapshotWriter().putInts("values", new int[] { 1, 2, 3 }).writeTo(file);
+    Snapshot old = Snapshot.open(file, false);
+
+    new SnapshotWriter().putInts("values", new int[] { 4, 5 }).writeTo(file);
+    Snapshot replaced = Snapshot.open(file, false);
+
+    assertEquals(3, old.getInts("values").capacity());
+    assertEquals(3, old.getInts("values").get(2));
+    assertEquals(2, replaced.getInts("values").capacity());
+    assertEquals(5, replaced.getInts("values").get(1));
+
+    String[] left = file.getAbsoluteFile().getParentFile().list();
+    for(String name : left)
+     assertTrue("Temporary file left: " + name, !(name.startsWith(file.getName() + ".") && name.endsWith(".tmp")));
+   }
+ }
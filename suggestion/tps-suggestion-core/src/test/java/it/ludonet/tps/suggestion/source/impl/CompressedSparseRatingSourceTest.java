@@ -0,0 +1,223 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import it.ludonet.tps.suggestion.TestRatings;
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.source.RatingVisitor;
+import it.ludonet.tps.suggestion.source.RatingsSource;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressedSparseRatingSourceTest
+ {
+
+  @Test
+  public void loadRowsSortsAndLinksRowsAndColumns() throws Exception
+   {
+    // user 1 has no ratings, the row of user 2 holds item 3 twice
+    int[] rowPointers = { 0, 3, 3, 7, 9 };
+    int[] rowItems = { 4, 0, 2, 3, 1, 3, 0, 4, 1 };
+    float[] rowValues = { 1.0f, 1.5f, 2.0f, 2.5f, 3.0f, 3.5f, 4.0f, 4.5f, 5.0f };
+    CompressedSparseRatingSource source = create(4, 5).loadRows(rowPointers, rowItems, rowValues);
+
+    assertEquals(8, source.getRatingsNumber());
+    assertEquals(Arrays.asList(0, 2, 4), new ArrayList<Integer>(source.getUserRatings(0).keySet()));
+    assertEquals(Arrays.asList(0, 1, 3), new ArrayList<Integer>(source.getUserRatings(2).keySet()));
+    assertEquals(3.5, source.getRating(2, 3), 0.0);
+    assertEquals(1.5, source.getRating(0, 0), 0.0);
+    assertEquals(Arrays.asList(0, 2), new ArrayList<Integer>(source.getItemRatings(0).keySet()));
+    assertSameRatings(source, source);
+
+    // the updates through one layout are seen through the other one
+    source.setRating(2, 3, 0.5);
+    assertEquals(0.5, source.getItemRatings(3).get(2), 0.0);
+    source.walkItemRatings(4, new RatingChangingVisitor()
+     {
+      public double visit(int userIndex, double value)
+       {
+        return value + 10.0;
+       }
+     });
+    assertEquals(11.0, source.getRating(0, 4), 0.0);
+    assertEquals(14.5, source.getUserRatings(3).get(4), 0.0);
+    assertSameRatings(source, source);
+   }
+
+  @Test
+  public void duplicateCouplesKeepTheLastValue() throws Exception
+   {
+    CompressedSparseRatingSource source = create(2, 3).load(new int[] { 1, 0, 1, 1 },
+                                                            new int[] { 2, 1, 2, 0 },
+                                                            new float[] { 1.0f, 2.0f, 3.0f, 4.0f }, 4);
+
+    assertEquals(3, source.getRatingsNumber());
+    assertEquals(3.0, source.getRating(1, 2), 0.0);
+    assertEquals(1, source.getItemSupport(2));
+    assertEquals(2, source.getUserSupport(1));
+    assertSameRatings(source, source);
+   }
+
+  @Test
+  public void emptyRowsAndColumnsAreNotWalked() throws Exception
+   {
+    CompressedSparseRatingSource source = create(3, 4).load(new int[] { 0, 2 }, new int[] { 1, 3 },
+                                                            new float[] { 1.0f, 0.0f }, 2);
+    RatingVisitor failing = new RatingVisitor()
+     {
+      public void visit(int index, double value)
+       {
+        fail("Rating " + index + " visited");
+       }
+     };
+    source.walkUserRatings(1, failing);
+    source.walkItemRatings(0, failing);
+    source.walkItemRatings(2, failing);
+
+    assertEquals(Arrays.asList(0, 2), source.getUsersWithRatings());
+    assertEquals(Arrays.asList(1, 3), source.getItemsWithRatings());
+    assertEquals(0, source.getUserSupport(1));
+    assertEquals(0, source.getItemSupport(2));
+    // a zero value is a stored rating
+    assertTrue(source.containsRating(2, 3));
+    assertFalse(source.containsRating(2, 2));
+   }
+
+  @Test
+  public void supportCountsMatchTheStoredCouples()
+   {
+    CompressedSparseRatingSource source = TestRatings.create(30, 12, 0.3, 3);
+    int total = 0;
+    for(int i = 0; i < source.getUsersNumber(); i++)
+     {
+      int support = 0;
+      for(int j = 0; j < source.getItemsNumber(); j++)
+       {
+        if(source.containsRating(i, j))
+         support++;
+       }
+      assertEquals("Support of user " + i, support, source.getUserSupport(i));
+      total += support;
+     }
+    for(int j = 0; j < source.getItemsNumber(); j++)
+     {
+      int support = 0;
+      for(int i = 0; i < source.getUsersNumber(); i++)
+       {
+        if(source.containsRating(i, j))
+         support++;
+       }
+      assertEquals("Support of item " + j, support, source.getItemSupport(j));
+     }
+    assertEquals(total, source.getRatingsNumber());
+   }
+
+  @Test
+  public void sumOfCompressedSourceWithDifferentStructure() throws Exception
+   {
+    CompressedSparseRatingSource source = create(2, 3).load(new int[] { 0, 0, 1 }, new int[] { 0, 1, 2 },
+                                                            new float[] { 1.0f, 2.0f, 3.0f }, 3);
+    CompressedSparseRatingSource other = create(2, 3).load(new int[] { 0, 1, 1 }, new int[] { 1, 0, 2 },
+                                                           new float[] { 0.5f, 0.0f, 1.5f }, 3);
+    assertFalse(source.hasSameStructure(other));
+
+    // the zero rating of a couple that isn't stored is ignored
+    source.sum(other);
+    assertEquals(1.0, source.getRating(0, 0), 0.0);
+    assertEquals(2.5, source.getRating(0, 1), 0.0);
+    assertEquals(4.5, source.getRating(1, 2), 0.0);
+    assertEquals(3, source.getRatingsNumber());
+    assertSameRatings(source, source);
+
+    other.setRating(1, 0, 1.0);
+    try
+     {
+      source.sum(other);
+      fail("A rating not stored in the source has been summed");
+     }
+    catch(UnsupportedOperationException e)
+     {
+      // expected
+     }
+   }
+
+  @Test
+  public void sumOfOtherSource() throws Exception
+   {
+    CompressedSparseRatingSource source = create(2, 3).load(new int[] { 0, 0, 1 }, new int[] { 0, 1, 2 },
+                                                            new float[] { 1.0f, 2.0f, 3.0f }, 3);
+    RealSparseMatrixRatingSource other = new RealSparseMatrixRatingSource();
+    other.init(2, 3);
+    other.setRating(0, 1, 0.5);
+    other.setRating(1, 2, -1.0);
+
+    source.sum(other);
+    assertEquals(1.0, source.getRating(0, 0), 0.0);
+    assertEquals(2.5, source.getRating(0, 1), 0.0);
+    assertEquals(2.0, source.getItemRatings(2).get(1), 0.0);
+    assertSameRatings(source, source);
+   }
+
+  private static CompressedSparseRatingSource create(int usersNumber, int itemsNumber) throws Exception
+   {
+    CompressedSparseRatingSource source = new CompressedSparseRatingSource();
+    source.init(usersNumber, itemsNumber);
+    return source;
+   }
+
+  /**
+   * Checks that the two sources hold the same ratings, walking the users of the
+   * expected source and the items of the actual one, and reading each rating.
+   */
+  static void assertSameRatings(RatingsSource expected, RatingsSource actual)
+   {
+    assertEquals(expected.getUsersNumber(), actual.getUsersNumber());
+    assertEquals(expected.getItemsNumber(), actual.getItemsNumber());
+
+    final Map<Long, Double> byUser = new TreeMap<Long, Double>();
+    for(int i = 0; i < expected.getUsersNumber(); i++)
+     {
+      final long userIndex = i;
+      expected.walkUserRatings(i, new RatingVisitor()
+       {
+        public void visit(int itemIndex, double value)
+         {
+          byUser.put((userIndex << 32) | itemIndex, value);
+         }
+       });
+     }
+
+    final Map<Long, Double> byItem = new TreeMap<Long, Double>();
+    for(int j = 0; j < actual.getItemsNumber(); j++)
+     {
+      final int itemIndex = j;
+      final int[] previous = { -1 };
+      actual.walkItemRatings(j, new RatingVisitor()
+       {
+        public void visit(int userIndex, double value)
+         {
+          assertTrue("Column " + itemIndex + " not sorted", userIndex > previous[0]);
+          previous[0] = userIndex;
+          byItem.put(((long)userIndex << 32) | itemIndex, value);
+         }
+       });
+     }
+    assertEquals(byUser, byItem);
+
+    for(Map.Entry<Long, Double> rating : byUser.entrySet())
+     {
+      int userIndex = (int)(rating.getKey() >>> 32);
+      int itemIndex = (int)(long)rating.getKey();
+      assertEquals("Rating (" + userIndex + ", " + itemIndex + ")", rating.getValue(),
+                   actual.getRating(userIndex, itemIndex), 0.0);
+     }
+   }
+ }
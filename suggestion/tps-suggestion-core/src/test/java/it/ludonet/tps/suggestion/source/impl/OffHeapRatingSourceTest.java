@@ -0,0 +1,109 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import it.ludonet.tps.suggestion.source.RatingChangingVisitor;
+import it.ludonet.tps.suggestion.util.OffHeapMemory;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static it.ludonet.tps.suggestion.source.impl.CompressedSparseRatingSourceTest.assertSameRatings;
+import static org.junit.Assert.assertEquals;
+
+public class OffHeapRatingSourceTest
+ {
+
+  private static final int USERS = 37;
+  private static final int ITEMS = 23;
+
+  @Test
+  public void buildMatchesCompressedSource() throws Exception
+   {
+    // 16 bytes segments: 4 ints or 2 longs each, so that nearly every
+    // access crosses a segment boundary
+    OffHeapMemory memory = new OffHeapMemory();
+    memory.setSegmentBytes(16);
+    checkBuild(memory);
+   }
+
+  @Test
+  public void buildMatchesCompressedSourceOnFile() throws Exception
+   {
+    File file = File.createTempFile("ratings", ".bin");
+    file.deleteOnExit();
+    OffHeapMemory memory = new OffHeapMemory(file);
+    try
+     {
+      memory.setSegmentBytes(64);
+      checkBuild(memory);
+     }
+    finally
+     {
+      memory.close();
+     }
+   }
+
+  private void checkBuild(OffHeapMemory memory) throws Exception
+   {
+    // unsorted rows, with empty rows and duplicated items
+    Random random = new Random(5);
+    int[] rowPointers = new int[USERS + 1];
+    for(int i = 0; i < USERS; i++)
+     rowPointers[i + 1] = rowPointers[i] + (i % 7 == 3 ? 0 : random.nextInt(2 * ITEMS));
+    int ratings = rowPointers[USERS];
+    int[] rowItems = new int[ratings];
+    float[] rowValues = new float[ratings];
+    for(int k = 0; k < ratings; k++)
+     {
+      rowItems[k] = random.nextInt(ITEMS);
+      rowValues[k] = 0.5f * (2 + random.nextInt(9));
+     }
+
+    OffHeapRatingSource offHeap = new OffHeapRatingSource();
+    offHeap.setMemory(memory);
+    offHeap.init(USERS, ITEMS);
+    long[] pointers = new long[USERS + 1];
+    for(int i = 0; i <= USERS; i++)
+     pointers[i] = rowPointers[i];
+    offHeap.allocateRows(pointers);
+    for(int k = 0; k < ratings; k++)
+     offHeap.putRowRating(k, rowItems[k], rowValues[k]);
+    offHeap.build();
+
+    CompressedSparseRatingSource compressed = new CompressedSparseRatingSource();
+    compressed.init(USERS, ITEMS);
+    compressed.loadRows(rowPointers.clone(), rowItems.clone(), rowValues.clone());
+
+    assertEquals(compressed.getRatingsNumber(), offHeap.getRatingsNumber());
+    for(int i = 0; i < USERS; i++)
+     assertEquals("Support of user " + i, compressed.getUserSupport(i), offHeap.getUserSupport(i));
+    for(int j = 0; j < ITEMS; j++)
+     assertEquals("Support of item " + j, compressed.getItemSupport(j), offHeap.getItemSupport(j));
+    assertEquals(compressed.getUsersWithRatings(), offHeap.getUsersWithRatings());
+    assertEquals(compressed.getItemsWithRatings(), offHeap.getItemsWithRatings());
+    assertSameRatings(compressed, offHeap);
+    assertSameRatings(offHeap, compressed);
+
+    // the changes through the columns reach the rows through columnToRow,
+    // and the ones through the rows reach the columns through rowToColumn
+    RatingChangingVisitor increment = new RatingChangingVisitor()
+     {
+      public double visit(int index, double value)
+       {
+        return value + 0.5;
+       }
+     };
+    for(int j = 0; j < ITEMS; j += 2)
+     {
+      compressed.walkItemRatings(j, increment);
+      offHeap.walkItemRatings(j, increment);
+     }
+    for(int i = 0; i < USERS; i += 3)
+     {
+      compressed.walkUserRatings(i, increment);
+      offHeap.walkUserRatings(i, increment);
+     }
+    assertSameRatings(compressed, offHeap);
+    assertSameRatings(offHeap, compressed);
+   }
+ }
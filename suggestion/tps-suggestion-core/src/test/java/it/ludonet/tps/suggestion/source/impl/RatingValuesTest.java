@@ -0,0 +1,107 @@
+package it.ludonet.tps.suggestion.source.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RatingValuesTest
+ {
+
+  private static final int SAMPLES = 100000;
+
+  @Test
+  public void floatRoundTripError()
+   {
+    RatingValues values = RatingStorage.FLOAT.allocate(1);
+    double maxRelativeError = 0.0;
+    for(int s = 0; s < SAMPLES; s++)
+     {
+      double value = -100.0 + 200.0 * s / SAMPLES + 1e-7;
+      values.put(0, (float)value);
+      maxRelativeError = Math.max(maxRelativeError, Math.abs(values.get(0) - value) / Math.abs(value));
+     }
+    assertTrue("Relative error " + maxRelativeError, maxRelativeError <= 6e-8);
+   }
+
+  @Test
+  public void halfStarsAreStoredExactly()
+   {
+    RatingValues values = RatingStorage.HALF_STARS.allocate(1);
+    for(float rating = 1.0f; rating <= 5.0f; rating += 0.5f)
+     {
+      values.put(0, rating);
+      assertEquals(rating, values.get(0), 0.0);
+     }
+   }
+
+  @Test
+  public void halfStarsRoundTripError()
+   {
+    assertQuantizedRoundTrip(RatingStorage.HALF_STARS);
+   }
+
+  @Test
+  public void quantizedBytesRoundTripError()
+   {
+    assertQuantizedRoundTrip(RatingStorage.quantizedBytes(3.0, 0.03));
+   }
+
+  @Test
+  public void quantizedShortsRoundTripError()
+   {
+    assertQuantizedRoundTrip(RatingStorage.quantizedShorts(0.0, 0.001));
+   }
+
+  /**
+   * Checks that the round trip error of the values in the range of the storage is
+   * at most half the step, that the range edges are stored, and that the values
+   * beyond the edges are rejected.
+   */
+  private static void assertQuantizedRoundTrip(RatingStorage storage)
+   {
+    RatingValues values = storage.allocate(1);
+    double step = storage.getStep();
+    double min = storage.getMinValue();
+    double max = storage.getMaxValue();
+    // the dequantized value is a float
+    double tolerance = Math.ulp((float)Math.max(Math.abs(min), Math.abs(max)));
+
+    double maxError = 0.0;
+    for(int s = 0; s <= SAMPLES; s++)
+     {
+      float value = (float)(min + (max - min) * s / SAMPLES);
+      values.put(0, value);
+      maxError = Math.max(maxError, Math.abs(values.get(0) - value));
+     }
+    assertTrue(storage + " error " + maxError, maxError <= step / 2 + tolerance);
+
+    values.put(0, (float)min);
+    assertEquals(min, values.get(0), tolerance);
+    values.put(0, (float)max);
+    assertEquals(max, values.get(0), tolerance);
+
+    // values within half a step from the edges are rounded to them
+    values.put(0, (float)(min - step / 4));
+    assertEquals(min, values.get(0), tolerance);
+    values.put(0, (float)(max + step / 4));
+    assertEquals(max, values.get(0), tolerance);
+
+    assertRejected(values, (float)(min - step));
+    assertRejected(values, (float)(max + step));
+   }
+
+  private static void assertRejected(RatingValues values, float value)
+   {
+    try
+     {
+      values.put(0, value);
+      fail(value + " stored in " + values.getStorage());
+     }
+    catch(IllegalArgumentException e)
+     {
+      // expected
+     }
+   }
+ }
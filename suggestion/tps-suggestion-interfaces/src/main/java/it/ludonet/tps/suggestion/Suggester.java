@@ -60,6 +60,25 @@ public interface Suggester
   public double getPredictedRating(int userIndex, int itemIndex) throws IndexOutOfBoundsException,
                                                                         SuggesterTrainException;
 
+  /**
+   * This method calculates the predicted ratings of a batch of user-item couples.
+   * The result is the same of calling {@link #getPredictedRating(int, int)} for each
+   * couple, but implementations can avoid most of the per-call overhead.
+   *
+   * @param userIndexes The indexes of the users whose ratings must be predicted.
+   * @param itemIndexes The indexes of the items on which the ratings must be predicted,
+   * one for each user index.
+   *
+   * @return The predicted ratings, one for each couple.
+   *
+   * @throws IndexOutOfBoundsException If a user or item index falls outside the
+   * suggester ranges.
+   * @throws SuggesterTrainException If an error occurs during the computation of
+   * the predictions.
+   */
+  public double[] getPredictedRatings(int[] userIndexes, int[] itemIndexes) throws IndexOutOfBoundsException,
+                                                                                   SuggesterTrainException;
+
   /**
    * This method will predict the items an user will like the most. The number of
    * returned items can be specified.
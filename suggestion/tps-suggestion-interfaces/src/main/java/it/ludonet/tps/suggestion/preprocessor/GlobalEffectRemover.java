@@ -31,4 +31,22 @@ public interface GlobalEffectRemover
    */
   public RatingsSource removeEffects(RatingsSource trainingData, boolean needCentering) throws GlobalEffectRemovalException;
 
+  /**
+   * Returns the effect estimated for the couple user-item by the last
+   * {@link #removeEffects(RatingsSource, boolean)} call. Unlike the
+   * "effects" source returned by that method, this method can be called
+   * also for couples that weren't rated in the training data, so it can
+   * be used to predict new ratings.
+   *
+   * @param userIndex The 0-based user index.
+   * @param itemIndex The 0-based item index.
+   *
+   * @return The effect estimated for the couple user-item, or <code>0.0</code>
+   * if no effect could be estimated.
+   *
+   * @throws IndexOutOfBoundsException If the user index or the item index
+   * falls outside the ranges of the last training data.
+   */
+  public double getEffect(int userIndex, int itemIndex) throws IndexOutOfBoundsException;
+
  }
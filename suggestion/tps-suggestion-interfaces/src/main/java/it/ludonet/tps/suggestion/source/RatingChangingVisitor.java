@@ -0,0 +1,22 @@
+package it.ludonet.tps.suggestion.source;
+
+/**
+ * Implementations of this interface can be used to walk
+ * the ratings of a single user or item of a {@link RatingsSource}
+ * and to update them while walking.
+ */
+public interface RatingChangingVisitor
+ {
+
+  /**
+   * This method is called once for each rating of the walked user or item.
+   *
+   * @param index The 0-based index of the rated item (when walking the ratings
+   * of a user) or of the rating user (when walking the ratings of an item).
+   * @param value The current rating value.
+   *
+   * @return The new rating value.
+   */
+  public double visit(int index, double value);
+
+ }
@@ -0,0 +1,20 @@
+package it.ludonet.tps.suggestion.source;
+
+/**
+ * Implementations of this interface can be used to walk
+ * the ratings of a single user or item of a {@link RatingsSource}
+ * without modifying them.
+ */
+public interface RatingVisitor
+ {
+
+  /**
+   * This method is called once for each rating of the walked user or item.
+   *
+   * @param index The 0-based index of the rated item (when walking the ratings
+   * of a user) or of the rating user (when walking the ratings of an item).
+   * @param value The rating value.
+   */
+  public void visit(int index, double value);
+
+ }
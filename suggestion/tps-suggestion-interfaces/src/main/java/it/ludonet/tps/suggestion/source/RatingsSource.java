@@ -72,6 +72,17 @@ public interface RatingsSource
    */
   public RatingsSource setRating(int userIndex, int itemIndex, double newRating) throws IndexOutOfBoundsException;
 
+  /**
+   * Returns the number of ratings of the specified user.
+   *
+   * @param userIndex The 0-based user index.
+   *
+   * @return The number of ratings of the specified user.
+   *
+   * @throws IndexOutOfBoundsException If the user index falls of the source ranges.
+   */
+  public int getUserSupport(int userIndex) throws IndexOutOfBoundsException;
+
   /**
    * Returns a <code>{@link List}&lt;Integer&gt;</code> with the user indexes with at least
    * one valid rating.
@@ -93,6 +104,17 @@ public interface RatingsSource
    */
   public Map<Integer, Double> getUserRatings(int userIndex) throws IndexOutOfBoundsException;
 
+  /**
+   * Returns the number of ratings of the specified item.
+   *
+   * @param itemIndex The 0-based item index.
+   *
+   * @return The number of ratings of the specified item.
+   *
+   * @throws IndexOutOfBoundsException If the item index falls of the source ranges.
+   */
+  public int getItemSupport(int itemIndex) throws IndexOutOfBoundsException;
+
   /**
    * Returns a <code>{@link List}&lt;Integer&gt;</code> with the item indexes with at least
    * one valid rating.
@@ -114,6 +136,56 @@ public interface RatingsSource
    */
   public Map<Integer, Double> getItemRatings(int itemIndex) throws IndexOutOfBoundsException;
 
+  /**
+   * Walks all the ratings of the specified user, in increasing item index order.
+   * Unlike {@link #getUserRatings(int)}, this method doesn't need to allocate
+   * any object for each rating.
+   *
+   * @param userIndex The 0-based user index.
+   * @param visitor The visitor that will receive the item index and the value of
+   * each rating.
+   *
+   * @throws IndexOutOfBoundsException If the user index falls of the source ranges.
+   */
+  public void walkUserRatings(int userIndex, RatingVisitor visitor) throws IndexOutOfBoundsException;
+
+  /**
+   * Walks all the ratings of the specified user, in increasing item index order,
+   * replacing each of them with the value returned by the visitor.
+   *
+   * @param userIndex The 0-based user index.
+   * @param visitor The visitor that will receive the item index and the value of
+   * each rating and that will return its new value.
+   *
+   * @throws IndexOutOfBoundsException If the user index falls of the source ranges.
+   */
+  public void walkUserRatings(int userIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException;
+
+  /**
+   * Walks all the ratings of the specified item, in increasing user index order.
+   * Unlike {@link #getItemRatings(int)}, this method doesn't need to allocate
+   * any object for each rating.
+   *
+   * @param itemIndex The 0-based item index.
+   * @param visitor The visitor that will receive the user index and the value of
+   * each rating.
+   *
+   * @throws IndexOutOfBoundsException If the item index falls of the source ranges.
+   */
+  public void walkItemRatings(int itemIndex, RatingVisitor visitor) throws IndexOutOfBoundsException;
+
+  /**
+   * Walks all the ratings of the specified item, in increasing user index order,
+   * replacing each of them with the value returned by the visitor.
+   *
+   * @param itemIndex The 0-based item index.
+   * @param visitor The visitor that will receive the user index and the value of
+   * each rating and that will return its new value.
+   *
+   * @throws IndexOutOfBoundsException If the item index falls of the source ranges.
+   */
+  public void walkItemRatings(int itemIndex, RatingChangingVisitor visitor) throws IndexOutOfBoundsException;
+
   /**
    * Sums the rating of the provided source with the ones contained in this object.
    *